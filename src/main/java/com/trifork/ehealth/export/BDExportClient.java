@@ -6,6 +6,11 @@ import com.trifork.ehealth.export.future.BDExportFuture;
 import com.trifork.ehealth.export.future.CompletedExportFuture;
 import com.trifork.ehealth.export.future.ErrorExportFuture;
 import com.trifork.ehealth.export.future.OngoingExportFuture;
+import com.trifork.ehealth.export.poll.ExportDurationStore;
+import com.trifork.ehealth.export.poll.PollPlanner;
+import com.trifork.ehealth.export.progress.ExportProgressListener;
+import com.trifork.ehealth.export.progress.ProgressEstimate;
+import com.trifork.ehealth.export.ratelimit.HostRateLimiter;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpRequestInterceptor;
@@ -14,6 +19,7 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.protocol.BasicHttpContext;
 import org.hl7.fhir.r4.model.Parameters;
@@ -21,25 +27,66 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static ca.uhn.fhir.rest.api.Constants.STATUS_HTTP_200_OK;
 import static ca.uhn.fhir.rest.api.Constants.STATUS_HTTP_202_ACCEPTED;
 
 public class BDExportClient {
+    private static final double DEFAULT_REQUESTS_PER_SECOND = 10;
+    private static final int DEFAULT_BURST = 10;
+
     private final FhirContext fhirContext;
     private final HttpClient httpClient;
+    private final HostRateLimiter rateLimiter;
+    private ExportDurationStore durationStore;
 
     private final List<HttpRequestInterceptor> interceptors = new ArrayList<>();
+    private final List<ExportProgressListener> progressListeners = new CopyOnWriteArrayList<>();
 
     private static final Logger logger = LoggerFactory.getLogger(BDExportClient.class);
 
+    /**
+     * A client with a rate limiter of its own, which limits the requests to every host to 10 per second, in bursts of
+     * at most 10. Use {@link #BDExportClient(FhirContext, HttpClient, HostRateLimiter)} for another budget, or to share
+     * the budget with a {@link BDExportConverter}.
+     *
+     * @param fhirContext the FHIR context
+     * @param httpClient  the client used for every request
+     */
     public BDExportClient(FhirContext fhirContext, HttpClient httpClient) {
+        this(fhirContext, httpClient, new HostRateLimiter(DEFAULT_REQUESTS_PER_SECOND, DEFAULT_BURST));
+    }
+
+    /**
+     * @param fhirContext the FHIR context
+     * @param httpClient  the client used for every request
+     * @param rateLimiter limits the requests of every export started or resumed by this client,
+     *                    and can be shared with a {@link BDExportConverter}, to include the downloads
+     */
+    public BDExportClient(FhirContext fhirContext, HttpClient httpClient, HostRateLimiter rateLimiter) {
         this.fhirContext = fhirContext;
         this.httpClient = httpClient;
+        this.rateLimiter = rateLimiter;
+    }
+
+    public HostRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Record how long every export initiated by this client takes, and poll the next export of the same kind around
+     * its predicted completion, instead of every Retry-After.
+     */
+    public BDExportClient setDurationStore(ExportDurationStore durationStore) {
+        this.durationStore = durationStore;
+        return this;
     }
 
     /**
@@ -57,9 +104,18 @@ public class BDExportClient {
         HttpPost httpRequest = buildHttpRequest(exportUri, body);
 
         logger.info("Initiating a 'Bulk Data Export' at: " + exportUri);
-        HttpResponse response = httpClient.execute(httpRequest);
+        Instant startedAt = Instant.now();
+        HttpResponse response = execute(httpRequest);
 
         URI contentLocation = BDExportUtils.extractContentLocation(response).orElse(exportUri);
+        if (durationStore != null && BDExportUtils.extractStatusCode(response) == STATUS_HTTP_202_ACCEPTED) {
+            PollPlanner pollPlanner = new PollPlanner(durationStore, request.fingerprint(fhirContext), startedAt);
+            pollPlanner.getPredictedDuration()
+                    .ifPresent(d -> logger.info("Export at '" + exportUri + "' is predicted to complete in: " + d));
+
+            return new OngoingExportFuture(this, contentLocation, new CancellationToken(), pollPlanner);
+        }
+
         return createFuture(response, contentLocation);
     }
 
@@ -98,6 +154,28 @@ public class BDExportClient {
         interceptors.add(interceptor);
     }
 
+    /**
+     * Add a listener, that is notified of the progress of every ongoing export of this client
+     *
+     * @param listener the listener to add
+     */
+    public void addProgressListener(ExportProgressListener listener) {
+        progressListeners.add(listener);
+    }
+
+    /**
+     * Publish the progress of an ongoing export to the listeners, where a failing listener does not stop the export
+     */
+    public void notifyProgress(URI contentLocation, ProgressEstimate estimate) {
+        for (ExportProgressListener listener : progressListeners) {
+            try {
+                listener.onProgress(contentLocation, estimate);
+            } catch (RuntimeException e) {
+                logger.warn("Progress listener failed for export '" + contentLocation + "'", e);
+            }
+        }
+    }
+
     /**
      * Cancel a Bulk Data Export, given a polling location.
      *
@@ -111,7 +189,7 @@ public class BDExportClient {
 
         processInterceptors(request);
 
-        HttpResponse response = httpClient.execute(request);
+        HttpResponse response = execute(request);
         if (BDExportUtils.extractStatusCode(response) != STATUS_HTTP_202_ACCEPTED) {
             throw new RuntimeException("Failed to cancel export: " + response.getStatusLine().getReasonPhrase());
         }
@@ -127,13 +205,41 @@ public class BDExportClient {
      * @throws IOException
      */
     public HttpResponse poll(URI contentLocation) throws IOException {
+        return poll(contentLocation, new CancellationToken());
+    }
+
+    /**
+     * Poll an ongoing bulk data export, where the request is aborted if the token is cancelled
+     *
+     * @param contentLocation   - URI of the status for the ongoing export
+     * @param cancellationToken aborts the request
+     * @return the HTTP response
+     * @throws IOException also when the request was aborted
+     */
+    public HttpResponse poll(URI contentLocation, CancellationToken cancellationToken) throws IOException {
         HttpGet request = new HttpGet(contentLocation);
 
         logger.info("Polling status at '" + contentLocation + "'");
 
         processInterceptors(request);
 
-        return httpClient.execute(request);
+        try (CancellationToken.Registration ignored = cancellationToken.register(request::abort)) {
+            return execute(request);
+        }
+    }
+
+    private HttpResponse execute(HttpUriRequest request) throws IOException {
+        try {
+            rateLimiter.acquire(request.getURI());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to request '" + request.getURI() + "'");
+        }
+
+        HttpResponse response = httpClient.execute(request);
+        rateLimiter.onResponse(request.getURI(), BDExportUtils.extractStatusCode(response), BDExportUtils.extractRetryAfter(response));
+
+        return response;
     }
 
     private void processInterceptors(HttpRequest request) {
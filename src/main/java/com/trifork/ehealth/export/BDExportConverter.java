@@ -1,24 +1,130 @@
 package com.trifork.ehealth.export;
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.HookParams;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpRequest;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.api.IRestfulClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.trifork.ehealth.export.cache.BinaryCache;
+import com.trifork.ehealth.export.cache.LruBinaryCache;
+import com.trifork.ehealth.export.ndjson.NdjsonLineFilter;
+import com.trifork.ehealth.export.ndjson.NdjsonReader;
+import com.trifork.ehealth.export.ratelimit.HostRateLimiter;
 import com.trifork.ehealth.export.response.BDExportResourceResult;
 import com.trifork.ehealth.export.response.BDExportResultResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Binary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
  * Take a BDExportCompleteResult's items, and convert it to FHIR resources, by fetching the content from the result urls.
  */
 public class BDExportConverter {
+    private static final long DEFAULT_CACHE_SIZE_IN_BYTES = 256L * 1024 * 1024;
+    private static final int MAX_THROTTLED_ATTEMPTS = 5;
+    /**
+     * The last byte of a range, that reaches to the end of the file
+     */
+    protected static final long OPEN_ENDED = -1;
+    private static final int STATUS_HTTP_206_PARTIAL_CONTENT = 206;
+    private static final int STATUS_HTTP_406_NOT_ACCEPTABLE = 406;
+    private static final int STATUS_HTTP_415_UNSUPPORTED_MEDIA_TYPE = 415;
+    private static final String HEADER_RANGE = "Range";
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+
+    /**
+     * Content types of a FHIR resource, which a server responds with, when it wraps the output in a Binary.
+     */
+    private static final Set<String> RESOURCE_CONTENT_TYPES = Set.of(
+            Constants.CT_FHIR_JSON_NEW,
+            Constants.CT_FHIR_JSON,
+            Constants.CT_FHIR_XML_NEW,
+            Constants.CT_FHIR_XML
+    );
+
     private final IGenericClient hapiFhirClient;
+    private final BinaryCache cache;
+    private final ThreadLocal<NdjsonReader> readers = ThreadLocal.withInitial(NdjsonReader::new);
+    private boolean rawDownload = true;
+    private HostRateLimiter rateLimiter;
+
+    private static final Logger logger = LoggerFactory.getLogger(BDExportConverter.class);
 
     public BDExportConverter(IGenericClient hapiFhirClient) {
+        this(hapiFhirClient, new LruBinaryCache(DEFAULT_CACHE_SIZE_IN_BYTES));
+    }
+
+    /**
+     * @param hapiFhirClient the client used to fetch the output
+     * @param cache          holds the output fetched by lazily converted results
+     */
+    public BDExportConverter(IGenericClient hapiFhirClient, BinaryCache cache) {
         this.hapiFhirClient = hapiFhirClient;
+        this.cache = cache;
+    }
+
+    /**
+     * Choose how output files are fetched. By default, they are downloaded as raw NDJSON with
+     * <code>Accept: application/fhir+ndjson</code>, and only read as a FHIR Binary resource if the server refuses the
+     * content type with 406 or 415, or responds with a FHIR resource anyway. Other errors are thrown.
+     * Reading a Binary makes the server base64 encode the file inside JSON, which is a third larger,
+     * and must be decoded into another copy on the client.
+     *
+     * @param rawDownload false to always read output files as Binary resources
+     */
+    public BDExportConverter setRawDownload(boolean rawDownload) {
+        this.rawDownload = rawDownload;
+        return this;
+    }
+
+    /**
+     * Limit the rate of downloads, and back off when the server responds with 429 or 503.
+     * Share the limiter of the {@link BDExportClient}, to keep polls and downloads within the same budget.
+     *
+     * @param rateLimiter the limiter, or null to download without limits
+     */
+    public BDExportConverter setRateLimiter(HostRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * @return true if downloads throttled with 429 or 503 are retried by the converter, after waiting for its rate
+     * limiter, so callers should not retry them again
+     */
+    public boolean isRetryingThrottled() {
+        return rateLimiter != null;
     }
 
+    /**
+     * Convert a result, by fetching every output and error file up front.
+     */
     public BDExportResourceResult convert(BDExportResultResponse result) {
         return new BDExportResourceResult(
                 result.getTransactionTime(),
@@ -30,6 +136,22 @@ public class BDExportConverter {
         );
     }
 
+    /**
+     * Convert a result, where every output and error file is only fetched when
+     * {@link BDExportResourceResult.ResourceItem#getResource()} is called.
+     * The fetched content is held by the cache of this converter, and is fetched again if it has been evicted.
+     */
+    public BDExportResourceResult convertLazily(BDExportResultResponse result) {
+        return new BDExportResourceResult(
+                result.getTransactionTime(),
+                result.getRequest(),
+                result.isRequiresAccessToken(),
+                convertToLazyResourceItems(result.getOutput()),
+                convertToLazyResourceItems(result.getError()),
+                result.getMessage()
+        );
+    }
+
     protected List<BDExportResourceResult.ResourceItem> convertToResourceItems(
             List<BDExportResultResponse.OutputItem> outputItems
     ) {
@@ -45,10 +167,580 @@ public class BDExportConverter {
         return new BDExportResourceResult.ResourceItem(output.getType(), binary);
     }
 
+    protected List<BDExportResourceResult.ResourceItem> convertToLazyResourceItems(
+            List<BDExportResultResponse.OutputItem> outputItems
+    ) {
+        if (outputItems == null || outputItems.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        return outputItems.stream().map(this::convertToLazyResourceItem).collect(Collectors.toList());
+    }
+
+    protected BDExportResourceResult.ResourceItem convertToLazyResourceItem(BDExportResultResponse.OutputItem output) {
+        String url = output.getUrl();
+        return new BDExportResourceResult.ResourceItem(output.getType(), url, () -> cache.get(url, this::fetchBinary));
+    }
+
+    /**
+     * Fetch the content of a single output or error file.
+     *
+     * @param output the output item of a completed export
+     * @return the content of the file
+     */
+    public Binary fetch(BDExportResultResponse.OutputItem output) {
+        return fetchBinary(output.getUrl());
+    }
+
+    /**
+     * Fetch the content of a single output or error file, where the download is aborted if the token is cancelled.
+     *
+     * @param output            the output item of a completed export
+     * @param cancellationToken aborts the download
+     * @return the content of the file
+     * @throws java.util.concurrent.CancellationException if the token was cancelled
+     */
+    public Binary fetch(BDExportResultResponse.OutputItem output, CancellationToken cancellationToken) {
+        return fetchBinary(output.getUrl(), cancellationToken);
+    }
+
+    /**
+     * Fetch a single output file, and parse the lines accepted by the filter.
+     * Every line is scanned for its resourceType, id and meta first, so rejected lines are never parsed.
+     *
+     * @param output   the output item of a completed export
+     * @param filter   decides which lines to parse
+     * @param consumer receives the parsed resources, in the order of the file
+     * @return the number of resources parsed
+     */
+    public long forEachResource(
+            BDExportResultResponse.OutputItem output,
+            NdjsonLineFilter filter,
+            Consumer<IBaseResource> consumer
+    ) {
+        return forEachResource(output, filter, consumer, new CancellationToken());
+    }
+
+    /**
+     * Same as {@link #forEachResource(BDExportResultResponse.OutputItem, NdjsonLineFilter, Consumer)},
+     * where the download is aborted if the token is cancelled.
+     *
+     * @throws java.util.concurrent.CancellationException if the token was cancelled
+     */
+    public long forEachResource(
+            BDExportResultResponse.OutputItem output,
+            NdjsonLineFilter filter,
+            Consumer<IBaseResource> consumer,
+            CancellationToken cancellationToken
+    ) {
+        IParser parser = hapiFhirClient.getFhirContext().newJsonParser();
+        long[] parsed = {0};
+
+        try (InputStream in = openStream(output, cancellationToken)) {
+            readers.get().forEachLine(in, header -> {
+                if (filter.accept(header)) {
+                    consumer.accept(parser.parseResource(header.lineAsString()));
+                    parsed[0]++;
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read output " + output.getUrl(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while reading output " + output.getUrl(), e);
+        }
+
+        return parsed[0];
+    }
+
+    /**
+     * Open the content of a single output or error file, as it is downloaded.
+     * The caller must close the stream, to release the connection.
+     *
+     * @param output the output item of a completed export
+     * @return the raw NDJSON content of the file
+     */
+    public InputStream openStream(BDExportResultResponse.OutputItem output) {
+        return openStream(output, new CancellationToken());
+    }
+
+    /**
+     * Open the content of a single output or error file, as it is downloaded.
+     * Cancelling the token closes the connection, and fails every following read with a
+     * {@link java.util.concurrent.CancellationException}.
+     *
+     * @param output            the output item of a completed export
+     * @param cancellationToken aborts the download
+     * @return the raw NDJSON content of the file
+     */
+    public InputStream openStream(BDExportResultResponse.OutputItem output, CancellationToken cancellationToken) {
+        return openStream(output.getUrl(), cancellationToken);
+    }
+
+    /**
+     * Open the content of a single output file from a byte offset, as it is downloaded. The offset is requested with a
+     * range request, and skipped on the client if the server does not support ranges.
+     *
+     * @param output            the output item of a completed export
+     * @param fromByte          the offset of the first byte to read
+     * @param cancellationToken aborts the download
+     * @return the raw NDJSON content of the file, from the offset
+     */
+    public InputStream openStream(BDExportResultResponse.OutputItem output, long fromByte, CancellationToken cancellationToken) {
+        if (fromByte == 0) {
+            return openStream(output, cancellationToken);
+        }
+
+        return openStream(output.getUrl(), fromByte, cancellationToken);
+    }
+
+    /**
+     * Open a range of bytes of a single output file, as it is downloaded. The range is requested with a range request,
+     * and cut out on the client if the server does not support ranges. The stream ends early at the end of the file.
+     *
+     * @param output            the output item of a completed export
+     * @param fromByte          the offset of the first byte to read
+     * @param toByte            the offset of the last byte to read
+     * @param cancellationToken aborts the download
+     * @return the raw NDJSON content of the range
+     */
+    public InputStream openStream(BDExportResultResponse.OutputItem output, long fromByte, long toByte, CancellationToken cancellationToken) {
+        if (toByte < fromByte) {
+            throw new IllegalArgumentException("Range ends before it starts: " + fromByte + "-" + toByte);
+        }
+
+        return openStream(output.getUrl(), fromByte, toByte, cancellationToken);
+    }
+
+    /**
+     * Find the size of an output file, and whether it can be downloaded in ranges, by requesting its first two bytes.
+     * The HTTP transport of HAPI FHIR cannot send HEAD requests, and a range request also tells if the server supports
+     * ranges, and if the file is gzipped.
+     *
+     * @param output            the output item of a completed export
+     * @param cancellationToken aborts the request
+     * @return what the server revealed, or {@link OutputProbe#UNKNOWN} if the file is not downloaded as raw NDJSON
+     */
+    public OutputProbe probe(BDExportResultResponse.OutputItem output, CancellationToken cancellationToken) {
+        cancellationToken.throwIfCancelled();
+        if (!rawDownload) {
+            return OutputProbe.UNKNOWN;
+        }
+
+        String url = output.getUrl();
+        URI uri = URI.create(url);
+        acquire(uri);
+
+        IHttpRequest request = createRawRequest(url);
+        request.addHeader(HEADER_RANGE, "bytes=0-1");
+
+        IHttpResponse response;
+        try (CancellationToken.Registration ignored = cancellationToken.register(() -> abort(request))) {
+            response = request.execute();
+        } catch (IOException e) {
+            cancellationToken.throwIfCancelled();
+            logger.info("Failed to probe output '" + url + "': " + e.getMessage());
+            return OutputProbe.UNKNOWN;
+        }
+
+        try {
+            int status = response.getStatus();
+            onResponse(uri, status, retryAfterOf(response));
+
+            String mimeType = response.getMimeType();
+            if (status < 200 || status > 299 || (mimeType != null && RESOURCE_CONTENT_TYPES.contains(mimeType))) {
+                return OutputProbe.UNKNOWN;
+            }
+
+            byte[] head;
+            try (InputStream in = response.readEntity()) {
+                head = in == null ? new byte[0] : in.readNBytes(2);
+            }
+            boolean gzipped = head.length == 2 && (head[0] & 0xff) == 0x1f && (head[1] & 0xff) == 0x8b;
+
+            if (status == STATUS_HTTP_206_PARTIAL_CONTENT) {
+                return new OutputProbe(totalLengthOf(header(response, HEADER_CONTENT_RANGE)), true, gzipped);
+            }
+
+            // The server ignored the range, and started sending the whole file
+            String contentLength = header(response, HEADER_CONTENT_LENGTH);
+            return new OutputProbe(contentLength == null ? -1 : parseLength(contentLength), false, gzipped);
+        } catch (IOException e) {
+            cancellationToken.throwIfCancelled();
+            logger.info("Failed to probe output '" + url + "': " + e.getMessage());
+            return OutputProbe.UNKNOWN;
+        } finally {
+            response.close();
+        }
+    }
+
+    protected InputStream openStream(String url, CancellationToken cancellationToken) {
+        return openStream(url, 0, cancellationToken);
+    }
+
+    protected InputStream openStream(String url, long fromByte, CancellationToken cancellationToken) {
+        return openStream(url, fromByte, OPEN_ENDED, cancellationToken);
+    }
+
+    /**
+     * @param toByte the offset of the last byte to read, or {@link #OPEN_ENDED} for the rest of the file
+     */
+    protected InputStream openStream(String url, long fromByte, long toByte, CancellationToken cancellationToken) {
+        cancellationToken.throwIfCancelled();
+
+        if (rawDownload) {
+            try {
+                InputStream in = openRawStream(url, fromByte, toByte, cancellationToken);
+                if (in != null) {
+                    return in;
+                }
+            } catch (IOException e) {
+                cancellationToken.throwIfCancelled();
+                throw new RuntimeException("Failed to download output " + url, e);
+            }
+        }
+
+        Binary binary = readBinary(url);
+        cancellationToken.throwIfCancelled();
+
+        byte[] data = binary.getData() == null ? new byte[0] : binary.getData();
+        int from = (int) Math.min(fromByte, data.length);
+        int to = toByte == OPEN_ENDED ? data.length : (int) Math.min(toByte + 1, data.length);
+        return new ByteArrayInputStream(data, from, to - from);
+    }
+
     protected Binary fetchBinary(String url) {
-        return hapiFhirClient.read()
-                .resource(Binary.class)
-                .withUrl(url)
-                .execute();
+        return fetchBinary(url, new CancellationToken());
+    }
+
+    protected Binary fetchBinary(String url, CancellationToken cancellationToken) {
+        try (InputStream in = openStream(url, cancellationToken)) {
+            return new Binary().setContentType(Constants.CT_FHIR_NDJSON).setData(in.readAllBytes());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to download output " + url, e);
+        }
+    }
+
+    /**
+     * Read an output file as a FHIR Binary resource.
+     */
+    protected Binary readBinary(String url) {
+        URI uri = URI.create(url);
+        acquire(uri);
+
+        try {
+            Binary binary = hapiFhirClient.read()
+                    .resource(Binary.class)
+                    .withUrl(url)
+                    .execute();
+            onResponse(uri, 200, Optional.empty());
+
+            return binary;
+        } catch (BaseServerResponseException e) {
+            onResponse(uri, e.getStatusCode(), Optional.empty());
+            throw e;
+        }
+    }
+
+    /**
+     * Download an output file over the HTTP transport of the HAPI FHIR client, so the interceptors of the client,
+     * e.g. for authentication, still apply.
+     *
+     * @return the raw content, or null if the server refused to send raw NDJSON
+     */
+    private InputStream openRawStream(String url, long fromByte, long toByte, CancellationToken cancellationToken) throws IOException {
+        URI uri = URI.create(url);
+
+        for (int attempt = 1; ; attempt++) {
+            acquire(uri);
+            cancellationToken.throwIfCancelled();
+
+            IHttpRequest request = createRawRequest(url);
+            if (fromByte > 0 || toByte != OPEN_ENDED) {
+                request.addHeader(HEADER_RANGE, "bytes=" + fromByte + "-" + (toByte == OPEN_ENDED ? "" : toByte));
+            }
+
+            IHttpResponse response;
+            try (CancellationToken.Registration ignored = cancellationToken.register(() -> abort(request))) {
+                response = request.execute();
+            }
+
+            int status = response.getStatus();
+            onResponse(uri, status, retryAfterOf(response));
+
+            if (!HostRateLimiter.isThrottled(status) || rateLimiter == null || attempt == MAX_THROTTLED_ATTEMPTS) {
+                InputStream in = readRawResponse(url, response, cancellationToken);
+                if (in != null && status != STATUS_HTTP_206_PARTIAL_CONTENT) {
+                    // The server ignored the range
+                    skipFully(in, fromByte);
+                    if (toByte != OPEN_ENDED) {
+                        in = new RangeLimitedInputStream(in, toByte - fromByte + 1);
+                    }
+                }
+
+                return in;
+            }
+
+            logger.info("Download of '" + url + "' was throttled with " + status + ", retrying");
+            response.close();
+        }
+    }
+
+    private IHttpRequest createRawRequest(String url) {
+        FhirContext fhirContext = hapiFhirClient.getFhirContext();
+        IHttpClient httpClient = fhirContext.getRestfulClientFactory()
+                .getHttpClient(new StringBuilder(url), null, null, RequestTypeEnum.GET, null);
+
+        IHttpRequest request = httpClient.createGetRequest(fhirContext, EncodingEnum.JSON);
+        request.removeHeaders(Constants.HEADER_ACCEPT);
+        request.addHeader(Constants.HEADER_ACCEPT, Constants.CT_FHIR_NDJSON);
+
+        IInterceptorService interceptorService = hapiFhirClient.getInterceptorService();
+        if (interceptorService != null) {
+            interceptorService.callHooks(Pointcut.CLIENT_REQUEST, new HookParams()
+                    .add(IHttpRequest.class, request)
+                    .add(IRestfulClient.class, hapiFhirClient));
+        }
+
+        return request;
+    }
+
+    /**
+     * Abort a request, that is waiting for its response. Only the Apache transport of HAPI FHIR supports this,
+     * other transports are only aborted once the response has arrived.
+     */
+    private static void abort(IHttpRequest request) {
+        if (request instanceof ApacheHttpRequest) {
+            ((ApacheHttpRequest) request).getApacheRequest().abort();
+        }
+    }
+
+    /**
+     * @return the raw content, or null if the server refused to send raw NDJSON
+     * @throws BaseServerResponseException if the server responded with any other error
+     */
+    private InputStream readRawResponse(String url, IHttpResponse response, CancellationToken cancellationToken) throws IOException {
+        FhirContext fhirContext = hapiFhirClient.getFhirContext();
+        int status = response.getStatus();
+
+        if (status == STATUS_HTTP_406_NOT_ACCEPTABLE || status == STATUS_HTTP_415_UNSUPPORTED_MEDIA_TYPE) {
+            logger.info("Server responded with " + status + " to a raw download of '" + url + "', reading it as a Binary");
+            response.close();
+            return null;
+        }
+
+        if (status < 200 || status > 299) {
+            String retryAfter = header(response, Constants.HEADER_RETRY_AFTER);
+            response.close();
+
+            BaseServerResponseException exception = BaseServerResponseException.newInstance(status, "Failed to download output '" + url + "', server responded with " + status);
+            if (retryAfter != null) {
+                // So a caller retrying a throttled download waits as long as the server asked
+                exception.addResponseHeader(Constants.HEADER_RETRY_AFTER, retryAfter);
+            }
+            throw exception;
+        }
+
+        String mimeType = response.getMimeType();
+        if (mimeType != null && RESOURCE_CONTENT_TYPES.contains(mimeType)) {
+            // The server ignored the Accept header, and sent the Binary resource anyway
+            try {
+                EncodingEnum encoding = EncodingEnum.forContentType(mimeType);
+                Binary binary = encoding.newParser(fhirContext).parseResource(Binary.class, response.createReader());
+                return new ByteArrayInputStream(binary.getData() == null ? new byte[0] : binary.getData());
+            } finally {
+                response.close();
+            }
+        }
+
+        CancellationToken.Registration registration = cancellationToken.register(response::close);
+        return new ResponseInputStream(response.readEntity(), response, registration, cancellationToken);
+    }
+
+    private void acquire(URI uri) {
+        if (rateLimiter == null) {
+            return;
+        }
+
+        try {
+            rateLimiter.acquire(uri);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting to download '" + uri + "'", e);
+        }
+    }
+
+    private void onResponse(URI uri, int status, Optional<Duration> retryAfter) {
+        if (rateLimiter != null) {
+            rateLimiter.onResponse(uri, status, retryAfter);
+        }
+    }
+
+    private static Optional<Duration> retryAfterOf(IHttpResponse response) {
+        String value = header(response, Constants.HEADER_RETRY_AFTER);
+        return value == null ? Optional.empty() : BDExportUtils.parseRetryAfter(value);
+    }
+
+    private static String header(IHttpResponse response, String name) {
+        List<String> values = response.getHeaders(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * @return the complete length of a <code>Content-Range: bytes 0-1/12345</code>, or -1 if unknown
+     */
+    private static long totalLengthOf(String contentRange) {
+        int slash = contentRange == null ? -1 : contentRange.lastIndexOf('/');
+        return slash < 0 ? -1 : parseLength(contentRange.substring(slash + 1));
+    }
+
+    private static long parseLength(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void skipFully(InputStream in, long bytes) throws IOException {
+        long remaining = bytes;
+        try {
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new IOException("Output ended before the offset " + bytes);
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the connection of the response, when the stream is closed. A stream closed before its end closes the
+     * connection, instead of reading the rest of the response to reuse it, which may be the rest of a large file.
+     * Reads, that fail because the download was cancelled, throw a {@link CancellationException}.
+     */
+    private static class ResponseInputStream extends FilterInputStream {
+        private final IHttpResponse response;
+        private final CancellationToken.Registration registration;
+        private final CancellationToken cancellationToken;
+        private boolean eof;
+
+        private ResponseInputStream(
+                InputStream in,
+                IHttpResponse response,
+                CancellationToken.Registration registration,
+                CancellationToken cancellationToken
+        ) {
+            super(in);
+            this.response = response;
+            this.registration = registration;
+            this.cancellationToken = cancellationToken;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                int read = super.read();
+                eof = read < 0;
+                return read;
+            } catch (IOException e) {
+                throw cancelledOr(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                int read = super.read(b, off, len);
+                eof = read < 0;
+                return read;
+            } catch (IOException e) {
+                throw cancelledOr(e);
+            }
+        }
+
+        private IOException cancelledOr(IOException e) {
+            cancellationToken.throwIfCancelled();
+            return e;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                registration.close();
+                if (eof) {
+                    super.close();
+                }
+            } catch (IOException e) {
+                // The stream of an aborted download may fail to close, but the connection is released below
+                if (!cancellationToken.isCancelled()) {
+                    throw e;
+                }
+            } finally {
+                response.close();
+            }
+        }
+    }
+
+    /**
+     * Cuts a range out of the response of a server, that ignored the range request.
+     */
+    private static class RangeLimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        private RangeLimitedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int read = super.read();
+            if (read >= 0) {
+                remaining--;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
     }
 }
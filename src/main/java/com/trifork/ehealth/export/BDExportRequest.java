@@ -8,6 +8,7 @@ import org.hl7.fhir.r4.model.ResourceType;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.stream.Collectors;
@@ -55,6 +56,21 @@ public class BDExportRequest {
         return this;
     }
 
+    /**
+     * Create a request for a part of this export: the same export URI, output format and since, but other types and
+     * type filters.
+     */
+    public BDExportRequest partition(List<ResourceType> types, List<BDExportTypeFilter> typeFilters) {
+        BDExportRequest partition = new BDExportRequest(exportUri).setOutputFormat(outputFormat);
+        if (since != null) {
+            partition.setSince(since);
+        }
+        types.forEach(partition::addType);
+        typeFilters.forEach(partition::addTypeFilter);
+
+        return partition;
+    }
+
     public static BDExportRequest createPatientExportRequest(URI baseFhirUri) {
         return new BDExportRequest(resolve(baseFhirUri, "./Patient/$export"));
     }
@@ -104,4 +120,36 @@ public class BDExportRequest {
     public URI getExportUri() {
         return exportUri;
     }
+
+    public String getOutputFormat() {
+        return outputFormat;
+    }
+
+    public InstantType getSince() {
+        return since;
+    }
+
+    public List<ResourceType> getTypes() {
+        return Collections.unmodifiableList(types);
+    }
+
+    public List<BDExportTypeFilter> getTypeFilters() {
+        return Collections.unmodifiableList(typeFilters);
+    }
+
+    /**
+     * Identifies the exports, that are expected to take about as long as this one: the export URI, the output format,
+     * whether only changes are exported, and the types and type filters, regardless of their order.
+     */
+    public String fingerprint(FhirContext fhirContext) {
+        String typeString = types.stream().map(ResourceType::name)
+                .sorted()
+                .collect(Collectors.joining(","));
+        String typeFilterString = typeFilters.stream()
+                .map(typeFilter -> typeFilter.toTypeFilterString(fhirContext))
+                .sorted()
+                .collect(Collectors.joining(","));
+
+        return exportUri + "|" + outputFormat + "|" + (since != null ? "since" : "all") + "|" + typeString + "|" + typeFilterString;
+    }
 }
@@ -25,6 +25,17 @@ public class BDExportTypeFilter {
         return this;
     }
 
+    public ResourceType getResourceType() {
+        return resourceType;
+    }
+
+    /**
+     * @return the queries of this filter, which must all match
+     */
+    public List<Query> getQueries() {
+        return Collections.unmodifiableList(queries);
+    }
+
     public String toTypeFilterString(FhirContext fhirContext) {
         StringBuilder builder = new StringBuilder();
         builder.append(resourceType.name());
@@ -41,7 +52,7 @@ public class BDExportTypeFilter {
         return builder.toString();
     }
 
-    static class Query {
+    public static class Query {
         private String paramName;
         private IQueryParameterType paramQuery;
 
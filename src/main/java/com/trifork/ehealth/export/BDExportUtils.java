@@ -1,11 +1,19 @@
 package com.trifork.ehealth.export;
 
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 
 import java.net.URI;
+import java.time.Duration;
 import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 
 public class BDExportUtils {
@@ -25,19 +33,63 @@ public class BDExportUtils {
     }
 
     public static Optional<Integer> extractRetryAfterInSeconds(HttpResponse response) {
+        return extractRetryAfter(response).map(duration -> (int) duration.toSeconds());
+    }
+
+    public static Optional<Duration> extractRetryAfter(HttpResponse response) {
         Header[] retryHeaders = response.getHeaders("retry-after");
         if (retryHeaders.length > 0) {
-            String duration = retryHeaders[0].getValue();
-            try {
-                return Optional.of(Integer.parseInt(duration));
-            } catch (NumberFormatException e) {
-                // TODO: Handle dates instead.
+            return parseRetryAfter(retryHeaders[0].getValue());
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * @return the Retry-After of a response, that failed a request of the HAPI FHIR client
+     */
+    public static Optional<Duration> extractRetryAfter(BaseServerResponseException e) {
+        Map<String, List<String>> headers = e.getResponseHeaders();
+        if (headers == null) {
+            return Optional.empty();
+        }
+
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if ("retry-after".equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                return parseRetryAfter(header.getValue().get(0));
             }
         }
 
         return Optional.empty();
     }
 
+    /**
+     * Parse a Retry-After header, which is either a number of seconds, or an HTTP-date.
+     *
+     * @param value the value of the header
+     * @return the time to wait, which is zero for dates in the past
+     */
+    public static Optional<Duration> parseRetryAfter(String value) {
+        if (value == null || value.isBlank()) {
+            return Optional.empty();
+        }
+
+        String trimmed = value.trim();
+        try {
+            return Optional.of(Duration.ofSeconds(Math.max(0, Long.parseLong(trimmed))));
+        } catch (NumberFormatException e) {
+            // Not a number of seconds, so it should be a date
+        }
+
+        try {
+            Instant retryAt = ZonedDateTime.parse(trimmed, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            Duration duration = Duration.between(Instant.now(), retryAt);
+            return Optional.of(duration.isNegative() ? Duration.ZERO : duration);
+        } catch (DateTimeParseException e) {
+            return Optional.empty();
+        }
+    }
+
     public static Instant evaluateNextAllowedPollTime(Integer retryAfterInSeconds) {
         return Instant.now().plus(retryAfterInSeconds, ChronoUnit.SECONDS);
     }
@@ -55,4 +107,20 @@ public class BDExportUtils {
     public static int extractStatusCode(HttpResponse response) {
         return response.getStatusLine().getStatusCode();
     }
+
+    /**
+     * @return the scheme, host and port of the URI, which identify the server, that the rate limits and export slots
+     * are shared on. The scheme and host are lower-cased, and an implicit port is the default port of the scheme, so
+     * every way of writing the same server gets the same key.
+     */
+    public static String serverKeyOf(URI uri) {
+        String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.ROOT);
+        String host = uri.getHost() == null ? "" : uri.getHost().toLowerCase(Locale.ROOT);
+        int port = uri.getPort();
+        if (port < 0) {
+            port = "https".equals(scheme) ? 443 : "http".equals(scheme) ? 80 : -1;
+        }
+
+        return scheme + "://" + host + ":" + port;
+    }
 }
@@ -0,0 +1,101 @@
+package com.trifork.ehealth.export;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cancels the work of an export from any thread, by aborting the HTTP requests and downloads registered with it.
+ * <p>
+ * Aborting a request closes its connection right away, instead of reading the rest of the response,
+ * so the thread blocked on it fails immediately, and the capacity is available for other exports.
+ */
+public class CancellationToken {
+    private final Set<Registration> registrations = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    private static final Logger logger = LoggerFactory.getLogger(CancellationToken.class);
+
+    /**
+     * Register an action, that aborts work in progress, e.g. an open HTTP request.
+     * If the token is already cancelled, the action runs right away.
+     *
+     * @param abortAction aborts the work
+     * @return the registration, which must be closed when the work is done
+     */
+    public Registration register(Runnable abortAction) {
+        Registration registration = new Registration(abortAction);
+        registrations.add(registration);
+
+        // Cancelled while registering, so the action may have been missed by cancel()
+        if (cancelled.get()) {
+            registration.abort();
+        }
+
+        return registration;
+    }
+
+    /**
+     * Cancel the token, and abort everything registered with it.
+     *
+     * @return false if the token was already cancelled
+     */
+    public boolean cancel() {
+        // Only the first caller aborts the registrations
+        if (!cancelled.compareAndSet(false, true)) {
+            return false;
+        }
+
+        for (Registration registration : registrations) {
+            registration.abort();
+        }
+
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * @throws CancellationException if the token is cancelled
+     */
+    public void throwIfCancelled() {
+        if (cancelled.get()) {
+            throw new CancellationException("Export operation was cancelled");
+        }
+    }
+
+    public class Registration implements AutoCloseable {
+        private final Runnable abortAction;
+        private boolean aborted;
+
+        private Registration(Runnable abortAction) {
+            this.abortAction = abortAction;
+        }
+
+        private void abort() {
+            synchronized (this) {
+                if (aborted) {
+                    return;
+                }
+                aborted = true;
+            }
+
+            try {
+                abortAction.run();
+            } catch (RuntimeException e) {
+                logger.warn("Failed to abort cancelled work", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            registrations.remove(this);
+        }
+    }
+}
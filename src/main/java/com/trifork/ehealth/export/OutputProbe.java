@@ -0,0 +1,50 @@
+package com.trifork.ehealth.export;
+
+import java.util.OptionalLong;
+
+/**
+ * What the server revealed about an output file before it is downloaded, see
+ * {@link BDExportConverter#probe(com.trifork.ehealth.export.response.BDExportResultResponse.OutputItem, CancellationToken)}.
+ */
+public class OutputProbe {
+    public static final OutputProbe UNKNOWN = new OutputProbe(-1, false, false);
+
+    private final long contentLength;
+    private final boolean acceptsRanges;
+    private final boolean gzipped;
+
+    /**
+     * @param contentLength the size of the file in bytes, or -1 if unknown
+     * @param acceptsRanges true if the server can send a range of the file
+     * @param gzipped       true if the file itself is gzipped
+     */
+    public OutputProbe(long contentLength, boolean acceptsRanges, boolean gzipped) {
+        this.contentLength = contentLength;
+        this.acceptsRanges = acceptsRanges;
+        this.gzipped = gzipped;
+    }
+
+    public OptionalLong getContentLength() {
+        return contentLength < 0 ? OptionalLong.empty() : OptionalLong.of(contentLength);
+    }
+
+    public boolean isAcceptsRanges() {
+        return acceptsRanges;
+    }
+
+    public boolean isGzipped() {
+        return gzipped;
+    }
+
+    /**
+     * @return true if the file can be downloaded in ranges, that are parsed on their own
+     */
+    public boolean isSplittable() {
+        return acceptsRanges && !gzipped && contentLength > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "OutputProbe{contentLength=" + contentLength + ", acceptsRanges=" + acceptsRanges + ", gzipped=" + gzipped + '}';
+    }
+}
@@ -0,0 +1,129 @@
+package com.trifork.ehealth.export.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A bounded pool of reusable direct buffers of a fixed size, which is also the memory budget of the downloads sharing
+ * it.
+ * <p>
+ * Released buffers are kept for the next download, so the rate of allocations stays flat, however many downloads run
+ * in parallel. Every buffer waits until the bytes in use are below the budget, unless the caller is admitted anyway,
+ * e.g. a download, that its reader is waiting for, as the reader is the one, that frees the budget next.
+ */
+public class ByteBufferPool {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final int bufferSize;
+    private final long maxBytes;
+    private final Deque<ByteBuffer> free = new ArrayDeque<>();
+
+    // Guarded by this
+    private long bytesInUse;
+    private long peakBytesInUse;
+    private long buffersAllocated;
+
+    /**
+     * @param bufferSize the size of every buffer
+     * @param maxBytes   the budget of bytes in use by all downloads sharing the pool
+     */
+    public ByteBufferPool(int bufferSize, long maxBytes) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive, was: " + bufferSize);
+        }
+        if (maxBytes < bufferSize) {
+            throw new IllegalArgumentException("Budget must hold at least one buffer, was: " + maxBytes);
+        }
+
+        this.bufferSize = bufferSize;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Take a buffer, waiting until the bytes in use are below the budget
+     */
+    public synchronized ByteBuffer acquire() throws InterruptedException {
+        while (bytesInUse + bufferSize > maxBytes) {
+            wait();
+        }
+
+        return take();
+    }
+
+    /**
+     * Take a buffer, waiting until the bytes in use are below the budget, or the caller is admitted anyway. Callers
+     * waiting here are woken by {@link #wake()}, when their condition may have changed.
+     *
+     * @param admitted tells if the caller may take a buffer, even if the budget is used up
+     */
+    public synchronized ByteBuffer acquire(BooleanSupplier admitted) throws InterruptedException {
+        while (bytesInUse + bufferSize > maxBytes && !admitted.getAsBoolean()) {
+            wait();
+        }
+
+        return take();
+    }
+
+    /**
+     * Wake the callers waiting for a buffer, to check if they are admitted
+     */
+    public synchronized void wake() {
+        notifyAll();
+    }
+
+    /**
+     * Return a buffer to the pool, which must not be used afterwards
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        bytesInUse -= bufferSize;
+
+        // Keep no more buffers than the budget holds, the excess of an overrun is left to the garbage collector
+        if ((long) (free.size() + 1) * bufferSize <= maxBytes) {
+            buffer.clear();
+            free.push(buffer);
+        }
+
+        notifyAll();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getBytesInUse() {
+        return bytesInUse;
+    }
+
+    /**
+     * @return the most bytes in use at a time, since the pool was created
+     */
+    public synchronized long getPeakBytesInUse() {
+        return peakBytesInUse;
+    }
+
+    /**
+     * @return the number of buffers allocated since the pool was created, rather than reused
+     */
+    public synchronized long getBuffersAllocated() {
+        return buffersAllocated;
+    }
+
+    private ByteBuffer take() {
+        bytesInUse += bufferSize;
+        peakBytesInUse = Math.max(peakBytesInUse, bytesInUse);
+
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffersAllocated++;
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        return buffer;
+    }
+}
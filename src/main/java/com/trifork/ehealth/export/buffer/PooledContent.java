@@ -0,0 +1,284 @@
+package com.trifork.ehealth.export.buffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.Inflater;
+
+/**
+ * The content of a download, streamed from the thread downloading it to the thread reading it, through the buffers of
+ * a {@link ByteBufferPool}.
+ * <p>
+ * Every buffer is handed to the reader as soon as it is filled, and returned to the pool as soon as it has been read,
+ * so a download only holds as much of the budget, as its reader lags behind. The download waits for the budget before
+ * every buffer, unless its reader is waiting for it, so the bytes in use exceed the budget by at most a buffer for
+ * every reader, and a reader is never blocked by downloads, that nobody reads yet.
+ * <p>
+ * The content has a single reader, and is closed by it, or by whoever gives up on the content before it is read.
+ */
+public class PooledContent implements AutoCloseable {
+    private final ByteBufferPool pool;
+
+    // Guarded by this
+    private final Deque<ByteBuffer> filled = new ArrayDeque<>();
+    private ByteBuffer reading;
+    private boolean complete;
+    private Throwable failure;
+    private boolean opened;
+
+    // Read by the download, while it waits for the pool
+    private volatile boolean starved;
+    private volatile boolean closed;
+    private volatile long size;
+
+    public PooledContent(ByteBufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Read the stream to its end, into buffers of the pool, that are handed to the reader as they are filled.
+     * Stops early, if the content is closed. The stream is not closed.
+     */
+    public void readFrom(InputStream in) throws IOException, InterruptedException {
+        ReadableByteChannel channel = Channels.newChannel(in);
+        ByteBuffer buffer = null;
+
+        try {
+            while (true) {
+                buffer = pool.acquire(() -> starved || closed);
+                if (closed) {
+                    return;
+                }
+
+                boolean end = false;
+                while (buffer.hasRemaining()) {
+                    int read = channel.read(buffer);
+                    if (read < 0) {
+                        end = true;
+                        break;
+                    }
+                    size += read;
+                }
+
+                buffer.flip();
+                ByteBuffer published = buffer;
+                buffer = null;
+                if (!publish(published, end) || end) {
+                    return;
+                }
+            }
+        } finally {
+            if (buffer != null) {
+                pool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Fail the content, when the download fails. The reader fails, once it has read the buffers filled before.
+     */
+    public synchronized void fail(Throwable cause) {
+        if (failure == null && !complete) {
+            failure = cause;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the number of bytes downloaded so far
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return a stream of the content, as it is downloaded
+     */
+    public InputStream openStream() throws IOException {
+        markOpened();
+        return new ContentInputStream(null);
+    }
+
+    /**
+     * A stream of the content, as it is downloaded, which is decompressed if the content starts with the magic bytes
+     * of gzip. The compressed content is inflated right from the buffers of the pool.
+     *
+     * @param inflater inflates gzipped content, which is reset before it is used, so it can be reused between contents
+     */
+    public InputStream openDecompressedStream(Inflater inflater) throws IOException {
+        markOpened();
+
+        ByteBuffer first = next();
+        if (first != null && first.remaining() > 2 && (first.get(first.position()) & 0xff) == 0x1f
+                && (first.get(first.position() + 1) & 0xff) == 0x8b) {
+            return new PooledGzipInputStream(this, inflater, first);
+        }
+
+        return new ContentInputStream(first);
+    }
+
+    /**
+     * Return the buffers to the pool. A download in progress stops at its next buffer.
+     */
+    @Override
+    public void close() {
+        List<ByteBuffer> released = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            released.addAll(filled);
+            filled.clear();
+            if (reading != null) {
+                released.add(reading);
+                reading = null;
+            }
+            notifyAll();
+        }
+
+        released.forEach(pool::release);
+        // A download waiting for the budget stops right away
+        pool.wake();
+    }
+
+    /**
+     * Take the next filled buffer, waiting until the download fills it, and return the previous one to the pool.
+     *
+     * @return the buffer, which is valid until the next call, or null at the end of the content
+     */
+    ByteBuffer next() throws IOException {
+        ByteBuffer previous;
+        synchronized (this) {
+            previous = reading;
+            reading = null;
+        }
+        if (previous != null) {
+            pool.release(previous);
+        }
+
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (closed) {
+                        throw new IOException("Content is closed");
+                    }
+                    if (!filled.isEmpty()) {
+                        starved = false;
+                        reading = filled.poll();
+                        return reading;
+                    }
+                    if (failure != null) {
+                        throw new IOException("Download failed", failure);
+                    }
+                    if (complete) {
+                        return null;
+                    }
+                    if (starved) {
+                        wait();
+                        continue;
+                    }
+
+                    starved = true;
+                }
+
+                // Outside the lock of the content, as the download checks if it is starved while holding the pool
+                pool.wake();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the download");
+        }
+    }
+
+    /**
+     * @return false if the content was closed, and the buffer returned to the pool
+     */
+    private boolean publish(ByteBuffer buffer, boolean end) {
+        boolean keep;
+        synchronized (this) {
+            keep = !closed && buffer.hasRemaining();
+            if (keep) {
+                filled.add(buffer);
+                // The waiting reader is served, so the next buffer waits for the budget again
+                starved = false;
+            }
+            if (!closed) {
+                complete = end;
+                notifyAll();
+            }
+        }
+
+        if (!keep) {
+            pool.release(buffer);
+        }
+
+        return !closed;
+    }
+
+    private synchronized void markOpened() {
+        if (opened) {
+            throw new IllegalStateException("Content is already opened");
+        }
+
+        opened = true;
+    }
+
+    private class ContentInputStream extends InputStream {
+        private ByteBuffer current;
+
+        private ContentInputStream(ByteBuffer first) {
+            this.current = first;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!advance()) {
+                return -1;
+            }
+
+            return current.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!advance()) {
+                return -1;
+            }
+
+            int count = Math.min(length, current.remaining());
+            current.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return current == null ? 0 : current.remaining();
+        }
+
+        /**
+         * @return false at the end of the content
+         */
+        private boolean advance() throws IOException {
+            while (current == null || !current.hasRemaining()) {
+                current = next();
+                if (current == null) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.trifork.ehealth.export.buffer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses gzipped {@link PooledContent}, by inflating right from its buffers, with an inflater, that is reused
+ * between contents, instead of the inflater and buffer allocated by every {@link java.util.zip.GZIPInputStream}.
+ * <p>
+ * Like {@link java.util.zip.GZIPInputStream}, concatenated gzip members are read as one stream, and bytes after the
+ * last member, that are not another member, are ignored.
+ */
+class PooledGzipInputStream extends InputStream {
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int DEFLATE = 8;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final PooledContent content;
+    private final Inflater inflater;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer input;
+    private boolean eof;
+
+    PooledGzipInputStream(PooledContent content, Inflater inflater, ByteBuffer first) throws IOException {
+        this.content = content;
+        this.inflater = inflater;
+        this.input = first;
+
+        readHeader(true);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        while (!eof) {
+            if (inflater.needsInput() && !fill()) {
+                throw new EOFException("Unexpected end of gzip content");
+            }
+
+            int inflated;
+            try {
+                inflated = inflater.inflate(bytes, offset, length);
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage() == null ? "Invalid gzip content" : e.getMessage());
+            }
+
+            if (inflated > 0) {
+                crc.update(bytes, offset, inflated);
+                return inflated;
+            }
+            if (inflater.finished()) {
+                readTrailer();
+                eof = !readHeader(false);
+            } else if (inflater.needsDictionary()) {
+                throw new ZipException("Gzip content needs a dictionary");
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Read the header of a gzip member, and prepare the inflater for it.
+     *
+     * @param first true for the first member, which must be there
+     * @return false if there is no further member
+     */
+    private boolean readHeader(boolean first) throws IOException {
+        if (!first && !hasInput()) {
+            return false;
+        }
+
+        int magic = readUnsignedByte() | readUnsignedByte() << 8;
+        if (magic != GZIP_MAGIC) {
+            if (first) {
+                throw new ZipException("Not in gzip format");
+            }
+            return false;
+        }
+        if (readUnsignedByte() != DEFLATE) {
+            throw new ZipException("Unsupported gzip compression method");
+        }
+
+        int flags = readUnsignedByte();
+        // Modification time, extra flags and operating system
+        skip(6);
+        if ((flags & FEXTRA) != 0) {
+            skip(readUnsignedByte() | readUnsignedByte() << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FCOMMENT) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FHCRC) != 0) {
+            skip(2);
+        }
+
+        crc.reset();
+        inflater.reset();
+        if (input != null && input.hasRemaining()) {
+            inflater.setInput(input);
+        }
+
+        return true;
+    }
+
+    private void readTrailer() throws IOException {
+        long expectedCrc = readUnsignedInt();
+        long expectedSize = readUnsignedInt();
+
+        if (expectedCrc != crc.getValue() || expectedSize != (inflater.getBytesWritten() & 0xffffffffL)) {
+            throw new ZipException("Corrupt gzip trailer");
+        }
+    }
+
+    /**
+     * Hand the next buffer of the content to the inflater.
+     *
+     * @return false at the end of the content
+     */
+    private boolean fill() throws IOException {
+        if (!hasInput()) {
+            return false;
+        }
+
+        inflater.setInput(input);
+        return true;
+    }
+
+    /**
+     * @return false at the end of the content, otherwise the input has remaining bytes
+     */
+    private boolean hasInput() throws IOException {
+        while (input == null || !input.hasRemaining()) {
+            input = content.next();
+            if (input == null) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int readUnsignedByte() throws IOException {
+        if (!hasInput()) {
+            throw new EOFException("Unexpected end of gzip content");
+        }
+
+        return input.get() & 0xff;
+    }
+
+    private long readUnsignedInt() throws IOException {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            value |= (long) readUnsignedByte() << (8 * i);
+        }
+
+        return value;
+    }
+
+    private void skip(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            readUnsignedByte();
+        }
+    }
+
+    private void skipZeroTerminated() throws IOException {
+        while (readUnsignedByte() != 0) {
+            // Skipped
+        }
+    }
+}
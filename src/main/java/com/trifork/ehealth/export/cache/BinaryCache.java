@@ -0,0 +1,26 @@
+package com.trifork.ehealth.export.cache;
+
+import org.hl7.fhir.r4.model.Binary;
+
+import java.util.function.Function;
+
+/**
+ * Holds fetched export output, keyed by its URL, so it can be released again and re-fetched on demand.
+ */
+public interface BinaryCache {
+    /**
+     * Get the content for a URL, loading it if it is not cached.
+     *
+     * @param url    the URL of the output
+     * @param loader fetches the content, if it is not cached
+     * @return the content of the output
+     */
+    Binary get(String url, Function<String, Binary> loader);
+
+    /**
+     * Drop the content for a URL from the cache.
+     *
+     * @param url the URL of the output
+     */
+    void invalidate(String url);
+}
@@ -0,0 +1,121 @@
+package com.trifork.ehealth.export.cache;
+
+import org.hl7.fhir.r4.model.Binary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * An {@link LruBinaryCache}, which spills evicted entries to a local directory instead of dropping them,
+ * so they are read back from disk rather than fetched from the server again.
+ */
+public class DiskSpillingBinaryCache extends LruBinaryCache {
+    private final Path directory;
+
+    private static final Logger logger = LoggerFactory.getLogger(DiskSpillingBinaryCache.class);
+
+    public DiskSpillingBinaryCache(Path directory, long maxBytesInMemory) {
+        super(maxBytesInMemory);
+
+        try {
+            this.directory = Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    protected void onEvict(String url, Binary binary) {
+        Path file = spillFile(url);
+        if (Files.exists(file)) {
+            return;
+        }
+
+        Path temp = directory.resolve(UUID.randomUUID() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+                out.writeUTF(binary.getContentType() == null ? "" : binary.getContentType());
+                byte[] data = binary.getData() == null ? new byte[0] : binary.getData();
+                out.writeInt(data.length);
+                out.write(data);
+            }
+
+            Files.move(temp, file);
+        } catch (FileAlreadyExistsException e) {
+            // Another eviction of the same url spilled it first
+        } catch (IOException e) {
+            // The entry is simply re-fetched, if it cannot be spilled.
+            logger.warn("Failed to spill '" + url + "' to disk", e);
+        } finally {
+            deleteTemp(temp);
+        }
+    }
+
+    @Override
+    protected Optional<Binary> loadEvicted(String url) {
+        Path file = spillFile(url);
+        if (!Files.exists(file)) {
+            return Optional.empty();
+        }
+
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            Binary binary = new Binary();
+            String contentType = in.readUTF();
+            if (!contentType.isEmpty()) {
+                binary.setContentType(contentType);
+            }
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            binary.setData(data);
+
+            return Optional.of(binary);
+        } catch (IOException e) {
+            logger.warn("Failed to read spilled '" + url + "' from disk, fetching it again", e);
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void invalidate(String url) {
+        super.invalidate(url);
+
+        try {
+            Files.deleteIfExists(spillFile(url));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Path spillFile(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest) {
+                name.append(String.format("%02x", b));
+            }
+
+            return directory.resolve(name.append(".bin").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void deleteTemp(Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            logger.warn("Failed to delete '" + temp + "'", e);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.trifork.ehealth.export.cache;
+
+import org.hl7.fhir.r4.model.Binary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * A cache bounded by the total size of the cached content, which evicts the least recently used entries first.
+ * <p>
+ * An entry larger than the whole budget is cached alone, by evicting every other entry, and is evicted in turn by the
+ * next entry put in the cache, so it is not fetched again while it is being used, without the cache growing beyond the
+ * largest single entry.
+ * <p>
+ * Concurrent gets of the same URL share a single load, and evicted entries are handed to {@link #onEvict} after the
+ * cache lock is released, so readers are not blocked by it.
+ */
+public class LruBinaryCache implements BinaryCache {
+    private final long maxBytes;
+    private final LinkedHashMap<String, Binary> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * The loads in progress, so concurrent gets of a URL wait for the same load
+     */
+    private final Map<String, CompletableFuture<Binary>> loading = new HashMap<>();
+    /**
+     * Entries, that are evicted, but not yet handed to {@link #onEvict}
+     */
+    private final Map<String, Binary> evicting = new HashMap<>();
+    private long currentBytes;
+
+    private static final Logger logger = LoggerFactory.getLogger(LruBinaryCache.class);
+
+    public LruBinaryCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Max bytes must not be negative, was: " + maxBytes);
+        }
+
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public Binary get(String url, Function<String, Binary> loader) {
+        CompletableFuture<Binary> load;
+        boolean loads = false;
+        synchronized (this) {
+            Binary cached = entries.get(url);
+            if (cached == null) {
+                cached = evicting.get(url);
+            }
+            if (cached != null) {
+                return cached;
+            }
+
+            load = loading.get(url);
+            if (load == null) {
+                load = new CompletableFuture<>();
+                loading.put(url, load);
+                loads = true;
+            }
+        }
+
+        if (!loads) {
+            return await(load);
+        }
+
+        // Load outside the lock, so a slow download does not block readers of other entries
+        Binary binary;
+        try {
+            binary = loadEvicted(url).orElseGet(() -> loader.apply(url));
+        } catch (RuntimeException | Error e) {
+            synchronized (this) {
+                loading.remove(url);
+            }
+            load.completeExceptionally(e);
+            throw e;
+        }
+
+        List<Map.Entry<String, Binary>> evicted = put(url, binary, load);
+        load.complete(binary);
+        evict(evicted);
+
+        return binary;
+    }
+
+    @Override
+    public synchronized void invalidate(String url) {
+        Binary removed = entries.remove(url);
+        if (removed != null) {
+            currentBytes -= sizeOf(removed);
+        }
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the entries evicted to make room, which are handed to {@link #onEvict} by {@link #evict}
+     */
+    private List<Map.Entry<String, Binary>> put(String url, Binary binary, CompletableFuture<Binary> load) {
+        List<Map.Entry<String, Binary>> evicted = new ArrayList<>();
+        synchronized (this) {
+            loading.remove(url, load);
+
+            long size = sizeOf(binary);
+            if (size > maxBytes) {
+                logger.debug("Caching '" + url + "' alone, " + size + " bytes exceeds the cache size of " + maxBytes + " bytes");
+            }
+
+            Binary previous = entries.put(url, binary);
+            if (previous != null) {
+                currentBytes -= sizeOf(previous);
+            }
+            currentBytes += size;
+
+            Iterator<Map.Entry<String, Binary>> iterator = entries.entrySet().iterator();
+            while (currentBytes > maxBytes && iterator.hasNext()) {
+                Map.Entry<String, Binary> eldest = iterator.next();
+                if (eldest.getKey().equals(url)) {
+                    // Only the entry just put is left
+                    break;
+                }
+                iterator.remove();
+                currentBytes -= sizeOf(eldest.getValue());
+
+                evicting.put(eldest.getKey(), eldest.getValue());
+                evicted.add(Map.entry(eldest.getKey(), eldest.getValue()));
+            }
+        }
+
+        return evicted;
+    }
+
+    private void evict(List<Map.Entry<String, Binary>> evicted) {
+        for (Map.Entry<String, Binary> entry : evicted) {
+            try {
+                onEvict(entry.getKey(), entry.getValue());
+            } finally {
+                synchronized (this) {
+                    evicting.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    private static Binary await(CompletableFuture<Binary> load) {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Called, without holding the cache lock, when an entry is evicted to stay within the size budget. The entry is
+     * still returned by the cache, until this returns.
+     *
+     * @param url    the URL of the evicted entry
+     * @param binary the evicted content
+     */
+    protected void onEvict(String url, Binary binary) {
+        logger.debug("Evicted '" + url + "' from the cache");
+    }
+
+    /**
+     * Get content, that was previously evicted, without fetching it from the server again.
+     *
+     * @param url the URL of the output
+     * @return the content, if it is still available locally
+     */
+    protected Optional<Binary> loadEvicted(String url) {
+        return Optional.empty();
+    }
+
+    protected static long sizeOf(Binary binary) {
+        byte[] data = binary.getData();
+        return data == null ? 0 : data.length;
+    }
+}
@@ -0,0 +1,123 @@
+package com.trifork.ehealth.export.change;
+
+import com.trifork.ehealth.export.ndjson.NdjsonLineFilter;
+import com.trifork.ehealth.export.ndjson.NdjsonLineHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drops resources, whose content has not changed since an earlier export, before they are parsed.
+ * <p>
+ * For every resource, a 64-bit hash of its line without the meta is kept in an {@link OffHeapLongMap}, by a 64-bit
+ * hash of its resource type and id. Changes of the meta alone, e.g. a new versionId or lastUpdated, do not count
+ * as changes. Use it as the line filter of a pipeline or converter, and {@link #save(Path) save} it after the export
+ * has been processed successfully, so a failed run is sent again by the next one.
+ * <p>
+ * With 64-bit hashes, two different resources share a key with a probability of about 1 in 3000 at 100 million
+ * resources, which at worst makes one of them count as changed.
+ */
+public class ChangeDetector implements NdjsonLineFilter {
+    /**
+     * The content hash of resources, that have not been seen, so content hashes are never 0
+     */
+    private static final long UNSEEN = 0;
+
+    private final OffHeapLongMap fingerprints;
+    private final LongAdder added = new LongAdder();
+    private final LongAdder changed = new LongAdder();
+    private final LongAdder unchanged = new LongAdder();
+
+    private static final Logger logger = LoggerFactory.getLogger(ChangeDetector.class);
+
+    /**
+     * @param expectedResources the number of resources, the fingerprints are sized for up front
+     */
+    public ChangeDetector(long expectedResources) {
+        this(new OffHeapLongMap(expectedResources));
+    }
+
+    private ChangeDetector(OffHeapLongMap fingerprints) {
+        this.fingerprints = fingerprints;
+    }
+
+    /**
+     * Load the fingerprints saved by an earlier run, or start without any, if the file does not exist
+     */
+    public static ChangeDetector load(Path file, long expectedResources) throws IOException {
+        if (!Files.exists(file)) {
+            return new ChangeDetector(expectedResources);
+        }
+
+        OffHeapLongMap fingerprints = OffHeapLongMap.readFrom(file);
+        logger.info("Loaded " + fingerprints.size() + " resource fingerprints from '" + file + "'");
+
+        return new ChangeDetector(fingerprints);
+    }
+
+    /**
+     * Save the fingerprints, through a temporary file of its own, so the file is never left half written, even when
+     * several detectors save it at once
+     */
+    public void save(Path file) throws IOException {
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            fingerprints.writeTo(temp);
+
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Record the content of the resource, and tell whether it changed.
+     *
+     * @return false if the resource is unchanged since it was last seen, true if it is new or changed, or the line has
+     * no resource type or id to recognize it by
+     */
+    @Override
+    public boolean accept(NdjsonLineHeader header) {
+        if (!header.isValid() || !header.hasResourceType() || !header.hasId()) {
+            return true;
+        }
+
+        long content = ContentHasher.contentOf(header);
+        if (content == UNSEEN) {
+            content = 1;
+        }
+
+        long previous = fingerprints.put(ContentHasher.keyOf(header), content, UNSEEN);
+        if (previous == content) {
+            unchanged.increment();
+            return false;
+        }
+
+        (previous == UNSEEN ? added : changed).increment();
+        return true;
+    }
+
+    public long getAdded() {
+        return added.sum();
+    }
+
+    public long getChanged() {
+        return changed.sum();
+    }
+
+    public long getUnchanged() {
+        return unchanged.sum();
+    }
+
+    /**
+     * @return the number of resources, that fingerprints are kept of
+     */
+    public long size() {
+        return fingerprints.size();
+    }
+}
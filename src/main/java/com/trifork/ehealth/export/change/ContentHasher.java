@@ -0,0 +1,102 @@
+package com.trifork.ehealth.export.change;
+
+import com.trifork.ehealth.export.ndjson.NdjsonLineHeader;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 64-bit hashes of the bytes of scanned NDJSON lines, computed in place, without copying or decoding them.
+ * <p>
+ * The mixing follows MurmurHash3, 8 bytes at a time. The hashes identify content, they are not meant to be secure.
+ */
+public final class ContentHasher {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final long SEED = 0x9e3779b97f4a7c15L;
+
+    private ContentHasher() {
+    }
+
+    /**
+     * @return the hash of the resource type and id of the line, which identifies the resource across exports
+     */
+    public static long keyOf(NdjsonLineHeader header) {
+        ByteBuffer buffer = header.getBuffer();
+        long hash = hash(buffer, header.getResourceTypeStart(), header.getResourceTypeEnd(), SEED);
+
+        return hash(buffer, header.getIdStart(), header.getIdEnd(), hash);
+    }
+
+    /**
+     * @return the same hash as {@link #keyOf(NdjsonLineHeader)}, of a parsed resource, or a reference to one
+     */
+    public static long keyOf(String resourceType, String id) {
+        byte[] typeBytes = resourceType.getBytes(StandardCharsets.UTF_8);
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(ByteBuffer.wrap(typeBytes), 0, typeBytes.length, SEED);
+
+        return hash(ByteBuffer.wrap(idBytes), 0, idBytes.length, hash);
+    }
+
+    /**
+     * @return the hash of the whole line, except its meta, which the server updates without the content changing
+     */
+    public static long contentOf(NdjsonLineHeader header) {
+        ByteBuffer buffer = header.getBuffer();
+        if (!header.hasMeta()) {
+            return hash(buffer, header.getLineStart(), header.getLineEnd(), SEED);
+        }
+
+        long hash = hash(buffer, header.getLineStart(), header.getMetaStart(), SEED);
+        return hash(buffer, header.getMetaEnd(), header.getLineEnd(), hash);
+    }
+
+    /**
+     * Hash the bytes from start to end of the buffer, using absolute gets, so the buffer is not changed
+     */
+    public static long hash(ByteBuffer buffer, int start, int end) {
+        return hash(buffer, start, end, SEED);
+    }
+
+    /**
+     * Hash the bytes from start to end of the buffer, using absolute gets, so the buffer is not changed
+     *
+     * @param seed the hash of the preceding ranges, to chain several ranges into one hash
+     */
+    public static long hash(ByteBuffer buffer, int start, int end, long seed) {
+        long hash = seed;
+        int i = start;
+
+        for (; i + Long.BYTES <= end; i += Long.BYTES) {
+            hash ^= mixWord(buffer.getLong(i));
+            hash = Long.rotateLeft(hash, 27) * 5 + 0x52dce729;
+        }
+
+        long tail = 0;
+        for (int shift = 0; i < end; i++, shift += 8) {
+            tail |= (buffer.get(i) & 0xffL) << shift;
+        }
+        hash ^= mixWord(tail);
+
+        return mix(hash ^ (end - start));
+    }
+
+    /**
+     * The finalizer of MurmurHash3, which spreads every bit of the input over the whole output
+     */
+    static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    private static long mixWord(long word) {
+        word *= C1;
+        word = Long.rotateLeft(word, 31);
+        return word * C2;
+    }
+}
@@ -0,0 +1,264 @@
+package com.trifork.ehealth.export.change;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A map of long keys to long values, kept in direct buffers outside the heap, without boxing.
+ * <p>
+ * Entries are 16 bytes in open addressing tables with linear probing. The keys are spread over segments, that each
+ * have a table and a lock of their own, so the map can be shared by threads, and no table exceeds the size of a single
+ * buffer. A segment doubles its table, when it is 70% full, so 100 million entries take about 4 GB.
+ */
+public class OffHeapLongMap {
+    private static final int ENTRY_BYTES = 16;
+    private static final double MAX_LOAD = 0.7;
+    private static final int MIN_SEGMENT_CAPACITY = 1 << 10;
+    /**
+     * 64M entries of 16 bytes, which is the largest table that fits a single buffer
+     */
+    private static final int MAX_SEGMENT_CAPACITY = 1 << 26;
+    private static final int MIN_SEGMENTS = 16;
+    private static final int FILE_MAGIC = 0x42444d31;
+    private static final int SEGMENT_HEADER_BYTES = 17;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    /**
+     * @param expectedEntries the number of entries, the map is sized for up front
+     */
+    public OffHeapLongMap(long expectedEntries) {
+        long capacity = (long) Math.ceil(Math.max(expectedEntries, 1) / MAX_LOAD);
+        int segmentCount = (int) Math.max(MIN_SEGMENTS, nextPowerOfTwo((capacity + MAX_SEGMENT_CAPACITY - 1) / MAX_SEGMENT_CAPACITY));
+        int segmentCapacity = (int) Math.min(MAX_SEGMENT_CAPACITY, Math.max(MIN_SEGMENT_CAPACITY, nextPowerOfTwo(capacity / segmentCount)));
+
+        this.segments = new Segment[segmentCount];
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    private OffHeapLongMap(Segment[] segments) {
+        this.segments = segments;
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(segments.length);
+    }
+
+    /**
+     * @return the value of the key, or the missing value if the map does not contain the key
+     */
+    public long get(long key, long missingValue) {
+        long hash = ContentHasher.mix(key);
+        Segment segment = segmentOf(hash);
+
+        synchronized (segment) {
+            return segment.get(key, hash, missingValue);
+        }
+    }
+
+    /**
+     * @return the previous value of the key, or the missing value if the map did not contain the key
+     */
+    public long put(long key, long value, long missingValue) {
+        long hash = ContentHasher.mix(key);
+        Segment segment = segmentOf(hash);
+
+        synchronized (segment) {
+            return segment.put(key, hash, value, missingValue);
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @return the bytes held outside the heap by the tables
+     */
+    public long getOffHeapBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.table.capacity();
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Write the tables as they are to the file, so reading them back does not rehash any entries
+     */
+    public void writeTo(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, ByteBuffer.allocate(8).putInt(FILE_MAGIC).putInt(segments.length).flip());
+
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    ByteBuffer segmentHeader = ByteBuffer.allocate(SEGMENT_HEADER_BYTES)
+                            .putInt(segment.capacity)
+                            .putInt(segment.size)
+                            .put((byte) (segment.hasZeroKey ? 1 : 0))
+                            .putLong(segment.zeroKeyValue);
+                    writeFully(channel, segmentHeader.flip());
+                    writeFully(channel, segment.table.duplicate().clear());
+                }
+            }
+        }
+    }
+
+    public static OffHeapLongMap readFrom(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = readFully(channel, ByteBuffer.allocate(8));
+            if (header.getInt() != FILE_MAGIC) {
+                throw new IOException("Not a map file: " + file);
+            }
+
+            Segment[] segments = new Segment[header.getInt()];
+            for (int i = 0; i < segments.length; i++) {
+                ByteBuffer segmentHeader = readFully(channel, ByteBuffer.allocate(SEGMENT_HEADER_BYTES));
+                Segment segment = new Segment(segmentHeader.getInt());
+                segment.size = segmentHeader.getInt();
+                segment.hasZeroKey = segmentHeader.get() == 1;
+                segment.zeroKeyValue = segmentHeader.getLong();
+
+                readFully(channel, segment.table);
+                segments[i] = segment;
+            }
+
+            return new OffHeapLongMap(segments);
+        }
+    }
+
+    private Segment segmentOf(long hash) {
+        return segments[(int) (hash >>> segmentShift)];
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of map file");
+            }
+        }
+
+        return buffer.flip();
+    }
+
+    private static long nextPowerOfTwo(long value) {
+        return value <= 1 ? 1 : Long.highestOneBit(value - 1) << 1;
+    }
+
+    /**
+     * A table of key and value pairs, where a zero key marks an empty slot, so the zero key itself is kept aside.
+     */
+    private static class Segment {
+        private ByteBuffer table;
+        private int capacity;
+        private int size;
+        private boolean hasZeroKey;
+        private long zeroKeyValue;
+
+        private Segment(int capacity) {
+            this.capacity = capacity;
+            this.table = ByteBuffer.allocateDirect(capacity * ENTRY_BYTES);
+        }
+
+        private long get(long key, long hash, long missingValue) {
+            if (key == 0) {
+                return hasZeroKey ? zeroKeyValue : missingValue;
+            }
+
+            int mask = capacity - 1;
+            for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+                long slotKey = table.getLong(slot * ENTRY_BYTES);
+                if (slotKey == key) {
+                    return table.getLong(slot * ENTRY_BYTES + 8);
+                }
+                if (slotKey == 0) {
+                    return missingValue;
+                }
+            }
+        }
+
+        private long put(long key, long hash, long value, long missingValue) {
+            if (key == 0) {
+                long previous = hasZeroKey ? zeroKeyValue : missingValue;
+                if (!hasZeroKey) {
+                    size++;
+                }
+                hasZeroKey = true;
+                zeroKeyValue = value;
+                return previous;
+            }
+
+            int mask = capacity - 1;
+            for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+                int offset = slot * ENTRY_BYTES;
+                long slotKey = table.getLong(offset);
+
+                if (slotKey == key) {
+                    long previous = table.getLong(offset + 8);
+                    table.putLong(offset + 8, value);
+                    return previous;
+                }
+                if (slotKey == 0) {
+                    table.putLong(offset, key);
+                    table.putLong(offset + 8, value);
+                    size++;
+
+                    if (size > capacity * MAX_LOAD) {
+                        grow();
+                    }
+                    return missingValue;
+                }
+            }
+        }
+
+        private void grow() {
+            if (capacity >= MAX_SEGMENT_CAPACITY) {
+                if (size >= capacity - 1) {
+                    throw new IllegalStateException("Map segment is full, size the map for more entries");
+                }
+                // Past the load factor, but still room for more, at the cost of longer probes
+                return;
+            }
+
+            ByteBuffer old = table;
+            int oldCapacity = capacity;
+            capacity = oldCapacity * 2;
+            table = ByteBuffer.allocateDirect(capacity * ENTRY_BYTES);
+
+            int mask = capacity - 1;
+            for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+                long key = old.getLong(oldSlot * ENTRY_BYTES);
+                if (key == 0) {
+                    continue;
+                }
+
+                int slot = (int) ContentHasher.mix(key) & mask;
+                while (table.getLong(slot * ENTRY_BYTES) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table.putLong(slot * ENTRY_BYTES, key);
+                table.putLong(slot * ENTRY_BYTES + 8, old.getLong(oldSlot * ENTRY_BYTES + 8));
+            }
+        }
+    }
+}
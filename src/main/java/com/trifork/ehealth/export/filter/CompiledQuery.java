@@ -0,0 +1,180 @@
+package com.trifork.ehealth.export.filter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.fhirpath.IFhirPath;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.BaseParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.TokenParamModifier;
+import com.trifork.ehealth.export.BDExportTypeFilter;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * A single "name=value" query of a type filter, compiled into a FHIRPath expression and a value matcher.
+ */
+class CompiledQuery {
+    /**
+     * Paths of the search parameters, that apply to every resource type.
+     */
+    private static final Map<String, String> COMMON_PARAMETER_PATHS = Map.of(
+            "_id", "id",
+            "_lastUpdated", "meta.lastUpdated",
+            "_tag", "meta.tag",
+            "_profile", "meta.profile",
+            "_security", "meta.security",
+            "_source", "meta.source"
+    );
+
+    /**
+     * resolve() needs the referenced resource, which is not available while streaming,
+     * so it is replaced by a check on the type in the reference itself.
+     */
+    private static final Pattern RESOLVE_IS_TYPE = Pattern.compile("resolve\\(\\)\\s+is\\s+([A-Za-z]+)");
+
+    /**
+     * Type casts need type definitions, that the FHIRPath engine does not have without a validation context.
+     * They are dropped, as the value matchers only accept values of the types they support anyway.
+     */
+    private static final Pattern TYPE_CAST = Pattern.compile("\\.as\\(\\s*[A-Za-z]+\\s*\\)|\\s+as\\s+[A-Za-z]+");
+
+    private final String name;
+    private final IFhirPath.IParsedExpression expression;
+    private final Predicate<IBase> matcher;
+    private final Boolean missing;
+    private final boolean negated;
+    private final String requiredLiteral;
+
+    private CompiledQuery(
+            String name,
+            IFhirPath.IParsedExpression expression,
+            Predicate<IBase> matcher,
+            Boolean missing,
+            boolean negated,
+            String requiredLiteral
+    ) {
+        this.name = name;
+        this.expression = expression;
+        this.matcher = matcher;
+        this.missing = missing;
+        this.negated = negated;
+        this.requiredLiteral = requiredLiteral;
+    }
+
+    static CompiledQuery compile(FhirContext fhirContext, String resourceType, BDExportTypeFilter.Query query) {
+        String name = query.getParamName();
+        IQueryParameterType parameter = query.getParamQuery();
+
+        String path = resolvePath(fhirContext, resourceType, name);
+        IFhirPath.IParsedExpression expression;
+        try {
+            expression = fhirContext.newFhirPath().parse(path);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Failed to compile path '" + path + "' of search parameter '" + name + "'", e);
+        }
+
+        Boolean missing = parameter instanceof BaseParam ? ((BaseParam) parameter).getMissing() : null;
+        boolean negated = false;
+
+        if (parameter instanceof TokenParam) {
+            TokenParamModifier modifier = ((TokenParam) parameter).getModifier();
+            if (modifier != null && modifier != TokenParamModifier.NOT && modifier != TokenParamModifier.TEXT) {
+                throw new IllegalArgumentException("Unsupported modifier '" + modifier.getValue() + "' on search parameter '" + name + "'");
+            }
+
+            negated = modifier == TokenParamModifier.NOT;
+        }
+
+        Predicate<IBase> matcher = missing == null ? ValueMatchers.forParameter(parameter) : value -> true;
+
+        return new CompiledQuery(name, expression, matcher, missing, negated, requiredLiteral(parameter, missing, negated).orElse(null));
+    }
+
+    private static String resolvePath(FhirContext fhirContext, String resourceType, String name) {
+        if (COMMON_PARAMETER_PATHS.containsKey(name)) {
+            return COMMON_PARAMETER_PATHS.get(name);
+        }
+
+        RuntimeSearchParam searchParam = fhirContext.getResourceDefinition(resourceType).getSearchParam(name);
+        if (searchParam == null) {
+            throw new IllegalArgumentException("Unknown search parameter '" + name + "' for " + resourceType);
+        }
+
+        List<String> paths = searchParam.getPathsSplitForResourceType(resourceType);
+        if (paths.isEmpty()) {
+            throw new IllegalArgumentException("Search parameter '" + name + "' for " + resourceType + " has no path");
+        }
+
+        return paths.stream()
+                .map(p -> RESOLVE_IS_TYPE.matcher(p).replaceAll("reference.contains('$1/')"))
+                .map(p -> TYPE_CAST.matcher(p).replaceAll(""))
+                .collect(Collectors.joining(" | "));
+    }
+
+    /**
+     * Find a string, that must occur in the raw JSON of any resource matching the query.
+     * Only plain values, that JSON encodes as-is, are used, since escaping would change the raw text.
+     */
+    private static Optional<String> requiredLiteral(IQueryParameterType parameter, Boolean missing, boolean negated) {
+        if (missing != null || negated) {
+            return Optional.empty();
+        }
+
+        String literal = null;
+        if (parameter instanceof TokenParam && !((TokenParam) parameter).isText()) {
+            literal = ((TokenParam) parameter).getValue();
+        } else if (parameter instanceof ReferenceParam) {
+            literal = ((ReferenceParam) parameter).getIdPart();
+        } else if (parameter instanceof StringParam && ((StringParam) parameter).isExact()) {
+            literal = ((StringParam) parameter).getValue();
+        }
+
+        if (literal == null || literal.isEmpty() || !isPlainJson(literal)) {
+            return Optional.empty();
+        }
+
+        return Optional.of(literal);
+    }
+
+    private static boolean isPlainJson(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x20 || c > 0x7e || c == '"' || c == '\\' || c == '/') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    boolean matches(IFhirPath fhirPath, IBaseResource resource) {
+        List<IBase> values = fhirPath.evaluate(resource, expression, IBase.class);
+
+        if (missing != null) {
+            return values.isEmpty() == missing;
+        } else if (negated) {
+            return values.stream().noneMatch(matcher);
+        }
+
+        return values.stream().anyMatch(matcher);
+    }
+
+    boolean mightMatch(String line) {
+        return requiredLiteral == null || line.contains(requiredLiteral);
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledQuery{name='" + name + "', requiredLiteral='" + requiredLiteral + "'}";
+    }
+}
@@ -0,0 +1,122 @@
+package com.trifork.ehealth.export.filter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.IFhirPath;
+import com.trifork.ehealth.export.BDExportRequest;
+import com.trifork.ehealth.export.BDExportTypeFilter;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.ResourceType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Evaluates the <code>_type</code> and <code>_typeFilter</code> parameters of an export on the client,
+ * for servers that ignore them and export everything.
+ * <p>
+ * Following the specification, a resource is kept if its type was requested (or no types were requested),
+ * and if it matches any of the type filters for its type. Resource types without type filters are kept in full.
+ * Token, date, string, reference and uri parameters are supported.
+ * <p>
+ * Filters are compiled once, and the evaluator can be shared between threads.
+ */
+public class TypeFilterEvaluator {
+    private final FhirContext fhirContext;
+    private final Set<String> types;
+    private final Map<String, List<List<CompiledQuery>>> filtersByType = new HashMap<>();
+    private final ThreadLocal<IFhirPath> fhirPaths;
+
+    public TypeFilterEvaluator(FhirContext fhirContext, Collection<BDExportTypeFilter> typeFilters) {
+        this(fhirContext, List.of(), typeFilters);
+    }
+
+    /**
+     * @param fhirContext the context used to look up search parameters
+     * @param types       the requested resource types, where an empty collection keeps every type
+     * @param typeFilters the type filters
+     * @throws IllegalArgumentException if a filter uses a search parameter, that cannot be evaluated
+     */
+    public TypeFilterEvaluator(FhirContext fhirContext, Collection<ResourceType> types, Collection<BDExportTypeFilter> typeFilters) {
+        this.fhirContext = fhirContext;
+        this.types = types.stream().map(ResourceType::name).collect(Collectors.toUnmodifiableSet());
+        this.fhirPaths = ThreadLocal.withInitial(fhirContext::newFhirPath);
+
+        for (BDExportTypeFilter typeFilter : typeFilters) {
+            String resourceType = typeFilter.getResourceType().name();
+            List<CompiledQuery> queries = typeFilter.getQueries().stream()
+                    .map(query -> CompiledQuery.compile(fhirContext, resourceType, query))
+                    .collect(Collectors.toList());
+
+            filtersByType.computeIfAbsent(resourceType, t -> new ArrayList<>()).add(queries);
+        }
+    }
+
+    /**
+     * Create an evaluator for the types and type filters of a request.
+     */
+    public static TypeFilterEvaluator forRequest(FhirContext fhirContext, BDExportRequest request) {
+        return new TypeFilterEvaluator(fhirContext, request.getTypes(), request.getTypeFilters());
+    }
+
+    /**
+     * @param resource a parsed resource
+     * @return true if the resource is part of the requested export
+     */
+    public boolean matches(IBaseResource resource) {
+        String resourceType = fhirContext.getResourceType(resource);
+        if (!isTypeIncluded(resourceType)) {
+            return false;
+        }
+
+        List<List<CompiledQuery>> filters = filtersByType.get(resourceType);
+        if (filters == null) {
+            return true;
+        }
+
+        IFhirPath fhirPath = fhirPaths.get();
+        for (List<CompiledQuery> filter : filters) {
+            if (filter.stream().allMatch(query -> query.matches(fhirPath, resource))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * A cheap check on the raw NDJSON line, before it is parsed.
+     * When this returns false, {@link #matches(IBaseResource)} would also return false for the parsed resource,
+     * so the line can be skipped. When it returns true, the resource must still be parsed and matched.
+     *
+     * @param resourceType the resource type of the line
+     * @param line         the raw JSON of the resource
+     * @return false if the resource can not match
+     */
+    public boolean mightMatch(String resourceType, String line) {
+        if (!isTypeIncluded(resourceType)) {
+            return false;
+        }
+
+        List<List<CompiledQuery>> filters = filtersByType.get(resourceType);
+        if (filters == null) {
+            return true;
+        }
+
+        for (List<CompiledQuery> filter : filters) {
+            if (filter.stream().allMatch(query -> query.mightMatch(line))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean isTypeIncluded(String resourceType) {
+        return types.isEmpty() || types.contains(resourceType);
+    }
+}
@@ -0,0 +1,275 @@
+package com.trifork.ehealth.export.filter;
+
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.TokenParamModifier;
+import ca.uhn.fhir.rest.param.UriParam;
+import ca.uhn.fhir.util.StringUtil;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.Address;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+/**
+ * Matches a single element, found by the path of a search parameter, against a search parameter value,
+ * following the rules of <a href="https://hl7.org/fhir/R4/search.html">FHIR search</a>.
+ */
+class ValueMatchers {
+    private ValueMatchers() {
+    }
+
+    static Predicate<IBase> forParameter(IQueryParameterType parameter) {
+        if (parameter instanceof TokenParam) {
+            return token((TokenParam) parameter);
+        } else if (parameter instanceof DateParam) {
+            return date((DateParam) parameter);
+        } else if (parameter instanceof StringParam) {
+            return string((StringParam) parameter);
+        } else if (parameter instanceof ReferenceParam) {
+            return reference((ReferenceParam) parameter);
+        } else if (parameter instanceof UriParam) {
+            String uri = ((UriParam) parameter).getValue();
+            return value -> value instanceof IPrimitiveType && uri.equals(((IPrimitiveType<?>) value).getValueAsString());
+        }
+
+        throw new IllegalArgumentException("Unsupported search parameter type: " + parameter.getClass().getSimpleName());
+    }
+
+    private static Predicate<IBase> token(TokenParam parameter) {
+        if (parameter.getModifier() == TokenParamModifier.TEXT) {
+            String text = normalize(parameter.getValue());
+            return value -> tokenText(value).stream().anyMatch(t -> normalize(t).startsWith(text));
+        }
+
+        String system = parameter.getSystem();
+        String code = parameter.getValue();
+
+        return value -> {
+            for (Coding coding : codings(value)) {
+                boolean systemMatches = system == null || system.equals(Objects.toString(coding.getSystem(), ""));
+                boolean codeMatches = code == null || code.isEmpty() || code.equals(coding.getCode());
+
+                if (systemMatches && codeMatches) {
+                    return true;
+                }
+            }
+
+            return false;
+        };
+    }
+
+    /**
+     * Flatten all token-like elements into system/code pairs.
+     */
+    private static List<Coding> codings(IBase value) {
+        List<Coding> codings = new ArrayList<>();
+
+        if (value instanceof Coding) {
+            codings.add((Coding) value);
+        } else if (value instanceof CodeableConcept) {
+            codings.addAll(((CodeableConcept) value).getCoding());
+        } else if (value instanceof Identifier) {
+            Identifier identifier = (Identifier) value;
+            codings.add(new Coding(identifier.getSystem(), identifier.getValue(), null));
+        } else if (value instanceof ContactPoint) {
+            codings.add(new Coding(null, ((ContactPoint) value).getValue(), null));
+        } else if (value instanceof IIdType) {
+            codings.add(new Coding(null, ((IIdType) value).getIdPart(), null));
+        } else if (value instanceof IPrimitiveType) {
+            codings.add(new Coding(null, ((IPrimitiveType<?>) value).getValueAsString(), null));
+        }
+
+        return codings;
+    }
+
+    private static List<String> tokenText(IBase value) {
+        List<String> texts = new ArrayList<>();
+
+        if (value instanceof CodeableConcept) {
+            CodeableConcept concept = (CodeableConcept) value;
+            if (concept.hasText()) {
+                texts.add(concept.getText());
+            }
+            concept.getCoding().stream().filter(Coding::hasDisplay).forEach(c -> texts.add(c.getDisplay()));
+        } else if (value instanceof Coding && ((Coding) value).hasDisplay()) {
+            texts.add(((Coding) value).getDisplay());
+        } else if (value instanceof Identifier && ((Identifier) value).getType().hasText()) {
+            texts.add(((Identifier) value).getType().getText());
+        }
+
+        return texts;
+    }
+
+    private static Predicate<IBase> date(DateParam parameter) {
+        if (parameter.getValue() == null) {
+            throw new IllegalArgumentException("Date parameter has no value");
+        }
+
+        long low = parameter.getValue().getTime();
+        TemporalPrecisionEnum precision = parameter.getPrecision() == null
+                ? TemporalPrecisionEnum.MILLI
+                : parameter.getPrecision();
+        long high = precision.add(parameter.getValue(), 1).getTime();
+        ParamPrefixEnum prefix = parameter.getPrefix() == null ? ParamPrefixEnum.EQUAL : parameter.getPrefix();
+
+        return value -> {
+            long[] range = dateRange(value);
+            return range != null && compareDates(prefix, low, high, range[0], range[1]);
+        };
+    }
+
+    /**
+     * @return the half-open range [low, high) in epoch millis covered by the element, or null if it has no date
+     */
+    private static long[] dateRange(IBase value) {
+        if (value instanceof BaseDateTimeType) {
+            BaseDateTimeType dateTime = (BaseDateTimeType) value;
+            if (dateTime.getValue() == null) {
+                return null;
+            }
+
+            Date low = dateTime.getValue();
+            return new long[]{low.getTime(), dateTime.getPrecision().add(low, 1).getTime()};
+        } else if (value instanceof Period) {
+            Period period = (Period) value;
+            long[] start = period.hasStart() ? dateRange(period.getStartElement()) : null;
+            long[] end = period.hasEnd() ? dateRange(period.getEndElement()) : null;
+
+            if (start == null && end == null) {
+                return null;
+            }
+
+            return new long[]{
+                    start == null ? Long.MIN_VALUE : start[0],
+                    end == null ? Long.MAX_VALUE : end[1]
+            };
+        }
+
+        return null;
+    }
+
+    private static boolean compareDates(ParamPrefixEnum prefix, long low, long high, long targetLow, long targetHigh) {
+        boolean contained = low <= targetLow && targetHigh <= high;
+
+        switch (prefix) {
+            case EQUAL:
+                return contained;
+            case NOT_EQUAL:
+                return !contained;
+            case GREATERTHAN:
+                return targetHigh > high;
+            case LESSTHAN:
+                return targetLow < low;
+            case GREATERTHAN_OR_EQUALS:
+                return targetHigh > high || contained;
+            case LESSTHAN_OR_EQUALS:
+                return targetLow < low || contained;
+            case STARTS_AFTER:
+                return targetLow >= high;
+            case ENDS_BEFORE:
+                return targetHigh <= low;
+            case APPROXIMATE:
+                return targetLow < high && low < targetHigh;
+            default:
+                throw new IllegalArgumentException("Unsupported date prefix: " + prefix);
+        }
+    }
+
+    private static Predicate<IBase> string(StringParam parameter) {
+        String expected = parameter.getValue();
+
+        if (parameter.isExact()) {
+            return value -> strings(value).stream().anyMatch(expected::equals);
+        }
+
+        String normalized = normalize(expected);
+        if (parameter.isContains()) {
+            return value -> strings(value).stream().anyMatch(s -> normalize(s).contains(normalized));
+        }
+
+        return value -> strings(value).stream().anyMatch(s -> normalize(s).startsWith(normalized));
+    }
+
+    private static List<String> strings(IBase value) {
+        List<String> strings = new ArrayList<>();
+
+        if (value instanceof HumanName) {
+            HumanName name = (HumanName) value;
+            addIfPresent(strings, name.getText());
+            addIfPresent(strings, name.getFamily());
+            name.getGiven().forEach(s -> addIfPresent(strings, s.getValue()));
+            name.getPrefix().forEach(s -> addIfPresent(strings, s.getValue()));
+            name.getSuffix().forEach(s -> addIfPresent(strings, s.getValue()));
+        } else if (value instanceof Address) {
+            Address address = (Address) value;
+            addIfPresent(strings, address.getText());
+            address.getLine().stream().map(StringType::getValue).forEach(s -> addIfPresent(strings, s));
+            addIfPresent(strings, address.getCity());
+            addIfPresent(strings, address.getDistrict());
+            addIfPresent(strings, address.getState());
+            addIfPresent(strings, address.getPostalCode());
+            addIfPresent(strings, address.getCountry());
+        } else if (value instanceof ContactPoint) {
+            addIfPresent(strings, ((ContactPoint) value).getValue());
+        } else if (value instanceof IPrimitiveType) {
+            addIfPresent(strings, ((IPrimitiveType<?>) value).getValueAsString());
+        }
+
+        return strings;
+    }
+
+    private static void addIfPresent(List<String> strings, String value) {
+        if (value != null) {
+            strings.add(value);
+        }
+    }
+
+    private static Predicate<IBase> reference(ReferenceParam parameter) {
+        String expectedType = parameter.getResourceType();
+        String expectedId = parameter.getIdPart();
+        String expectedBaseUrl = parameter.getBaseUrl();
+
+        return value -> {
+            String reference = null;
+            if (value instanceof Reference) {
+                reference = ((Reference) value).getReference();
+            } else if (value instanceof IPrimitiveType) {
+                reference = ((IPrimitiveType<?>) value).getValueAsString();
+            }
+
+            if (reference == null) {
+                return false;
+            }
+
+            IdType id = new IdType(reference);
+            return Objects.equals(expectedId, id.getIdPart())
+                    && (expectedType == null || expectedType.equals(id.getResourceType()))
+                    && (expectedBaseUrl == null || expectedBaseUrl.equals(id.getBaseUrl()));
+        };
+    }
+
+    private static String normalize(String value) {
+        return StringUtil.normalizeStringForSearchIndexing(value);
+    }
+}
@@ -1,5 +1,6 @@
 package com.trifork.ehealth.export.future;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.trifork.ehealth.export.response.BDExportResponse;
 import com.trifork.ehealth.export.response.BDExportResultResponse;
@@ -14,8 +15,11 @@ import java.net.URI;
 import java.util.concurrent.TimeUnit;
 
 public class CompletedExportFuture implements BDExportFuture {
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
     private final HttpResponse response;
     private final URI locationUri;
+    private BDExportResponse exportResponse;
 
     private Logger logger = LoggerFactory.getLogger(CompletedExportFuture.class);
 
@@ -43,12 +47,23 @@ public class CompletedExportFuture implements BDExportFuture {
 
     @Override
     public BDExportResponse get() {
-        return createResponse();
+        return getResponse();
     }
 
     @Override
     public BDExportResponse get(long timeout, TimeUnit unit) {
-        return createResponse();
+        return getResponse();
+    }
+
+    /**
+     * The response body can only be read once, so the response is kept for every following waiter.
+     */
+    private synchronized BDExportResponse getResponse() {
+        if (exportResponse == null) {
+            exportResponse = createResponse();
+        }
+
+        return exportResponse;
     }
 
     private BDExportResponse createResponse() {
@@ -56,19 +71,18 @@ public class CompletedExportFuture implements BDExportFuture {
         BDExportResultResponse result = null;
 
         if (entity != null) {
-            try (InputStream content = entity.getContent()) {
-                byte[] bytes = content.readAllBytes();
-
-                logger.info("Reading " + bytes.length + " bytes from 'Bulk Data Export'");
+            logger.info("Reading " + entity.getContentLength() + " bytes from 'Bulk Data Export'");
 
-                if (bytes.length > 0) {
+            // Parsed as it is read, instead of reading the whole body into an array first
+            try (InputStream content = entity.getContent(); JsonParser parser = OBJECT_MAPPER.createParser(content)) {
+                if (parser.nextToken() != null) {
                     try {
-                        result = new ObjectMapper().readValue(bytes, BDExportResultResponse.class);
+                        result = OBJECT_MAPPER.readValue(parser, BDExportResultResponse.class);
                     } catch (Exception e) {
                         logger.error("Failed to parse response entity", e);
-                        // Empty content, so no results.
                     }
                 }
+                // Otherwise empty content, so no results.
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -15,6 +15,7 @@ public class ErrorExportFuture implements BDExportFuture {
     private final FhirContext fhirContext;
     private final HttpResponse response;
     private final URI locationUri;
+    private BDExportResponse exportResponse;
 
     public ErrorExportFuture(FhirContext fhirContext, HttpResponse response, URI locationUri) {
         this.fhirContext = fhirContext;
@@ -42,12 +43,23 @@ public class ErrorExportFuture implements BDExportFuture {
 
     @Override
     public BDExportResponse get() {
-        return createErrorResponse();
+        return getResponse();
     }
 
     @Override
     public BDExportResponse get(long timeout, TimeUnit unit) {
-        return createErrorResponse();
+        return getResponse();
+    }
+
+    /**
+     * The response body can only be read once, so the response is kept for every following waiter.
+     */
+    private synchronized BDExportResponse getResponse() {
+        if (exportResponse == null) {
+            exportResponse = createErrorResponse();
+        }
+
+        return exportResponse;
     }
 
     private BDExportResponse createErrorResponse() {
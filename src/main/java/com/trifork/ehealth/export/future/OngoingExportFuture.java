@@ -1,7 +1,13 @@
 package com.trifork.ehealth.export.future;
 
 import com.trifork.ehealth.export.BDExportClient;
+import com.trifork.ehealth.export.CancellationToken;
 import com.trifork.ehealth.export.BDExportUtils;
+import com.trifork.ehealth.export.poll.PollPlanner;
+import com.trifork.ehealth.export.progress.ExportProgressParser;
+import com.trifork.ehealth.export.progress.ProgressEstimate;
+import com.trifork.ehealth.export.progress.ProgressTracker;
+import com.trifork.ehealth.export.ratelimit.HostRateLimiter;
 import com.trifork.ehealth.export.response.BDExportResponse;
 import org.apache.http.HttpResponse;
 import org.slf4j.Logger;
@@ -9,157 +15,378 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.URI;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import static ca.uhn.fhir.rest.api.Constants.STATUS_HTTP_200_OK;
 import static ca.uhn.fhir.rest.api.Constants.STATUS_HTTP_202_ACCEPTED;
 import static com.trifork.ehealth.export.BDExportUtils.extractContentLocation;
 
+/**
+ * A future of an export, that the server is still working on.
+ * <p>
+ * The server is polled in the background, when the Retry-After of the last poll has passed, so the future can be
+ * shared between threads, and waiters only block until the export completes, is cancelled, or their timeout is reached.
+ * A poll never runs on the thread of a waiter, so waiting for the rate limiter or a slow server does not delay a
+ * timeout.
+ * <p>
+ * When the poll is due is decided by a {@link PollPlanner}, which can predict the completion from earlier exports,
+ * and from the progress reported by the server, which is also published to the listeners of the client.
+ * <p>
+ * Cancelling the future aborts a poll in flight, wakes every waiter, and then asks the server to cancel the export.
+ */
 public class OngoingExportFuture implements BDExportFuture {
-    private final BDExportClient exportClient;
+    /**
+     * Times the polls of every ongoing export, which are handed to {@link #POLLERS}, so a slow poll does not hold up
+     * the polls of other exports
+     */
+    private static final ScheduledExecutorService POLL_SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "bd-export-poll-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final AtomicInteger POLLER_NUMBER = new AtomicInteger();
+    private static final ExecutorService POLLERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "bd-export-poller-" + POLLER_NUMBER.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    private BDExportFuture delegate;
-    private HttpResponse lastResponse;
-    private Instant nextPollTime = Instant.now();
-    private URI locationUri;
-    private boolean cancelled;
+    private final BDExportClient exportClient;
+    private final CancellationToken cancellationToken;
+    private final PollPlanner pollPlanner;
+    private final ProgressTracker progressTracker = new ProgressTracker();
+
+    private final AtomicReference<PollState> state;
+    private final AtomicBoolean polling = new AtomicBoolean();
+    /**
+     * Completed with the final future, when the export is done, or exceptionally when it is cancelled, or a poll fails.
+     */
+    private final CompletableFuture<BDExportFuture> outcome = new CompletableFuture<>();
+    private ScheduledFuture<?> scheduledPoll;
 
     private final Logger logger = LoggerFactory.getLogger(OngoingExportFuture.class);
-    private static final int STATUS_HTTP_429_TOO_MANY_REQUESTS = 429;
 
     public OngoingExportFuture(BDExportClient exportClient, URI locationUri) {
-        this.locationUri = locationUri;
+        this(exportClient, locationUri, new CancellationToken());
+    }
+
+    /**
+     * @param exportClient      the client to poll with
+     * @param locationUri       the status URI of the export
+     * @param cancellationToken cancelled when this future is cancelled, and may be shared with the downloads of the
+     *                          export, to abort those too
+     */
+    public OngoingExportFuture(BDExportClient exportClient, URI locationUri, CancellationToken cancellationToken) {
+        this(exportClient, locationUri, cancellationToken, new PollPlanner());
+    }
+
+    /**
+     * @param exportClient      the client to poll with
+     * @param locationUri       the status URI of the export
+     * @param cancellationToken cancelled when this future is cancelled
+     * @param pollPlanner       decides when to poll, and records the duration of the export when it completes
+     */
+    public OngoingExportFuture(BDExportClient exportClient, URI locationUri, CancellationToken cancellationToken, PollPlanner pollPlanner) {
         this.exportClient = exportClient;
+        this.cancellationToken = cancellationToken;
+        this.pollPlanner = pollPlanner;
 
         try {
-            this.lastResponse = exportClient.poll(locationUri);
+            HttpResponse response = exportClient.poll(locationUri, cancellationToken);
+            Instant now = Instant.now();
+            Instant firstPollTime = now.plus(pollPlanner.nextPollDelay(now, BDExportUtils.extractRetryAfter(response)));
+            this.state = new AtomicReference<>(new PollState(response, locationUri, firstPollTime));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+
+        if (!checkLastResponse()) {
+            schedulePoll(state.get().nextPollTime);
+        }
     }
 
     @Override
     public URI getLocationURI() {
-        return locationUri;
+        return state.get().locationUri;
+    }
+
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
     }
 
+    /**
+     * Cancel the export, locally right away, and then on the server.
+     *
+     * @return false if the export was already done or cancelled, or if the server did not accept the cancellation, in
+     * which case the export may still run on the server, though this future no longer polls it
+     */
     @Override
     public boolean cancel(boolean mayInterruptIfRunning) {
+        BDExportFuture delegate = delegate();
         if (delegate != null) {
             return delegate.cancel(mayInterruptIfRunning);
         }
 
-        try {
-            HttpResponse cancelResponse = exportClient.cancel(getLocationURI());
-
-            if (BDExportUtils.extractStatusCode(cancelResponse) == STATUS_HTTP_202_ACCEPTED) {
-                Thread.currentThread().interrupt();
-                this.cancelled = true;
-                return true;
-            }
-        } catch (IOException e) {
-            logger.error("Failed to cancel export", e);
+        // Free the waiters and connections first, the server may take a while to respond
+        cancellationToken.cancel();
+        if (!markCancelled()) {
             return false;
         }
 
-        logger.error("Failed to cancel export, server responded with: " + BDExportUtils.extractStatusCode(lastResponse));
-        return false;
+        try {
+            exportClient.cancel(getLocationURI());
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to cancel export '" + getLocationURI() + "' on the server", e);
+            return false;
+        }
     }
 
     @Override
     public boolean isCancelled() {
+        BDExportFuture delegate = delegate();
         if (delegate != null) {
             return delegate.isCancelled();
         }
 
-        // HAPI FHIR takes a while to cancel ongoing export jobs, so let us attempt to poll for a status.
-        poll();
-        return BDExportUtils.isCancelled(lastResponse) || cancelled;
+        if (cancellationToken.isCancelled()) {
+            markCancelled();
+        }
+        checkLastResponse();
+
+        return isCancelledOutcome();
     }
 
     @Override
     public boolean isDone() {
+        BDExportFuture delegate = delegate();
         if (delegate != null) {
             return delegate.isDone();
         }
 
-        // Get latest response
-        poll();
-        return isCancelled() || isLastResponseDone();
-    }
-
-    private boolean isLastResponseDone() {
-        int statusCode = lastResponse.getStatusLine().getStatusCode();
-        return statusCode != STATUS_HTTP_202_ACCEPTED && statusCode != STATUS_HTTP_429_TOO_MANY_REQUESTS;
+        return isCancelled() || outcome.isDone();
     }
 
     @Override
     public BDExportResponse get() throws InterruptedException, ExecutionException {
-        while (delegate == null) {
-            if (isCancelled()) {
-                throw new InterruptedException("Export operation was cancelled");
-            }
-
-            Thread.sleep(calculateSleepTimeInMs());
-            poll();
+        try {
+            return await(false, 0).get();
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("Untimed wait timed out", e);
         }
-
-        return delegate.get();
     }
 
     @Override
     public BDExportResponse get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-        long timeoutMillis = unit.toMillis(timeout);
-        long startTime = System.currentTimeMillis();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        BDExportFuture delegate = await(true, deadline);
 
-        while (delegate == null) {
-            if (System.currentTimeMillis() - startTime > timeoutMillis) {
-                // Timeout exceeded
-                throw new TimeoutException("Export operation timed out");
+        return delegate.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Poll the server at the given time, instead of when the last poll planned
+     */
+    public void setNextPollTime(Instant time) {
+        state.updateAndGet(current -> new PollState(current.lastResponse, current.locationUri, time));
+        schedulePoll(time);
+    }
+
+    /**
+     * Wait for the export to complete, while it is polled in the background.
+     */
+    private BDExportFuture await(boolean timed, long deadline) throws InterruptedException, ExecutionException, TimeoutException {
+        if (isCancelled()) {
+            throw new InterruptedException("Export operation was cancelled");
+        }
+
+        try {
+            if (!timed) {
+                return outcome.get();
             }
 
-            if (isCancelled()) {
-                throw new InterruptedException("Export operation was cancelled");
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 && !outcome.isDone()) {
+                throw new TimeoutException("Export operation timed out");
             }
+            return outcome.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+        } catch (CancellationException e) {
+            throw new InterruptedException("Export operation was cancelled");
+        } catch (TimeoutException e) {
+            throw new TimeoutException("Export operation timed out");
+        }
+    }
 
-            Thread.sleep(calculateSleepTimeInMs());
-            poll();
+    private synchronized void schedulePoll(Instant time) {
+        if (outcome.isDone()) {
+            return;
         }
 
-        return delegate.get(timeout, unit);
+        if (scheduledPoll != null) {
+            scheduledPoll.cancel(false);
+        }
+        long delayNanos = Math.max(0, Duration.between(Instant.now(), time).toNanos());
+        scheduledPoll = POLL_SCHEDULER.schedule(() -> POLLERS.execute(this::poll), delayNanos, TimeUnit.NANOSECONDS);
     }
 
+    private synchronized void cancelScheduledPoll() {
+        if (scheduledPoll != null) {
+            scheduledPoll.cancel(false);
+        }
+    }
+
+    /**
+     * Poll the server on a poller thread, and schedule the next poll, unless the export is done.
+     */
     private void poll() {
-        boolean pastRetryAfterDuration = Instant.now().isAfter(nextPollTime);
+        if (outcome.isDone() || !polling.compareAndSet(false, true)) {
+            return;
+        }
 
-        if (pastRetryAfterDuration && !isLastResponseDone()) {
-            this.locationUri = extractContentLocation(lastResponse).orElse(locationUri);
+        try {
+            PollState current = state.get();
+            URI locationUri = extractContentLocation(current.lastResponse).orElse(current.locationUri);
+            HttpResponse response = exportClient.poll(locationUri, cancellationToken);
 
-            try {
-                this.lastResponse = exportClient.poll(locationUri);
+            Instant now = Instant.now();
+            Optional<ProgressEstimate> estimate = estimateProgress(locationUri, response, now);
 
-                Optional<Integer> opt = BDExportUtils.extractRetryAfterInSeconds(lastResponse);
-                opt.ifPresent(integer -> this.nextPollTime = BDExportUtils.evaluateNextAllowedPollTime(integer));
+            Instant nextPollTime = now.plus(pollPlanner.nextPollDelay(now, BDExportUtils.extractRetryAfter(response)));
+            state.set(new PollState(response, locationUri, nextPollTime));
+
+            if (estimate.isPresent()) {
+                logger.info("'Bulk Data Export' status: '" + estimate.get().getProgress() + "', next polling at: " + nextPollTime);
+                exportClient.notifyProgress(locationUri, estimate.get());
+            }
 
-                BDExportUtils.extractProgress(lastResponse)
-                        .ifPresent(s -> logger.info("'Bulk Data Export' status: '" + s + "', next polling at: " + nextPollTime));
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            if (!checkLastResponse()) {
+                schedulePoll(nextPollTime);
             }
-        } else if (isLastResponseDone()) {
-            this.delegate = exportClient.createFuture(lastResponse, locationUri);
+        } catch (IOException | RuntimeException e) {
+            if (cancellationToken.isCancelled()) {
+                // The poll was aborted, because the export was cancelled
+                return;
+            }
+
+            logger.error("Failed to poll export at '" + state.get().locationUri + "'", e);
+            outcome.completeExceptionally(e);
+        } finally {
+            polling.set(false);
         }
     }
 
-    protected long calculateSleepTimeInMs() {
-        long diff = (nextPollTime.getEpochSecond() * 1000) - System.currentTimeMillis();
-        return Math.max(10000, diff);
+    /**
+     * Estimate the progress, and hand it to the poll planner. The progress is informational only, so an X-Progress
+     * header, that cannot be made sense of, is skipped, instead of failing the export.
+     */
+    private Optional<ProgressEstimate> estimateProgress(URI locationUri, HttpResponse response, Instant now) {
+        try {
+            Optional<ProgressEstimate> estimate = BDExportUtils.extractProgress(response)
+                    .map(header -> progressTracker.update(ExportProgressParser.parse(header), now));
+            estimate.ifPresent(pollPlanner::onProgress);
+            return estimate;
+        } catch (RuntimeException e) {
+            logger.warn("Failed to estimate the progress of the export at '" + locationUri + "'", e);
+            return Optional.empty();
+        }
     }
 
-    public void setNextPollTime(Instant time) {
-        this.nextPollTime = time;
+    /**
+     * Complete the future, if the last response tells that the export is done or was cancelled
+     *
+     * @return true if the future is done
+     */
+    private boolean checkLastResponse() {
+        if (outcome.isDone()) {
+            return true;
+        }
+
+        PollState current = state.get();
+        if (BDExportUtils.isCancelled(current.lastResponse)) {
+            markCancelled();
+        } else if (isDone(current.lastResponse)) {
+            complete(current);
+        }
+
+        return outcome.isDone();
+    }
+
+    private void complete(PollState done) {
+        if (outcome.isDone()) {
+            return;
+        }
+
+        if (outcome.complete(exportClient.createFuture(done.lastResponse, done.locationUri))
+                && BDExportUtils.extractStatusCode(done.lastResponse) == STATUS_HTTP_200_OK) {
+            pollPlanner.onCompleted(Instant.now());
+        }
+    }
+
+    /**
+     * @return false if the future was already completed
+     */
+    private boolean markCancelled() {
+        boolean cancelled = outcome.completeExceptionally(new CancellationException("Export operation was cancelled"));
+        cancelScheduledPoll();
+
+        return cancelled;
+    }
+
+    private boolean isCancelledOutcome() {
+        if (!outcome.isCompletedExceptionally()) {
+            return false;
+        }
+
+        try {
+            outcome.join();
+            return false;
+        } catch (CancellationException e) {
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the final future, or null if the export is not done, was cancelled, or failed
+     */
+    private BDExportFuture delegate() {
+        return outcome.isDone() && !outcome.isCompletedExceptionally() ? outcome.join() : null;
+    }
+
+    private static boolean isDone(HttpResponse response) {
+        int statusCode = response.getStatusLine().getStatusCode();
+
+        // A throttled poll is retried after its Retry-After, which the client's rate limiter also waits for
+        return statusCode != STATUS_HTTP_202_ACCEPTED && !HostRateLimiter.isThrottled(statusCode);
+    }
+
+    /**
+     * The result of the latest poll, which is replaced as a whole, so readers always see a consistent state.
+     */
+    private static class PollState {
+        private final HttpResponse lastResponse;
+        private final URI locationUri;
+        private final Instant nextPollTime;
+
+        private PollState(HttpResponse lastResponse, URI locationUri, Instant nextPollTime) {
+            this.lastResponse = lastResponse;
+            this.locationUri = locationUri;
+            this.nextPollTime = nextPollTime;
+        }
     }
 }
@@ -0,0 +1,80 @@
+package com.trifork.ehealth.export.group;
+
+import com.trifork.ehealth.export.sort.ExternalMerger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Comparator;
+
+/**
+ * A resource of a patient, encoded as JSON, ordered by patient, with the Patient resource first, and otherwise in the
+ * order the resources arrived.
+ */
+class GroupEntry {
+    static final Comparator<GroupEntry> ORDER = Comparator
+            .comparing((GroupEntry entry) -> entry.patientId)
+            .thenComparingInt(entry -> entry.rank)
+            .thenComparingLong(entry -> entry.sequence);
+
+    static final ExternalMerger.RecordFormat<GroupEntry> FORMAT = new ExternalMerger.RecordFormat<>() {
+        @Override
+        public void write(DataOutputStream out, GroupEntry entry) throws IOException {
+            entry.writeTo(out);
+        }
+
+        @Override
+        public GroupEntry read(DataInputStream in) throws IOException {
+            return readFrom(in);
+        }
+    };
+
+    /**
+     * Rough heap size of an entry besides its JSON, for the memory budget
+     */
+    static final int OVERHEAD_BYTES = 96;
+
+    final String patientId;
+    final int rank;
+    final long sequence;
+    final byte[] json;
+
+    GroupEntry(String patientId, int rank, long sequence, byte[] json) {
+        this.patientId = patientId;
+        this.rank = rank;
+        this.sequence = sequence;
+        this.json = json;
+    }
+
+    long sizeInBytes() {
+        return OVERHEAD_BYTES + 2L * patientId.length() + json.length;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeUTF(patientId);
+        out.writeByte(rank);
+        out.writeLong(sequence);
+        out.writeInt(json.length);
+        out.write(json);
+    }
+
+    /**
+     * @return the next entry of the stream, or null at its end
+     */
+    static GroupEntry readFrom(DataInputStream in) throws IOException {
+        String patientId;
+        try {
+            patientId = in.readUTF();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        int rank = in.readByte();
+        long sequence = in.readLong();
+        byte[] json = new byte[in.readInt()];
+        in.readFully(json);
+
+        return new GroupEntry(patientId, rank, sequence, json);
+    }
+}
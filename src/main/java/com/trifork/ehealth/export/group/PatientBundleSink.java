@@ -0,0 +1,18 @@
+package com.trifork.ehealth.export.group;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Receives the resources of one patient at a time, from a {@link PatientGrouper}.
+ */
+@FunctionalInterface
+public interface PatientBundleSink {
+    /**
+     * Consume the resources of a patient.
+     *
+     * @param patientId the id of the patient
+     * @param bundle    a collection bundle of the resources in the compartment of the patient, the Patient first
+     * @throws Exception any failure aborts the grouping
+     */
+    void accept(String patientId, Bundle bundle) throws Exception;
+}
@@ -0,0 +1,248 @@
+package com.trifork.ehealth.export.group;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
+import com.trifork.ehealth.export.pipeline.BDExportSink;
+import com.trifork.ehealth.export.pipeline.ResourceBatch;
+import com.trifork.ehealth.export.sort.ExternalMerger;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A sink, that groups the exported resources of every output file by the patient compartment they belong to, and
+ * emits a collection {@link Bundle} per patient when the export is finished.
+ * <p>
+ * The resources are kept in memory, encoded as JSON, up to a budget. Beyond it, they are sorted by patient and spilled
+ * to a run file on disk, and the runs are merged by an {@link ExternalMerger} when the bundles are emitted, so exports
+ * of any size are grouped in bounded memory. Resources are encoded before the grouper is locked, so the threads adding
+ * them only wait for each other to add the encoded entries. A resource in the compartment of several patients is
+ * included in the bundle of each of them, and resources outside of any patient compartment, e.g. Practitioners, are
+ * counted but dropped.
+ */
+public class PatientGrouper implements BDExportSink, AutoCloseable {
+    private static final String COMPARTMENT = "Patient";
+    private static final int PATIENT_RANK = 0;
+    private static final int MEMBER_RANK = 1;
+
+    private final FhirContext fhirContext;
+    private final FhirTerser terser;
+    private final IParser parser;
+    private final long memoryBudgetBytes;
+    private final List<GroupEntry> entries = new ArrayList<>();
+    private final ExternalMerger<GroupEntry> merger;
+    private long memoryBytes;
+    private long sequence;
+    private long grouped;
+    private long ungrouped;
+    private boolean finished;
+
+    private static final Logger logger = LoggerFactory.getLogger(PatientGrouper.class);
+
+    /**
+     * @param fhirContext       the context, that resources are encoded and parsed with
+     * @param spillDirectory    the directory of the spilled runs, which is created if it does not exist
+     * @param memoryBudgetBytes the approximate size of the resources kept in memory, before they are spilled to disk
+     */
+    public PatientGrouper(FhirContext fhirContext, Path spillDirectory, long memoryBudgetBytes) throws IOException {
+        this.fhirContext = fhirContext;
+        this.terser = fhirContext.newTerser();
+        this.parser = fhirContext.newJsonParser();
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.merger = new ExternalMerger<>(Files.createDirectories(spillDirectory), "patients.run-", GroupEntry.ORDER, GroupEntry.FORMAT);
+    }
+
+    @Override
+    public void accept(ResourceBatch batch) throws IOException {
+        // Parsers are not shared between threads
+        IParser encoder = fhirContext.newJsonParser();
+        List<EncodedResource> encoded = new ArrayList<>(batch.getResources().size());
+        for (IBaseResource resource : batch.getResources()) {
+            encoded.add(encode(resource, encoder));
+        }
+
+        synchronized (this) {
+            for (EncodedResource resource : encoded) {
+                add(resource);
+            }
+        }
+    }
+
+    /**
+     * Add a resource to the group of every patient, whose compartment it belongs to
+     */
+    public void add(IBaseResource resource) throws IOException {
+        EncodedResource encoded = encode(resource, fhirContext.newJsonParser());
+
+        synchronized (this) {
+            add(encoded);
+        }
+    }
+
+    /**
+     * Emit the bundle of every patient, in the order of the patient ids. The grouper cannot be used afterwards.
+     */
+    public synchronized void finish(PatientBundleSink sink) throws Exception {
+        if (finished) {
+            throw new IllegalStateException("Patient grouper is finished");
+        }
+        finished = true;
+
+        // The last run is merged from memory
+        entries.sort(GroupEntry.ORDER);
+        try (ExternalMerger.MergedRecords<GroupEntry> merged = merger.merge(entries)) {
+            emit(merged, sink);
+        }
+
+        logger.info("Grouped " + grouped + " resources by patient, merged from " + merger.getRunsWritten()
+                + " spilled runs, " + ungrouped + " resources were outside of any patient compartment");
+        entries.clear();
+        memoryBytes = 0;
+    }
+
+    /**
+     * @return the number of resources in the compartment of at least one patient
+     */
+    public synchronized long getGrouped() {
+        return grouped;
+    }
+
+    /**
+     * @return the number of resources outside of any patient compartment, which are not included in any bundle
+     */
+    public synchronized long getUngrouped() {
+        return ungrouped;
+    }
+
+    /**
+     * @return the number of runs spilled to disk so far
+     */
+    public synchronized int getSpilledRuns() {
+        return merger.getRunsWritten();
+    }
+
+    /**
+     * Delete the spilled runs
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        finished = true;
+        entries.clear();
+        merger.close();
+    }
+
+    private EncodedResource encode(IBaseResource resource, IParser encoder) {
+        Set<String> owners = ownersOf(resource);
+        if (owners.isEmpty()) {
+            return new EncodedResource(owners, MEMBER_RANK, null);
+        }
+
+        byte[] json = encoder.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+        int rank = COMPARTMENT.equals(fhirContext.getResourceType(resource)) ? PATIENT_RANK : MEMBER_RANK;
+        return new EncodedResource(owners, rank, json);
+    }
+
+    private void add(EncodedResource resource) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("Patient grouper is finished");
+        }
+        if (resource.owners.isEmpty()) {
+            ungrouped++;
+            return;
+        }
+
+        long position = sequence++;
+        for (String owner : resource.owners) {
+            GroupEntry entry = new GroupEntry(owner, resource.rank, position, resource.json);
+            entries.add(entry);
+            memoryBytes += entry.sizeInBytes();
+        }
+        grouped++;
+
+        if (memoryBytes > memoryBudgetBytes) {
+            spillRun();
+        }
+    }
+
+    private Set<String> ownersOf(IBaseResource resource) {
+        Set<String> owners = new LinkedHashSet<>();
+        if (COMPARTMENT.equals(fhirContext.getResourceType(resource))) {
+            if (resource.getIdElement().hasIdPart()) {
+                owners.add(resource.getIdElement().getIdPart());
+            }
+            return owners;
+        }
+
+        for (IIdType owner : terser.getCompartmentOwnersForResource(COMPARTMENT, resource, Collections.emptySet())) {
+            if (owner.hasIdPart() && (!owner.hasResourceType() || COMPARTMENT.equals(owner.getResourceType()))) {
+                owners.add(owner.getIdPart());
+            }
+        }
+
+        return owners;
+    }
+
+    private void spillRun() throws IOException {
+        entries.sort(GroupEntry.ORDER);
+        merger.spill(entries);
+
+        logger.debug("Spilled " + entries.size() + " grouped resources to run " + merger.getRunsWritten());
+        entries.clear();
+        memoryBytes = 0;
+    }
+
+    /**
+     * Emit a bundle for every run of consecutive entries of the same patient
+     */
+    private void emit(ExternalMerger.MergedRecords<GroupEntry> sorted, PatientBundleSink sink) throws Exception {
+        String patientId = null;
+        Bundle bundle = null;
+
+        GroupEntry entry;
+        while ((entry = sorted.next()) != null) {
+            if (!entry.patientId.equals(patientId)) {
+                if (bundle != null) {
+                    sink.accept(patientId, bundle);
+                }
+                patientId = entry.patientId;
+                bundle = new Bundle().setType(Bundle.BundleType.COLLECTION);
+            }
+
+            String json = new String(entry.json, StandardCharsets.UTF_8);
+            bundle.addEntry().setResource((Resource) parser.parseResource(json));
+        }
+
+        if (bundle != null) {
+            sink.accept(patientId, bundle);
+        }
+    }
+
+    /**
+     * A resource encoded as JSON, with the patients whose compartment it belongs to
+     */
+    private static class EncodedResource {
+        private final Set<String> owners;
+        private final int rank;
+        private final byte[] json;
+
+        private EncodedResource(Set<String> owners, int rank, byte[] json) {
+            this.owners = owners;
+            this.rank = rank;
+            this.json = json;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.trifork.ehealth.export.integrity;
+
+import java.util.Arrays;
+
+/**
+ * A set of 64-bit fingerprints in primitive arrays, 8 bytes per fingerprint, without boxing or per entry objects.
+ * <p>
+ * The fingerprints are spread over segments by their top bits, that each have an array and a lock of their own, so
+ * threads add to the set in parallel, and no array is copied in one piece when it grows. When the set is sealed, every
+ * segment is sorted and deduplicated, and looked up by binary search.
+ */
+final class FingerprintSet {
+    private static final int SEGMENT_BITS = 12;
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+    private volatile boolean sealed;
+
+    FingerprintSet() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    void add(long fingerprint) {
+        Segment segment = segmentOf(fingerprint);
+
+        synchronized (segment) {
+            if (sealed) {
+                throw new IllegalStateException("Fingerprint set is sealed");
+            }
+            segment.add(fingerprint);
+        }
+    }
+
+    /**
+     * Sort the segments, after which fingerprints can be looked up, but no longer added
+     */
+    void seal() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.seal();
+            }
+        }
+        sealed = true;
+    }
+
+    boolean contains(long fingerprint) {
+        if (!sealed) {
+            throw new IllegalStateException("Fingerprint set is not sealed");
+        }
+
+        Segment segment = segmentOf(fingerprint);
+        return Arrays.binarySearch(segment.values, 0, segment.size, fingerprint) >= 0;
+    }
+
+    /**
+     * @return the number of fingerprints, which are distinct once the set is sealed
+     */
+    long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @return the bytes held by the arrays of the segments
+     */
+    long getBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += (long) segment.values.length * Long.BYTES;
+            }
+        }
+
+        return bytes;
+    }
+
+    private Segment segmentOf(long fingerprint) {
+        return segments[(int) (fingerprint >>> (64 - SEGMENT_BITS))];
+    }
+
+    private static class Segment {
+        private long[] values = new long[INITIAL_SEGMENT_CAPACITY];
+        private int size;
+
+        private void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size + (size >> 1));
+            }
+            values[size++] = value;
+        }
+
+        private void seal() {
+            Arrays.sort(values, 0, size);
+
+            int distinct = 0;
+            for (int i = 0; i < size; i++) {
+                if (distinct == 0 || values[i] != values[distinct - 1]) {
+                    values[distinct++] = values[i];
+                }
+            }
+            size = distinct;
+            values = Arrays.copyOf(values, size);
+        }
+    }
+}
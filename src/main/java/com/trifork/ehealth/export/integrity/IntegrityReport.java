@@ -0,0 +1,112 @@
+package com.trifork.ehealth.export.integrity;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of checking the references between the resources of an export, by {@link ReferenceChecker}.
+ */
+public class IntegrityReport {
+    private final long resources;
+    private final long checkedReferences;
+    private final long danglingReferences;
+    private final long uncheckedReferences;
+    private final List<DanglingReference> dangling;
+    private final Map<String, Long> danglingByElement;
+
+    IntegrityReport(long resources, long checkedReferences, long danglingReferences, long uncheckedReferences,
+                    List<DanglingReference> dangling, Map<String, Long> danglingByElement) {
+        this.resources = resources;
+        this.checkedReferences = checkedReferences;
+        this.danglingReferences = danglingReferences;
+        this.uncheckedReferences = uncheckedReferences;
+        this.dangling = Collections.unmodifiableList(dangling);
+        this.danglingByElement = Collections.unmodifiableMap(danglingByElement);
+    }
+
+    /**
+     * @return the number of distinct resources in the export
+     */
+    public long getResources() {
+        return resources;
+    }
+
+    /**
+     * @return the number of references to resources of the exported types
+     */
+    public long getCheckedReferences() {
+        return checkedReferences;
+    }
+
+    /**
+     * @return the number of references to resources of the exported types, that are not in the export
+     */
+    public long getDanglingReferences() {
+        return danglingReferences;
+    }
+
+    /**
+     * @return the number of references, that could not be checked, because they are absolute, or to a type, of which
+     * no resources were exported
+     */
+    public long getUncheckedReferences() {
+        return uncheckedReferences;
+    }
+
+    /**
+     * @return the dangling references, up to the number the checker reports
+     */
+    public List<DanglingReference> getDangling() {
+        return dangling;
+    }
+
+    /**
+     * @return the number of dangling references of every element, e.g. <code>Observation.subject</code>
+     */
+    public Map<String, Long> getDanglingByElement() {
+        return danglingByElement;
+    }
+
+    public boolean isIntact() {
+        return danglingReferences == 0;
+    }
+
+    public static class DanglingReference {
+        private final String source;
+        private final String element;
+        private final String reference;
+
+        DanglingReference(String source, String element, String reference) {
+            this.source = source;
+            this.element = element;
+            this.reference = reference;
+        }
+
+        /**
+         * @return the type and id of the resource with the reference, e.g. <code>Observation/123</code>
+         */
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * @return the element of the reference, e.g. <code>Observation.subject</code>
+         */
+        public String getElement() {
+            return element;
+        }
+
+        /**
+         * @return the reference, as it is in the resource
+         */
+        public String getReference() {
+            return reference;
+        }
+
+        @Override
+        public String toString() {
+            return source + " " + element + " -> " + reference;
+        }
+    }
+}
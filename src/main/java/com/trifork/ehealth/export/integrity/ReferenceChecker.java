@@ -0,0 +1,204 @@
+package com.trifork.ehealth.export.integrity;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.ResourceReferenceInfo;
+import com.trifork.ehealth.export.change.ContentHasher;
+import com.trifork.ehealth.export.pipeline.BDExportSink;
+import com.trifork.ehealth.export.pipeline.ResourceBatch;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A sink, that checks that the references between the exported resources, e.g. <code>Observation.subject</code>,
+ * resolve to resources in the same export.
+ * <p>
+ * References can point to resources, that are exported later, so they are checked in two passes. While the export is
+ * streamed, the type and id of every resource is recorded as a 64-bit fingerprint in a {@link FingerprintSet}, which
+ * takes 8 bytes per resource, and the references are spilled to a file on disk. When the export is finished, the
+ * spilled references are looked up in the fingerprints. A reported dangling reference is always dangling, while a
+ * dangling reference is only missed, if its fingerprint collides with that of an exported resource.
+ * <p>
+ * Contained, absolute and <code>urn:</code> references, and references to types, of which no resources were exported,
+ * are counted as unchecked.
+ */
+public class ReferenceChecker implements BDExportSink, AutoCloseable {
+    private static final String SPILL_PREFIX = "references.spill-";
+    private static final int DEFAULT_MAX_REPORTED = 1000;
+
+    private final FhirContext fhirContext;
+    private final FhirTerser terser;
+    private final Path spillFile;
+    private final DataOutputStream spill;
+    private final FingerprintSet ids = new FingerprintSet();
+    private final Set<String> exportedTypes = ConcurrentHashMap.newKeySet();
+    private final AtomicLong unchecked = new AtomicLong();
+    private int maxReported = DEFAULT_MAX_REPORTED;
+    private volatile boolean finished;
+    private boolean closed;
+
+    private static final Logger logger = LoggerFactory.getLogger(ReferenceChecker.class);
+
+    /**
+     * @param fhirContext    the context of the exported resources
+     * @param spillDirectory the directory of the spilled references, which is created if it does not exist
+     */
+    public ReferenceChecker(FhirContext fhirContext, Path spillDirectory) throws IOException {
+        this.fhirContext = fhirContext;
+        this.terser = fhirContext.newTerser();
+        // A unique name, so checkers of several exports can share a directory
+        this.spillFile = Files.createTempFile(Files.createDirectories(spillDirectory), SPILL_PREFIX, ".tmp");
+        this.spill = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spillFile), 1 << 16));
+    }
+
+    /**
+     * @param maxReported the number of dangling references listed in the report, beyond which they are only counted
+     */
+    public ReferenceChecker setMaxReported(int maxReported) {
+        this.maxReported = maxReported;
+        return this;
+    }
+
+    @Override
+    public void accept(ResourceBatch batch) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("Reference checker is finished");
+        }
+
+        // The references of the batch are encoded before the spill is locked, so batches are only serialized on writing
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(bytes);
+        for (IBaseResource resource : batch.getResources()) {
+            add(resource, records);
+        }
+
+        if (bytes.size() > 0) {
+            synchronized (spill) {
+                bytes.writeTo(spill);
+            }
+        }
+    }
+
+    /**
+     * Check the spilled references against the exported resources. The checker cannot be used afterwards.
+     */
+    public IntegrityReport finish() throws IOException {
+        if (finished) {
+            throw new IllegalStateException("Reference checker is finished");
+        }
+        finished = true;
+
+        synchronized (spill) {
+            spill.close();
+        }
+        ids.seal();
+
+        long checked = 0;
+        long danglingCount = 0;
+        long uncheckedCount = unchecked.get();
+        List<IntegrityReport.DanglingReference> dangling = new ArrayList<>();
+        Map<String, Long> danglingByElement = new TreeMap<>();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(spillFile), 1 << 16))) {
+            while (true) {
+                long fingerprint;
+                try {
+                    fingerprint = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                String targetType = in.readUTF();
+                String source = in.readUTF();
+                String element = in.readUTF();
+                String reference = in.readUTF();
+
+                if (!exportedTypes.contains(targetType)) {
+                    uncheckedCount++;
+                    continue;
+                }
+
+                checked++;
+                if (!ids.contains(fingerprint)) {
+                    danglingCount++;
+                    danglingByElement.merge(element, 1L, Long::sum);
+                    if (dangling.size() < maxReported) {
+                        dangling.add(new IntegrityReport.DanglingReference(source, element, reference));
+                    }
+                }
+            }
+        }
+        Files.deleteIfExists(spillFile);
+
+        IntegrityReport report = new IntegrityReport(ids.size(), checked, danglingCount, uncheckedCount, dangling, danglingByElement);
+        logger.info("Checked " + checked + " references between " + report.getResources() + " resources, "
+                + danglingCount + " were dangling, " + uncheckedCount + " could not be checked, the ids took "
+                + ids.getBytes() + " bytes");
+
+        return report;
+    }
+
+    /**
+     * Delete the spilled references, if the checker was not finished
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        synchronized (spill) {
+            spill.close();
+        }
+        Files.deleteIfExists(spillFile);
+    }
+
+    private void add(IBaseResource resource, DataOutputStream records) throws IOException {
+        String resourceType = fhirContext.getResourceType(resource);
+        String id = resource.getIdElement().getIdPart();
+        exportedTypes.add(resourceType);
+        if (id != null) {
+            ids.add(ContentHasher.keyOf(resourceType, id));
+        }
+
+        String source = resourceType + "/" + id;
+        for (ResourceReferenceInfo info : terser.getAllResourceReferences(resource)) {
+            IIdType target = info.getResourceReference().getReferenceElement();
+            if (target == null || target.isEmpty() || !target.hasIdPart()) {
+                // Logical references by identifier, and references with only a display
+                continue;
+            }
+
+            String reference = target.getValue();
+            if (target.isLocal() || target.isAbsolute() || !target.hasResourceType() || reference.startsWith("urn:")) {
+                unchecked.incrementAndGet();
+                continue;
+            }
+
+            records.writeLong(ContentHasher.keyOf(target.getResourceType(), target.getIdPart()));
+            records.writeUTF(target.getResourceType());
+            records.writeUTF(source);
+            records.writeUTF(resourceType + "." + info.getName());
+            records.writeUTF(reference);
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package com.trifork.ehealth.export.jdbc;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.trifork.ehealth.export.ndjson.NdjsonLineHeader;
+import com.trifork.ehealth.export.ndjson.NdjsonReader;
+import com.trifork.ehealth.export.pipeline.BDExportSink;
+import com.trifork.ehealth.export.pipeline.ResourceBatch;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * A sink, that loads the exported resources into a relational database with JDBC batch inserts.
+ * <p>
+ * Every output file is loaded in a transaction of its own, by one of the writer threads, and committed together with a
+ * row in the table of loaded files, once its last batch has arrived. A file, that is already in that table, is skipped,
+ * so a failed load can be restarted with the same output files, and only the files, that were not committed, are
+ * loaded again.
+ * <p>
+ * The resources are inserted as JSON, with their type, id, version and last updated, into a single table:
+ * <pre>
+ * resource_type VARCHAR, resource_id VARCHAR, version_id VARCHAR, last_updated TIMESTAMP, source_url VARCHAR,
+ * content CLOB
+ * </pre>
+ * and the loaded files into a table of
+ * <pre>
+ * source_url VARCHAR PRIMARY KEY, resource_count BIGINT, loaded_at TIMESTAMP
+ * </pre>
+ * which {@link #createTables()} creates, if they do not exist.
+ */
+public class JdbcExportSink implements BDExportSink, AutoCloseable {
+    private static final Pattern TABLE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_.]*");
+    private static final int QUEUED_BATCHES_PER_WRITER = 4;
+
+    private final DataSource dataSource;
+    private final FhirContext fhirContext;
+    private final ExecutorService[] writers;
+    private final Semaphore queued;
+    private final int maxQueued;
+    private final Map<String, FileTransaction> transactions = new ConcurrentHashMap<>();
+    private final AtomicLong rowsWritten = new AtomicLong();
+    private final AtomicLong filesCommitted = new AtomicLong();
+    private final AtomicLong filesSkipped = new AtomicLong();
+    private volatile Exception failure;
+    private boolean closed;
+    private String table = "fhir_resource";
+    private String loadedTable = "fhir_export_file";
+    private int batchSize = 500;
+
+    private static final Logger logger = LoggerFactory.getLogger(JdbcExportSink.class);
+
+    /**
+     * @param dataSource    the database, which must hand out a connection per writer thread and file being loaded
+     * @param fhirContext   the context, that resources are encoded with
+     * @param writerThreads the number of files loaded at the same time
+     */
+    public JdbcExportSink(DataSource dataSource, FhirContext fhirContext, int writerThreads) {
+        if (writerThreads < 1) {
+            throw new IllegalArgumentException("Writer threads must be at least 1");
+        }
+
+        this.dataSource = dataSource;
+        this.fhirContext = fhirContext;
+        this.writers = new ExecutorService[writerThreads];
+        for (int i = 0; i < writerThreads; i++) {
+            writers[i] = Executors.newSingleThreadExecutor();
+        }
+        this.maxQueued = writerThreads * QUEUED_BATCHES_PER_WRITER;
+        this.queued = new Semaphore(maxQueued);
+    }
+
+    /**
+     * @param table the table of the resources, default fhir_resource
+     */
+    public JdbcExportSink setTable(String table) {
+        this.table = checkTableName(table);
+        return this;
+    }
+
+    /**
+     * @param loadedTable the table of the loaded output files, default fhir_export_file
+     */
+    public JdbcExportSink setLoadedTable(String loadedTable) {
+        this.loadedTable = checkTableName(loadedTable);
+        return this;
+    }
+
+    /**
+     * @param batchSize the number of rows sent to the database at a time, default 500
+     */
+    public JdbcExportSink setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Create the tables of the resources and of the loaded files, if they do not exist
+     */
+    public void createTables() throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + table + " (resource_type VARCHAR(64) NOT NULL, "
+                    + "resource_id VARCHAR(64), version_id VARCHAR(64), last_updated TIMESTAMP, "
+                    + "source_url VARCHAR(2048) NOT NULL, content CLOB NOT NULL)");
+            statement.execute("CREATE TABLE IF NOT EXISTS " + loadedTable + " (source_url VARCHAR(2048) PRIMARY KEY, "
+                    + "resource_count BIGINT NOT NULL, loaded_at TIMESTAMP NOT NULL)");
+        }
+    }
+
+    /**
+     * Queue the batch for the writer of its output file, waiting while the writers are behind
+     *
+     * @throws IOException if the load of a file has failed
+     */
+    @Override
+    public void accept(ResourceBatch batch) throws IOException, InterruptedException {
+        checkFailure();
+
+        String sourceUrl = batch.getSource().getUrl();
+        IParser parser = fhirContext.newJsonParser();
+        List<Row> rows = new ArrayList<>(batch.getResources().size());
+        for (IBaseResource resource : batch.getResources()) {
+            rows.add(rowOf(parser, resource));
+        }
+
+        queued.acquire();
+        try {
+            writerOf(sourceUrl).execute(() -> {
+                try {
+                    write(sourceUrl, batch.getSequence(), batch.isLast(), rows);
+                } finally {
+                    queued.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            queued.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Load the raw lines of an NDJSON output file, in a single transaction on the calling thread. The id, version and
+     * last updated of every line are scanned, without parsing the resources.
+     *
+     * @param sourceUrl the url of the output file
+     * @return the number of rows inserted, 0 if the file was already loaded
+     */
+    public long load(String sourceUrl, InputStream ndjson) throws IOException, InterruptedException, SQLException {
+        checkFailure();
+
+        try (FileTransaction transaction = new FileTransaction(sourceUrl)) {
+            if (transaction.isLoaded()) {
+                filesSkipped.incrementAndGet();
+                return 0;
+            }
+
+            new NdjsonReader().forEachLine(ndjson, header -> {
+                try {
+                    transaction.insert(rowOf(header));
+                } catch (SQLException e) {
+                    throw new IOException("Failed to insert a line of " + sourceUrl, e);
+                }
+            });
+
+            return transaction.commit();
+        }
+    }
+
+    /**
+     * @return true if the output file has been loaded, and committed
+     */
+    public boolean isLoaded(String sourceUrl) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            return isLoaded(connection, sourceUrl);
+        }
+    }
+
+    /**
+     * Wait for the writers to write every queued batch
+     *
+     * @throws IOException if the load of a file has failed
+     */
+    public void flush() throws IOException, InterruptedException {
+        queued.acquire(maxQueued);
+        queued.release(maxQueued);
+        checkFailure();
+    }
+
+    /**
+     * @return the number of rows committed
+     */
+    public long getRowsWritten() {
+        return rowsWritten.get();
+    }
+
+    public long getFilesCommitted() {
+        return filesCommitted.get();
+    }
+
+    /**
+     * @return the number of output files, that were skipped, because they were already loaded
+     */
+    public long getFilesSkipped() {
+        return filesSkipped.get();
+    }
+
+    /**
+     * Wait for the queued batches, and stop the writers. Files, whose last batch has not arrived, are rolled back.
+     */
+    @Override
+    public synchronized void close() throws IOException, InterruptedException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            flush();
+        } finally {
+            for (ExecutorService writer : writers) {
+                writer.shutdown();
+            }
+            for (FileTransaction transaction : transactions.values()) {
+                logger.warn("Rolling back the incomplete load of " + transaction.sourceUrl);
+                transaction.close();
+            }
+            transactions.clear();
+        }
+    }
+
+    private ExecutorService writerOf(String sourceUrl) {
+        return writers[Math.floorMod(sourceUrl.hashCode(), writers.length)];
+    }
+
+    /**
+     * Runs on the writer of the file, so the batches of a file are written one at a time. Batches may arrive out of
+     * order, so the file is committed once as many batches as the sequence of its last batch have arrived.
+     */
+    private void write(String sourceUrl, long sequence, boolean last, List<Row> rows) {
+        FileTransaction transaction = transactions.get(sourceUrl);
+        try {
+            if (transaction == null) {
+                transaction = new FileTransaction(sourceUrl);
+                transactions.put(sourceUrl, transaction);
+                if (transaction.isLoaded()) {
+                    logger.info("Skipping " + sourceUrl + ", which is already loaded");
+                    filesSkipped.incrementAndGet();
+                    transaction.skipped = true;
+                }
+            }
+
+            if (!transaction.skipped && !transaction.failed) {
+                for (Row row : rows) {
+                    transaction.insert(row);
+                }
+            }
+
+            transaction.batches++;
+            if (last) {
+                transaction.expectedBatches = sequence + 1;
+            }
+
+            if (transaction.batches == transaction.expectedBatches) {
+                transactions.remove(sourceUrl);
+                try {
+                    if (!transaction.skipped && !transaction.failed) {
+                        transaction.commit();
+                    }
+                } finally {
+                    // The connection is released, even if the commit fails, e.g. when another load committed the file
+                    transaction.close();
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Failed to load " + sourceUrl, e);
+            if (failure == null) {
+                failure = e;
+            }
+            if (transaction != null) {
+                // Later batches of the file are counted, but not written
+                transaction.failed = true;
+                transaction.rollback();
+            }
+        }
+    }
+
+    private Row rowOf(IParser parser, IBaseResource resource) {
+        Date lastUpdated = resource.getMeta().getLastUpdated();
+        return new Row(fhirContext.getResourceType(resource),
+                resource.getIdElement().getIdPart(),
+                resource.getMeta().getVersionId(),
+                lastUpdated == null ? null : lastUpdated.toInstant(),
+                parser.encodeResourceToString(resource));
+    }
+
+    private static Row rowOf(NdjsonLineHeader header) {
+        if (!header.isValid() || !header.hasResourceType()) {
+            throw new IllegalArgumentException("Not a resource: " + header.lineAsString());
+        }
+
+        return new Row(header.getResourceType(),
+                header.hasId() ? header.getId() : null,
+                header.hasVersionId() ? header.getVersionId() : null,
+                header.hasLastUpdated() ? instantOf(header.getLastUpdated()) : null,
+                header.lineAsString());
+    }
+
+    private static Instant instantOf(String lastUpdated) {
+        try {
+            return OffsetDateTime.parse(lastUpdated).toInstant();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private boolean isLoaded(Connection connection, String sourceUrl) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT 1 FROM " + loadedTable + " WHERE source_url = ?")) {
+            statement.setString(1, sourceUrl);
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next();
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Exception failure = this.failure;
+        if (failure != null) {
+            throw new IOException("Failed to load the export", failure);
+        }
+    }
+
+    private static String checkTableName(String table) {
+        if (!TABLE_NAME.matcher(table).matches()) {
+            throw new IllegalArgumentException("Invalid table name: " + table);
+        }
+        return table;
+    }
+
+    private static class Row {
+        private final String resourceType;
+        private final String id;
+        private final String versionId;
+        private final Instant lastUpdated;
+        private final String content;
+
+        private Row(String resourceType, String id, String versionId, Instant lastUpdated, String content) {
+            this.resourceType = resourceType;
+            this.id = id;
+            this.versionId = versionId;
+            this.lastUpdated = lastUpdated;
+            this.content = content;
+        }
+    }
+
+    /**
+     * The transaction, that an output file is loaded in
+     */
+    private class FileTransaction implements AutoCloseable {
+        private final String sourceUrl;
+        private final Connection connection;
+        private final PreparedStatement insert;
+        private long pending;
+        private long rows;
+        private long batches;
+        private long expectedBatches = -1;
+        private boolean skipped;
+        private boolean failed;
+        private boolean closed;
+
+        private FileTransaction(String sourceUrl) throws SQLException {
+            this.sourceUrl = sourceUrl;
+            this.connection = dataSource.getConnection();
+            try {
+                connection.setAutoCommit(false);
+                this.insert = connection.prepareStatement("INSERT INTO " + table
+                        + " (resource_type, resource_id, version_id, last_updated, source_url, content) VALUES (?, ?, ?, ?, ?, ?)");
+            } catch (SQLException e) {
+                connection.close();
+                throw e;
+            }
+        }
+
+        private boolean isLoaded() throws SQLException {
+            return JdbcExportSink.this.isLoaded(connection, sourceUrl);
+        }
+
+        private void insert(Row row) throws SQLException {
+            insert.setString(1, row.resourceType);
+            insert.setString(2, row.id);
+            insert.setString(3, row.versionId);
+            if (row.lastUpdated == null) {
+                insert.setNull(4, Types.TIMESTAMP);
+            } else {
+                insert.setTimestamp(4, Timestamp.from(row.lastUpdated));
+            }
+            insert.setString(5, sourceUrl);
+            insert.setString(6, row.content);
+            insert.addBatch();
+
+            rows++;
+            if (++pending >= batchSize) {
+                executeBatch();
+            }
+        }
+
+        private void executeBatch() throws SQLException {
+            if (pending > 0) {
+                insert.executeBatch();
+                pending = 0;
+            }
+        }
+
+        /**
+         * @return the number of rows committed
+         */
+        private long commit() throws SQLException {
+            executeBatch();
+            try (PreparedStatement loaded = connection.prepareStatement("INSERT INTO " + loadedTable
+                    + " (source_url, resource_count, loaded_at) VALUES (?, ?, ?)")) {
+                loaded.setString(1, sourceUrl);
+                loaded.setLong(2, rows);
+                loaded.setTimestamp(3, Timestamp.from(Instant.now()));
+                loaded.executeUpdate();
+            }
+            connection.commit();
+
+            rowsWritten.addAndGet(rows);
+            filesCommitted.incrementAndGet();
+            logger.info("Loaded " + rows + " resources of " + sourceUrl);
+            return rows;
+        }
+
+        private void rollback() {
+            if (closed) {
+                return;
+            }
+
+            try {
+                connection.rollback();
+            } catch (SQLException e) {
+                logger.warn("Failed to roll back the load of " + sourceUrl, e);
+            }
+        }
+
+        /**
+         * Roll back anything uncommitted, and release the connection
+         */
+        @Override
+        public void close() {
+            rollback();
+            closed = true;
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.warn("Failed to close the connection of " + sourceUrl, e);
+            }
+        }
+    }
+}
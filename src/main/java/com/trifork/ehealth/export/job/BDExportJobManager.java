@@ -0,0 +1,244 @@
+package com.trifork.ehealth.export.job;
+
+import com.trifork.ehealth.export.BDExportClient;
+import com.trifork.ehealth.export.BDExportRequest;
+import com.trifork.ehealth.export.BDExportUtils;
+import com.trifork.ehealth.export.future.BDExportFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Queues exports in front of a {@link BDExportClient}, and only starts as many at a time, as every server is allowed.
+ * <p>
+ * When a server has a free slot, the next job is taken from the highest priority with queued jobs, and within that
+ * priority, from the tenants in turn, so a tenant submitting many exports at once cannot hold back the others.
+ * The next job starts as soon as a running export completes, fails or is cancelled.
+ */
+public class BDExportJobManager implements AutoCloseable {
+    private final BDExportClient exportClient;
+    private final int maxInFlightPerServer;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+
+    /**
+     * Guarded by this
+     */
+    private final Map<String, ServerQueue> servers = new HashMap<>();
+
+    private static final Logger logger = LoggerFactory.getLogger(BDExportJobManager.class);
+
+    /**
+     * @param exportClient         the client to start the exports with
+     * @param maxInFlightPerServer the number of exports, that may run at a time on the same server
+     */
+    public BDExportJobManager(BDExportClient exportClient, int maxInFlightPerServer) {
+        this(exportClient, maxInFlightPerServer, Executors.newCachedThreadPool(), true);
+    }
+
+    /**
+     * @param exportClient         the client to start the exports with
+     * @param maxInFlightPerServer the number of exports, that may run at a time on the same server
+     * @param executor             runs the exports, with a thread waiting on every running export
+     */
+    public BDExportJobManager(BDExportClient exportClient, int maxInFlightPerServer, ExecutorService executor) {
+        this(exportClient, maxInFlightPerServer, executor, false);
+    }
+
+    private BDExportJobManager(BDExportClient exportClient, int maxInFlightPerServer, ExecutorService executor, boolean ownsExecutor) {
+        if (maxInFlightPerServer <= 0) {
+            throw new IllegalArgumentException("Max in-flight exports must be positive, was: " + maxInFlightPerServer);
+        }
+
+        this.exportClient = exportClient;
+        this.maxInFlightPerServer = maxInFlightPerServer;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    public ExportJob submit(String tenant, BDExportRequest request) {
+        return submit(tenant, request, ExportPriority.NORMAL);
+    }
+
+    /**
+     * Queue an export, which starts when its server has a free slot, and it is the turn of its priority and tenant.
+     *
+     * @param tenant   the tenant, that the server's capacity is shared fairly between
+     * @param request  the export to start
+     * @param priority the priority of the export
+     * @return the job, to wait on or cancel
+     */
+    public ExportJob submit(String tenant, BDExportRequest request, ExportPriority priority) {
+        ExportJob job = new ExportJob(tenant, request, priority);
+        String server = BDExportUtils.serverKeyOf(request.getExportUri());
+
+        synchronized (this) {
+            servers.computeIfAbsent(server, s -> new ServerQueue()).add(job);
+        }
+
+        logger.debug("Queued export of tenant '" + tenant + "' with priority " + priority + " for '" + server + "'");
+        dispatch(server);
+
+        return job;
+    }
+
+    /**
+     * @return the number of exports running on the server
+     */
+    public synchronized int getInFlight(URI serverUri) {
+        ServerQueue queue = servers.get(BDExportUtils.serverKeyOf(serverUri));
+        return queue == null ? 0 : queue.inFlight;
+    }
+
+    /**
+     * @return the number of exports waiting for the server, including cancelled ones, that are not yet removed
+     */
+    public synchronized int getQueued(URI serverUri) {
+        ServerQueue queue = servers.get(BDExportUtils.serverKeyOf(serverUri));
+        return queue == null ? 0 : queue.queued;
+    }
+
+    /**
+     * Cancel every queued job, and stop the executor, if it was created by this manager.
+     * Running exports are left running on the server.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            for (ServerQueue queue : servers.values()) {
+                ExportJob job;
+                while ((job = queue.next()) != null) {
+                    job.cancel();
+                }
+            }
+        }
+
+        if (ownsExecutor) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Start queued jobs, until the server has no free slots, or no more jobs.
+     */
+    private void dispatch(String server) {
+        while (true) {
+            ExportJob job;
+            synchronized (this) {
+                ServerQueue queue = servers.get(server);
+                if (queue.inFlight >= maxInFlightPerServer) {
+                    return;
+                }
+
+                job = queue.next();
+                if (job == null) {
+                    return;
+                }
+                if (!job.start()) {
+                    // Cancelled while it was queued
+                    continue;
+                }
+
+                queue.inFlight++;
+            }
+
+            ExportJob started = job;
+            try {
+                executor.execute(() -> run(started, server));
+            } catch (RejectedExecutionException e) {
+                // E.g. the executor was shut down, so the job can never start, and must not hold its slot
+                logger.error("Export of tenant '" + job.getTenant() + "' was rejected by the executor", e);
+                synchronized (this) {
+                    servers.get(server).inFlight--;
+                }
+                job.fail(e);
+            }
+        }
+    }
+
+    private void run(ExportJob job, String server) {
+        try {
+            logger.info("Starting export of tenant '" + job.getTenant() + "' at '" + job.getRequest().getExportUri() + "'");
+            BDExportFuture exportFuture = exportClient.initiate(job.getRequest());
+
+            if (!job.setExportFuture(exportFuture)) {
+                exportFuture.cancel(true);
+                return;
+            }
+
+            job.complete(exportFuture.get());
+        } catch (InterruptedException e) {
+            // Also thrown, when the export is cancelled
+            if (job.getState() != ExportJob.State.CANCELLED) {
+                Thread.currentThread().interrupt();
+            }
+            job.fail(e);
+        } catch (ExecutionException e) {
+            job.fail(e.getCause());
+        } catch (IOException | RuntimeException e) {
+            logger.error("Export of tenant '" + job.getTenant() + "' failed", e);
+            job.fail(e);
+        } finally {
+            synchronized (this) {
+                servers.get(server).inFlight--;
+            }
+            dispatch(server);
+        }
+    }
+
+    /**
+     * The jobs waiting for a server, by priority, and within a priority by tenant, where the tenants take turns.
+     */
+    private static class ServerQueue {
+        private final Map<ExportPriority, LinkedHashMap<String, Deque<ExportJob>>> priorities = new EnumMap<>(ExportPriority.class);
+        private int inFlight;
+        private int queued;
+
+        private void add(ExportJob job) {
+            priorities.computeIfAbsent(job.getPriority(), p -> new LinkedHashMap<>())
+                    .computeIfAbsent(job.getTenant(), t -> new ArrayDeque<>())
+                    .add(job);
+            queued++;
+        }
+
+        /**
+         * @return the first job of the tenant, whose turn it is, in the highest priority with queued jobs
+         */
+        private ExportJob next() {
+            for (ExportPriority priority : ExportPriority.values()) {
+                LinkedHashMap<String, Deque<ExportJob>> tenants = priorities.get(priority);
+                if (tenants == null || tenants.isEmpty()) {
+                    continue;
+                }
+
+                Iterator<Map.Entry<String, Deque<ExportJob>>> iterator = tenants.entrySet().iterator();
+                Map.Entry<String, Deque<ExportJob>> turn = iterator.next();
+                iterator.remove();
+
+                ExportJob job = turn.getValue().poll();
+                if (!turn.getValue().isEmpty()) {
+                    // To the back of the line
+                    tenants.put(turn.getKey(), turn.getValue());
+                }
+
+                queued--;
+                return job;
+            }
+
+            return null;
+        }
+    }
+}
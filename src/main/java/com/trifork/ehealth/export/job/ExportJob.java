@@ -0,0 +1,120 @@
+package com.trifork.ehealth.export.job;
+
+import com.trifork.ehealth.export.BDExportRequest;
+import com.trifork.ehealth.export.future.BDExportFuture;
+import com.trifork.ehealth.export.response.BDExportResponse;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An export submitted to a {@link BDExportJobManager}, which is queued until the server has capacity for it.
+ */
+public class ExportJob {
+    private final String tenant;
+    private final BDExportRequest request;
+    private final ExportPriority priority;
+    private final CompletableFuture<BDExportResponse> result = new CompletableFuture<>();
+
+    private State state = State.QUEUED;
+    private BDExportFuture exportFuture;
+
+    ExportJob(String tenant, BDExportRequest request, ExportPriority priority) {
+        this.tenant = tenant;
+        this.request = request;
+        this.priority = priority;
+    }
+
+    public String getTenant() {
+        return tenant;
+    }
+
+    public BDExportRequest getRequest() {
+        return request;
+    }
+
+    public ExportPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return completed with the response of the export, once it is done
+     */
+    public CompletableFuture<BDExportResponse> getResult() {
+        return result;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Cancel the job. A queued job is never started, and a running export is cancelled on the server.
+     *
+     * @return false if the job was already done or cancelled
+     */
+    public boolean cancel() {
+        BDExportFuture running;
+        synchronized (this) {
+            if (state == State.DONE || state == State.CANCELLED) {
+                return false;
+            }
+
+            state = State.CANCELLED;
+            running = exportFuture;
+        }
+
+        result.cancel(false);
+        if (running != null) {
+            running.cancel(true);
+        }
+
+        return true;
+    }
+
+    /**
+     * @return false if the job was cancelled while it was queued
+     */
+    synchronized boolean start() {
+        if (state != State.QUEUED) {
+            return false;
+        }
+
+        state = State.RUNNING;
+        return true;
+    }
+
+    /**
+     * @return false if the job was cancelled while the export was initiated, which then must be cancelled too
+     */
+    synchronized boolean setExportFuture(BDExportFuture exportFuture) {
+        this.exportFuture = exportFuture;
+        return state == State.RUNNING;
+    }
+
+    void complete(BDExportResponse response) {
+        synchronized (this) {
+            if (state == State.RUNNING) {
+                state = State.DONE;
+            }
+        }
+
+        result.complete(response);
+    }
+
+    void fail(Throwable cause) {
+        synchronized (this) {
+            if (state == State.RUNNING) {
+                state = State.DONE;
+            }
+        }
+
+        result.completeExceptionally(cause);
+    }
+
+    public enum State {
+        QUEUED,
+        RUNNING,
+        DONE,
+        CANCELLED
+    }
+}
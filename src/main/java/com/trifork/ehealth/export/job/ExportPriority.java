@@ -0,0 +1,10 @@
+package com.trifork.ehealth.export.job;
+
+/**
+ * The priority of an export job. Queued jobs of a higher priority always start before those of a lower priority.
+ */
+public enum ExportPriority {
+    HIGH,
+    NORMAL,
+    LOW
+}
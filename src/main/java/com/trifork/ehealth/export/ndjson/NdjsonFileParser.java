@@ -0,0 +1,300 @@
+package com.trifork.ehealth.export.ndjson;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.trifork.ehealth.export.response.BDExportResultResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Parses NDJSON files, which are already on local disk, into FHIR resources in parallel.
+ * <p>
+ * The file is memory-mapped and split into chunks on newline boundaries. Every chunk is parsed on a fork-join pool,
+ * using one {@link IParser} per worker thread, since HAPI parsers are not thread-safe.
+ * The resources are handed to the consumer on the calling thread, either in file order, or in the order the chunks
+ * complete.
+ */
+public class NdjsonFileParser {
+    private static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int BOUNDARY_SCAN_SIZE = 8 * 1024;
+
+    private final FhirContext fhirContext;
+    private final ForkJoinPool pool;
+    private final ThreadLocal<IParser> parsers;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private boolean ordered = true;
+
+    private static final Logger logger = LoggerFactory.getLogger(NdjsonFileParser.class);
+
+    public NdjsonFileParser(FhirContext fhirContext) {
+        this(fhirContext, ForkJoinPool.commonPool());
+    }
+
+    public NdjsonFileParser(FhirContext fhirContext, ForkJoinPool pool) {
+        this.fhirContext = Objects.requireNonNull(fhirContext);
+        this.pool = Objects.requireNonNull(pool);
+        this.parsers = ThreadLocal.withInitial(fhirContext::newJsonParser);
+    }
+
+    /**
+     * Set the approximate size of the chunks that are parsed by a single task.
+     * Chunks are always extended to the next newline.
+     *
+     * @param chunkSize chunk size in bytes
+     */
+    public NdjsonFileParser setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive, was: " + chunkSize);
+        }
+
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Choose whether resources are emitted in file order (default), or as soon as their chunk has been parsed.
+     *
+     * @param ordered true to keep file order
+     */
+    public NdjsonFileParser setOrdered(boolean ordered) {
+        this.ordered = ordered;
+        return this;
+    }
+
+    /**
+     * Parse an NDJSON file, that was downloaded from the given output item.
+     *
+     * @param file     the local NDJSON file
+     * @param item     the output item, that decides which resource type the lines are parsed into
+     * @param consumer receives every parsed resource
+     * @return the number of parsed resources
+     * @throws IOException if the file could not be read
+     */
+    public long parse(Path file, BDExportResultResponse.OutputItem item, Consumer<? super IBaseResource> consumer) throws IOException {
+        return parse(file, item.getType(), consumer);
+    }
+
+    /**
+     * Parse an NDJSON file, where every line is a resource of the given type.
+     *
+     * @param file         the local NDJSON file
+     * @param resourceType the resource type of every line, e.g. "Condition"
+     * @param consumer     receives every parsed resource
+     * @return the number of parsed resources
+     * @throws IOException if the file could not be read
+     */
+    public long parse(Path file, String resourceType, Consumer<? super IBaseResource> consumer) throws IOException {
+        Class<? extends IBaseResource> type = fhirContext.getResourceDefinition(resourceType).getImplementingClass();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            List<long[]> chunks = split(channel);
+
+            logger.debug("Parsing '" + file + "' as " + resourceType + " in " + chunks.size() + " chunks");
+
+            return ordered
+                    ? parseOrdered(channel, chunks, type, consumer)
+                    : parseUnordered(channel, chunks, type, consumer);
+        }
+    }
+
+    private long parseOrdered(
+            FileChannel channel,
+            List<long[]> chunks,
+            Class<? extends IBaseResource> type,
+            Consumer<? super IBaseResource> consumer
+    ) {
+        Deque<Future<List<IBaseResource>>> inFlight = new ArrayDeque<>();
+        int next = 0;
+        long count = 0;
+
+        try {
+            while (next < chunks.size() || !inFlight.isEmpty()) {
+                while (next < chunks.size() && inFlight.size() < maxInFlight()) {
+                    long[] chunk = chunks.get(next++);
+                    inFlight.add(pool.submit(() -> parseChunk(channel, chunk[0], chunk[1], type)));
+                }
+
+                for (IBaseResource resource : await(inFlight.poll())) {
+                    consumer.accept(resource);
+                    count++;
+                }
+            }
+        } finally {
+            inFlight.forEach(f -> f.cancel(false));
+        }
+
+        return count;
+    }
+
+    private long parseUnordered(
+            FileChannel channel,
+            List<long[]> chunks,
+            Class<? extends IBaseResource> type,
+            Consumer<? super IBaseResource> consumer
+    ) {
+        CompletionService<List<IBaseResource>> completionService = new ExecutorCompletionService<>(pool);
+        List<Future<List<IBaseResource>>> submitted = new ArrayList<>();
+        int next = 0;
+        int pending = 0;
+        long count = 0;
+
+        try {
+            while (next < chunks.size() || pending > 0) {
+                while (next < chunks.size() && pending < maxInFlight()) {
+                    long[] chunk = chunks.get(next++);
+                    submitted.add(completionService.submit(() -> parseChunk(channel, chunk[0], chunk[1], type)));
+                    pending++;
+                }
+
+                Future<List<IBaseResource>> completed;
+                try {
+                    completed = completionService.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+                pending--;
+
+                for (IBaseResource resource : await(completed)) {
+                    consumer.accept(resource);
+                    count++;
+                }
+            }
+        } finally {
+            submitted.forEach(f -> f.cancel(false));
+        }
+
+        return count;
+    }
+
+    /**
+     * Bound the number of parsed chunks held in memory, while still keeping every worker busy.
+     */
+    private int maxInFlight() {
+        return pool.getParallelism() * 2;
+    }
+
+    private static List<IBaseResource> await(Future<List<IBaseResource>> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to parse NDJSON chunk", e.getCause());
+        }
+    }
+
+    /**
+     * Split the file into chunks of [start, end) offsets, where every chunk ends right after a newline,
+     * or at the end of the file.
+     */
+    private List<long[]> split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<long[]> chunks = new ArrayList<>();
+        ByteBuffer scanBuffer = ByteBuffer.allocate(BOUNDARY_SCAN_SIZE);
+
+        long start = 0;
+        while (start < size) {
+            long end = nextLineStart(channel, Math.min(start + chunkSize, size), size, scanBuffer);
+
+            if (end - start > Integer.MAX_VALUE) {
+                throw new IllegalStateException("NDJSON line at offset " + start + " is too large to be mapped");
+            }
+
+            chunks.add(new long[]{start, end});
+            start = end;
+        }
+
+        return chunks;
+    }
+
+    private static long nextLineStart(FileChannel channel, long position, long size, ByteBuffer scanBuffer) throws IOException {
+        long offset = position;
+
+        while (offset < size) {
+            scanBuffer.clear();
+            int read = channel.read(scanBuffer, offset);
+            if (read <= 0) {
+                break;
+            }
+
+            for (int i = 0; i < read; i++) {
+                if (scanBuffer.get(i) == '\n') {
+                    return offset + i + 1;
+                }
+            }
+
+            offset += read;
+        }
+
+        return size;
+    }
+
+    private List<IBaseResource> parseChunk(
+            FileChannel channel,
+            long start,
+            long end,
+            Class<? extends IBaseResource> type
+    ) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        ByteBuffer view = buffer.duplicate();
+        IParser parser = parsers.get();
+        List<IBaseResource> resources = new ArrayList<>();
+
+        int lineStart = 0;
+        int limit = buffer.limit();
+        byte[] line = new byte[0];
+
+        for (int i = 0; i <= limit; i++) {
+            if (i < limit && buffer.get(i) != '\n') {
+                continue;
+            }
+
+            int lineEnd = i;
+            while (lineEnd > lineStart && isWhitespace(buffer.get(lineEnd - 1))) {
+                lineEnd--;
+            }
+
+            int length = lineEnd - lineStart;
+            if (length > 0) {
+                if (line.length < length) {
+                    line = new byte[Math.max(length, line.length * 2)];
+                }
+                view.position(lineStart);
+                view.get(line, 0, length);
+
+                resources.add(parser.parseResource(type, new String(line, 0, length, StandardCharsets.UTF_8)));
+            }
+
+            lineStart = i + 1;
+        }
+
+        return resources;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == '\r' || b == ' ' || b == '\t';
+    }
+}
@@ -0,0 +1,26 @@
+package com.trifork.ehealth.export.ndjson;
+
+/**
+ * Decides from the scanned header of an NDJSON line, whether the line should be parsed.
+ */
+@FunctionalInterface
+public interface NdjsonLineFilter {
+    NdjsonLineFilter ALL = header -> true;
+
+    /**
+     * @param header the header of the line, which is only valid during the call
+     * @return true to parse the line, false to skip it
+     */
+    boolean accept(NdjsonLineHeader header);
+
+    default NdjsonLineFilter and(NdjsonLineFilter other) {
+        return header -> accept(header) && other.accept(header);
+    }
+
+    /**
+     * Keep lines of the given resource type only.
+     */
+    static NdjsonLineFilter resourceType(String resourceType) {
+        return header -> header.resourceTypeEquals(resourceType);
+    }
+}
@@ -0,0 +1,271 @@
+package com.trifork.ehealth.export.ndjson;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The fields of a single NDJSON line, found by the {@link NdjsonLineScanner}, as offsets into the scanned buffer.
+ * <p>
+ * A header is reused for every line, so it is only valid until the next line is scanned.
+ * The comparison methods do not allocate, while the getters create a new String.
+ */
+public class NdjsonLineHeader {
+    private ByteBuffer buffer;
+    private int lineStart;
+    private int lineEnd;
+    private boolean valid;
+
+    // Offsets of the string values, excluding the quotes, or -1 if absent
+    private int resourceTypeStart = -1;
+    private int resourceTypeEnd = -1;
+    private int idStart = -1;
+    private int idEnd = -1;
+    private int versionIdStart = -1;
+    private int versionIdEnd = -1;
+    private int lastUpdatedStart = -1;
+    private int lastUpdatedEnd = -1;
+
+    // Offsets of the whole "meta" member, from the opening quote of the key to the closing brace, or -1 if absent
+    private int metaStart = -1;
+    private int metaEnd = -1;
+
+    void reset(ByteBuffer buffer, int lineStart, int lineEnd) {
+        this.buffer = buffer;
+        this.lineStart = lineStart;
+        this.lineEnd = lineEnd;
+        this.valid = false;
+        this.resourceTypeStart = this.resourceTypeEnd = -1;
+        this.idStart = this.idEnd = -1;
+        this.versionIdStart = this.versionIdEnd = -1;
+        this.lastUpdatedStart = this.lastUpdatedEnd = -1;
+        this.metaStart = this.metaEnd = -1;
+    }
+
+    void setValid(boolean valid) {
+        this.valid = valid;
+    }
+
+    void setResourceType(int start, int end) {
+        this.resourceTypeStart = start;
+        this.resourceTypeEnd = end;
+    }
+
+    void setId(int start, int end) {
+        this.idStart = start;
+        this.idEnd = end;
+    }
+
+    void setVersionId(int start, int end) {
+        this.versionIdStart = start;
+        this.versionIdEnd = end;
+    }
+
+    void setLastUpdated(int start, int end) {
+        this.lastUpdatedStart = start;
+        this.lastUpdatedEnd = end;
+    }
+
+    void setMeta(int start, int end) {
+        this.metaStart = start;
+        this.metaEnd = end;
+    }
+
+    /**
+     * @return false if the line is not a well-formed JSON object, in which case the fields may be incomplete
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return the buffer holding the line
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getLineStart() {
+        return lineStart;
+    }
+
+    public int getLineEnd() {
+        return lineEnd;
+    }
+
+    public int getLineLength() {
+        return lineEnd - lineStart;
+    }
+
+    public boolean hasResourceType() {
+        return resourceTypeStart >= 0;
+    }
+
+    public boolean hasId() {
+        return idStart >= 0;
+    }
+
+    public boolean hasVersionId() {
+        return versionIdStart >= 0;
+    }
+
+    public boolean hasLastUpdated() {
+        return lastUpdatedStart >= 0;
+    }
+
+    public boolean hasMeta() {
+        return metaStart >= 0;
+    }
+
+    public int getResourceTypeStart() {
+        return resourceTypeStart;
+    }
+
+    public int getResourceTypeEnd() {
+        return resourceTypeEnd;
+    }
+
+    public int getIdStart() {
+        return idStart;
+    }
+
+    public int getIdEnd() {
+        return idEnd;
+    }
+
+    public int getLastUpdatedStart() {
+        return lastUpdatedStart;
+    }
+
+    public int getLastUpdatedEnd() {
+        return lastUpdatedEnd;
+    }
+
+    /**
+     * @return the offset of the opening quote of the "meta" key, or -1 if the line has no meta
+     */
+    public int getMetaStart() {
+        return metaStart;
+    }
+
+    /**
+     * @return the offset right after the closing brace of the meta object, or -1 if the line has no meta
+     */
+    public int getMetaEnd() {
+        return metaEnd;
+    }
+
+    public boolean resourceTypeEquals(String resourceType) {
+        return regionEquals(resourceTypeStart, resourceTypeEnd, resourceType);
+    }
+
+    public boolean idEquals(String id) {
+        return regionEquals(idStart, idEnd, id);
+    }
+
+    public String getResourceType() {
+        return decode(resourceTypeStart, resourceTypeEnd);
+    }
+
+    public String getId() {
+        return decode(idStart, idEnd);
+    }
+
+    public String getVersionId() {
+        return decode(versionIdStart, versionIdEnd);
+    }
+
+    public String getLastUpdated() {
+        return decode(lastUpdatedStart, lastUpdatedEnd);
+    }
+
+    /**
+     * @return a copy of the raw line
+     */
+    public byte[] copyLine() {
+        byte[] bytes = new byte[getLineLength()];
+        ByteBuffer view = buffer.duplicate();
+        view.position(lineStart);
+        view.get(bytes);
+
+        return bytes;
+    }
+
+    /**
+     * @return the raw line as a String, e.g. to hand it to a HAPI parser
+     */
+    public String lineAsString() {
+        return new String(copyLine(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compare an ASCII value against a string field without decoding it.
+     */
+    private boolean regionEquals(int start, int end, String value) {
+        if (start < 0 || end - start != value.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            if (buffer.get(start + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private String decode(int start, int end) {
+        if (start < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[end - start];
+        boolean escaped = false;
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+            escaped |= bytes[i] == '\\';
+        }
+
+        String raw = new String(bytes, StandardCharsets.UTF_8);
+        return escaped ? unescape(raw) : raw;
+    }
+
+    private static String unescape(String raw) {
+        StringBuilder builder = new StringBuilder(raw.length());
+
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c != '\\' || i + 1 >= raw.length()) {
+                builder.append(c);
+                continue;
+            }
+
+            char next = raw.charAt(++i);
+            switch (next) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    builder.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default:
+                    builder.append(next);
+            }
+        }
+
+        return builder.toString();
+    }
+}
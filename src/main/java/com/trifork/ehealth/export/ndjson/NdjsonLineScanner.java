@@ -0,0 +1,247 @@
+package com.trifork.ehealth.export.ndjson;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Extracts <code>resourceType</code>, <code>id</code>, <code>meta.versionId</code> and <code>meta.lastUpdated</code>
+ * from a single NDJSON line, by scanning the UTF-8 bytes, without parsing the resource.
+ * <p>
+ * Only the top level members, and the members of <code>meta</code>, are looked at. Every other value is skipped by
+ * matching brackets and quotes, so the scanner neither allocates nor validates the rest of the line.
+ * The scanner is stateless, and can be shared between threads, as long as every thread uses its own header.
+ */
+public class NdjsonLineScanner {
+    private static final byte[] RESOURCE_TYPE = {'r', 'e', 's', 'o', 'u', 'r', 'c', 'e', 'T', 'y', 'p', 'e'};
+    private static final byte[] ID = {'i', 'd'};
+    private static final byte[] META = {'m', 'e', 't', 'a'};
+    private static final byte[] VERSION_ID = {'v', 'e', 'r', 's', 'i', 'o', 'n', 'I', 'd'};
+    private static final byte[] LAST_UPDATED = {'l', 'a', 's', 't', 'U', 'p', 'd', 'a', 't', 'e', 'd'};
+    private static final MalformedLineException MALFORMED = new MalformedLineException();
+
+    /**
+     * Scan a line, and store the offsets of its fields in the header.
+     *
+     * @param buffer the buffer holding the line, which is read with absolute indexes, so its position is not changed
+     * @param start  the offset of the first byte of the line
+     * @param end    the offset right after the last byte of the line, excluding the line break
+     * @param header receives the offsets
+     * @return false if the line is not a JSON object, see {@link NdjsonLineHeader#isValid()}
+     */
+    public boolean scan(ByteBuffer buffer, int start, int end, NdjsonLineHeader header) {
+        header.reset(buffer, start, end);
+
+        try {
+            header.setValid(scanObject(buffer, start, end, header));
+        } catch (MalformedLineException e) {
+            header.setValid(false);
+        }
+
+        return header.isValid();
+    }
+
+    private static boolean scanObject(ByteBuffer buffer, int start, int end, NdjsonLineHeader header) {
+        int pos = skipWhitespace(buffer, start, end);
+        if (pos >= end || buffer.get(pos) != '{') {
+            return false;
+        }
+
+        pos = skipWhitespace(buffer, pos + 1, end);
+        if (pos < end && buffer.get(pos) == '}') {
+            return true;
+        }
+
+        while (true) {
+            int keyStart = expect(buffer, pos, end, '"');
+            int keyEnd = endOfString(buffer, pos, end);
+            pos = expect(buffer, skipWhitespace(buffer, keyEnd + 1, end), end, ':');
+            pos = skipWhitespace(buffer, pos, end);
+
+            byte first = at(buffer, pos, end);
+            if (first == '"' && keyEquals(buffer, keyStart, keyEnd, RESOURCE_TYPE)) {
+                int valueEnd = endOfString(buffer, pos, end);
+                header.setResourceType(pos + 1, valueEnd);
+                pos = valueEnd + 1;
+            } else if (first == '"' && keyEquals(buffer, keyStart, keyEnd, ID)) {
+                int valueEnd = endOfString(buffer, pos, end);
+                header.setId(pos + 1, valueEnd);
+                pos = valueEnd + 1;
+            } else if (first == '{' && keyEquals(buffer, keyStart, keyEnd, META)) {
+                pos = scanMeta(buffer, pos, end, header);
+                header.setMeta(keyStart - 1, pos);
+            } else {
+                pos = skipValue(buffer, pos, end);
+            }
+
+            pos = skipWhitespace(buffer, pos, end);
+            byte next = at(buffer, pos, end);
+            if (next == '}') {
+                return true;
+            } else if (next != ',') {
+                return false;
+            }
+
+            pos = skipWhitespace(buffer, pos + 1, end);
+        }
+    }
+
+    /**
+     * @return the offset right after the closing brace of meta
+     */
+    private static int scanMeta(ByteBuffer buffer, int start, int end, NdjsonLineHeader header) {
+        int pos = skipWhitespace(buffer, start + 1, end);
+        if (at(buffer, pos, end) == '}') {
+            return pos + 1;
+        }
+
+        while (true) {
+            int keyStart = expect(buffer, pos, end, '"');
+            int keyEnd = endOfString(buffer, pos, end);
+            pos = expect(buffer, skipWhitespace(buffer, keyEnd + 1, end), end, ':');
+            pos = skipWhitespace(buffer, pos, end);
+
+            boolean isString = at(buffer, pos, end) == '"';
+            if (isString && keyEquals(buffer, keyStart, keyEnd, VERSION_ID)) {
+                int valueEnd = endOfString(buffer, pos, end);
+                header.setVersionId(pos + 1, valueEnd);
+                pos = valueEnd + 1;
+            } else if (isString && keyEquals(buffer, keyStart, keyEnd, LAST_UPDATED)) {
+                int valueEnd = endOfString(buffer, pos, end);
+                header.setLastUpdated(pos + 1, valueEnd);
+                pos = valueEnd + 1;
+            } else {
+                pos = skipValue(buffer, pos, end);
+            }
+
+            pos = skipWhitespace(buffer, pos, end);
+            byte next = at(buffer, pos, end);
+            if (next == '}') {
+                return pos + 1;
+            } else if (next != ',') {
+                throw MALFORMED;
+            }
+
+            pos = skipWhitespace(buffer, pos + 1, end);
+        }
+    }
+
+    /**
+     * @return the offset right after the value starting at the given offset
+     */
+    private static int skipValue(ByteBuffer buffer, int start, int end) {
+        byte first = at(buffer, start, end);
+
+        if (first == '"') {
+            return endOfString(buffer, start, end) + 1;
+        }
+
+        if (first == '{' || first == '[') {
+            int depth = 0;
+            int pos = start;
+            while (pos < end) {
+                byte b = buffer.get(pos);
+                if (b == '"') {
+                    pos = endOfString(buffer, pos, end);
+                } else if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    if (--depth == 0) {
+                        return pos + 1;
+                    }
+                }
+                pos++;
+            }
+
+            throw MALFORMED;
+        }
+
+        // Number, true, false or null
+        int pos = start;
+        while (pos < end) {
+            byte b = buffer.get(pos);
+            if (b == ',' || b == '}' || b == ']' || isWhitespace(b)) {
+                break;
+            }
+            pos++;
+        }
+
+        if (pos == start) {
+            throw MALFORMED;
+        }
+
+        return pos;
+    }
+
+    /**
+     * @param start the offset of the opening quote
+     * @return the offset of the closing quote
+     */
+    private static int endOfString(ByteBuffer buffer, int start, int end) {
+        int pos = start + 1;
+        while (pos < end) {
+            byte b = buffer.get(pos);
+            if (b == '"') {
+                return pos;
+            } else if (b == '\\') {
+                pos++;
+            }
+            pos++;
+        }
+
+        throw MALFORMED;
+    }
+
+    private static boolean keyEquals(ByteBuffer buffer, int start, int end, byte[] key) {
+        if (end - start != key.length) {
+            return false;
+        }
+
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(start + i) != key[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the offset right after the expected byte
+     */
+    private static int expect(ByteBuffer buffer, int pos, int end, char expected) {
+        if (at(buffer, pos, end) != expected) {
+            throw MALFORMED;
+        }
+
+        return pos + 1;
+    }
+
+    private static byte at(ByteBuffer buffer, int pos, int end) {
+        if (pos >= end) {
+            throw MALFORMED;
+        }
+
+        return buffer.get(pos);
+    }
+
+    private static int skipWhitespace(ByteBuffer buffer, int pos, int end) {
+        while (pos < end && isWhitespace(buffer.get(pos))) {
+            pos++;
+        }
+
+        return pos;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    /**
+     * Thrown deep inside the scan, and turned into an invalid header.
+     * It has no stack trace, so a single instance is shared, and throwing it does not allocate.
+     */
+    private static class MalformedLineException extends RuntimeException {
+        private MalformedLineException() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.trifork.ehealth.export.ndjson;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads NDJSON from a stream into a reusable buffer, and hands every line to a visitor, after it has been scanned
+ * by the {@link NdjsonLineScanner}. Blank lines are skipped.
+ * <p>
+ * The buffer grows to hold the longest line of a stream, and is reused for every following line and stream, so a
+ * reader must not be shared between threads. A buffer grown for a long line goes back to its initial size after the
+ * stream, so a reader kept per thread does not hold on to it.
+ */
+public class NdjsonReader {
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final NdjsonLineScanner scanner = new NdjsonLineScanner();
+    private final NdjsonLineHeader header = new NdjsonLineHeader();
+    private final int initialBufferSize;
+    private byte[] bytes;
+
+    public NdjsonReader() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param initialBufferSize the initial size of the buffer, which grows when a line does not fit
+     */
+    public NdjsonReader(int initialBufferSize) {
+        if (initialBufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive, was: " + initialBufferSize);
+        }
+
+        this.initialBufferSize = initialBufferSize;
+        this.bytes = new byte[initialBufferSize];
+    }
+
+    /**
+     * Read every line of the stream. The stream is not closed.
+     *
+     * @param in      the NDJSON content
+     * @param visitor receives the header of every line, which is only valid during the call
+     * @return the number of lines visited
+     */
+    public long forEachLine(InputStream in, LineVisitor visitor) throws IOException, InterruptedException {
+        try {
+            return readLines(in, visitor);
+        } finally {
+            if (bytes.length > initialBufferSize) {
+                bytes = new byte[initialBufferSize];
+            }
+        }
+    }
+
+    private long readLines(InputStream in, LineVisitor visitor) throws IOException, InterruptedException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int filled = 0;
+        int lineStart = 0;
+        int scanned = 0;
+        long lines = 0;
+
+        while (true) {
+            if (filled == bytes.length) {
+                if (lineStart > 0) {
+                    // Move the partial line to the front, to make room for the rest of it
+                    System.arraycopy(bytes, lineStart, bytes, 0, filled - lineStart);
+                    filled -= lineStart;
+                    scanned -= lineStart;
+                    lineStart = 0;
+                } else {
+                    byte[] grown = new byte[bytes.length * 2];
+                    System.arraycopy(bytes, 0, grown, 0, filled);
+                    bytes = grown;
+                }
+                buffer = ByteBuffer.wrap(bytes);
+            }
+
+            int read = in.read(bytes, filled, bytes.length - filled);
+            if (read < 0) {
+                break;
+            }
+            filled += read;
+
+            for (; scanned < filled; scanned++) {
+                if (bytes[scanned] == '\n') {
+                    if (visit(buffer, lineStart, scanned, visitor)) {
+                        lines++;
+                    }
+                    lineStart = scanned + 1;
+                }
+            }
+        }
+
+        if (lineStart < filled && visit(buffer, lineStart, filled, visitor)) {
+            lines++;
+        }
+
+        return lines;
+    }
+
+    /**
+     * @return false if the line was blank
+     */
+    private boolean visit(ByteBuffer buffer, int start, int end, LineVisitor visitor) throws IOException, InterruptedException {
+        if (end > start && bytes[end - 1] == '\r') {
+            end--;
+        }
+
+        if (isBlank(start, end)) {
+            return false;
+        }
+
+        scanner.scan(buffer, start, end, header);
+        visitor.visit(header);
+
+        return true;
+    }
+
+    private boolean isBlank(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] != ' ' && bytes[i] != '\t' && bytes[i] != '\r') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @FunctionalInterface
+    public interface LineVisitor {
+        void visit(NdjsonLineHeader header) throws IOException, InterruptedException;
+    }
+}
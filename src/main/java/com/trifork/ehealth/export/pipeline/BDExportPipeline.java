@@ -0,0 +1,597 @@
+package com.trifork.ehealth.export.pipeline;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.trifork.ehealth.export.BDExportConverter;
+import com.trifork.ehealth.export.BDExportUtils;
+import com.trifork.ehealth.export.CancellationToken;
+import com.trifork.ehealth.export.OutputProbe;
+import com.trifork.ehealth.export.buffer.ByteBufferPool;
+import com.trifork.ehealth.export.buffer.PooledContent;
+import com.trifork.ehealth.export.filter.TypeFilterEvaluator;
+import com.trifork.ehealth.export.ndjson.NdjsonLineFilter;
+import com.trifork.ehealth.export.ndjson.NdjsonReader;
+import com.trifork.ehealth.export.ratelimit.AdaptiveConcurrencyLimiter;
+import com.trifork.ehealth.export.ratelimit.HostRateLimiter;
+import com.trifork.ehealth.export.response.BDExportResultResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+/**
+ * Runs the output of an export through three overlapping stages:
+ * <ol>
+ *     <li>download: fetch the output files through the {@link BDExportConverter}</li>
+ *     <li>parse: decompress, if needed, and parse the NDJSON lines into resources</li>
+ *     <li>sink: hand batches of resources to a {@link BDExportSink}</li>
+ * </ol>
+ * Every stage has its own number of workers, and the stages are connected by bounded queues,
+ * so network, CPU and sink I/O overlap, while memory stays bounded. Downloads are streamed to the parsers through the
+ * buffers of a {@link ByteBufferPool}, whose budget caps the bytes held between the download and parse stages.
+ * The end-to-end time therefore approaches the time of the slowest stage, which is reported by
+ * {@link PipelineMetrics#getBottleneck()}.
+ */
+public class BDExportPipeline {
+    public static final String DOWNLOAD_STAGE = "download";
+    public static final String PARSE_STAGE = "parse";
+    public static final String SINK_STAGE = "sink";
+
+    private static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+    private static final int MAX_THROTTLED_ATTEMPTS = 3;
+    private static final Duration INITIAL_THROTTLED_BACKOFF = Duration.ofMillis(500);
+    private static final long DEFAULT_SPLIT_SIZE = 256L * 1024 * 1024;
+    /**
+     * How far a range is downloaded beyond its end, for the line in progress at its end
+     */
+    static final long RANGE_SLACK = 64 * 1024;
+    private static final long TERMINATION_TIMEOUT_SECONDS = 30;
+
+    private final BDExportConverter converter;
+    private final ThreadLocal<IParser> parsers;
+    private final ThreadLocal<NdjsonReader> readers = ThreadLocal.withInitial(NdjsonReader::new);
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private int downloadConcurrency = 4;
+    private int parseConcurrency = Runtime.getRuntime().availableProcessors();
+    private int sinkConcurrency = 1;
+    private int downloadQueueCapacity = 4;
+    private int batchQueueCapacity = 64;
+    private int batchSize = 500;
+    private TypeFilterEvaluator typeFilter;
+    private NdjsonLineFilter lineFilter = NdjsonLineFilter.ALL;
+    private CancellationToken cancellationToken = new CancellationToken();
+    private ByteBufferPool bufferPool = new ByteBufferPool(ByteBufferPool.DEFAULT_BUFFER_SIZE, DEFAULT_MEMORY_BUDGET);
+    private AdaptiveConcurrencyLimiter downloadLimiter;
+    private boolean probeSizes;
+    private long splitSize = DEFAULT_SPLIT_SIZE;
+
+    private static final Logger logger = LoggerFactory.getLogger(BDExportPipeline.class);
+
+    public BDExportPipeline(BDExportConverter converter, FhirContext fhirContext) {
+        Objects.requireNonNull(fhirContext);
+
+        this.converter = Objects.requireNonNull(converter);
+        this.parsers = ThreadLocal.withInitial(fhirContext::newJsonParser);
+    }
+
+    public BDExportPipeline setDownloadConcurrency(int downloadConcurrency) {
+        this.downloadConcurrency = requirePositive("Download concurrency", downloadConcurrency);
+        return this;
+    }
+
+    public BDExportPipeline setParseConcurrency(int parseConcurrency) {
+        this.parseConcurrency = requirePositive("Parse concurrency", parseConcurrency);
+        return this;
+    }
+
+    /**
+     * Set the number of threads calling the sink. Above one, the sink must be thread-safe.
+     */
+    public BDExportPipeline setSinkConcurrency(int sinkConcurrency) {
+        this.sinkConcurrency = requirePositive("Sink concurrency", sinkConcurrency);
+        return this;
+    }
+
+    /**
+     * Set the number of downloads, that may wait for a parser. A waiting download holds its buffers, until the budget
+     * of the buffer pool is used up.
+     */
+    public BDExportPipeline setDownloadQueueCapacity(int downloadQueueCapacity) {
+        this.downloadQueueCapacity = requirePositive("Download queue capacity", downloadQueueCapacity);
+        return this;
+    }
+
+    /**
+     * Set the number of parsed batches, that may wait for the sink.
+     */
+    public BDExportPipeline setBatchQueueCapacity(int batchQueueCapacity) {
+        this.batchQueueCapacity = requirePositive("Batch queue capacity", batchQueueCapacity);
+        return this;
+    }
+
+    /**
+     * Set the maximum number of resources in every batch handed to the sink.
+     */
+    public BDExportPipeline setBatchSize(int batchSize) {
+        this.batchSize = requirePositive("Batch size", batchSize);
+        return this;
+    }
+
+    /**
+     * Filter the resources on the client, for servers that do not support <code>_typeFilter</code>.
+     * Lines are checked before they are parsed where possible, and rejected resources are counted by
+     * {@link StageMetrics#getItemsRejected()} of the parse stage.
+     *
+     * @param typeFilter the filter, or null to keep every resource
+     */
+    public BDExportPipeline setTypeFilter(TypeFilterEvaluator typeFilter) {
+        this.typeFilter = typeFilter;
+        return this;
+    }
+
+    /**
+     * Skip or keep lines, based on their resourceType, id and meta, before they are parsed.
+     * Skipped lines are counted by {@link StageMetrics#getItemsRejected()} of the parse stage.
+     *
+     * @param lineFilter the filter, or null to parse every line
+     */
+    public BDExportPipeline setLineFilter(NdjsonLineFilter lineFilter) {
+        this.lineFilter = lineFilter == null ? NdjsonLineFilter.ALL : lineFilter;
+        return this;
+    }
+
+    /**
+     * Stop the pipeline when the token is cancelled. Downloads in progress are aborted,
+     * and {@link #run(List, BDExportSink)} throws a {@link CancellationException}.
+     */
+    public BDExportPipeline setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = Objects.requireNonNull(cancellationToken);
+        return this;
+    }
+
+    /**
+     * Stream downloads to the parsers through the buffers of the pool. A download waits for the budget of the pool
+     * before every buffer, unless its parser is waiting for it, so sharing a pool between pipelines caps the memory of
+     * all their downloads. Defaults to a pool of 64 KB buffers, with a budget of 256 MB.
+     */
+    public BDExportPipeline setBufferPool(ByteBufferPool bufferPool) {
+        this.bufferPool = Objects.requireNonNull(bufferPool);
+        return this;
+    }
+
+    /**
+     * Adapt the number of parallel downloads to the server, instead of using a fixed download concurrency.
+     * The download stage runs with the max limit of the limiter as its concurrency, and every download waits for a
+     * permit of the limiter. The time until the server responds is the latency of a download, and downloads failing
+     * with 429 or 503 are retried, after cutting the limit and waiting for the Retry-After of the server, unless the
+     * converter retries them itself.
+     * <p>
+     * Sharing a limiter between runs carries the learned limit over, and its current limit and history are the
+     * metrics of the downloads.
+     *
+     * @param downloadLimiter the limiter, or null to download with the fixed download concurrency
+     */
+    public BDExportPipeline setDownloadLimiter(AdaptiveConcurrencyLimiter downloadLimiter) {
+        this.downloadLimiter = downloadLimiter;
+        return this;
+    }
+
+    /**
+     * Probe the size of every output file before the run, with
+     * {@link BDExportConverter#probe(BDExportResultResponse.OutputItem, CancellationToken)}. Files are always downloaded
+     * largest first, but without probes the sizes are only known from the <code>count</code> of the manifest,
+     * and files can not be split.
+     */
+    public BDExportPipeline setProbeSizes(boolean probeSizes) {
+        this.probeSizes = probeSizes;
+        return this;
+    }
+
+    /**
+     * Split probed files larger than the split size into ranges, that are downloaded and parsed in parallel, if the
+     * server supports range requests, and the files are not gzipped. Defaults to 256 MB.
+     */
+    public BDExportPipeline setSplitSize(long splitSize) {
+        if (splitSize <= 0) {
+            throw new IllegalArgumentException("Split size must be positive, was: " + splitSize);
+        }
+
+        this.splitSize = splitSize;
+        return this;
+    }
+
+    /**
+     * Run the output files of a completed export through the pipeline.
+     *
+     * @param result the completed export
+     * @param sink   receives the parsed resources
+     * @return the metrics of the run
+     */
+    public PipelineMetrics run(BDExportResultResponse result, BDExportSink sink) throws InterruptedException {
+        List<BDExportResultResponse.OutputItem> output = result.getOutput();
+        return run(output == null ? List.of() : output, sink);
+    }
+
+    /**
+     * Run output files through the pipeline.
+     *
+     * @param items the output files
+     * @param sink  receives the parsed resources
+     * @return the metrics of the run
+     */
+    public PipelineMetrics run(List<BDExportResultResponse.OutputItem> items, BDExportSink sink) throws InterruptedException {
+        int downloaders = downloadLimiter == null ? downloadConcurrency : downloadLimiter.getMaxLimit();
+        List<DownloadTask> tasks = DownloadScheduler.schedule(items, probe(items, downloaders), splitSize);
+
+        BlockingQueue<Object> downloadQueue = new LinkedBlockingQueue<>(tasks);
+        downloadQueue.add(Stage.END);
+        BlockingQueue<Object> parseQueue = new ArrayBlockingQueue<>(downloadQueueCapacity);
+        BlockingQueue<Object> sinkQueue = new ArrayBlockingQueue<>(batchQueueCapacity);
+
+        StageMetrics parseMetrics = new StageMetrics(PARSE_STAGE, parseConcurrency);
+        Stage<DownloadedOutput, ResourceBatch> parseStage = new Stage<>(parseMetrics, parseQueue, sinkQueue,
+                (downloaded, emitter) -> parse(downloaded, emitter, parseMetrics));
+
+        List<Stage<?, ?>> stages = List.of(
+                new Stage<>(DOWNLOAD_STAGE, downloaders, downloadQueue, parseQueue, this::download),
+                parseStage,
+                new Stage<ResourceBatch, Void>(SINK_STAGE, sinkConcurrency, sinkQueue, null, (batch, emitter) -> sink.accept(batch))
+        );
+
+        try {
+            return execute(stages);
+        } finally {
+            // Downloads left behind by a failed or cancelled run, once no worker can take them anymore
+            for (Object item : parseQueue) {
+                if (item instanceof DownloadedOutput) {
+                    ((DownloadedOutput) item).content.close();
+                }
+            }
+        }
+    }
+
+    private PipelineMetrics execute(List<Stage<?, ?>> stages) throws InterruptedException {
+        int threads = stages.stream().mapToInt(Stage::getConcurrency).sum();
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "bd-export-pipeline-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        ExecutorCompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<Void>> workers = new ArrayList<>();
+        CancellationToken.Registration registration = null;
+        long start = System.nanoTime();
+
+        try {
+            for (Stage<?, ?> stage : stages) {
+                for (int i = 0; i < stage.getConcurrency(); i++) {
+                    workers.add(completionService.submit(() -> {
+                        stage.runWorker();
+                        return null;
+                    }));
+                }
+            }
+
+            // Downloads abort themselves through the token, this stops the workers waiting on a queue
+            registration = cancellationToken.register(() -> workers.forEach(worker -> worker.cancel(true)));
+
+            for (int i = 0; i < workers.size(); i++) {
+                try {
+                    completionService.take().get();
+                } catch (CancellationException e) {
+                    throw new CancellationException("Export pipeline was cancelled");
+                } catch (ExecutionException e) {
+                    if (cancellationToken.isCancelled()) {
+                        workers.forEach(worker -> worker.cancel(true));
+                        throw new CancellationException("Export pipeline was cancelled");
+                    }
+
+                    // Stop every other worker, they may be blocked on a queue, that will never move again
+                    workers.forEach(worker -> worker.cancel(true));
+                    throw new RuntimeException("Export pipeline failed", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            workers.forEach(worker -> worker.cancel(true));
+            throw e;
+        } finally {
+            if (registration != null) {
+                registration.close();
+            }
+            shutdown(executor);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        List<StageMetrics> metrics = new ArrayList<>();
+        for (Stage<?, ?> stage : stages) {
+            stage.getMetrics().setElapsedNanos(elapsed);
+            metrics.add(stage.getMetrics());
+        }
+
+        PipelineMetrics pipelineMetrics = new PipelineMetrics(Duration.ofNanos(elapsed), metrics);
+        logger.info("'Bulk Data Export' pipeline completed: " + pipelineMetrics);
+
+        return pipelineMetrics;
+    }
+
+    /**
+     * Stop the workers, and wait for them, so the buffers they hold are returned to the pool before the run returns
+     */
+    private static void shutdown(ExecutorService executor) {
+        executor.shutdownNow();
+
+        try {
+            if (!executor.awaitTermination(TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Export pipeline workers did not stop within " + TERMINATION_TIMEOUT_SECONDS + " seconds");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<OutputProbe> probe(List<BDExportResultResponse.OutputItem> items, int threads) throws InterruptedException {
+        List<OutputProbe> probes = new ArrayList<>();
+        if (!probeSizes || items.isEmpty()) {
+            items.forEach(item -> probes.add(OutputProbe.UNKNOWN));
+            return probes;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, items.size()), runnable -> {
+            Thread thread = new Thread(runnable, "bd-export-probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            List<Callable<OutputProbe>> calls = new ArrayList<>();
+            for (BDExportResultResponse.OutputItem item : items) {
+                calls.add(() -> converter.probe(item, cancellationToken));
+            }
+
+            for (Future<OutputProbe> probe : executor.invokeAll(calls)) {
+                try {
+                    probes.add(probe.get());
+                } catch (ExecutionException e) {
+                    cancellationToken.throwIfCancelled();
+                    logger.info("Failed to probe an output file, its size is unknown: " + e.getCause().getMessage());
+                    probes.add(OutputProbe.UNKNOWN);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return probes;
+    }
+
+    /**
+     * Hand the download to a parser before it is read, so the parser frees the buffers as they are filled
+     */
+    private void download(DownloadTask task, Stage.Emitter<DownloadedOutput> emitter) throws IOException, InterruptedException {
+        PooledContent content = new PooledContent(bufferPool);
+        try {
+            emitter.emit(new DownloadedOutput(task, content));
+        } catch (InterruptedException | RuntimeException e) {
+            content.close();
+            throw e;
+        }
+
+        try {
+            if (downloadLimiter == null) {
+                read(task, content);
+            } else {
+                readLimited(task, content);
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            content.fail(e);
+            throw e;
+        }
+    }
+
+    private void read(DownloadTask task, PooledContent content) throws IOException, InterruptedException {
+        try (InputStream in = open(task)) {
+            content.readFrom(in);
+        }
+    }
+
+    private void readLimited(DownloadTask task, PooledContent content) throws IOException, InterruptedException {
+        BDExportResultResponse.OutputItem item = task.getItem();
+
+        for (int attempt = 1; ; attempt++) {
+            AdaptiveConcurrencyLimiter.Permit permit = downloadLimiter.acquire();
+            long start = System.nanoTime();
+
+            InputStream in;
+            try {
+                in = open(task);
+            } catch (BaseServerResponseException e) {
+                int status = e.getStatusCode();
+                if (status < 500 && !HostRateLimiter.isThrottled(status)) {
+                    permit.onIgnored();
+                    throw e;
+                }
+
+                permit.onDropped("server responded with " + status);
+                // A converter with a rate limiter has already retried the download
+                if (!HostRateLimiter.isThrottled(status) || converter.isRetryingThrottled() || attempt == MAX_THROTTLED_ATTEMPTS) {
+                    throw e;
+                }
+
+                Duration delay = retryDelayOf(e, attempt);
+                logger.info("Download of '" + item.getUrl() + "' was throttled with " + status + ", retrying in " + delay);
+                Thread.sleep(delay.toMillis());
+                continue;
+            } catch (RuntimeException e) {
+                permit.onIgnored();
+                throw e;
+            }
+
+            Duration latency = Duration.ofNanos(System.nanoTime() - start);
+            try (InputStream stream = in) {
+                content.readFrom(stream);
+                permit.onSuccess(latency);
+
+                return;
+            } catch (IOException e) {
+                permit.onDropped("download failed: " + e.getMessage());
+                throw e;
+            } finally {
+                // Cancelled or interrupted, once the permit has not been released above
+                permit.onIgnored();
+            }
+        }
+    }
+
+    /**
+     * @return the Retry-After of the throttled response, or else a backoff, that doubles with every attempt
+     */
+    private static Duration retryDelayOf(BaseServerResponseException e, int attempt) {
+        return BDExportUtils.extractRetryAfter(e).orElse(INITIAL_THROTTLED_BACKOFF.multipliedBy(1L << (attempt - 1)));
+    }
+
+    /**
+     * Open the download of the task. A range starts one byte early, to tell if it starts with a new line, and is
+     * requested with {@link #RANGE_SLACK} beyond its end, for the line in progress at its end. Only a line running past
+     * that is downloaded further, so a range does not download the rest of the file.
+     */
+    private InputStream open(DownloadTask task) {
+        if (!task.isRange()) {
+            return converter.openStream(task.getItem(), cancellationToken);
+        }
+
+        BDExportResultResponse.OutputItem item = task.getItem();
+        long start = task.getStart();
+        long from = start == 0 ? 0 : start - 1;
+        if (task.getEnd() == Long.MAX_VALUE) {
+            // The last part reads to the end of the file anyway
+            return new LineRangeInputStream(converter.openStream(item, from, cancellationToken), start, task.getEnd());
+        }
+
+        InputStream in = new RangeWindowInputStream(
+                (fromByte, toByte) -> converter.openStream(item, fromByte, toByte, cancellationToken),
+                from, task.getEnd() - 1 + RANGE_SLACK, RANGE_SLACK);
+        return new LineRangeInputStream(in, start, task.getEnd());
+    }
+
+    private void parse(
+            DownloadedOutput downloaded,
+            Stage.Emitter<ResourceBatch> emitter,
+            StageMetrics metrics
+    ) throws IOException, InterruptedException {
+        IParser parser = parsers.get();
+        BDExportResultResponse.OutputItem item = downloaded.task.getItem();
+        BatchCollector batches = new BatchCollector(downloaded.task, emitter);
+
+        try (PooledContent content = downloaded.content; InputStream in = content.openDecompressedStream(inflaters.get())) {
+            readers.get().forEachLine(in, header -> {
+                if (!lineFilter.accept(header)) {
+                    metrics.recordRejected();
+                    return;
+                }
+
+                String line = header.lineAsString();
+                if (typeFilter != null && !typeFilter.mightMatch(item.getType(), line)) {
+                    metrics.recordRejected();
+                    return;
+                }
+
+                IBaseResource resource = parser.parseResource(line);
+                if (typeFilter != null && !typeFilter.matches(resource)) {
+                    metrics.recordRejected();
+                    return;
+                }
+
+                batches.add(resource);
+            });
+        }
+
+        batches.finish();
+    }
+
+    private static int requirePositive(String name, int value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(name + " must be positive, was: " + value);
+        }
+
+        return value;
+    }
+
+    /**
+     * Collects the resources of a single output file, or a range of it, into batches, and emits every full batch.
+     */
+    private class BatchCollector {
+        private final BDExportResultResponse.OutputItem item;
+        private final DownloadTask.OutputFile file;
+        private final boolean range;
+        private final Stage.Emitter<ResourceBatch> emitter;
+        private List<IBaseResource> batch = new ArrayList<>(batchSize);
+
+        private BatchCollector(DownloadTask task, Stage.Emitter<ResourceBatch> emitter) {
+            this.item = task.getItem();
+            this.file = task.getFile();
+            this.range = task.isRange();
+            this.emitter = emitter;
+        }
+
+        private void add(IBaseResource resource) throws InterruptedException {
+            batch.add(resource);
+
+            if (batch.size() == batchSize) {
+                emitter.emit(new ResourceBatch(item, file.nextSequence(), false, batch));
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+
+        /**
+         * Emit the rest of the resources. The range, that is parsed last, ends the file with an empty last batch,
+         * so the last batch always comes after the batches of every other range.
+         */
+        private void finish() throws InterruptedException {
+            if (!range) {
+                file.finishPart();
+                emitter.emit(new ResourceBatch(item, file.nextSequence(), true, batch));
+                return;
+            }
+
+            if (!batch.isEmpty()) {
+                emitter.emit(new ResourceBatch(item, file.nextSequence(), false, batch));
+            }
+            if (file.finishPart()) {
+                emitter.emit(new ResourceBatch(item, file.nextSequence(), true, List.of()));
+            }
+        }
+    }
+
+    private static class DownloadedOutput {
+        private final DownloadTask task;
+        private final PooledContent content;
+
+        private DownloadedOutput(DownloadTask task, PooledContent content) {
+            this.task = task;
+            this.content = content;
+        }
+    }
+}
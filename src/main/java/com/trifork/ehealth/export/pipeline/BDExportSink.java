@@ -0,0 +1,18 @@
+package com.trifork.ehealth.export.pipeline;
+
+/**
+ * Receives the parsed resources at the end of a {@link BDExportPipeline}.
+ * <p>
+ * When the sink stage has a concurrency above one, batches are delivered from several threads at once,
+ * and batches of the same output file may arrive out of order.
+ */
+@FunctionalInterface
+public interface BDExportSink {
+    /**
+     * Consume a batch of resources.
+     *
+     * @param batch the resources
+     * @throws Exception any failure aborts the pipeline
+     */
+    void accept(ResourceBatch batch) throws Exception;
+}
@@ -0,0 +1,85 @@
+package com.trifork.ehealth.export.pipeline;
+
+import com.trifork.ehealth.export.OutputProbe;
+import com.trifork.ehealth.export.response.BDExportResultResponse;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Orders the downloads of an export largest first, which is longest processing time (LPT) scheduling, so a large
+ * file does not start last and hold up the whole run. Files larger than the split size are split into ranges, where
+ * the server supports it.
+ * <p>
+ * The size of a file is its probed content length. Files without one are estimated from the <code>count</code> of the
+ * manifest, at the average bytes per resource of the probed files. Files of unknown size go last, in manifest order.
+ */
+class DownloadScheduler {
+    private DownloadScheduler() {
+    }
+
+    /**
+     * @param items     the output files
+     * @param probes    the probe of every file, in the order of the items
+     * @param splitSize the size, that files are split into ranges of
+     * @return the downloads, largest first
+     */
+    static List<DownloadTask> schedule(List<BDExportResultResponse.OutputItem> items, List<OutputProbe> probes, long splitSize) {
+        double bytesPerResource = bytesPerResource(items, probes);
+        List<DownloadTask> tasks = new ArrayList<>();
+
+        for (int i = 0; i < items.size(); i++) {
+            BDExportResultResponse.OutputItem item = items.get(i);
+            OutputProbe probe = probes.get(i);
+
+            long length = probe.getContentLength().orElse(DownloadTask.UNKNOWN_SIZE);
+            if (length == DownloadTask.UNKNOWN_SIZE && item.getCount() != null) {
+                length = (long) (item.getCount() * bytesPerResource);
+            }
+
+            if (probe.isSplittable() && length > splitSize) {
+                split(item, length, splitSize, tasks);
+            } else {
+                tasks.add(DownloadTask.whole(item, length));
+            }
+        }
+
+        // Stable, so equal sizes keep the order of the manifest
+        tasks.sort(Comparator.comparingLong(DownloadTask::getEstimatedBytes).reversed());
+        return tasks;
+    }
+
+    private static void split(BDExportResultResponse.OutputItem item, long length, long splitSize, List<DownloadTask> tasks) {
+        int parts = (int) Math.min(Integer.MAX_VALUE, (length + splitSize - 1) / splitSize);
+        DownloadTask.OutputFile file = new DownloadTask.OutputFile(parts);
+
+        for (int part = 0; part < parts; part++) {
+            long start = length / parts * part;
+            long end = part == parts - 1 ? Long.MAX_VALUE : length / parts * (part + 1);
+            long size = (part == parts - 1 ? length : end) - start;
+
+            tasks.add(new DownloadTask(item, file, start, end, size));
+        }
+    }
+
+    /**
+     * @return the average bytes per resource of the files, that have both a probed length and a count, or 1 if none do
+     */
+    private static double bytesPerResource(List<BDExportResultResponse.OutputItem> items, List<OutputProbe> probes) {
+        long bytes = 0;
+        long resources = 0;
+
+        for (int i = 0; i < items.size(); i++) {
+            Long count = items.get(i).getCount();
+            long length = probes.get(i).getContentLength().orElse(DownloadTask.UNKNOWN_SIZE);
+
+            if (count != null && count > 0 && length >= 0) {
+                bytes += length;
+                resources += count;
+            }
+        }
+
+        return resources == 0 ? 1 : (double) bytes / resources;
+    }
+}
@@ -0,0 +1,84 @@
+package com.trifork.ehealth.export.pipeline;
+
+import com.trifork.ehealth.export.response.BDExportResultResponse;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The download of an output file, or of the lines of a file, that start within a range of bytes.
+ */
+class DownloadTask {
+    static final long UNKNOWN_SIZE = -1;
+
+    private final BDExportResultResponse.OutputItem item;
+    private final OutputFile file;
+    private final long start;
+    private final long end;
+    private final long estimatedBytes;
+
+    /**
+     * @param start          the offset of the range
+     * @param end            the offset after the range, or {@link Long#MAX_VALUE} for the rest of the file
+     * @param estimatedBytes the estimated size of the download, or {@link #UNKNOWN_SIZE}
+     */
+    DownloadTask(BDExportResultResponse.OutputItem item, OutputFile file, long start, long end, long estimatedBytes) {
+        this.item = item;
+        this.file = file;
+        this.start = start;
+        this.end = end;
+        this.estimatedBytes = estimatedBytes;
+    }
+
+    static DownloadTask whole(BDExportResultResponse.OutputItem item, long estimatedBytes) {
+        return new DownloadTask(item, new OutputFile(1), 0, Long.MAX_VALUE, estimatedBytes);
+    }
+
+    BDExportResultResponse.OutputItem getItem() {
+        return item;
+    }
+
+    OutputFile getFile() {
+        return file;
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    long getEnd() {
+        return end;
+    }
+
+    long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    boolean isRange() {
+        return start > 0 || end != Long.MAX_VALUE;
+    }
+
+    /**
+     * The parts of an output file, that are downloaded and parsed on their own, so the batches of the file are numbered
+     * across the parts, and only the part finishing last emits the last batch.
+     */
+    static class OutputFile {
+        private final AtomicInteger remainingParts;
+        private final AtomicLong sequence = new AtomicLong();
+
+        OutputFile(int parts) {
+            this.remainingParts = new AtomicInteger(parts);
+        }
+
+        long nextSequence() {
+            return sequence.getAndIncrement();
+        }
+
+        /**
+         * @return true if every part of the file has been parsed
+         */
+        boolean finishPart() {
+            return remainingParts.decrementAndGet() == 0;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.trifork.ehealth.export.pipeline;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The NDJSON lines, that start within a range of bytes of a file, so the ranges of a file can be parsed on their own,
+ * and every line is parsed by exactly one of them.
+ * <p>
+ * The stream must start one byte before the range, unless the range starts the file. The line in progress at the start
+ * of the range is skipped, and the line in progress at the end of the range is read to its end.
+ */
+class LineRangeInputStream extends FilterInputStream {
+    private final long end;
+    private long position;
+    private boolean lineStart;
+    private boolean started;
+    private boolean finished;
+
+    /**
+     * @param in    the file, from one byte before the start of the range, or from the start of the file
+     * @param start the offset of the range
+     * @param end   the offset after the range
+     */
+    LineRangeInputStream(InputStream in, long start, long end) {
+        super(in);
+        this.end = end;
+        this.position = start == 0 ? 0 : start - 1;
+        this.lineStart = start == 0;
+        this.started = start == 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = read(single, 0, 1);
+        return read < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!started) {
+            skipToLineStart();
+        }
+
+        if (finished || (lineStart && position >= end)) {
+            finished = true;
+            return -1;
+        }
+
+        int read = in.read(bytes, offset, length);
+        if (read < 0) {
+            finished = true;
+            return -1;
+        }
+
+        for (int i = 0; i < read; i++) {
+            if (lineStart && position >= end) {
+                // The rest belongs to the next range
+                finished = true;
+                return i;
+            }
+
+            lineStart = bytes[offset + i] == '\n';
+            position++;
+        }
+
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] discard = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+
+        while (skipped < n) {
+            int read = read(discard, 0, (int) Math.min(discard.length, n - skipped));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Skip the line in progress at the start of the range, which belongs to the previous range. If the byte before the
+     * range is a line break, only it is skipped.
+     */
+    private void skipToLineStart() throws IOException {
+        started = true;
+
+        int b;
+        while ((b = in.read()) >= 0) {
+            position++;
+            if (b == '\n') {
+                lineStart = true;
+                return;
+            }
+        }
+
+        finished = true;
+    }
+}
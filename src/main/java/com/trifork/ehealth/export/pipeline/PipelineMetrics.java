@@ -0,0 +1,52 @@
+package com.trifork.ehealth.export.pipeline;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Timings of a completed {@link BDExportPipeline} run.
+ */
+public class PipelineMetrics {
+    private final Duration elapsed;
+    private final List<StageMetrics> stages;
+
+    PipelineMetrics(Duration elapsed, List<StageMetrics> stages) {
+        this.elapsed = elapsed;
+        this.stages = List.copyOf(stages);
+    }
+
+    /**
+     * @return the wall clock time of the run
+     */
+    public Duration getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * @return the metrics of every stage, in pipeline order
+     */
+    public List<StageMetrics> getStages() {
+        return stages;
+    }
+
+    public StageMetrics getStage(String name) {
+        return stages.stream()
+                .filter(stage -> stage.getName().equals(name))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No stage named: " + name));
+    }
+
+    /**
+     * @return the stage with the highest utilization, which is the one to give more concurrency
+     */
+    public StageMetrics getBottleneck() {
+        return stages.stream().max(Comparator.comparingDouble(StageMetrics::getUtilization)).orElseThrow();
+    }
+
+    @Override
+    public String toString() {
+        return "PipelineMetrics{elapsed=" + elapsed.toMillis() + "ms, bottleneck=" + getBottleneck().getName()
+                + ", stages=" + stages + '}';
+    }
+}
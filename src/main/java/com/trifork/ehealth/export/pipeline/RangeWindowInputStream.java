@@ -0,0 +1,112 @@
+package com.trifork.ehealth.export.pipeline;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A file from an offset, downloaded in windows of bounded range requests, so a reader, that stops early, e.g. at the
+ * end of the lines of its range, does not download the rest of the file.
+ * <p>
+ * The next window is only requested, when the previous one is read to its end, and is twice as large, so a line
+ * running far past the first window takes a few requests. A window, that ends short of its size, ends the file.
+ */
+class RangeWindowInputStream extends InputStream {
+    private static final int STATUS_HTTP_416_RANGE_NOT_SATISFIABLE = 416;
+
+    private final Opener opener;
+    private long nextWindowSize;
+    private long position;
+    private long windowEnd;
+    private InputStream window;
+    private boolean eof;
+
+    /**
+     * Opens the first window right away, so a failing download fails here.
+     *
+     * @param opener         downloads a window
+     * @param fromByte       the offset of the first byte to read
+     * @param toByte         the offset of the last byte of the first window
+     * @param nextWindowSize the size of the window after the first one
+     */
+    RangeWindowInputStream(Opener opener, long fromByte, long toByte, long nextWindowSize) {
+        this.opener = opener;
+        this.nextWindowSize = nextWindowSize;
+        this.position = fromByte;
+
+        openWindow(toByte);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = read(single, 0, 1);
+        return read < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        while (!eof) {
+            if (window == null) {
+                openWindow(position + nextWindowSize - 1);
+                nextWindowSize *= 2;
+                continue;
+            }
+
+            int read = window.read(bytes, offset, length);
+            if (read > 0) {
+                position += read;
+                return read;
+            }
+            if (read == 0) {
+                continue;
+            }
+
+            // The file ended within the window, unless the window was read to its end
+            eof = position < windowEnd;
+            closeWindow();
+        }
+
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        eof = true;
+        closeWindow();
+    }
+
+    private void openWindow(long toByte) {
+        windowEnd = toByte + 1;
+        try {
+            window = opener.open(position, toByte);
+        } catch (BaseServerResponseException e) {
+            if (e.getStatusCode() != STATUS_HTTP_416_RANGE_NOT_SATISFIABLE) {
+                throw e;
+            }
+
+            // The previous window ended exactly at the end of the file
+            eof = true;
+        }
+    }
+
+    private void closeWindow() throws IOException {
+        InputStream closed = window;
+        window = null;
+        if (closed != null) {
+            closed.close();
+        }
+    }
+
+    interface Opener {
+        /**
+         * @return the bytes from the offset through the last byte, or fewer at the end of the file
+         */
+        InputStream open(long fromByte, long toByte);
+    }
+}
@@ -0,0 +1,49 @@
+package com.trifork.ehealth.export.pipeline;
+
+import com.trifork.ehealth.export.response.BDExportResultResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.List;
+
+/**
+ * A batch of consecutive resources, parsed from one output file.
+ */
+public class ResourceBatch {
+    private final BDExportResultResponse.OutputItem source;
+    private final long sequence;
+    private final boolean last;
+    private final List<IBaseResource> resources;
+
+    public ResourceBatch(BDExportResultResponse.OutputItem source, long sequence, boolean last, List<IBaseResource> resources) {
+        this.source = source;
+        this.sequence = sequence;
+        this.last = last;
+        this.resources = resources;
+    }
+
+    /**
+     * @return the output item, that the resources were parsed from
+     */
+    public BDExportResultResponse.OutputItem getSource() {
+        return source;
+    }
+
+    /**
+     * @return the position of this batch within the output file, starting from 0. The batches of a file, that was
+     * split into ranges, are numbered in the order they were parsed.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return true if this is the final batch of the output file. The final batch may be empty.
+     */
+    public boolean isLast() {
+        return last;
+    }
+
+    public List<IBaseResource> getResources() {
+        return resources;
+    }
+}
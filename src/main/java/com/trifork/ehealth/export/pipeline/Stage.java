@@ -0,0 +1,106 @@
+package com.trifork.ehealth.export.pipeline;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One stage of a pipeline: a number of workers, that take items from an input queue,
+ * and put their results on the output queue of the next stage.
+ * <p>
+ * The end of the input is marked by {@link #END}. Every worker puts it back for its siblings,
+ * and the last worker to finish passes it on to the next stage.
+ */
+class Stage<I, O> {
+    static final Object END = new Object();
+
+    @FunctionalInterface
+    interface Processor<I, O> {
+        void process(I input, Emitter<O> emitter) throws Exception;
+    }
+
+    @FunctionalInterface
+    interface Emitter<O> {
+        void emit(O output) throws InterruptedException;
+    }
+
+    private final StageMetrics metrics;
+    private final BlockingQueue<Object> input;
+    private final BlockingQueue<Object> output;
+    private final Processor<I, O> processor;
+    private final AtomicInteger activeWorkers;
+
+    Stage(String name, int concurrency, BlockingQueue<Object> input, BlockingQueue<Object> output, Processor<I, O> processor) {
+        this(new StageMetrics(name, concurrency), input, output, processor);
+    }
+
+    /**
+     * Create a stage with metrics made up front, for processors that need the metrics of their own stage.
+     */
+    Stage(StageMetrics metrics, BlockingQueue<Object> input, BlockingQueue<Object> output, Processor<I, O> processor) {
+        if (metrics.getConcurrency() <= 0) {
+            throw new IllegalArgumentException("Concurrency of stage '" + metrics.getName() + "' must be positive, was: " + metrics.getConcurrency());
+        }
+
+        this.metrics = metrics;
+        this.input = input;
+        this.output = output;
+        this.processor = processor;
+        this.activeWorkers = new AtomicInteger(metrics.getConcurrency());
+    }
+
+    StageMetrics getMetrics() {
+        return metrics;
+    }
+
+    int getConcurrency() {
+        return metrics.getConcurrency();
+    }
+
+    /**
+     * Run a single worker of this stage until the end of the input.
+     */
+    @SuppressWarnings("unchecked")
+    void runWorker() throws Exception {
+        WorkerEmitter emitter = new WorkerEmitter();
+
+        try {
+            while (true) {
+                long waitStart = System.nanoTime();
+                Object item = input.take();
+                metrics.recordStarved(System.nanoTime() - waitStart);
+
+                if (item == END) {
+                    input.put(END);
+                    return;
+                }
+
+                metrics.recordIn();
+                long workStart = System.nanoTime();
+                emitter.blockedNanos = 0;
+
+                processor.process((I) item, emitter);
+
+                metrics.recordBusy(System.nanoTime() - workStart - emitter.blockedNanos);
+            }
+        } finally {
+            if (activeWorkers.decrementAndGet() == 0 && output != null) {
+                output.put(END);
+            }
+        }
+    }
+
+    private class WorkerEmitter implements Emitter<O> {
+        private long blockedNanos;
+
+        @Override
+        public void emit(O item) throws InterruptedException {
+            long start = System.nanoTime();
+            output.put(item);
+            long blocked = System.nanoTime() - start;
+
+            blockedNanos += blocked;
+            metrics.recordBlocked(blocked);
+            metrics.recordOut();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.trifork.ehealth.export.pipeline;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings for one stage of a {@link BDExportPipeline}, summed over all workers of the stage.
+ * <ul>
+ *     <li>busy: time spent doing the actual work of the stage</li>
+ *     <li>starved: time spent waiting for input from the previous stage</li>
+ *     <li>blocked: time spent waiting for room in the queue to the next stage</li>
+ * </ul>
+ * The stage with the highest utilization is the bottleneck of the pipeline. Stages in front of it are blocked,
+ * and stages behind it are starved.
+ */
+public class StageMetrics {
+    private final String name;
+    private final int concurrency;
+
+    private final AtomicLong itemsIn = new AtomicLong();
+    private final AtomicLong itemsOut = new AtomicLong();
+    private final AtomicLong itemsRejected = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong starvedNanos = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private volatile long elapsedNanos;
+
+    StageMetrics(String name, int concurrency) {
+        this.name = name;
+        this.concurrency = concurrency;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public long getItemsIn() {
+        return itemsIn.get();
+    }
+
+    public long getItemsOut() {
+        return itemsOut.get();
+    }
+
+    /**
+     * @return the number of resources, that were dropped by a filter in this stage
+     */
+    public long getItemsRejected() {
+        return itemsRejected.get();
+    }
+
+    public Duration getBusyTime() {
+        return Duration.ofNanos(busyNanos.get());
+    }
+
+    public Duration getStarvedTime() {
+        return Duration.ofNanos(starvedNanos.get());
+    }
+
+    public Duration getBlockedTime() {
+        return Duration.ofNanos(blockedNanos.get());
+    }
+
+    /**
+     * @return the share of the available worker time, that was spent busy, between 0 and 1
+     */
+    public double getUtilization() {
+        long available = elapsedNanos * concurrency;
+        return available <= 0 ? 0 : Math.min(1.0, (double) busyNanos.get() / available);
+    }
+
+    void recordIn() {
+        itemsIn.incrementAndGet();
+    }
+
+    void recordOut() {
+        itemsOut.incrementAndGet();
+    }
+
+    void recordRejected() {
+        itemsRejected.incrementAndGet();
+    }
+
+    void recordBusy(long nanos) {
+        busyNanos.addAndGet(nanos);
+    }
+
+    void recordStarved(long nanos) {
+        starvedNanos.addAndGet(nanos);
+    }
+
+    void recordBlocked(long nanos) {
+        blockedNanos.addAndGet(nanos);
+    }
+
+    void setElapsedNanos(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%s{concurrency=%d, in=%d, out=%d, rejected=%d, utilization=%.0f%%, busy=%dms, starved=%dms, blocked=%dms}",
+                name,
+                concurrency,
+                getItemsIn(),
+                getItemsOut(),
+                getItemsRejected(),
+                getUtilization() * 100,
+                getBusyTime().toMillis(),
+                getStarvedTime().toMillis(),
+                getBlockedTime().toMillis()
+        );
+    }
+}
@@ -0,0 +1,412 @@
+package com.trifork.ehealth.export.plan;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import com.trifork.ehealth.export.BDExportRequest;
+import com.trifork.ehealth.export.BDExportTypeFilter;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Plans an export as partitions of roughly equal size, from the number of resources of every type, counted with cheap
+ * <code>_summary=count</code> searches against the base URL of the export, respecting its <code>_since</code> and
+ * <code>_typeFilter</code>.
+ * <ul>
+ *     <li>Types larger than the target size are split into ranges of <code>_lastUpdated</code>, with the boundaries
+ *     found by bisection, and exported with a <code>_typeFilter</code> per range</li>
+ *     <li>Smaller types are packed together into partitions up to the target size, largest first</li>
+ * </ul>
+ * The counts are taken at the system level, so they overestimate the exports of a patient or a group.
+ */
+public class BDExportPlanner {
+    private static final Pattern EXPORT_URI = Pattern.compile("(.*?)(/Patient|/Group/[^/]+)?/?\\$export.*");
+    private static final String LAST_UPDATED = "_lastUpdated";
+    private static final int MAX_BISECTION_STEPS = 20;
+    private static final double BOUNDARY_TOLERANCE = 0.1;
+
+    private final IGenericClient client;
+    private long targetResourcesPerPartition = 1_000_000;
+    private int maxPartitionsPerType = 16;
+    private int concurrentExports = 4;
+    private double resourcesPerSecond = 1000;
+    private Duration exportOverhead = Duration.ofSeconds(30);
+
+    private static final Logger logger = LoggerFactory.getLogger(BDExportPlanner.class);
+
+    /**
+     * @param client the client of the FHIR server, that the export runs against
+     */
+    public BDExportPlanner(IGenericClient client) {
+        this.client = Objects.requireNonNull(client);
+    }
+
+    /**
+     * Set the number of resources, that every partition should hold. Defaults to 1,000,000.
+     */
+    public BDExportPlanner setTargetResourcesPerPartition(long targetResourcesPerPartition) {
+        if (targetResourcesPerPartition <= 0) {
+            throw new IllegalArgumentException("Target resources per partition must be positive, was: " + targetResourcesPerPartition);
+        }
+
+        this.targetResourcesPerPartition = targetResourcesPerPartition;
+        return this;
+    }
+
+    /**
+     * Set the highest number of ranges, that a single type is split into. Defaults to 16.
+     */
+    public BDExportPlanner setMaxPartitionsPerType(int maxPartitionsPerType) {
+        if (maxPartitionsPerType <= 0) {
+            throw new IllegalArgumentException("Max partitions per type must be positive, was: " + maxPartitionsPerType);
+        }
+
+        this.maxPartitionsPerType = maxPartitionsPerType;
+        return this;
+    }
+
+    /**
+     * Set the number of partitions, that are exported at once, for the estimated runtime. Defaults to 4.
+     */
+    public BDExportPlanner setConcurrentExports(int concurrentExports) {
+        if (concurrentExports <= 0) {
+            throw new IllegalArgumentException("Concurrent exports must be positive, was: " + concurrentExports);
+        }
+
+        this.concurrentExports = concurrentExports;
+        return this;
+    }
+
+    /**
+     * Set the rate, that the server exports resources at, for the estimated runtime. Defaults to 1000 per second.
+     */
+    public BDExportPlanner setResourcesPerSecond(double resourcesPerSecond) {
+        if (resourcesPerSecond <= 0) {
+            throw new IllegalArgumentException("Resources per second must be positive, was: " + resourcesPerSecond);
+        }
+
+        this.resourcesPerSecond = resourcesPerSecond;
+        return this;
+    }
+
+    /**
+     * Set the fixed cost of every export, e.g. its kick-off and polls, for the estimated runtime. Defaults to 30 seconds.
+     */
+    public BDExportPlanner setExportOverhead(Duration exportOverhead) {
+        this.exportOverhead = Objects.requireNonNull(exportOverhead);
+        return this;
+    }
+
+    /**
+     * Count the resources of the request, and plan its partitions.
+     *
+     * @param request an export of explicit types
+     * @return the plan, with the partitions largest first
+     */
+    public ExportPlan plan(BDExportRequest request) {
+        if (request.getTypes().isEmpty()) {
+            throw new IllegalArgumentException("Planning an export needs the types of the export, to count them");
+        }
+
+        String baseUrl = baseUrlOf(request.getExportUri());
+        Instant since = request.getSince() == null ? null : request.getSince().getValue().toInstant();
+        Instant now = Instant.now();
+
+        Map<String, Long> counts = new LinkedHashMap<>();
+        List<ExportPartition> partitions = new ArrayList<>();
+        List<TypeCount> smallTypes = new ArrayList<>();
+
+        for (ResourceType type : request.getTypes()) {
+            TypeCounter counter = new TypeCounter(baseUrl, type, filtersOf(request, type), since);
+            long count = counter.count(null, null);
+            counts.put(type.name(), count);
+
+            int parts = (int) Math.min(maxPartitionsPerType, (count + targetResourcesPerPartition - 1) / targetResourcesPerPartition);
+            if (parts > 1) {
+                partitions.addAll(split(request, counter, count, parts, now));
+            } else {
+                smallTypes.add(new TypeCount(type, count));
+            }
+        }
+
+        partitions.addAll(pack(request, smallTypes));
+        partitions.sort(Comparator.comparingLong(ExportPartition::getEstimatedResources).reversed());
+
+        ExportPlan plan = new ExportPlan(partitions, counts, makespan(partitions));
+        logger.info("Planned 'Bulk Data Export' of '" + request.getExportUri() + "': " + plan);
+
+        return plan;
+    }
+
+    /**
+     * Split a type into ranges of <code>_lastUpdated</code>, each with about the same number of resources.
+     */
+    private List<ExportPartition> split(BDExportRequest request, TypeCounter counter, long count, int parts, Instant now) {
+        Instant lower = counter.since != null ? counter.since : counter.earliest();
+        if (lower == null || !lower.isBefore(now)) {
+            return List.of(partition(request, List.of(counter.type), counter.filters, count));
+        }
+
+        List<ExportPartition> partitions = new ArrayList<>();
+        Instant from = lower;
+        long remaining = count;
+
+        for (int part = 0; part < parts - 1; part++) {
+            long target = remaining / (parts - part);
+            Instant low = from;
+            Instant high = now;
+            Instant boundary = high;
+            long found = remaining;
+
+            for (int step = 0; step < MAX_BISECTION_STEPS && Duration.between(low, high).toMillis() > 1000; step++) {
+                // Whole seconds, as the boundaries are sent as type filters
+                boundary = low.plusMillis(Duration.between(low, high).toMillis() / 2).truncatedTo(ChronoUnit.SECONDS);
+                found = counter.count(from, boundary);
+
+                if (Math.abs(found - target) <= target * BOUNDARY_TOLERANCE) {
+                    break;
+                }
+                if (found < target) {
+                    low = boundary;
+                } else {
+                    high = boundary;
+                }
+            }
+
+            // The first range is bounded by since, or starts with the earliest resource
+            partitions.add(rangePartition(request, counter, part == 0 ? null : from, boundary, found));
+            remaining -= found;
+            from = boundary;
+        }
+
+        partitions.add(rangePartition(request, counter, from, null, remaining));
+        return partitions;
+    }
+
+    /**
+     * Pack types into partitions up to the target size, first fit decreasing.
+     */
+    private List<ExportPartition> pack(BDExportRequest request, List<TypeCount> types) {
+        List<List<TypeCount>> bins = new ArrayList<>();
+        List<Long> binSizes = new ArrayList<>();
+
+        types.sort(Comparator.comparingLong((TypeCount type) -> type.count).reversed());
+        for (TypeCount type : types) {
+            int bin = 0;
+            while (bin < bins.size() && binSizes.get(bin) + type.count > targetResourcesPerPartition) {
+                bin++;
+            }
+
+            if (bin == bins.size()) {
+                bins.add(new ArrayList<>());
+                binSizes.add(0L);
+            }
+            bins.get(bin).add(type);
+            binSizes.set(bin, binSizes.get(bin) + type.count);
+        }
+
+        List<ExportPartition> partitions = new ArrayList<>();
+        for (int i = 0; i < bins.size(); i++) {
+            List<ResourceType> binTypes = bins.get(i).stream().map(type -> type.type).collect(Collectors.toList());
+            List<BDExportTypeFilter> filters = request.getTypeFilters().stream()
+                    .filter(filter -> binTypes.contains(filter.getResourceType()))
+                    .collect(Collectors.toList());
+
+            partitions.add(partition(request, binTypes, filters, binSizes.get(i)));
+        }
+
+        return partitions;
+    }
+
+    private ExportPartition partition(BDExportRequest request, List<ResourceType> types, List<BDExportTypeFilter> filters, long resources) {
+        return new ExportPartition(request.partition(types, filters), types, null, null, resources, durationOf(resources));
+    }
+
+    private ExportPartition rangePartition(BDExportRequest request, TypeCounter counter, Instant from, Instant to, long resources) {
+        List<BDExportTypeFilter.Query> range = new ArrayList<>();
+        if (from != null) {
+            range.add(new BDExportTypeFilter.Query(LAST_UPDATED, new DateParam(ParamPrefixEnum.GREATERTHAN_OR_EQUALS, Date.from(from))));
+        }
+        if (to != null) {
+            range.add(new BDExportTypeFilter.Query(LAST_UPDATED, new DateParam(ParamPrefixEnum.LESSTHAN, Date.from(to))));
+        }
+
+        // Every type filter is an alternative, so each of them is limited to the range
+        List<BDExportTypeFilter> filters = new ArrayList<>();
+        if (counter.filters.isEmpty()) {
+            filters.add(filterOf(counter.type, range));
+        } else {
+            for (BDExportTypeFilter filter : counter.filters) {
+                List<BDExportTypeFilter.Query> queries = new ArrayList<>(filter.getQueries());
+                queries.addAll(range);
+                filters.add(filterOf(counter.type, queries));
+            }
+        }
+
+        return new ExportPartition(request.partition(List.of(counter.type), filters), List.of(counter.type), from, to, resources, durationOf(resources));
+    }
+
+    private static BDExportTypeFilter filterOf(ResourceType type, List<BDExportTypeFilter.Query> queries) {
+        BDExportTypeFilter filter = new BDExportTypeFilter(type, queries.get(0).getParamName(), queries.get(0).getParamQuery());
+        for (BDExportTypeFilter.Query query : queries.subList(1, queries.size())) {
+            filter.and(query.getParamName(), query.getParamQuery());
+        }
+
+        return filter;
+    }
+
+    private Duration durationOf(long resources) {
+        return exportOverhead.plusMillis((long) (resources / resourcesPerSecond * 1000));
+    }
+
+    /**
+     * @return the time until every partition has been exported, when the largest are started first
+     */
+    private Duration makespan(List<ExportPartition> partitions) {
+        PriorityQueue<Duration> slots = new PriorityQueue<>();
+        for (int i = 0; i < Math.min(concurrentExports, partitions.size()); i++) {
+            slots.add(Duration.ZERO);
+        }
+
+        Duration makespan = Duration.ZERO;
+        for (ExportPartition partition : partitions) {
+            Duration end = slots.poll().plus(partition.getEstimatedDuration());
+            slots.add(end);
+
+            if (end.compareTo(makespan) > 0) {
+                makespan = end;
+            }
+        }
+
+        return makespan;
+    }
+
+    private static List<BDExportTypeFilter> filtersOf(BDExportRequest request, ResourceType type) {
+        return request.getTypeFilters().stream()
+                .filter(filter -> filter.getResourceType() == type)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the base URL of the server, without the Patient or Group of the export
+     */
+    static String baseUrlOf(URI exportUri) {
+        Matcher matcher = EXPORT_URI.matcher(exportUri.toString());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Not an export URI: " + exportUri);
+        }
+
+        return matcher.group(1);
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private static class TypeCount {
+        private final ResourceType type;
+        private final long count;
+
+        private TypeCount(ResourceType type, long count) {
+            this.type = type;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Counts the resources of a type, that match any of its type filters
+     */
+    private class TypeCounter {
+        private final String baseUrl;
+        private final ResourceType type;
+        private final List<BDExportTypeFilter> filters;
+        private final Instant since;
+
+        private TypeCounter(String baseUrl, ResourceType type, List<BDExportTypeFilter> filters, Instant since) {
+            this.baseUrl = baseUrl;
+            this.type = type;
+            this.filters = filters;
+            this.since = since;
+        }
+
+        /**
+         * @param from the inclusive lower bound of <code>_lastUpdated</code>, or null for since
+         * @param to   the exclusive upper bound of <code>_lastUpdated</code>, or null for none
+         */
+        private long count(Instant from, Instant to) {
+            Instant lower = from != null ? from : since;
+            String range = (lower == null ? "" : "&" + LAST_UPDATED + "=ge" + encode(new InstantType(Date.from(lower)).getValueAsString()))
+                    + (to == null ? "" : "&" + LAST_UPDATED + "=lt" + encode(new InstantType(Date.from(to)).getValueAsString()));
+
+            long count = 0;
+            for (String query : queries()) {
+                Bundle bundle = client.search()
+                        .byUrl(baseUrl + "/" + type.name() + "?_summary=count" + query + range)
+                        .returnBundle(Bundle.class)
+                        .execute();
+                count += bundle.getTotal();
+            }
+
+            return count;
+        }
+
+        /**
+         * @return the earliest <code>_lastUpdated</code> of the type, or null if there are no resources
+         */
+        private Instant earliest() {
+            Instant earliest = null;
+
+            for (String query : queries()) {
+                Bundle bundle = client.search()
+                        .byUrl(baseUrl + "/" + type.name() + "?_sort=" + LAST_UPDATED + "&_count=1&_elements=meta" + query)
+                        .returnBundle(Bundle.class)
+                        .execute();
+
+                for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                    Date lastUpdated = entry.getResource() == null ? null : entry.getResource().getMeta().getLastUpdated();
+                    if (lastUpdated != null && (earliest == null || lastUpdated.toInstant().isBefore(earliest))) {
+                        earliest = lastUpdated.toInstant();
+                    }
+                }
+            }
+
+            return earliest;
+        }
+
+        /**
+         * @return the query of every type filter, which are alternatives, or a single empty query without filters
+         */
+        private List<String> queries() {
+            if (filters.isEmpty()) {
+                return List.of("");
+            }
+
+            return filters.stream()
+                    .map(filter -> filter.getQueries().stream()
+                            .map(query -> "&" + query.getParamName() + "=" + encode(query.getParamQuery().getValueAsQueryToken(client.getFhirContext())))
+                            .collect(Collectors.joining()))
+                    .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.trifork.ehealth.export.plan;
+
+import com.trifork.ehealth.export.BDExportRequest;
+import org.hl7.fhir.r4.model.ResourceType;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * One export of an {@link ExportPlan}: a set of types, or a range of <code>_lastUpdated</code> of a single type.
+ */
+public class ExportPartition {
+    private final BDExportRequest request;
+    private final List<ResourceType> types;
+    private final Instant lastUpdatedFrom;
+    private final Instant lastUpdatedTo;
+    private final long estimatedResources;
+    private final Duration estimatedDuration;
+
+    ExportPartition(
+            BDExportRequest request,
+            List<ResourceType> types,
+            Instant lastUpdatedFrom,
+            Instant lastUpdatedTo,
+            long estimatedResources,
+            Duration estimatedDuration
+    ) {
+        this.request = request;
+        this.types = List.copyOf(types);
+        this.lastUpdatedFrom = lastUpdatedFrom;
+        this.lastUpdatedTo = lastUpdatedTo;
+        this.estimatedResources = estimatedResources;
+        this.estimatedDuration = estimatedDuration;
+    }
+
+    /**
+     * @return the request, that exports this partition
+     */
+    public BDExportRequest getRequest() {
+        return request;
+    }
+
+    public List<ResourceType> getTypes() {
+        return types;
+    }
+
+    /**
+     * @return the inclusive lower bound of <code>_lastUpdated</code>, if the type was split by time
+     */
+    public Optional<Instant> getLastUpdatedFrom() {
+        return Optional.ofNullable(lastUpdatedFrom);
+    }
+
+    /**
+     * @return the exclusive upper bound of <code>_lastUpdated</code>, if the type was split by time
+     */
+    public Optional<Instant> getLastUpdatedTo() {
+        return Optional.ofNullable(lastUpdatedTo);
+    }
+
+    public long getEstimatedResources() {
+        return estimatedResources;
+    }
+
+    public Duration getEstimatedDuration() {
+        return estimatedDuration;
+    }
+
+    @Override
+    public String toString() {
+        return "ExportPartition{types=" + types + ", lastUpdatedFrom=" + lastUpdatedFrom + ", lastUpdatedTo=" + lastUpdatedTo
+                + ", estimatedResources=" + estimatedResources + ", estimatedDuration=" + estimatedDuration + '}';
+    }
+}
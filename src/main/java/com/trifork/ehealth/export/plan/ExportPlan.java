@@ -0,0 +1,82 @@
+package com.trifork.ehealth.export.plan;
+
+import com.trifork.ehealth.export.BDExportClient;
+import com.trifork.ehealth.export.future.BDExportFuture;
+import com.trifork.ehealth.export.job.BDExportJobManager;
+import com.trifork.ehealth.export.job.ExportJob;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The partitions of an export, made by a {@link BDExportPlanner}, with the estimated runtime of running them.
+ */
+public class ExportPlan {
+    private final List<ExportPartition> partitions;
+    private final Map<String, Long> counts;
+    private final Duration estimatedRuntime;
+
+    ExportPlan(List<ExportPartition> partitions, Map<String, Long> counts, Duration estimatedRuntime) {
+        this.partitions = List.copyOf(partitions);
+        this.counts = Map.copyOf(counts);
+        this.estimatedRuntime = estimatedRuntime;
+    }
+
+    /**
+     * @return the partitions, largest first
+     */
+    public List<ExportPartition> getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * @return the counted resources of every type
+     */
+    public Map<String, Long> getCounts() {
+        return counts;
+    }
+
+    public long getEstimatedResources() {
+        return partitions.stream().mapToLong(ExportPartition::getEstimatedResources).sum();
+    }
+
+    /**
+     * @return the estimated time until every partition has been exported, by the concurrent exports of the planner
+     */
+    public Duration getEstimatedRuntime() {
+        return estimatedRuntime;
+    }
+
+    /**
+     * Initiate the export of every partition, largest first.
+     */
+    public List<BDExportFuture> execute(BDExportClient client) throws IOException {
+        List<BDExportFuture> futures = new ArrayList<>();
+        for (ExportPartition partition : partitions) {
+            futures.add(client.initiate(partition.getRequest()));
+        }
+
+        return futures;
+    }
+
+    /**
+     * Submit the export of every partition to the job manager, which limits the exports in flight.
+     */
+    public List<ExportJob> submit(BDExportJobManager jobManager, String tenant) {
+        List<ExportJob> jobs = new ArrayList<>();
+        for (ExportPartition partition : partitions) {
+            jobs.add(jobManager.submit(tenant, partition.getRequest()));
+        }
+
+        return jobs;
+    }
+
+    @Override
+    public String toString() {
+        return "ExportPlan{partitions=" + partitions.size() + ", estimatedResources=" + getEstimatedResources()
+                + ", estimatedRuntime=" + estimatedRuntime + '}';
+    }
+}
@@ -0,0 +1,158 @@
+package com.trifork.ehealth.export.poll;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+
+/**
+ * Remembers how long exports took, by {@link com.trifork.ehealth.export.BDExportRequest#fingerprint request fingerprint},
+ * to predict how long the next export of the same kind will take.
+ * <p>
+ * The prediction is a moving average, that follows the latest durations, as the data on the server grows.
+ * Given a file, the durations are kept between runs, in a properties file of fingerprint = average millis, count.
+ */
+public class ExportDurationStore {
+    /**
+     * The weight of the latest duration in the average
+     */
+    private static final double SMOOTHING = 0.3;
+
+    private final Path file;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private static final Logger logger = LoggerFactory.getLogger(ExportDurationStore.class);
+
+    /**
+     * Create a store, that is kept in memory only
+     */
+    public ExportDurationStore() {
+        this.file = null;
+    }
+
+    /**
+     * Create a store, that is loaded from the file if it exists, and written to it on every recorded duration
+     */
+    public ExportDurationStore(Path file) {
+        this.file = file;
+
+        if (Files.exists(file)) {
+            load(file);
+        }
+    }
+
+    /**
+     * Record the duration of a completed export
+     */
+    public synchronized void record(String fingerprint, Duration duration) {
+        Entry entry = entries.get(fingerprint);
+        long millis = duration.toMillis();
+
+        if (entry == null) {
+            entries.put(fingerprint, new Entry(millis, 1));
+        } else {
+            entry.averageMillis = SMOOTHING * millis + (1 - SMOOTHING) * entry.averageMillis;
+            entry.count++;
+        }
+
+        if (file != null) {
+            save(file);
+        }
+    }
+
+    /**
+     * @return the expected duration of an export, or empty if no export of its kind has completed yet
+     */
+    public synchronized Optional<Duration> predict(String fingerprint) {
+        Entry entry = entries.get(fingerprint);
+
+        return entry == null ? Optional.empty() : Optional.of(Duration.ofMillis(Math.round(entry.averageMillis)));
+    }
+
+    /**
+     * @return the number of completed exports, that the prediction is based on
+     */
+    public synchronized int getCount(String fingerprint) {
+        Entry entry = entries.get(fingerprint);
+
+        return entry == null ? 0 : entry.count;
+    }
+
+    /**
+     * Load the durations, or start without any, if the file cannot be read or is corrupt, as they only improve polling
+     */
+    private void load(Path file) {
+        Properties properties = new Properties();
+        Map<String, Entry> loaded = new HashMap<>();
+
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+
+            for (String fingerprint : properties.stringPropertyNames()) {
+                String[] value = properties.getProperty(fingerprint).split(",");
+                loaded.put(fingerprint, new Entry(Double.parseDouble(value[0]), Integer.parseInt(value[1])));
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to load export durations from '" + file + "', starting without any", e);
+            return;
+        }
+
+        entries.putAll(loaded);
+    }
+
+    /**
+     * Write the durations to a temporary file in the same directory first, and move it over the file, so the file is
+     * never left half written, and concurrent writers do not share the temporary file
+     */
+    private void save(Path file) {
+        Properties properties = new Properties();
+        entries.forEach((fingerprint, entry) -> properties.setProperty(fingerprint, Math.round(entry.averageMillis) + "," + entry.count));
+
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                properties.store(writer, "Export durations");
+            }
+
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // The durations only improve polling, so an export should not fail because of them
+            logger.warn("Failed to save export durations to '" + file + "'", e);
+            deleteQuietly(temp);
+        }
+    }
+
+    private static void deleteQuietly(Path temp) {
+        if (temp == null) {
+            return;
+        }
+
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            logger.warn("Failed to delete '" + temp + "'", e);
+        }
+    }
+
+    private static class Entry {
+        private double averageMillis;
+        private int count;
+
+        private Entry(double averageMillis, int count) {
+            this.averageMillis = averageMillis;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.trifork.ehealth.export.poll;
+
+import com.trifork.ehealth.export.progress.ProgressEstimate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Decides when to poll an ongoing export next.
+ * <p>
+ * Without a prediction, the Retry-After of the server is followed. With a predicted duration, every poll waits half
+ * the time left until the predicted completion, so polls are sparse early on and dense near the end. Once the
+ * prediction has passed, the polls back off gradually again, in case the export takes much longer this time.
+ * When the server reports enough progress to estimate the completion, that estimate is used instead of the prediction,
+ * and while the export is still queued on the server, the polls back off, as nothing will change until it starts.
+ * The Retry-After of the server is never cut short.
+ */
+public class PollPlanner {
+    /**
+     * Used when the server does not send a Retry-After, and there is no prediction
+     */
+    public static final Duration DEFAULT_POLL_INTERVAL = Duration.ofSeconds(10);
+    private static final Duration MIN_POLL_INTERVAL = Duration.ofSeconds(2);
+    private static final Duration MAX_POLL_INTERVAL = Duration.ofMinutes(30);
+
+    private final ExportDurationStore durationStore;
+    private final String fingerprint;
+    private final Instant startedAt;
+    private final Duration predictedDuration;
+    private volatile Instant estimatedCompletion;
+    private volatile int queuedPolls;
+
+    /**
+     * Create a planner, that follows the Retry-After of the server
+     */
+    public PollPlanner() {
+        this.durationStore = null;
+        this.fingerprint = null;
+        this.startedAt = null;
+        this.predictedDuration = null;
+    }
+
+    /**
+     * Create a planner, that polls around the predicted completion of the export, and records its duration
+     *
+     * @param durationStore the durations of earlier exports
+     * @param fingerprint   the {@link com.trifork.ehealth.export.BDExportRequest#fingerprint fingerprint} of the export
+     * @param startedAt     when the export was initiated
+     */
+    public PollPlanner(ExportDurationStore durationStore, String fingerprint, Instant startedAt) {
+        this.durationStore = durationStore;
+        this.fingerprint = fingerprint;
+        this.startedAt = startedAt;
+        this.predictedDuration = durationStore.predict(fingerprint).orElse(null);
+    }
+
+    public Optional<Duration> getPredictedDuration() {
+        return Optional.ofNullable(predictedDuration);
+    }
+
+    /**
+     * Also decides the first poll in the background, after the poll made right after initiation.
+     *
+     * @param now        the time of the last poll
+     * @param retryAfter the Retry-After of the last poll
+     * @return how long to wait before polling again
+     */
+    public Duration nextPollDelay(Instant now, Optional<Duration> retryAfter) {
+        Duration delay;
+        if (estimatedCompletion != null) {
+            delay = delayUntil(Duration.between(now, estimatedCompletion));
+        } else if (queuedPolls > 0) {
+            // Doubling from the usual interval, for every poll the export is still queued
+            delay = clamp(retryAfter.orElse(DEFAULT_POLL_INTERVAL).multipliedBy(1L << Math.min(queuedPolls - 1, 8)));
+        } else if (predictedDuration != null) {
+            delay = delayUntil(predictedDuration.minus(Duration.between(startedAt, now)));
+        } else {
+            return retryAfter.orElse(DEFAULT_POLL_INTERVAL);
+        }
+
+        return retryAfter.filter(r -> r.compareTo(delay) > 0).orElse(delay);
+    }
+
+    /**
+     * Take the progress reported by the latest poll into account
+     */
+    public void onProgress(ProgressEstimate estimate) {
+        estimatedCompletion = estimate.getEstimatedCompletion().orElse(null);
+        queuedPolls = estimate.getProgress().isQueued() ? queuedPolls + 1 : 0;
+    }
+
+    /**
+     * Record the duration of the completed export, to predict the next one
+     */
+    public void onCompleted(Instant now) {
+        if (durationStore != null) {
+            durationStore.record(fingerprint, Duration.between(startedAt, now));
+        }
+    }
+
+    /**
+     * Wait half the time left, or a quarter of the overrun, once the expected completion has passed
+     */
+    private static Duration delayUntil(Duration remaining) {
+        return clamp(remaining.isNegative()
+                ? remaining.negated().dividedBy(4)
+                : remaining.dividedBy(2));
+    }
+
+    private static Duration clamp(Duration delay) {
+        if (delay.compareTo(MIN_POLL_INTERVAL) < 0) {
+            return MIN_POLL_INTERVAL;
+        }
+
+        return delay.compareTo(MAX_POLL_INTERVAL) > 0 ? MAX_POLL_INTERVAL : delay;
+    }
+}
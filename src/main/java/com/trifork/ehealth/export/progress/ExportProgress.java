@@ -0,0 +1,80 @@
+package com.trifork.ehealth.export.progress;
+
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.OptionalLong;
+
+/**
+ * The progress of an export, as reported by the server in the X-Progress header of a poll.
+ * <p>
+ * Servers report progress in their own words, so every part is optional, and the raw header is kept.
+ */
+public class ExportProgress {
+    private static final long UNKNOWN = -1;
+
+    private final String raw;
+    private final String phase;
+    private final long processed;
+    private final long total;
+    private final double percent;
+
+    ExportProgress(String raw, String phase, long processed, long total, double percent) {
+        this.raw = raw;
+        this.phase = phase;
+        this.processed = processed;
+        this.total = total;
+        this.percent = percent;
+    }
+
+    static ExportProgress of(String raw, String phase, Long processed, Long total, Double percent) {
+        return new ExportProgress(raw, phase,
+                processed == null ? UNKNOWN : processed,
+                total == null ? UNKNOWN : total,
+                percent == null ? UNKNOWN : percent);
+    }
+
+    public String getRaw() {
+        return raw;
+    }
+
+    /**
+     * @return the phase of the export, e.g. SUBMITTED, BUILDING or IN_PROGRESS on HAPI FHIR
+     */
+    public Optional<String> getPhase() {
+        return Optional.ofNullable(phase);
+    }
+
+    public OptionalLong getProcessed() {
+        return processed == UNKNOWN ? OptionalLong.empty() : OptionalLong.of(processed);
+    }
+
+    public OptionalLong getTotal() {
+        return total == UNKNOWN ? OptionalLong.empty() : OptionalLong.of(total);
+    }
+
+    /**
+     * @return the part of the export that is done, between 0 and 1, from the percentage or the counts
+     */
+    public OptionalDouble getFraction() {
+        if (percent != UNKNOWN) {
+            return OptionalDouble.of(Math.min(1, percent / 100));
+        }
+        if (processed != UNKNOWN && total > 0) {
+            return OptionalDouble.of(Math.min(1, (double) processed / total));
+        }
+
+        return OptionalDouble.empty();
+    }
+
+    /**
+     * @return true if the export is still waiting to be picked up by the server
+     */
+    public boolean isQueued() {
+        return "SUBMITTED".equalsIgnoreCase(phase) || "QUEUED".equalsIgnoreCase(phase);
+    }
+
+    @Override
+    public String toString() {
+        return raw;
+    }
+}
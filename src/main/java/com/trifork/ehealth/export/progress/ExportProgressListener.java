@@ -0,0 +1,15 @@
+package com.trifork.ehealth.export.progress;
+
+import java.net.URI;
+
+/**
+ * Notified on every poll of an ongoing export, that reports progress.
+ * Called on the polling thread, so it should return quickly.
+ */
+public interface ExportProgressListener {
+    /**
+     * @param locationUri the status URI of the export
+     * @param estimate    the progress, with the throughput and completion estimated so far
+     */
+    void onProgress(URI locationUri, ProgressEstimate estimate);
+}
@@ -0,0 +1,97 @@
+package com.trifork.ehealth.export.progress;
+
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the X-Progress header of a poll into an {@link ExportProgress}.
+ * <p>
+ * HAPI FHIR reports the phase, e.g. "Build in progress - Status set to IN_PROGRESS at 2024-01-01T00:00:00Z",
+ * while other servers report counts or a percentage, e.g. "Processed 1200 of 5000 resources" or "42% complete".
+ * Whatever is recognized is kept, and the rest is left unknown.
+ * <p>
+ * Other upper-case words, like "FHIR" or "OK", are not phases, so a phase is only taken from the "Status set to"
+ * of HAPI FHIR, a "Phase:" label, or one of the {@link #KNOWN_PHASES}.
+ */
+public class ExportProgressParser {
+    private static final Pattern STATUS = Pattern.compile("Status set to ([A-Z_]+)");
+    private static final Pattern PHASE_LABEL = Pattern.compile("(?i)\\bphase\\s*[:=]\\s*([A-Z_]+)");
+    private static final Pattern UPPER_CASE_WORD = Pattern.compile("\\b([A-Z]{2,}(?:_[A-Z]+)*)\\b");
+    /**
+     * Counts are standalone numbers, so a date like "2024/06/01", or a time, is not read as processed and total
+     */
+    private static final Pattern COUNTS = Pattern.compile(
+            "(?<!\\d[./]|[\\w:-])(\\d[\\d,]*)\\s*(?:of|/)\\s*(\\d[\\d,]*)(?![\\w:-]|[./]\\d)");
+    private static final Pattern PROCESSED = Pattern.compile("(?i)(?:processed|exported|written)\\D{0,20}(\\d[\\d,]*)");
+    private static final Pattern PERCENT = Pattern.compile("(\\d+(?:\\.\\d+)?)\\s*%");
+
+    /**
+     * The phases of HAPI FHIR's bulk export jobs and batch jobs, and of other common servers
+     */
+    private static final Set<String> KNOWN_PHASES = Set.of(
+            "SUBMITTED", "QUEUED", "BUILDING", "IN_PROGRESS", "WRITING", "FINALIZE",
+            "COMPLETE", "COMPLETED", "ERROR", "ERRORED", "FAILED", "CANCELLED"
+    );
+
+    private ExportProgressParser() {
+    }
+
+    public static ExportProgress parse(String header) {
+        String phase = parsePhase(header);
+
+        Long processed = null;
+        Long total = null;
+        Matcher counts = COUNTS.matcher(header);
+        if (counts.find()) {
+            processed = parseCount(counts.group(1));
+            total = parseCount(counts.group(2));
+        } else {
+            Matcher processedOnly = PROCESSED.matcher(header);
+            if (processedOnly.find()) {
+                processed = parseCount(processedOnly.group(1));
+            }
+        }
+
+        Double percent = null;
+        Matcher percentMatcher = PERCENT.matcher(header);
+        if (percentMatcher.find()) {
+            percent = Double.parseDouble(percentMatcher.group(1));
+        }
+
+        return ExportProgress.of(header, phase, processed, total, percent);
+    }
+
+    private static String parsePhase(String header) {
+        Matcher status = STATUS.matcher(header);
+        if (status.find()) {
+            return status.group(1);
+        }
+
+        Matcher label = PHASE_LABEL.matcher(header);
+        if (label.find()) {
+            return label.group(1).toUpperCase(Locale.ROOT);
+        }
+
+        Matcher word = UPPER_CASE_WORD.matcher(header);
+        while (word.find()) {
+            if (KNOWN_PHASES.contains(word.group(1))) {
+                return word.group(1);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the count, or null if it is too large to be a count
+     */
+    private static Long parseCount(String count) {
+        try {
+            return Long.parseLong(count.replace(",", ""));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
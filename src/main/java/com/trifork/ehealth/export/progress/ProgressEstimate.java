@@ -0,0 +1,44 @@
+package com.trifork.ehealth.export.progress;
+
+import java.time.Instant;
+import java.util.Optional;
+import java.util.OptionalDouble;
+
+/**
+ * The latest progress of an export, with the throughput and completion estimated across polls.
+ */
+public class ProgressEstimate {
+    private final ExportProgress progress;
+    private final Instant observedAt;
+    private final Double throughput;
+    private final Instant estimatedCompletion;
+
+    ProgressEstimate(ExportProgress progress, Instant observedAt, Double throughput, Instant estimatedCompletion) {
+        this.progress = progress;
+        this.observedAt = observedAt;
+        this.throughput = throughput;
+        this.estimatedCompletion = estimatedCompletion;
+    }
+
+    public ExportProgress getProgress() {
+        return progress;
+    }
+
+    public Instant getObservedAt() {
+        return observedAt;
+    }
+
+    /**
+     * @return the number of resources processed per second, if the server reports counts
+     */
+    public OptionalDouble getThroughput() {
+        return throughput == null ? OptionalDouble.empty() : OptionalDouble.of(throughput);
+    }
+
+    /**
+     * @return when the export is expected to complete, once the server has reported progress on two polls
+     */
+    public Optional<Instant> getEstimatedCompletion() {
+        return Optional.ofNullable(estimatedCompletion);
+    }
+}
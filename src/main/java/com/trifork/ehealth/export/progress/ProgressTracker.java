@@ -0,0 +1,69 @@
+package com.trifork.ehealth.export.progress;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Tracks the progress of an export across polls, to estimate its throughput and completion.
+ * <p>
+ * The rates are moving averages of the rates between consecutive polls, so a single slow or fast interval does not
+ * swing the estimate. When the phase changes, the tracking starts over, as the counts of one phase say nothing about
+ * the next.
+ */
+public class ProgressTracker {
+    /**
+     * The weight of the latest interval in the rates
+     */
+    private static final double SMOOTHING = 0.5;
+
+    private ExportProgress last;
+    private Instant lastObservedAt;
+    private double throughput = Double.NaN;
+    private double fractionRate = Double.NaN;
+
+    /**
+     * @param progress   the progress reported by the latest poll
+     * @param observedAt the time of the poll
+     * @return the progress, with the estimates updated by it
+     */
+    public synchronized ProgressEstimate update(ExportProgress progress, Instant observedAt) {
+        if (last != null && !last.getPhase().equals(progress.getPhase())) {
+            last = null;
+            throughput = Double.NaN;
+            fractionRate = Double.NaN;
+        }
+
+        if (last != null) {
+            double seconds = Duration.between(lastObservedAt, observedAt).toMillis() / 1000.0;
+
+            if (seconds > 0) {
+                if (last.getProcessed().isPresent() && progress.getProcessed().isPresent()) {
+                    double rate = (progress.getProcessed().getAsLong() - last.getProcessed().getAsLong()) / seconds;
+                    throughput = smooth(throughput, rate);
+                }
+                if (last.getFraction().isPresent() && progress.getFraction().isPresent()) {
+                    double rate = (progress.getFraction().getAsDouble() - last.getFraction().getAsDouble()) / seconds;
+                    fractionRate = smooth(fractionRate, rate);
+                }
+            }
+        }
+
+        last = progress;
+        lastObservedAt = observedAt;
+
+        return new ProgressEstimate(progress, observedAt, Double.isNaN(throughput) ? null : throughput, estimateCompletion(progress, observedAt));
+    }
+
+    private Instant estimateCompletion(ExportProgress progress, Instant observedAt) {
+        if (Double.isNaN(fractionRate) || fractionRate <= 0 || progress.getFraction().isEmpty()) {
+            return null;
+        }
+
+        double remainingSeconds = (1 - progress.getFraction().getAsDouble()) / fractionRate;
+        return observedAt.plusMillis(Math.round(remainingSeconds * 1000));
+    }
+
+    private static double smooth(double average, double rate) {
+        return Double.isNaN(average) ? rate : SMOOTHING * rate + (1 - SMOOTHING) * average;
+    }
+}
@@ -0,0 +1,287 @@
+package com.trifork.ehealth.export.ratelimit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Limits the number of requests in flight, and adapts the limit to the server with additive increase and
+ * multiplicative decrease (AIMD), like the congestion window of TCP.
+ * <ul>
+ *     <li>Every successful request of a saturated limiter raises the limit by 1/limit, so the limit grows by about one
+ *     per round of requests, while the latency stays stable</li>
+ *     <li>A failed request, or a latency above the tolerance times the baseline latency, cuts the limit by the backoff
+ *     ratio. The requests, that were already in flight at the old limit, do not cut it again.</li>
+ * </ul>
+ * The baseline latency is a slow moving average of the latencies of successful requests.
+ * The current limit is reported by {@link #getLimit()}, and its recent changes by {@link #getHistory()}.
+ */
+public class AdaptiveConcurrencyLimiter {
+    private static final double BASELINE_WEIGHT = 0.1;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double backoffRatio = 0.5;
+    private double latencyTolerance = 2.0;
+    private int historySize = 1000;
+
+    // Guarded by this
+    private double limit;
+    private int inFlight;
+    private long generation;
+    private double baselineNanos;
+    private final Deque<LimitChange> history = new ArrayDeque<>();
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+
+    /**
+     * @param initialLimit the limit to start from
+     * @param minLimit     the lowest limit, that failures can bring the limit down to
+     * @param maxLimit     the highest limit, that stable latencies can raise the limit to
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit <= 0) {
+            throw new IllegalArgumentException("Min limit must be positive, was: " + minLimit);
+        }
+        if (maxLimit < minLimit) {
+            throw new IllegalArgumentException("Max limit must be at least the min limit, was: " + maxLimit);
+        }
+        if (initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Initial limit must be between " + minLimit + " and " + maxLimit + ", was: " + initialLimit);
+        }
+
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.history.add(new LimitChange(Instant.now(), initialLimit, "initial"));
+    }
+
+    /**
+     * Set the factor, that failures and latency spikes multiply the limit by. Defaults to 0.5.
+     */
+    public synchronized AdaptiveConcurrencyLimiter setBackoffRatio(double backoffRatio) {
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("Backoff ratio must be between 0 and 1, was: " + backoffRatio);
+        }
+
+        this.backoffRatio = backoffRatio;
+        return this;
+    }
+
+    /**
+     * Set how many times the baseline latency a request may take, before it counts as a latency spike. Defaults to 2.
+     */
+    public synchronized AdaptiveConcurrencyLimiter setLatencyTolerance(double latencyTolerance) {
+        if (latencyTolerance <= 1) {
+            throw new IllegalArgumentException("Latency tolerance must be above 1, was: " + latencyTolerance);
+        }
+
+        this.latencyTolerance = latencyTolerance;
+        return this;
+    }
+
+    /**
+     * Set the number of limit changes kept by {@link #getHistory()}. Defaults to 1000.
+     */
+    public synchronized AdaptiveConcurrencyLimiter setHistorySize(int historySize) {
+        if (historySize <= 0) {
+            throw new IllegalArgumentException("History size must be positive, was: " + historySize);
+        }
+
+        this.historySize = historySize;
+        trimHistory();
+        return this;
+    }
+
+    /**
+     * Wait until the requests in flight are below the limit, and take a permit for one more.
+     * The permit must be released by exactly one of its methods.
+     */
+    public synchronized Permit acquire() throws InterruptedException {
+        while (inFlight >= getLimit()) {
+            wait();
+        }
+
+        inFlight++;
+        return new Permit(generation, inFlight);
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @return the baseline latency of successful requests, or zero before the first one
+     */
+    public synchronized Duration getBaselineLatency() {
+        return Duration.ofNanos((long) baselineNanos);
+    }
+
+    /**
+     * @return the recent changes of the limit, oldest first, starting with the initial limit
+     */
+    public synchronized List<LimitChange> getHistory() {
+        return List.copyOf(history);
+    }
+
+    private synchronized void onSuccess(Permit permit, long latencyNanos) {
+        inFlight--;
+
+        if (baselineNanos > 0 && latencyNanos > baselineNanos * latencyTolerance) {
+            decrease(permit, "latency of " + latencyNanos / 1_000_000 + "ms exceeds "
+                    + latencyTolerance + " times the baseline of " + (long) baselineNanos / 1_000_000 + "ms");
+        } else if (permit.inFlight * 2 >= limit) {
+            // Only a limiter in use learns anything about a higher limit
+            int before = getLimit();
+            limit = Math.min(maxLimit, limit + 1 / limit);
+
+            if (getLimit() != before) {
+                record("latency is stable");
+                logger.debug("Raised concurrency limit to " + getLimit());
+            }
+        }
+
+        baselineNanos = baselineNanos == 0 ? latencyNanos : baselineNanos + BASELINE_WEIGHT * (latencyNanos - baselineNanos);
+        notifyAll();
+    }
+
+    private synchronized void onDropped(Permit permit, String reason) {
+        inFlight--;
+
+        decrease(permit, reason);
+        notifyAll();
+    }
+
+    private synchronized void onIgnored() {
+        inFlight--;
+
+        notifyAll();
+    }
+
+    private void decrease(Permit permit, String reason) {
+        if (permit.generation != generation) {
+            // Sent before the last decrease, which has already accounted for it
+            return;
+        }
+
+        generation++;
+        limit = Math.max(minLimit, limit * backoffRatio);
+        record(reason);
+
+        logger.info("Cut concurrency limit to " + getLimit() + ", as the " + reason);
+    }
+
+    private void record(String reason) {
+        history.add(new LimitChange(Instant.now(), getLimit(), reason));
+        trimHistory();
+    }
+
+    private void trimHistory() {
+        while (history.size() > historySize) {
+            history.poll();
+        }
+    }
+
+    /**
+     * The right to send a single request
+     */
+    public class Permit {
+        private final long generation;
+        private final int inFlight;
+        private boolean released;
+
+        private Permit(long generation, int inFlight) {
+            this.generation = generation;
+            this.inFlight = inFlight;
+        }
+
+        /**
+         * The request succeeded
+         *
+         * @param latency the time until the server responded
+         */
+        public void onSuccess(Duration latency) {
+            if (release()) {
+                AdaptiveConcurrencyLimiter.this.onSuccess(this, latency.toNanos());
+            }
+        }
+
+        /**
+         * The request failed, because the server is overloaded
+         *
+         * @param reason the failure, for the history of the limit
+         */
+        public void onDropped(String reason) {
+            if (release()) {
+                AdaptiveConcurrencyLimiter.this.onDropped(this, reason);
+            }
+        }
+
+        /**
+         * The request ended without telling anything about the load of the server, e.g. it was cancelled
+         */
+        public void onIgnored() {
+            if (release()) {
+                AdaptiveConcurrencyLimiter.this.onIgnored();
+            }
+        }
+
+        private synchronized boolean release() {
+            if (released) {
+                return false;
+            }
+
+            released = true;
+            return true;
+        }
+    }
+
+    /**
+     * A change of the limit
+     */
+    public static class LimitChange {
+        private final Instant time;
+        private final int limit;
+        private final String reason;
+
+        LimitChange(Instant time, int limit, String reason) {
+            this.time = time;
+            this.limit = limit;
+            this.reason = reason;
+        }
+
+        public Instant getTime() {
+            return time;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return "LimitChange{time=" + time + ", limit=" + limit + ", reason='" + reason + "'}";
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.trifork.ehealth.export.ratelimit;
+
+import com.trifork.ehealth.export.BDExportUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of requests to every host, with a token bucket per host.
+ * <p>
+ * The limiter is shared by everything talking to the same servers, e.g. the polls of every export future of a
+ * {@link com.trifork.ehealth.export.BDExportClient}, and the downloads of a
+ * {@link com.trifork.ehealth.export.BDExportConverter}, so together they stay within the budget.
+ * <p>
+ * When a host responds with 429 or 503, its rate is halved, and no requests are sent until its Retry-After has passed.
+ * Every following successful response raises the rate by a step again, until it is back at the budget.
+ */
+public class HostRateLimiter {
+    public static final int STATUS_HTTP_429_TOO_MANY_REQUESTS = 429;
+    public static final int STATUS_HTTP_503_SERVICE_UNAVAILABLE = 503;
+
+    private static final Duration DEFAULT_BACKOFF = Duration.ofSeconds(1);
+
+    private final double maxPermitsPerSecond;
+    private final int burst;
+    private double minPermitsPerSecond;
+    private double recoveryStep;
+
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private static final Logger logger = LoggerFactory.getLogger(HostRateLimiter.class);
+
+    /**
+     * @param permitsPerSecond the budget of requests per second, for every host
+     * @param burst            the number of requests, that may be sent at once, after a quiet period
+     */
+    public HostRateLimiter(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("Permits per second must be positive, was: " + permitsPerSecond);
+        }
+        if (burst <= 0) {
+            throw new IllegalArgumentException("Burst must be positive, was: " + burst);
+        }
+
+        this.maxPermitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.minPermitsPerSecond = permitsPerSecond / 64;
+        this.recoveryStep = permitsPerSecond / 20;
+    }
+
+    /**
+     * Set the lowest rate, that throttling can bring a host down to. Defaults to 1/64 of the budget.
+     */
+    public HostRateLimiter setMinPermitsPerSecond(double minPermitsPerSecond) {
+        this.minPermitsPerSecond = Math.min(minPermitsPerSecond, maxPermitsPerSecond);
+        return this;
+    }
+
+    /**
+     * Set how much every successful response raises the rate of a throttled host. Defaults to 1/20 of the budget.
+     */
+    public HostRateLimiter setRecoveryStep(double recoveryStep) {
+        this.recoveryStep = recoveryStep;
+        return this;
+    }
+
+    /**
+     * Wait until a request to the host of the URI is allowed.
+     */
+    public void acquire(URI uri) throws InterruptedException {
+        Bucket bucket = bucketOf(uri);
+
+        long waitNanos;
+        while ((waitNanos = bucket.reserve(System.nanoTime())) > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Report the response to a request, so the limiter can throttle or recover.
+     *
+     * @param uri        the requested URI
+     * @param statusCode the status code of the response
+     * @param retryAfter the Retry-After of the response, if any
+     */
+    public void onResponse(URI uri, int statusCode, Optional<Duration> retryAfter) {
+        Bucket bucket = bucketOf(uri);
+
+        if (isThrottled(statusCode)) {
+            Duration backoff = retryAfter.orElse(DEFAULT_BACKOFF);
+            double rate = bucket.throttle(System.nanoTime(), backoff.toNanos());
+
+            logger.info("Host '" + BDExportUtils.serverKeyOf(uri) + "' responded with " + statusCode + ", backing off for " + backoff
+                    + " at " + String.format("%.2f", rate) + " requests per second");
+        } else if (statusCode < 500) {
+            bucket.recover();
+        }
+    }
+
+    /**
+     * @return the current rate of requests per second to the host of the URI
+     */
+    public double getPermitsPerSecond(URI uri) {
+        return bucketOf(uri).getRate();
+    }
+
+    public double getMaxPermitsPerSecond() {
+        return maxPermitsPerSecond;
+    }
+
+    public static boolean isThrottled(int statusCode) {
+        return statusCode == STATUS_HTTP_429_TOO_MANY_REQUESTS || statusCode == STATUS_HTTP_503_SERVICE_UNAVAILABLE;
+    }
+
+    private Bucket bucketOf(URI uri) {
+        return buckets.computeIfAbsent(BDExportUtils.serverKeyOf(uri), key -> new Bucket());
+    }
+
+    private class Bucket {
+        private double rate = maxPermitsPerSecond;
+        private double tokens = burst;
+        private long lastRefill = System.nanoTime();
+        private long pausedUntil = lastRefill;
+
+        /**
+         * Take a token if one is available.
+         *
+         * @return 0 if a token was taken, otherwise the nanoseconds to wait before trying again
+         */
+        synchronized long reserve(long now) {
+            refill(now);
+
+            if (now - pausedUntil < 0) {
+                return pausedUntil - now;
+            }
+
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+
+            return Math.max(1, (long) ((1 - tokens) / rate * 1_000_000_000L));
+        }
+
+        synchronized double throttle(long now, long backoffNanos) {
+            refill(now);
+
+            rate = Math.max(minPermitsPerSecond, rate / 2);
+            tokens = 0;
+            if (now + backoffNanos - pausedUntil > 0) {
+                pausedUntil = now + backoffNanos;
+            }
+
+            return rate;
+        }
+
+        synchronized void recover() {
+            rate = Math.min(maxPermitsPerSecond, rate + recoveryStep);
+        }
+
+        synchronized double getRate() {
+            return rate;
+        }
+
+        /**
+         * Add the tokens earned since the last refill. Nothing is earned while paused.
+         */
+        private void refill(long now) {
+            long from = lastRefill - pausedUntil < 0 ? pausedUntil : lastRefill;
+            long elapsed = now - from;
+            if (elapsed > 0) {
+                tokens = Math.min(burst, tokens + elapsed * rate / 1_000_000_000L);
+            }
+            lastRefill = now;
+        }
+    }
+}
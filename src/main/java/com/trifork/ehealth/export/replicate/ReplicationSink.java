@@ -0,0 +1,347 @@
+package com.trifork.ehealth.export.replicate;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.trifork.ehealth.export.BDExportUtils;
+import com.trifork.ehealth.export.pipeline.BDExportSink;
+import com.trifork.ehealth.export.pipeline.ResourceBatch;
+import com.trifork.ehealth.export.ratelimit.AdaptiveConcurrencyLimiter;
+import com.trifork.ehealth.export.ratelimit.HostRateLimiter;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A sink, that replicates the exported resources to another FHIR server, e.g. to seed a test or analytics server.
+ * <p>
+ * The resources are packed into batch or transaction bundles of a configurable size, with a PUT of every resource, so
+ * the ids are kept. The bundles are posted concurrently, as many at a time as an {@link AdaptiveConcurrencyLimiter}
+ * allows, which is cut when the server throttles or fails, and grows while its latency is stable. Throttled and failed
+ * bundles are retried with an exponential backoff, or after the Retry-After of the server.
+ */
+public class ReplicationSink implements BDExportSink, AutoCloseable {
+    private static final int QUEUED_BUNDLES_PER_SENDER = 2;
+
+    private final IGenericClient client;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final ExecutorService senders;
+    private final Semaphore queued;
+    private final int maxQueued;
+    private final AtomicLong resourcesSent = new AtomicLong();
+    private final AtomicLong bundlesSent = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failedEntries = new AtomicLong();
+    /**
+     * The Retry-After of the last response on every sender, as the exceptions of the client do not carry the headers
+     */
+    private final ThreadLocal<String> retryAfter = new ThreadLocal<>();
+    private final RetryAfterInterceptor retryAfterInterceptor = new RetryAfterInterceptor(retryAfter);
+    private volatile Exception failure;
+    private Bundle.BundleType bundleType = Bundle.BundleType.TRANSACTION;
+    private int bundleSize = 100;
+    private int maxAttempts = 5;
+    private Duration backoff = Duration.ofSeconds(1);
+    private List<Resource> pending = new ArrayList<>();
+    private boolean closed;
+
+    private static final Logger logger = LoggerFactory.getLogger(ReplicationSink.class);
+
+    /**
+     * @param client  a client of the target server
+     * @param limiter limits the bundles in flight, whose max limit is the number of sender threads
+     */
+    public ReplicationSink(IGenericClient client, AdaptiveConcurrencyLimiter limiter) {
+        this.client = client;
+        this.limiter = limiter;
+        AtomicInteger senderNumber = new AtomicInteger();
+        this.senders = Executors.newFixedThreadPool(limiter.getMaxLimit(), runnable -> {
+            Thread thread = new Thread(runnable, "bd-export-replication-" + senderNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxQueued = limiter.getMaxLimit() * QUEUED_BUNDLES_PER_SENDER;
+        this.queued = new Semaphore(maxQueued);
+        client.registerInterceptor(retryAfterInterceptor);
+    }
+
+    /**
+     * @param bundleType TRANSACTION, where a bundle is stored as a whole or not at all, which is the default, or BATCH,
+     *                   where every entry is stored on its own, and failed entries are counted
+     */
+    public ReplicationSink setBundleType(Bundle.BundleType bundleType) {
+        if (bundleType != Bundle.BundleType.TRANSACTION && bundleType != Bundle.BundleType.BATCH) {
+            throw new IllegalArgumentException("Bundle type must be transaction or batch: " + bundleType);
+        }
+        this.bundleType = bundleType;
+        return this;
+    }
+
+    /**
+     * @param bundleSize the number of resources in a bundle, default 100
+     */
+    public ReplicationSink setBundleSize(int bundleSize) {
+        if (bundleSize < 1) {
+            throw new IllegalArgumentException("Bundle size must be at least 1");
+        }
+        this.bundleSize = bundleSize;
+        return this;
+    }
+
+    /**
+     * @param maxAttempts the number of times a bundle is posted, before the replication fails, default 5
+     */
+    public ReplicationSink setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Max attempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * @param backoff the wait before the first retry of a bundle, doubled for every retry, unless the server sends a
+     *                Retry-After, default 1 second
+     */
+    public ReplicationSink setBackoff(Duration backoff) {
+        this.backoff = backoff;
+        return this;
+    }
+
+    /**
+     * Add the resources to the bundle being packed, and queue every full bundle, waiting while the senders are behind
+     *
+     * @throws IOException if a bundle has failed
+     */
+    @Override
+    public void accept(ResourceBatch batch) throws IOException, InterruptedException {
+        checkFailure();
+
+        List<List<Resource>> full = new ArrayList<>();
+        synchronized (this) {
+            for (IBaseResource resource : batch.getResources()) {
+                pending.add((Resource) resource);
+                if (pending.size() == bundleSize) {
+                    full.add(pending);
+                    pending = new ArrayList<>();
+                }
+            }
+        }
+
+        for (List<Resource> resources : full) {
+            submit(resources);
+        }
+    }
+
+    /**
+     * Send the partly packed bundle, and wait for every queued bundle to be sent
+     *
+     * @throws IOException if a bundle has failed
+     */
+    public void flush() throws IOException, InterruptedException {
+        List<Resource> rest;
+        synchronized (this) {
+            rest = pending;
+            pending = new ArrayList<>();
+        }
+        if (!rest.isEmpty()) {
+            submit(rest);
+        }
+
+        queued.acquire(maxQueued);
+        queued.release(maxQueued);
+        checkFailure();
+    }
+
+    /**
+     * @return the number of resources in bundles, that were accepted by the server
+     */
+    public long getResourcesSent() {
+        return resourcesSent.get();
+    }
+
+    public long getBundlesSent() {
+        return bundlesSent.get();
+    }
+
+    /**
+     * @return the number of times a bundle was posted again, after it was throttled or failed
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return the number of entries of batch bundles, that the server did not store
+     */
+    public long getFailedEntries() {
+        return failedEntries.get();
+    }
+
+    /**
+     * Send the rest of the resources, and stop the senders
+     */
+    @Override
+    public void close() throws IOException, InterruptedException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        try {
+            flush();
+        } finally {
+            senders.shutdown();
+            client.unregisterInterceptor(retryAfterInterceptor);
+        }
+    }
+
+    private void submit(List<Resource> resources) throws InterruptedException {
+        Bundle bundle = bundleOf(resources);
+
+        queued.acquire();
+        try {
+            senders.execute(() -> {
+                try {
+                    send(bundle);
+                } catch (Exception e) {
+                    logger.error("Failed to replicate a bundle of " + bundle.getEntry().size() + " resources", e);
+                    if (failure == null) {
+                        failure = e;
+                    }
+                } finally {
+                    queued.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            queued.release();
+            throw e;
+        }
+    }
+
+    private Bundle bundleOf(List<Resource> resources) {
+        Bundle bundle = new Bundle().setType(bundleType);
+        for (Resource resource : resources) {
+            Bundle.BundleEntryComponent entry = bundle.addEntry().setResource(resource);
+            if (resource.getIdElement().hasIdPart()) {
+                String url = resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+                entry.setFullUrl(url).getRequest().setMethod(Bundle.HTTPVerb.PUT).setUrl(url);
+            } else {
+                entry.getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl(resource.fhirType());
+            }
+        }
+
+        return bundle;
+    }
+
+    private void send(Bundle bundle) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            if (failure != null) {
+                // Another bundle has failed, so the replication is aborted
+                return;
+            }
+
+            AdaptiveConcurrencyLimiter.Permit permit = limiter.acquire();
+            long start = System.nanoTime();
+            Duration delay;
+
+            try {
+                retryAfter.remove();
+                Bundle response = client.transaction().withBundle(bundle).execute();
+                permit.onSuccess(Duration.ofNanos(System.nanoTime() - start));
+
+                countFailedEntries(response);
+                resourcesSent.addAndGet(bundle.getEntry().size());
+                bundlesSent.incrementAndGet();
+                return;
+            } catch (BaseServerResponseException e) {
+                // Connection failures are retried as well, which have no status
+                int status = e.getStatusCode();
+                boolean connectionFailed = e instanceof FhirClientConnectionException;
+                if (!connectionFailed && status < 500 && !HostRateLimiter.isThrottled(status)) {
+                    permit.onIgnored();
+                    throw e;
+                }
+
+                permit.onDropped(connectionFailed ? "connection failed: " + e.getMessage() : "server responded with " + status);
+                if (attempt == maxAttempts) {
+                    throw e;
+                }
+                delay = BDExportUtils.extractRetryAfter(e)
+                        .or(() -> BDExportUtils.parseRetryAfter(retryAfter.get()))
+                        .orElse(backoffOf(attempt));
+                logger.info("Bundle was not accepted, retrying in " + delay + ": " + e.getMessage());
+            } finally {
+                // Interrupted or failed otherwise, once the permit has not been released above
+                permit.onIgnored();
+            }
+
+            retries.incrementAndGet();
+            Thread.sleep(delay.toMillis());
+        }
+    }
+
+    private void countFailedEntries(Bundle response) {
+        if (response == null || bundleType != Bundle.BundleType.BATCH) {
+            return;
+        }
+
+        for (Bundle.BundleEntryComponent entry : response.getEntry()) {
+            String status = entry.getResponse().getStatus();
+            if (status == null || !status.startsWith("2")) {
+                failedEntries.incrementAndGet();
+            }
+        }
+    }
+
+    private Duration backoffOf(int attempt) {
+        return backoff.multipliedBy(1L << Math.min(attempt - 1, 16));
+    }
+
+    private void checkFailure() throws IOException {
+        Exception failure = this.failure;
+        if (failure != null) {
+            throw new IOException("Failed to replicate the export", failure);
+        }
+    }
+
+    /**
+     * Keeps the Retry-After of every response on the thread, that sent the request
+     */
+    private static class RetryAfterInterceptor implements IClientInterceptor {
+        private final ThreadLocal<String> retryAfter;
+
+        private RetryAfterInterceptor(ThreadLocal<String> retryAfter) {
+            this.retryAfter = retryAfter;
+        }
+
+        @Override
+        public void interceptRequest(IHttpRequest request) {
+            // Only responses are of interest
+        }
+
+        @Override
+        public void interceptResponse(IHttpResponse response) {
+            List<String> values = response.getHeaders(Constants.HEADER_RETRY_AFTER);
+            retryAfter.set(values == null || values.isEmpty() ? null : values.get(0));
+        }
+    }
+}
@@ -3,6 +3,8 @@ package com.trifork.ehealth.export.response;
 import org.hl7.fhir.r4.model.Binary;
 
 import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
 
 public class BDExportResourceResult {
     private String transactionTime;
@@ -54,19 +56,46 @@ public class BDExportResourceResult {
 
     public static class ResourceItem {
         private final String type;
-        private final Binary resource;
+        private final String url;
+        private final Supplier<Binary> loader;
 
         public ResourceItem(String type, Binary resource) {
+            Objects.requireNonNull(resource);
+
             this.type = type;
-            this.resource = resource;
+            this.url = null;
+            this.loader = () -> resource;
+        }
+
+        /**
+         * Create an item, where the content is only fetched when it is accessed.
+         * The loader decides whether the content is kept, or fetched again on the next access.
+         *
+         * @param type   the resource type of the output
+         * @param url    the URL of the output
+         * @param loader provides the content of the output
+         */
+        public ResourceItem(String type, String url, Supplier<Binary> loader) {
+            Objects.requireNonNull(loader);
+
+            this.type = type;
+            this.url = url;
+            this.loader = loader;
         }
 
         public String getType() {
             return type;
         }
 
+        /**
+         * @return the URL of the output, if the item was created lazily
+         */
+        public String getUrl() {
+            return url;
+        }
+
         public Binary getResource() {
-            return resource;
+            return loader.get();
         }
     }
 }
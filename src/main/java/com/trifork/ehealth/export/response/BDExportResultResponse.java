@@ -1,10 +1,12 @@
 package com.trifork.ehealth.export.response;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.io.Serializable;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -48,6 +50,7 @@ public class BDExportResultResponse implements Serializable {
         this.message = message;
     }
 
+    @JsonInclude(JsonInclude.Include.NON_NULL)
     public static class OutputItem {
         @JsonProperty("type")
         private String type;
@@ -55,13 +58,25 @@ public class BDExportResultResponse implements Serializable {
         @JsonProperty("url")
         private String url;
 
+        @JsonProperty("count")
+        private Long count;
+
+        @JsonProperty("extension")
+        private Map<String, Object> extension;
+
         public OutputItem() {
         }
 
         @JsonIgnore
         public OutputItem(String type, String url) {
+            this(type, url, null);
+        }
+
+        @JsonIgnore
+        public OutputItem(String type, String url, Long count) {
             this.type = type;
             this.url = url;
+            this.count = count;
         }
 
         public String getType() {
@@ -72,17 +87,34 @@ public class BDExportResultResponse implements Serializable {
             return url;
         }
 
+        /**
+         * @return the number of resources in the file, or null if the server did not report it
+         */
+        public Long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the extensions of the server to the item, or null if there are none
+         */
+        public Map<String, Object> getExtension() {
+            return extension;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             OutputItem that = (OutputItem) o;
-            return Objects.equals(type, that.type) && Objects.equals(url, that.url);
+            return Objects.equals(type, that.type)
+                    && Objects.equals(url, that.url)
+                    && Objects.equals(count, that.count)
+                    && Objects.equals(extension, that.extension);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(type, url);
+            return Objects.hash(type, url, count, extension);
         }
     }
 
@@ -0,0 +1,127 @@
+package com.trifork.ehealth.export.shard;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The manifest of the shards written by a {@link ShardedNdjsonSink}, stored next to them as {@value #FILE_NAME}, which
+ * tells every consumer its file, and how the resources were distributed.
+ */
+public class ShardManifest {
+    public static final String FILE_NAME = "manifest.json";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    @JsonProperty("shardKey")
+    private ShardedNdjsonSink.ShardKey shardKey;
+
+    @JsonProperty("gzip")
+    private boolean gzip;
+
+    @JsonProperty("shards")
+    private List<Shard> shards;
+
+    public ShardManifest() {
+    }
+
+    @JsonIgnore
+    public ShardManifest(ShardedNdjsonSink.ShardKey shardKey, boolean gzip, List<Shard> shards) {
+        this.shardKey = shardKey;
+        this.gzip = gzip;
+        this.shards = shards;
+    }
+
+    /**
+     * Read the manifest of the shards in the directory
+     */
+    public static ShardManifest read(Path directory) throws IOException {
+        return OBJECT_MAPPER.readValue(directory.resolve(FILE_NAME).toFile(), ShardManifest.class);
+    }
+
+    void write(Path directory) throws IOException {
+        OBJECT_MAPPER.writeValue(directory.resolve(FILE_NAME).toFile(), this);
+    }
+
+    public ShardedNdjsonSink.ShardKey getShardKey() {
+        return shardKey;
+    }
+
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * @return the shards, in the order of their index
+     */
+    public List<Shard> getShards() {
+        return shards;
+    }
+
+    public static class Shard {
+        @JsonProperty("index")
+        private int index;
+
+        @JsonProperty("file")
+        private String file;
+
+        @JsonProperty("count")
+        private long count;
+
+        @JsonProperty("bytes")
+        private long bytes;
+
+        @JsonProperty("types")
+        private Map<String, Long> types;
+
+        public Shard() {
+        }
+
+        @JsonIgnore
+        public Shard(int index, String file, long count, long bytes, Map<String, Long> types) {
+            this.index = index;
+            this.file = file;
+            this.count = count;
+            this.bytes = bytes;
+            this.types = types;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the name of the file of the shard, relative to the manifest
+         */
+        public String getFile() {
+            return file;
+        }
+
+        /**
+         * @return the number of resources in the shard
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the size of the NDJSON of the shard, before it was compressed
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the number of resources of every type in the shard
+         */
+        public Map<String, Long> getTypes() {
+            return types;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.trifork.ehealth.export.shard;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
+import com.trifork.ehealth.export.change.ContentHasher;
+import com.trifork.ehealth.export.ndjson.NdjsonReader;
+import com.trifork.ehealth.export.pipeline.BDExportSink;
+import com.trifork.ehealth.export.pipeline.ResourceBatch;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A sink, that re-partitions the exported resources into a fixed number of NDJSON files, by a hash of the resource id,
+ * or of the patient, whose compartment the resource belongs to. Every downstream worker can then process a shard of
+ * about the same size on its own, and with the patient as key, all the resources of a patient are in the same shard.
+ * <p>
+ * Every shard is written through a buffered file channel of its own, optionally gzipped, so batches going to
+ * different shards are written in parallel. When the sink is closed, a {@link ShardManifest} is written next to the
+ * shards.
+ */
+public class ShardedNdjsonSink implements BDExportSink, AutoCloseable {
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    private static final String COMPARTMENT = "Patient";
+
+    public enum ShardKey {
+        /**
+         * By the resource type and id
+         */
+        RESOURCE_ID,
+        /**
+         * By the patient, whose compartment the resource belongs to, or by the resource id, for resources outside of any
+         * patient compartment. A resource in the compartments of several patients goes with the first of them.
+         */
+        PATIENT
+    }
+
+    private final FhirContext fhirContext;
+    private final Path directory;
+    private final ShardKey shardKey;
+    private final boolean gzip;
+    private final ShardWriter[] writers;
+    private boolean closed;
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardedNdjsonSink.class);
+
+    /**
+     * @param fhirContext the context, that resources are encoded with
+     * @param directory   the directory of the shards, which is created if it does not exist
+     * @param shards      the number of shards
+     * @param shardKey    what the resources are sharded by
+     * @param gzip        true to gzip the shards
+     */
+    public ShardedNdjsonSink(FhirContext fhirContext, Path directory, int shards, ShardKey shardKey, boolean gzip) throws IOException {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Shards must be at least 1");
+        }
+
+        this.fhirContext = fhirContext;
+        this.directory = Files.createDirectories(directory);
+        this.shardKey = shardKey;
+        this.gzip = gzip;
+        this.writers = new ShardWriter[shards];
+        try {
+            for (int i = 0; i < shards; i++) {
+                writers[i] = new ShardWriter(i, fileNameOf(i, shards, gzip));
+            }
+        } catch (IOException e) {
+            closeWriters();
+            throw e;
+        }
+    }
+
+    /**
+     * Encode the resources, and append every one to its shard
+     */
+    @Override
+    public void accept(ResourceBatch batch) throws IOException {
+        IParser parser = fhirContext.newJsonParser();
+        FhirTerser terser = fhirContext.newTerser();
+
+        List<List<Line>> lines = new ArrayList<>(Collections.nCopies(writers.length, null));
+        for (IBaseResource resource : batch.getResources()) {
+            String resourceType = fhirContext.getResourceType(resource);
+            int shard = shardOf(keyOf(terser, resourceType, resource));
+            byte[] json = parser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+
+            if (lines.get(shard) == null) {
+                lines.set(shard, new ArrayList<>());
+            }
+            lines.get(shard).add(new Line(resourceType, json));
+        }
+
+        for (int i = 0; i < writers.length; i++) {
+            if (lines.get(i) != null) {
+                writers[i].write(lines.get(i));
+            }
+        }
+    }
+
+    /**
+     * Shard the raw lines of an NDJSON stream, without parsing them. Only possible when sharding by resource id.
+     * The stream is not closed.
+     *
+     * @return the number of lines written
+     */
+    public long write(InputStream ndjson) throws IOException, InterruptedException {
+        if (shardKey != ShardKey.RESOURCE_ID) {
+            throw new IllegalStateException("Raw lines can only be sharded by resource id, not by " + shardKey);
+        }
+
+        return new NdjsonReader().forEachLine(ndjson, header -> {
+            if (!header.isValid() || !header.hasResourceType()) {
+                throw new IllegalArgumentException("Not a resource: " + header.lineAsString());
+            }
+
+            int shard = shardOf(ContentHasher.keyOf(header));
+            writers[shard].write(List.of(new Line(header.getResourceType(), header.copyLine())));
+        });
+    }
+
+    /**
+     * Close every shard, and write the manifest
+     *
+     * @return the manifest
+     */
+    public synchronized ShardManifest finish() throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Sharded sink is finished");
+        }
+        closed = true;
+
+        List<ShardManifest.Shard> shards = new ArrayList<>();
+        for (ShardWriter writer : writers) {
+            shards.add(writer.close());
+        }
+
+        ShardManifest manifest = new ShardManifest(shardKey, gzip, shards);
+        manifest.write(directory);
+        logger.info("Wrote " + shards.stream().mapToLong(ShardManifest.Shard::getCount).sum() + " resources into "
+                + shards.size() + " shards by " + shardKey);
+
+        return manifest;
+    }
+
+    /**
+     * Finish the shards, if they are not finished already
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            finish();
+        }
+    }
+
+    private long keyOf(FhirTerser terser, String resourceType, IBaseResource resource) {
+        String id = resource.getIdElement().getIdPart();
+        if (shardKey == ShardKey.PATIENT && !COMPARTMENT.equals(resourceType)) {
+            for (IIdType owner : terser.getCompartmentOwnersForResource(COMPARTMENT, resource, Collections.emptySet())) {
+                if (owner.hasIdPart() && (!owner.hasResourceType() || COMPARTMENT.equals(owner.getResourceType()))) {
+                    return ContentHasher.keyOf(COMPARTMENT, owner.getIdPart());
+                }
+            }
+        }
+
+        // The same hash as of raw lines, so resources and raw lines go to the same shards
+        return ContentHasher.keyOf(resourceType, id == null ? "" : id);
+    }
+
+    private int shardOf(long key) {
+        return Math.floorMod(key, writers.length);
+    }
+
+    private void closeWriters() {
+        for (ShardWriter writer : writers) {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    logger.warn("Failed to close shard " + writer.index, e);
+                }
+            }
+        }
+    }
+
+    static String fileNameOf(int shard, int shards, boolean gzip) {
+        return String.format("shard-%05d-of-%05d.ndjson", shard, shards) + (gzip ? ".gz" : "");
+    }
+
+    private static class Line {
+        private final String resourceType;
+        private final byte[] bytes;
+
+        private Line(String resourceType, byte[] bytes) {
+            this.resourceType = resourceType;
+            this.bytes = bytes;
+        }
+    }
+
+    private class ShardWriter {
+        private final int index;
+        private final String fileName;
+        private final OutputStream out;
+        private final Map<String, Long> types = new TreeMap<>();
+        private long count;
+        private long bytes;
+        private ShardManifest.Shard closed;
+
+        private ShardWriter(int index, String fileName) throws IOException {
+            this.index = index;
+            this.fileName = fileName;
+
+            OutputStream channel = Channels.newOutputStream(FileChannel.open(directory.resolve(fileName),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+            this.out = gzip
+                    ? new BufferedOutputStream(new GZIPOutputStream(channel, WRITE_BUFFER_SIZE), WRITE_BUFFER_SIZE)
+                    : new BufferedOutputStream(channel, WRITE_BUFFER_SIZE);
+        }
+
+        private synchronized void write(List<Line> lines) throws IOException {
+            if (closed != null) {
+                throw new IllegalStateException("Shard " + index + " is closed");
+            }
+
+            for (Line line : lines) {
+                out.write(line.bytes);
+                out.write('\n');
+
+                count++;
+                bytes += line.bytes.length + 1;
+                types.merge(line.resourceType, 1L, Long::sum);
+            }
+        }
+
+        private synchronized ShardManifest.Shard close() throws IOException {
+            if (closed == null) {
+                out.close();
+                closed = new ShardManifest.Shard(index, fileName, count, bytes, types);
+            }
+            return closed;
+        }
+    }
+}
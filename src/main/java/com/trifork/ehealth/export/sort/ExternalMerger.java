@@ -0,0 +1,389 @@
+package com.trifork.ehealth.export.sort;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Sorted runs of records, spilled to temporary files, and merged back in order, for sorting more records than fit in
+ * memory.
+ * <p>
+ * At most the fan-in runs are merged at once, as every run holds a read buffer and a file handle while it is merged.
+ * Beyond that, groups of runs are merged into longer runs first, in passes, on an executor if one is set, until the
+ * final merge is within the fan-in. Records, that are equal by the order, are merged in the order of their runs.
+ * <p>
+ * Run files get unique names, so several mergers can share a directory, and are deleted when the merger is closed.
+ *
+ * @param <T> the type of the records
+ */
+public class ExternalMerger<T> implements AutoCloseable {
+    public static final int DEFAULT_FAN_IN = 128;
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    private final Path directory;
+    private final String prefix;
+    private final Comparator<? super T> order;
+    private final RecordFormat<T> format;
+    private int fanIn = DEFAULT_FAN_IN;
+    private ExecutorService executor;
+
+    // Guarded by this
+    private final List<Path> runs = new ArrayList<>();
+    private final Set<Path> files = new LinkedHashSet<>();
+    private int runsWritten;
+    private int mergePasses;
+    private boolean merged;
+
+    private static final Logger logger = LoggerFactory.getLogger(ExternalMerger.class);
+
+    /**
+     * @param directory the directory of the run files, which must exist
+     * @param prefix    the start of the names of the run files
+     * @param order     the order of the records within every run, and of the merged records
+     * @param format    writes and reads the records of a run file
+     */
+    public ExternalMerger(Path directory, String prefix, Comparator<? super T> order, RecordFormat<T> format) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.order = order;
+        this.format = format;
+    }
+
+    /**
+     * @param fanIn the maximum number of runs merged at once, default {@value #DEFAULT_FAN_IN}
+     */
+    public ExternalMerger<T> setFanIn(int fanIn) {
+        if (fanIn < 2) {
+            throw new IllegalArgumentException("Fan-in must be at least 2");
+        }
+        this.fanIn = fanIn;
+        return this;
+    }
+
+    /**
+     * @param executor merges the groups of runs of a pass in parallel, instead of one after the other on the thread
+     *                 merging
+     */
+    public ExternalMerger<T> setExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Create the file of the next run, so runs can be written in parallel, while they are merged in the order they were
+     * created in.
+     */
+    public synchronized Path newRun() throws IOException {
+        Path run = newFile();
+        runs.add(run);
+        return run;
+    }
+
+    /**
+     * Write sorted records to a new run
+     */
+    public void spill(Iterable<? extends T> sorted) throws IOException {
+        writeRun(newRun(), sorted);
+    }
+
+    /**
+     * Write sorted records to a new run, in the format of the records
+     */
+    public void spill(RunWriter writer) throws IOException {
+        writeRun(newRun(), writer);
+    }
+
+    /**
+     * Write sorted records to a run created by {@link #newRun()}
+     */
+    public void writeRun(Path run, Iterable<? extends T> sorted) throws IOException {
+        writeRun(run, out -> {
+            for (T record : sorted) {
+                format.write(out, record);
+            }
+        });
+    }
+
+    /**
+     * Write sorted records, in the format of the records, to a run created by {@link #newRun()}
+     */
+    public void writeRun(Path run, RunWriter writer) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+            writer.writeTo(out);
+        }
+    }
+
+    /**
+     * Merge the runs, and the last run, which is kept in memory instead of spilled, into a single sorted sequence. The
+     * runs must be written, and a merger can only be merged once.
+     *
+     * @param lastRun the sorted records, that are not spilled, or an empty list
+     * @return the merged records, which must be closed
+     */
+    public MergedRecords<T> merge(List<? extends T> lastRun) throws IOException, InterruptedException {
+        List<Path> pending;
+        synchronized (this) {
+            if (merged) {
+                throw new IllegalStateException("Runs are already merged");
+            }
+            merged = true;
+            pending = new ArrayList<>(runs);
+        }
+
+        int inMemory = lastRun.isEmpty() ? 0 : 1;
+        while (pending.size() + inMemory > fanIn) {
+            pending = mergePass(pending);
+        }
+
+        if (!pending.isEmpty()) {
+            synchronized (this) {
+                mergePasses++;
+            }
+        }
+        return new MergedRecords<>(pending, lastRun, order, format);
+    }
+
+    /**
+     * @return the number of run files written, including those of intermediate merge passes
+     */
+    public synchronized int getRunsWritten() {
+        return runsWritten;
+    }
+
+    /**
+     * @return the number of merge passes over the run files, including the final merge, and 0 if nothing was spilled
+     */
+    public synchronized int getMergePasses() {
+        return mergePasses;
+    }
+
+    /**
+     * Delete the run files
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        files.clear();
+        runs.clear();
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Merge consecutive groups of the fan-in runs into longer runs, so the runs keep their order
+     *
+     * @return the merged runs
+     */
+    private List<Path> mergePass(List<Path> pending) throws IOException, InterruptedException {
+        List<Path> next = new ArrayList<>();
+        List<Future<?>> merges = new ArrayList<>();
+        List<Path> mergedInputs = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < pending.size(); i += fanIn) {
+                List<Path> group = pending.subList(i, Math.min(i + fanIn, pending.size()));
+                if (group.size() == 1) {
+                    // Nothing to merge it with
+                    next.add(group.get(0));
+                    continue;
+                }
+
+                Path run;
+                synchronized (this) {
+                    run = newFile();
+                }
+                next.add(run);
+                mergedInputs.addAll(group);
+
+                if (executor == null) {
+                    mergeRuns(group, run);
+                } else {
+                    merges.add(executor.submit(() -> {
+                        mergeRuns(group, run);
+                        return null;
+                    }));
+                }
+            }
+
+            for (Future<?> merge : merges) {
+                merge.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<?> merge : merges) {
+                merge.cancel(true);
+            }
+        }
+
+        synchronized (this) {
+            for (Path input : mergedInputs) {
+                Files.delete(input);
+                files.remove(input);
+            }
+            mergePasses++;
+        }
+
+        logger.debug("Merged " + pending.size() + " runs into " + next.size() + " runs");
+        return next;
+    }
+
+    private void mergeRuns(List<Path> group, Path run) throws IOException {
+        try (MergedRecords<T> records = new MergedRecords<>(group, List.of(), order, format)) {
+            writeRun(run, out -> {
+                T record;
+                while ((record = records.next()) != null) {
+                    format.write(out, record);
+                }
+            });
+        }
+    }
+
+    private Path newFile() throws IOException {
+        Path file = Files.createTempFile(directory, prefix, ".tmp");
+        files.add(file);
+        runsWritten++;
+        return file;
+    }
+
+    /**
+     * Writes and reads the records of a run file
+     */
+    public interface RecordFormat<T> {
+        void write(DataOutputStream out, T record) throws IOException;
+
+        /**
+         * @return the next record of the run, or null at its end
+         */
+        T read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Writes the sorted records of a run
+     */
+    public interface RunWriter {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * The merged records of the runs, taking the smallest record of all runs every time
+     */
+    public static class MergedRecords<T> implements AutoCloseable {
+        private final PriorityQueue<Cursor<T>> cursors;
+
+        private MergedRecords(List<Path> runs, List<? extends T> lastRun, Comparator<? super T> order, RecordFormat<T> format) throws IOException {
+            Comparator<Cursor<T>> byRecord = (a, b) -> order.compare(a.current, b.current);
+            this.cursors = new PriorityQueue<>(Math.max(1, runs.size() + 1), byRecord.thenComparingInt(cursor -> cursor.run));
+
+            try {
+                for (int i = 0; i < runs.size(); i++) {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(runs.get(i)), READ_BUFFER_SIZE));
+                    add(new Cursor<>(i, in, format, null));
+                }
+                // Created last, so it is merged after the spilled runs
+                add(new Cursor<>(runs.size(), null, null, lastRun.iterator()));
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the next record, or null after the last
+         */
+        public T next() throws IOException {
+            Cursor<T> smallest = cursors.poll();
+            if (smallest == null) {
+                return null;
+            }
+
+            T record = smallest.current;
+            add(smallest);
+            return record;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Cursor<T> cursor : cursors) {
+                cursor.close();
+            }
+            cursors.clear();
+        }
+
+        private void add(Cursor<T> cursor) throws IOException {
+            boolean added = false;
+            try {
+                if (cursor.advance()) {
+                    cursors.add(cursor);
+                    added = true;
+                }
+            } finally {
+                if (!added) {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * The current record of a run file, or of the last run in memory
+     */
+    private static class Cursor<T> {
+        private final int run;
+        private final DataInputStream in;
+        private final RecordFormat<T> format;
+        private final Iterator<? extends T> records;
+        private T current;
+
+        private Cursor(int run, DataInputStream in, RecordFormat<T> format, Iterator<? extends T> records) {
+            this.run = run;
+            this.in = in;
+            this.format = format;
+            this.records = records;
+        }
+
+        private boolean advance() throws IOException {
+            if (in != null) {
+                current = format.read(in);
+            } else {
+                current = records.hasNext() ? records.next() : null;
+            }
+            return current != null;
+        }
+
+        private void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package com.trifork.ehealth.export.sort;
+
+import com.trifork.ehealth.export.BDExportConverter;
+import com.trifork.ehealth.export.ndjson.NdjsonLineHeader;
+import com.trifork.ehealth.export.ndjson.NdjsonReader;
+import com.trifork.ehealth.export.response.BDExportResultResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Sorts the NDJSON lines of output files by the id or the last updated of their resources, in bounded memory.
+ * <p>
+ * The sort key of every line is extracted with the {@link NdjsonReader}, without parsing the resource. Lines are
+ * collected in runs, that fit within the memory budget, and every full run is sorted and spilled to disk by a pool of
+ * threads while the next run is read. The runs are merged by an {@link ExternalMerger}, in passes of at most the fan-in
+ * runs, into the sorted output. Lines with equal keys keep the order they were added in.
+ */
+public class NdjsonSorter implements AutoCloseable {
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+    private static final DateTimeFormatter INSTANT_KEY = DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss.SSSSSSSSS").withZone(ZoneOffset.UTC);
+
+    public enum SortKey {
+        /**
+         * By resource type, then id
+         */
+        ID,
+        /**
+         * By meta.lastUpdated, then resource type and id. Lines without a last updated come first.
+         */
+        LAST_UPDATED
+    }
+
+    private static final Comparator<Entry> ORDER = Comparator
+            .comparing((Entry entry) -> entry.key)
+            .thenComparingLong(entry -> entry.sequence);
+
+    private final SortKey sortKey;
+    private final Path directory;
+    private final long runBudgetBytes;
+    private final ExecutorService executor;
+    private final Semaphore runsInFlight;
+    private final NdjsonReader reader = new NdjsonReader();
+    private final ExternalMerger<Entry> merger;
+    private final List<Future<?>> spills = new ArrayList<>();
+    private List<Entry> run = new ArrayList<>();
+    private long runBytes;
+    private long lines;
+    private boolean finished;
+
+    private static final Logger logger = LoggerFactory.getLogger(NdjsonSorter.class);
+
+    /**
+     * @param sortKey           the key to sort by
+     * @param directory         the directory of the spilled runs, which is created if it does not exist
+     * @param memoryBudgetBytes the approximate size of the lines kept in memory, shared by the run being read and the
+     *                          runs being sorted
+     * @param parallelism       the number of runs sorted and spilled at the same time
+     */
+    public NdjsonSorter(SortKey sortKey, Path directory, long memoryBudgetBytes, int parallelism) throws IOException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+
+        this.sortKey = sortKey;
+        this.directory = Files.createDirectories(directory);
+        this.runBudgetBytes = Math.max(1, memoryBudgetBytes / (parallelism + 1));
+        this.executor = Executors.newFixedThreadPool(parallelism);
+        this.runsInFlight = new Semaphore(parallelism);
+        this.merger = new ExternalMerger<>(this.directory, "sort.run-", ORDER, Entry.FORMAT).setExecutor(executor);
+    }
+
+    /**
+     * @param fanIn the maximum number of runs merged at once, which each hold a read buffer, default 128
+     */
+    public NdjsonSorter setFanIn(int fanIn) {
+        merger.setFanIn(fanIn);
+        return this;
+    }
+
+    /**
+     * Download an output file, and add its lines
+     *
+     * @return the number of lines added
+     */
+    public long add(BDExportConverter converter, BDExportResultResponse.OutputItem item) throws IOException, InterruptedException {
+        try (InputStream in = converter.openStream(item)) {
+            return add(in);
+        }
+    }
+
+    /**
+     * Add every line of an NDJSON stream. The stream is not closed.
+     *
+     * @return the number of lines added
+     */
+    public synchronized long add(InputStream ndjson) throws IOException, InterruptedException {
+        if (finished) {
+            throw new IllegalStateException("Sorter is finished");
+        }
+
+        return reader.forEachLine(ndjson, this::add);
+    }
+
+    /**
+     * Write every added line, sorted, to the stream, each followed by a line break. The sorter cannot be used afterwards.
+     * The stream is not closed.
+     */
+    public synchronized void writeTo(OutputStream out) throws IOException, InterruptedException {
+        if (finished) {
+            throw new IllegalStateException("Sorter is finished");
+        }
+        finished = true;
+
+        awaitSpills();
+        // The last run is merged from memory
+        run.sort(ORDER);
+        try (ExternalMerger.MergedRecords<Entry> merged = merger.merge(run)) {
+            Entry entry;
+            while ((entry = merged.next()) != null) {
+                out.write(entry.line);
+                out.write('\n');
+            }
+        }
+        out.flush();
+
+        run = new ArrayList<>();
+        logger.info("Sorted " + lines + " lines by " + sortKey + ", from " + merger.getRunsWritten() + " runs in "
+                + merger.getMergePasses() + " merge passes");
+    }
+
+    public synchronized long getLines() {
+        return lines;
+    }
+
+    /**
+     * @return the number of runs spilled to disk, including those of intermediate merge passes
+     */
+    public synchronized int getSpilledRuns() {
+        return merger.getRunsWritten();
+    }
+
+    /**
+     * @return the number of merge passes over the spilled runs, 0 if the lines were sorted in memory
+     */
+    public synchronized int getMergePasses() {
+        return merger.getMergePasses();
+    }
+
+    /**
+     * Stop the spilling threads, and delete the spilled runs
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+
+        synchronized (this) {
+            finished = true;
+            run = new ArrayList<>();
+            merger.close();
+        }
+    }
+
+    private void add(NdjsonLineHeader header) throws IOException, InterruptedException {
+        if (!header.isValid()) {
+            throw new IllegalArgumentException("Not a JSON object: " + header.lineAsString());
+        }
+
+        Entry entry = new Entry(keyOf(header), lines++, header.copyLine());
+        run.add(entry);
+        runBytes += entry.sizeInBytes();
+
+        if (runBytes >= runBudgetBytes) {
+            spillRun();
+        }
+    }
+
+    private String keyOf(NdjsonLineHeader header) {
+        String resource = (header.hasResourceType() ? header.getResourceType() : "") + "/" + (header.hasId() ? header.getId() : "");
+        if (sortKey == SortKey.ID) {
+            return resource;
+        }
+
+        return (header.hasLastUpdated() ? instantKeyOf(header.getLastUpdated()) : "") + " " + resource;
+    }
+
+    /**
+     * @return the instant in UTC with a fixed number of digits, which sorts as text, or the value as is, if it is not an
+     * instant
+     */
+    private static String instantKeyOf(String lastUpdated) {
+        try {
+            return INSTANT_KEY.format(OffsetDateTime.parse(lastUpdated));
+        } catch (DateTimeParseException e) {
+            return lastUpdated;
+        }
+    }
+
+    /**
+     * Hand the current run to the pool, to be sorted and written, waiting while the pool has as many runs as it has
+     * threads
+     */
+    private void spillRun() throws IOException, InterruptedException {
+        List<Entry> entries = run;
+        Path runFile = merger.newRun();
+        run = new ArrayList<>();
+        runBytes = 0;
+
+        runsInFlight.acquire();
+        try {
+            spills.add(executor.submit(() -> {
+                try {
+                    entries.sort(ORDER);
+                    merger.writeRun(runFile, entries);
+                    return null;
+                } finally {
+                    runsInFlight.release();
+                }
+            }));
+        } catch (RuntimeException e) {
+            runsInFlight.release();
+            throw e;
+        }
+    }
+
+    private void awaitSpills() throws IOException, InterruptedException {
+        try {
+            for (Future<?> spill : spills) {
+                spill.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            spills.clear();
+        }
+    }
+
+    private static class Entry {
+        private static final ExternalMerger.RecordFormat<Entry> FORMAT = new ExternalMerger.RecordFormat<>() {
+            @Override
+            public void write(DataOutputStream out, Entry entry) throws IOException {
+                entry.writeTo(out);
+            }
+
+            @Override
+            public Entry read(DataInputStream in) throws IOException {
+                return readFrom(in);
+            }
+        };
+
+        private final String key;
+        private final long sequence;
+        private final byte[] line;
+
+        private Entry(String key, long sequence, byte[] line) {
+            this.key = key;
+            this.sequence = sequence;
+            this.line = line;
+        }
+
+        private long sizeInBytes() {
+            return ENTRY_OVERHEAD_BYTES + 2L * key.length() + line.length;
+        }
+
+        private void writeTo(DataOutputStream out) throws IOException {
+            out.writeUTF(key);
+            out.writeLong(sequence);
+            out.writeInt(line.length);
+            out.write(line);
+        }
+
+        /**
+         * @return the next entry of the stream, or null at its end
+         */
+        private static Entry readFrom(DataInputStream in) throws IOException {
+            String key;
+            try {
+                key = in.readUTF();
+            } catch (EOFException e) {
+                return null;
+            }
+
+            long sequence = in.readLong();
+            byte[] line = new byte[in.readInt()];
+            in.readFully(line);
+
+            return new Entry(key, sequence, line);
+        }
+    }
+}
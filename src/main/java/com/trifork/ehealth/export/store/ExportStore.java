@@ -0,0 +1,207 @@
+package com.trifork.ehealth.export.store;
+
+import com.trifork.ehealth.export.change.ContentHasher;
+import com.trifork.ehealth.export.ndjson.NdjsonLineHeader;
+import com.trifork.ehealth.export.ndjson.NdjsonLineScanner;
+import com.trifork.ehealth.export.ndjson.NdjsonReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A local store of exported resources, with a data file of NDJSON lines per resource type, and an index from resource
+ * id to the offset and length of the line, written by an {@link ExportStoreWriter}.
+ * <p>
+ * The indexes are sorted by a 64-bit hash of the id, and memory mapped, so a lookup is a binary search in the page
+ * cache, followed by a single read of the line. Lines sharing a hash are told apart by their id.
+ * The store can be shared by threads.
+ */
+public class ExportStore implements AutoCloseable {
+    private static final String DATA_SUFFIX = ".ndjson";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final Path directory;
+    private final Map<String, TypeIndex> indexes = new TreeMap<>();
+
+    private ExportStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Open the store written to the directory
+     */
+    public static ExportStore open(Path directory) throws IOException {
+        ExportStore store = new ExportStore(directory);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + INDEX_SUFFIX)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                String resourceType = fileName.substring(0, fileName.length() - INDEX_SUFFIX.length());
+
+                store.indexes.put(resourceType, new TypeIndex(file, dataFile(directory, resourceType)));
+            }
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            throw e;
+        }
+
+        return store;
+    }
+
+    public Set<String> getResourceTypes() {
+        return Collections.unmodifiableSet(indexes.keySet());
+    }
+
+    /**
+     * @return the number of indexed resources of the type
+     */
+    public long count(String resourceType) {
+        TypeIndex index = indexes.get(resourceType);
+        return index == null ? 0 : index.size;
+    }
+
+    /**
+     * Look up a resource by its id
+     *
+     * @return the NDJSON line of the resource, or empty if the store does not contain it
+     */
+    public Optional<String> find(String resourceType, String id) throws IOException {
+        TypeIndex index = indexes.get(resourceType);
+        if (index == null) {
+            return Optional.empty();
+        }
+
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        long key = ContentHasher.hash(ByteBuffer.wrap(idBytes), 0, idBytes.length);
+
+        NdjsonLineScanner scanner = new NdjsonLineScanner();
+        NdjsonLineHeader header = new NdjsonLineHeader();
+        for (long i = index.lowerBound(key); i < index.size && index.keyAt(i) == key; i++) {
+            ByteBuffer line = index.readLine(i);
+
+            if (scanner.scan(line, 0, line.limit(), header) && header.idEquals(id)) {
+                return Optional.of(StandardCharsets.UTF_8.decode(line).toString());
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Visit every line of the type, in the order they were written
+     *
+     * @return the number of lines visited
+     */
+    public long forEachLine(String resourceType, NdjsonReader.LineVisitor visitor) throws IOException, InterruptedException {
+        Path data = dataFile(directory, resourceType);
+        if (!Files.exists(data)) {
+            return 0;
+        }
+
+        try (InputStream in = Files.newInputStream(data)) {
+            return new NdjsonReader().forEachLine(in, visitor);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (TypeIndex index : indexes.values()) {
+            index.data.close();
+        }
+    }
+
+    static Path dataFile(Path directory, String resourceType) {
+        return directory.resolve(resourceType + DATA_SUFFIX);
+    }
+
+    static Path indexFile(Path directory, String resourceType) {
+        return directory.resolve(resourceType + INDEX_SUFFIX);
+    }
+
+    /**
+     * The memory mapped index of a type. An index may be larger than a single mapping, so it is mapped in chunks of
+     * whole records.
+     */
+    private static class TypeIndex {
+        private static final long RECORDS_PER_CHUNK = (1 << 30) / IndexRecords.RECORD_BYTES;
+
+        private final MappedByteBuffer[] chunks;
+        private final FileChannel data;
+        private final long size;
+
+        private TypeIndex(Path indexFile, Path dataFile) throws IOException {
+            try (FileChannel index = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+                this.size = index.size() / IndexRecords.RECORD_BYTES;
+                this.chunks = new MappedByteBuffer[(int) ((size + RECORDS_PER_CHUNK - 1) / RECORDS_PER_CHUNK)];
+
+                for (int i = 0; i < chunks.length; i++) {
+                    long firstRecord = i * RECORDS_PER_CHUNK;
+                    long records = Math.min(RECORDS_PER_CHUNK, size - firstRecord);
+                    chunks[i] = index.map(FileChannel.MapMode.READ_ONLY, firstRecord * IndexRecords.RECORD_BYTES, records * IndexRecords.RECORD_BYTES);
+                }
+            }
+
+            this.data = FileChannel.open(dataFile, StandardOpenOption.READ);
+        }
+
+        /**
+         * @return the first record with a key of at least the given key
+         */
+        private long lowerBound(long key) {
+            long low = 0;
+            long high = size;
+
+            while (low < high) {
+                long middle = (low + high) >>> 1;
+                if (keyAt(middle) < key) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+
+            return low;
+        }
+
+        private long keyAt(long record) {
+            return chunkOf(record).getLong(positionOf(record));
+        }
+
+        private ByteBuffer readLine(long record) throws IOException {
+            MappedByteBuffer chunk = chunkOf(record);
+            int position = positionOf(record);
+            long offset = chunk.getLong(position + Long.BYTES);
+            int length = chunk.getInt(position + 2 * Long.BYTES);
+
+            ByteBuffer line = ByteBuffer.allocate(length);
+            while (line.hasRemaining()) {
+                if (data.read(line, offset + line.position()) < 0) {
+                    throw new IOException("Index points past the end of the data file");
+                }
+            }
+
+            return line.flip();
+        }
+
+        private MappedByteBuffer chunkOf(long record) {
+            return chunks[(int) (record / RECORDS_PER_CHUNK)];
+        }
+
+        private static int positionOf(long record) {
+            return (int) (record % RECORDS_PER_CHUNK) * IndexRecords.RECORD_BYTES;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.trifork.ehealth.export.store;
+
+import com.trifork.ehealth.export.change.ContentHasher;
+import com.trifork.ehealth.export.ndjson.NdjsonLineHeader;
+import com.trifork.ehealth.export.ndjson.NdjsonReader;
+import com.trifork.ehealth.export.sort.ExternalMerger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Writes NDJSON lines into an {@link ExportStore}, a data file per resource type, while building the index of every
+ * type on the way.
+ * <p>
+ * The index records are collected in runs of a bounded size, which are sorted and spilled to disk, and merged into the
+ * index of the type by an {@link ExternalMerger} when the writer is closed, so exports of any size are indexed in
+ * bounded memory.
+ * Lines without an id are stored, but cannot be looked up.
+ */
+public class ExportStoreWriter implements AutoCloseable {
+    private static final Pattern RESOURCE_TYPE = Pattern.compile("[A-Za-z]+");
+    private static final int DEFAULT_RUN_SIZE = 1 << 20;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    private final Path directory;
+    private final int runSize;
+    private final NdjsonReader reader = new NdjsonReader();
+    private final Map<String, TypeWriter> writers = new HashMap<>();
+    private boolean closed;
+
+    private static final Logger logger = LoggerFactory.getLogger(ExportStoreWriter.class);
+
+    public ExportStoreWriter(Path directory) throws IOException {
+        this(directory, DEFAULT_RUN_SIZE);
+    }
+
+    /**
+     * @param directory the directory of the store, which is created if it does not exist
+     * @param runSize   the number of index records kept in memory for every type, before they are spilled to disk
+     */
+    public ExportStoreWriter(Path directory, int runSize) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.runSize = runSize;
+    }
+
+    /**
+     * Write every line of an NDJSON stream, e.g. a downloaded output file, to the store
+     *
+     * @return the number of lines written
+     */
+    public synchronized long write(InputStream ndjson) throws IOException, InterruptedException {
+        return reader.forEachLine(ndjson, this::write);
+    }
+
+    /**
+     * Write a single scanned line to the data file of its type, and add it to the index
+     */
+    public synchronized void write(NdjsonLineHeader header) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Export store writer is closed");
+        }
+        if (!header.isValid() || !header.hasResourceType()) {
+            throw new IllegalArgumentException("Not a resource: " + header.lineAsString());
+        }
+
+        String resourceType = header.getResourceType();
+        TypeWriter writer = writers.get(resourceType);
+        if (writer == null) {
+            if (!RESOURCE_TYPE.matcher(resourceType).matches()) {
+                throw new IllegalArgumentException("Invalid resource type: " + resourceType);
+            }
+
+            writer = new TypeWriter(resourceType);
+            writers.put(resourceType, writer);
+        }
+
+        writer.write(header);
+    }
+
+    /**
+     * Flush the data files, and merge the index runs into the index of every type
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        for (TypeWriter writer : writers.values()) {
+            writer.finish();
+        }
+    }
+
+    private class TypeWriter {
+        private final String resourceType;
+        private final FileChannel data;
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        private final IndexRecords run = new IndexRecords(runSize);
+        private final ExternalMerger<IndexRecords.Record> merger;
+        private long position;
+        private long lines;
+
+        private TypeWriter(String resourceType) throws IOException {
+            this.resourceType = resourceType;
+            this.data = FileChannel.open(ExportStore.dataFile(directory, resourceType),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.merger = new ExternalMerger<>(directory, resourceType + ".run-", IndexRecords.Record.ORDER, IndexRecords.Record.FORMAT);
+        }
+
+        private void write(NdjsonLineHeader header) throws IOException {
+            int length = header.getLineLength();
+
+            if (header.hasId()) {
+                run.add(ContentHasher.hash(header.getBuffer(), header.getIdStart(), header.getIdEnd()), position, length);
+                if (run.isFull()) {
+                    spillRun();
+                }
+            }
+
+            ByteBuffer line = header.getBuffer().duplicate();
+            line.limit(header.getLineEnd()).position(header.getLineStart());
+            if (length + 1 > writeBuffer.remaining()) {
+                flush();
+            }
+            if (length + 1 > writeBuffer.remaining()) {
+                // Longer than the buffer, so written directly
+                writeFully(data, line);
+            } else {
+                writeBuffer.put(line);
+            }
+            writeBuffer.put((byte) '\n');
+            if (!writeBuffer.hasRemaining()) {
+                flush();
+            }
+
+            position += length + 1;
+            lines++;
+        }
+
+        private void flush() throws IOException {
+            writeBuffer.flip();
+            writeFully(data, writeBuffer);
+            writeBuffer.clear();
+        }
+
+        private void spillRun() throws IOException {
+            run.sort();
+            merger.spill(run::writeTo);
+            run.clear();
+        }
+
+        private void finish() throws IOException {
+            flush();
+            data.close();
+
+            Path index = ExportStore.indexFile(directory, resourceType);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(index)))) {
+                if (merger.getRunsWritten() == 0) {
+                    run.sort();
+                    run.writeTo(out);
+                } else {
+                    if (run.size > 0) {
+                        spillRun();
+                    }
+                    merge(out);
+                }
+            } finally {
+                merger.close();
+            }
+
+            logger.info("Stored " + lines + " " + resourceType + " lines, merged from " + Math.max(1, merger.getRunsWritten()) + " index runs");
+        }
+
+        /**
+         * Merge the sorted runs into the index
+         */
+        private void merge(DataOutputStream out) throws IOException {
+            try (ExternalMerger.MergedRecords<IndexRecords.Record> merged = merger.merge(List.of())) {
+                IndexRecords.Record record;
+                while ((record = merged.next()) != null) {
+                    IndexRecords.Record.FORMAT.write(out, record);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while merging the index of " + resourceType);
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.trifork.ehealth.export.store;
+
+import com.trifork.ehealth.export.sort.ExternalMerger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Comparator;
+
+/**
+ * Index records of an export store, held in primitive arrays while a run is collected, and sorted by id hash.
+ * <p>
+ * On disk, a record is the id hash, the byte offset of the line in the data file, and the length of the line.
+ */
+class IndexRecords {
+    static final int RECORD_BYTES = Long.BYTES + Long.BYTES + Integer.BYTES;
+
+    final long[] keys;
+    final long[] offsets;
+    final int[] lengths;
+    int size;
+
+    IndexRecords(int capacity) {
+        this.keys = new long[capacity];
+        this.offsets = new long[capacity];
+        this.lengths = new int[capacity];
+    }
+
+    boolean isFull() {
+        return size == keys.length;
+    }
+
+    void add(long key, long offset, int length) {
+        keys[size] = key;
+        offsets[size] = offset;
+        lengths[size] = length;
+        size++;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Write the records, which must be sorted, in the format of the index
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        for (int i = 0; i < size; i++) {
+            out.writeLong(keys[i]);
+            out.writeLong(offsets[i]);
+            out.writeInt(lengths[i]);
+        }
+    }
+
+    /**
+     * Sort by key, and by offset within the same key, so duplicates keep the order they were written in
+     */
+    void sort() {
+        sort(0, size - 1);
+    }
+
+    private void sort(int low, int high) {
+        while (low < high) {
+            if (high - low < 16) {
+                insertionSort(low, high);
+                return;
+            }
+
+            int pivot = partition(low, high);
+            // Recurse into the smaller half, to bound the depth of the stack
+            if (pivot - low < high - pivot) {
+                sort(low, pivot - 1);
+                low = pivot + 1;
+            } else {
+                sort(pivot + 1, high);
+                high = pivot - 1;
+            }
+        }
+    }
+
+    private int partition(int low, int high) {
+        swap(low + (high - low) / 2, high);
+
+        int store = low;
+        for (int i = low; i < high; i++) {
+            if (compare(i, high) < 0) {
+                swap(i, store++);
+            }
+        }
+        swap(store, high);
+
+        return store;
+    }
+
+    private void insertionSort(int low, int high) {
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && compare(j, j - 1) < 0; j--) {
+                swap(j, j - 1);
+            }
+        }
+    }
+
+    private int compare(int i, int j) {
+        int byKey = Long.compare(keys[i], keys[j]);
+        return byKey != 0 ? byKey : Long.compare(offsets[i], offsets[j]);
+    }
+
+    private void swap(int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+
+        long offset = offsets[i];
+        offsets[i] = offsets[j];
+        offsets[j] = offset;
+
+        int length = lengths[i];
+        lengths[i] = lengths[j];
+        lengths[j] = length;
+    }
+
+    /**
+     * A single index record, as read back from a spilled run
+     */
+    static class Record {
+        static final Comparator<Record> ORDER = Comparator
+                .comparingLong((Record record) -> record.key)
+                .thenComparingLong(record -> record.offset);
+
+        static final ExternalMerger.RecordFormat<Record> FORMAT = new ExternalMerger.RecordFormat<>() {
+            @Override
+            public void write(DataOutputStream out, Record record) throws IOException {
+                out.writeLong(record.key);
+                out.writeLong(record.offset);
+                out.writeInt(record.length);
+            }
+
+            @Override
+            public Record read(DataInputStream in) throws IOException {
+                long key;
+                try {
+                    key = in.readLong();
+                } catch (EOFException e) {
+                    return null;
+                }
+
+                return new Record(key, in.readLong(), in.readInt());
+            }
+        };
+
+        final long key;
+        final long offset;
+        final int length;
+
+        Record(long key, long offset, int length) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
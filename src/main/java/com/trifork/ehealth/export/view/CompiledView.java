@@ -0,0 +1,269 @@
+package com.trifork.ehealth.export.view;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.IFhirPath;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * A {@link ViewDefinition}, with every FHIRPath expression parsed once, that turns resources into rows.
+ * <p>
+ * Primitive values are written as their FHIR string value, and complex values as their JSON. A column without a value
+ * is null, and a column with several values is an error, unless it is a collection column, whose values are joined
+ * with {@value #COLLECTION_SEPARATOR}.
+ * <p>
+ * The view can be shared between threads.
+ */
+public class CompiledView {
+    public static final String COLLECTION_SEPARATOR = "|";
+
+    /**
+     * getResourceKey() and getReferenceKey() of SQL on FHIR are not known to the FHIRPath engine. They are replaced by
+     * the id of the resource, and the id part of the reference.
+     */
+    private static final Pattern RESOURCE_KEY = Pattern.compile("getResourceKey\\(\\s*\\)");
+    private static final Pattern REFERENCE_KEY = Pattern.compile("getReferenceKey\\(\\s*[A-Za-z]*\\s*\\)");
+    private static final String REFERENCE_ID = "reference.replaceMatches('^(.*/)?([^/]+)/([^/]+)(/_history/.*)?$', '$3')";
+
+    /**
+     * Type casts need type definitions, that the FHIRPath engine does not have without a validation context, while type
+     * checks work, so ofType() and as() are replaced by a filter on the type, e.g. for choice elements.
+     */
+    private static final Pattern TYPE_CAST = Pattern.compile("\\.(?:ofType|as)\\(\\s*([A-Za-z]+)\\s*\\)");
+
+    private final String resourceType;
+    private final List<String> columnNames;
+    private final CompiledSelect select;
+    private final List<IFhirPath.IParsedExpression> where;
+    private final ThreadLocal<IFhirPath> fhirPaths;
+    private final ThreadLocal<IParser> parsers;
+
+    private CompiledView(FhirContext fhirContext, String resourceType, List<String> columnNames, CompiledSelect select, List<IFhirPath.IParsedExpression> where) {
+        this.resourceType = resourceType;
+        this.columnNames = List.copyOf(columnNames);
+        this.select = select;
+        this.where = where;
+        this.fhirPaths = ThreadLocal.withInitial(fhirContext::newFhirPath);
+        this.parsers = ThreadLocal.withInitial(fhirContext::newJsonParser);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the view has no resource type or columns, uses unsupported elements, or an
+     *                                  expression cannot be parsed
+     */
+    public static CompiledView compile(FhirContext fhirContext, ViewDefinition view) {
+        if (view.getResource() == null || !fhirContext.getResourceTypes().contains(view.getResource())) {
+            throw new IllegalArgumentException("Unknown resource type of view '" + view.getName() + "': " + view.getResource());
+        }
+        if (!view.getUnsupported().isEmpty()) {
+            throw new IllegalArgumentException("View '" + view.getName() + "' uses unsupported elements: " + view.getUnsupported());
+        }
+
+        IFhirPath fhirPath = fhirContext.newFhirPath();
+        List<String> columnNames = new ArrayList<>();
+        CompiledSelect select = new CompiledSelect(null, false);
+        for (ViewDefinition.Select child : view.getSelect()) {
+            select.selects.add(compile(fhirPath, child, columnNames));
+        }
+        if (columnNames.isEmpty()) {
+            throw new IllegalArgumentException("View '" + view.getName() + "' has no columns");
+        }
+
+        List<IFhirPath.IParsedExpression> where = new ArrayList<>();
+        for (ViewDefinition.Where condition : view.getWhere()) {
+            where.add(parse(fhirPath, condition.getPath()));
+        }
+
+        return new CompiledView(fhirContext, view.getResource(), columnNames, select, where);
+    }
+
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    /**
+     * @return the names of the columns, in the order of the values of every row
+     */
+    public List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    /**
+     * @return the rows of the resource, none if it is of another type, or does not match the where conditions of the
+     * view
+     * @throws IllegalArgumentException if a column, that is not a collection, has several values
+     */
+    public List<List<String>> rowsOf(IBaseResource resource) {
+        if (!resourceType.equals(resource.fhirType())) {
+            return List.of();
+        }
+
+        IFhirPath fhirPath = fhirPaths.get();
+        for (IFhirPath.IParsedExpression condition : where) {
+            if (!isTrue(fhirPath.evaluate(resource, condition, IBase.class))) {
+                return List.of();
+            }
+        }
+
+        return evaluate(select, fhirPath, resource).stream().map(Arrays::asList).collect(Collectors.toList());
+    }
+
+    /**
+     * A row for every focus of the select, joined with the rows of its nested selects
+     */
+    private List<String[]> evaluate(CompiledSelect select, IFhirPath fhirPath, IBase focus) {
+        List<IBase> foci = select.forEach == null
+                ? List.of(focus)
+                : fhirPath.evaluate(focus, select.forEach, IBase.class);
+
+        if (foci.isEmpty()) {
+            return select.orNull ? Collections.singletonList(new String[columnNames.size()]) : List.of();
+        }
+
+        List<String[]> rows = new ArrayList<>();
+        for (IBase element : foci) {
+            String[] row = new String[columnNames.size()];
+            for (CompiledColumn column : select.columns) {
+                row[column.index] = valueOf(column, fhirPath.evaluate(element, column.expression, IBase.class));
+            }
+
+            List<String[]> joined = Collections.singletonList(row);
+            for (CompiledSelect child : select.selects) {
+                joined = join(joined, evaluate(child, fhirPath, element));
+            }
+            rows.addAll(joined);
+        }
+
+        return rows;
+    }
+
+    /**
+     * Every row of the left with every row of the right, which have values in different columns
+     */
+    private static List<String[]> join(List<String[]> left, List<String[]> right) {
+        List<String[]> rows = new ArrayList<>(left.size() * right.size());
+        for (String[] leftRow : left) {
+            for (String[] rightRow : right) {
+                String[] row = leftRow.clone();
+                for (int i = 0; i < row.length; i++) {
+                    if (rightRow[i] != null) {
+                        row[i] = rightRow[i];
+                    }
+                }
+                rows.add(row);
+            }
+        }
+
+        return rows;
+    }
+
+    private String valueOf(CompiledColumn column, List<IBase> values) {
+        if (values.isEmpty()) {
+            return null;
+        }
+        if (values.size() > 1 && !column.collection) {
+            throw new IllegalArgumentException("Column '" + columnNames.get(column.index) + "' has " + values.size()
+                    + " values, but is not a collection");
+        }
+
+        List<String> strings = new ArrayList<>(values.size());
+        for (IBase value : values) {
+            String string = stringOf(value);
+            if (string != null) {
+                strings.add(string);
+            }
+        }
+
+        return strings.isEmpty() ? null : String.join(COLLECTION_SEPARATOR, strings);
+    }
+
+    private String stringOf(IBase value) {
+        if (value instanceof IIdType) {
+            // The id of a parsed resource is qualified with its type
+            return ((IIdType) value).getIdPart();
+        }
+        if (value instanceof IPrimitiveType) {
+            return ((IPrimitiveType<?>) value).getValueAsString();
+        }
+
+        return parsers.get().encodeToString(value);
+    }
+
+    private static boolean isTrue(List<IBase> values) {
+        return values.size() == 1
+                && values.get(0) instanceof IPrimitiveType
+                && Boolean.TRUE.equals(((IPrimitiveType<?>) values.get(0)).getValue());
+    }
+
+    private static CompiledSelect compile(IFhirPath fhirPath, ViewDefinition.Select select, List<String> columnNames) {
+        if (select.getForEach() != null && select.getForEachOrNull() != null) {
+            throw new IllegalArgumentException("A select cannot have both forEach and forEachOrNull");
+        }
+        if (!select.getUnsupported().isEmpty()) {
+            throw new IllegalArgumentException("A select uses unsupported elements: " + select.getUnsupported());
+        }
+
+        String forEach = select.getForEach() != null ? select.getForEach() : select.getForEachOrNull();
+        CompiledSelect compiled = new CompiledSelect(forEach == null ? null : parse(fhirPath, forEach), select.getForEachOrNull() != null);
+
+        for (ViewDefinition.Column column : select.getColumn()) {
+            if (columnNames.contains(column.getName())) {
+                throw new IllegalArgumentException("Duplicate column '" + column.getName() + "'");
+            }
+            compiled.columns.add(new CompiledColumn(columnNames.size(), parse(fhirPath, column.getPath()), column.isCollection()));
+            columnNames.add(column.getName());
+        }
+
+        for (ViewDefinition.Select child : select.getSelect()) {
+            compiled.selects.add(compile(fhirPath, child, columnNames));
+        }
+
+        return compiled;
+    }
+
+    private static IFhirPath.IParsedExpression parse(IFhirPath fhirPath, String path) {
+        String rewritten = RESOURCE_KEY.matcher(path).replaceAll("id");
+        rewritten = REFERENCE_KEY.matcher(rewritten).replaceAll(Matcher.quoteReplacement(REFERENCE_ID));
+        rewritten = TYPE_CAST.matcher(rewritten).replaceAll(".where(\\$this is $1)");
+        try {
+            return fhirPath.parse(rewritten);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Failed to compile path '" + path + "'", e);
+        }
+    }
+
+    private static class CompiledSelect {
+        private final IFhirPath.IParsedExpression forEach;
+        private final boolean orNull;
+        private final List<CompiledColumn> columns = new ArrayList<>();
+        private final List<CompiledSelect> selects = new ArrayList<>();
+
+        private CompiledSelect(IFhirPath.IParsedExpression forEach, boolean orNull) {
+            this.forEach = forEach;
+            this.orNull = orNull;
+        }
+    }
+
+    private static class CompiledColumn {
+        private final int index;
+        private final IFhirPath.IParsedExpression expression;
+        private final boolean collection;
+
+        private CompiledColumn(int index, IFhirPath.IParsedExpression expression, boolean collection) {
+            this.index = index;
+            this.expression = expression;
+            this.collection = collection;
+        }
+    }
+}
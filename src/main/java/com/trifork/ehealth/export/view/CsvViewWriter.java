@@ -0,0 +1,151 @@
+package com.trifork.ehealth.export.view;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.trifork.ehealth.export.ndjson.NdjsonReader;
+import com.trifork.ehealth.export.pipeline.BDExportSink;
+import com.trifork.ehealth.export.pipeline.ResourceBatch;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * A sink, that flattens the exported resources of a view's type into CSV rows, with a header of the column names.
+ * <p>
+ * The view is compiled once, and the rows of every batch are made on the thread delivering it, so batches of several
+ * output files are flattened in parallel, and only writing the rows is serialized. Fields are quoted following
+ * RFC 4180, and null values are empty fields.
+ */
+public class CsvViewWriter implements BDExportSink {
+    private static final String LINE_BREAK = "\r\n";
+    private static final int WRITE_CHUNK_SIZE = 1 << 16;
+
+    private final FhirContext fhirContext;
+    private final CompiledView view;
+    private final Writer out;
+    private long rows;
+
+    /**
+     * Write the header of the view to the writer
+     *
+     * @param out receives the CSV, and is not closed
+     */
+    public CsvViewWriter(FhirContext fhirContext, ViewDefinition view, Writer out) throws IOException {
+        this(fhirContext, CompiledView.compile(fhirContext, view), out);
+    }
+
+    public CsvViewWriter(FhirContext fhirContext, CompiledView view, Writer out) throws IOException {
+        this.fhirContext = fhirContext;
+        this.view = view;
+        this.out = out;
+
+        StringBuilder header = new StringBuilder();
+        appendRow(header, view.getColumnNames());
+        out.write(header.toString());
+    }
+
+    @Override
+    public void accept(ResourceBatch batch) throws IOException {
+        StringBuilder csv = new StringBuilder();
+        long count = 0;
+        for (IBaseResource resource : batch.getResources()) {
+            count += append(csv, resource);
+        }
+
+        write(csv, count);
+    }
+
+    /**
+     * Flatten the raw lines of an NDJSON stream, where only the lines of the type of the view are parsed.
+     * The stream is not closed.
+     *
+     * @return the number of rows written
+     */
+    public long write(InputStream ndjson) throws IOException, InterruptedException {
+        StringBuilder csv = new StringBuilder();
+        // The rows not yet written, and the rows of the stream
+        long[] count = new long[2];
+        IParser parser = fhirContext.newJsonParser();
+
+        new NdjsonReader().forEachLine(ndjson, header -> {
+            if (header.isValid() && header.resourceTypeEquals(view.getResourceType())) {
+                count[0] += append(csv, parser.parseResource(header.lineAsString()));
+                if (csv.length() >= WRITE_CHUNK_SIZE) {
+                    write(csv, count[0]);
+                    count[1] += count[0];
+                    count[0] = 0;
+                    csv.setLength(0);
+                }
+            }
+        });
+        write(csv, count[0]);
+
+        return count[1] + count[0];
+    }
+
+    public synchronized long getRows() {
+        return rows;
+    }
+
+    public CompiledView getView() {
+        return view;
+    }
+
+    /**
+     * Flush the writer
+     */
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    private int append(StringBuilder csv, IBaseResource resource) {
+        List<List<String>> resourceRows = view.rowsOf(resource);
+        for (List<String> row : resourceRows) {
+            appendRow(csv, row);
+        }
+
+        return resourceRows.size();
+    }
+
+    private synchronized void write(StringBuilder csv, long count) throws IOException {
+        if (count > 0) {
+            out.write(csv.toString());
+            rows += count;
+        }
+    }
+
+    private static void appendRow(StringBuilder csv, List<String> row) {
+        for (int i = 0; i < row.size(); i++) {
+            if (i > 0) {
+                csv.append(',');
+            }
+            appendField(csv, row.get(i));
+        }
+        csv.append(LINE_BREAK);
+    }
+
+    private static void appendField(StringBuilder csv, String value) {
+        if (value == null) {
+            return;
+        }
+
+        boolean quoted = value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0;
+        if (!quoted) {
+            csv.append(value);
+            return;
+        }
+
+        csv.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                csv.append('"');
+            }
+            csv.append(c);
+        }
+        csv.append('"');
+    }
+}
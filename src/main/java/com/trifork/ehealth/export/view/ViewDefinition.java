@@ -0,0 +1,261 @@
+package com.trifork.ehealth.export.view;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A tabular view of a resource type, following the
+ * <a href="https://build.fhir.org/ig/FHIR/sql-on-fhir-v2/StructureDefinition-ViewDefinition.html">SQL on FHIR ViewDefinition</a>.
+ * <p>
+ * The columns are FHIRPath expressions, and a select with a <code>forEach</code> makes a row for every element of a
+ * repeating element. Sibling selects are joined, every row of one with every row of the others. A view is either
+ * built in code, or read from the JSON of a ViewDefinition. Unsupported elements, that would change the rows, i.e.
+ * <code>constant</code>, <code>unionAll</code> and <code>repeat</code>, are kept track of, so
+ * {@link CompiledView#compile} rejects the view, instead of compiling a different one. Other unknown elements, e.g.
+ * the metadata of the ViewDefinition, are ignored.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+public class ViewDefinition {
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @JsonProperty("name")
+    private String name;
+
+    @JsonProperty("resource")
+    private String resource;
+
+    @JsonProperty("select")
+    private List<Select> select = new ArrayList<>();
+
+    @JsonProperty("where")
+    private List<Where> where = new ArrayList<>();
+
+    @JsonIgnore
+    private final Set<String> unsupported = new LinkedHashSet<>();
+
+    public ViewDefinition() {
+    }
+
+    @JsonIgnore
+    public ViewDefinition(String name, String resource) {
+        this.name = name;
+        this.resource = resource;
+    }
+
+    /**
+     * Read the JSON of a ViewDefinition
+     */
+    public static ViewDefinition fromJson(String json) throws IOException {
+        return OBJECT_MAPPER.readValue(json, ViewDefinition.class);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the resource type of the view
+     */
+    public String getResource() {
+        return resource;
+    }
+
+    public List<Select> getSelect() {
+        return select;
+    }
+
+    public List<Where> getWhere() {
+        return where;
+    }
+
+    /**
+     * @return the unsupported elements of the view itself, which are rejected when it is compiled
+     */
+    @JsonIgnore
+    public Set<String> getUnsupported() {
+        return unsupported;
+    }
+
+    public ViewDefinition addSelect(Select select) {
+        this.select.add(select);
+        return this;
+    }
+
+    /**
+     * Only resources, for which the FHIRPath expression is true, are included in the view
+     */
+    public ViewDefinition addWhere(String path) {
+        this.where.add(new Where(path));
+        return this;
+    }
+
+    @JsonProperty("constant")
+    private void setConstant(JsonNode constant) {
+        if (!isEmpty(constant)) {
+            unsupported.add("constant");
+        }
+    }
+
+    private static boolean isEmpty(JsonNode node) {
+        return node == null || node.isNull() || (node.isContainerNode() && node.isEmpty());
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    public static class Select {
+        @JsonProperty("column")
+        private List<Column> column = new ArrayList<>();
+
+        @JsonProperty("select")
+        private List<Select> select = new ArrayList<>();
+
+        @JsonProperty("forEach")
+        private String forEach;
+
+        @JsonProperty("forEachOrNull")
+        private String forEachOrNull;
+
+        @JsonIgnore
+        private final Set<String> unsupported = new LinkedHashSet<>();
+
+        public List<Column> getColumn() {
+            return column;
+        }
+
+        public List<Select> getSelect() {
+            return select;
+        }
+
+        /**
+         * @return the FHIRPath of the elements, that the columns are evaluated on, one row for each, and no rows if
+         * there are none
+         */
+        public String getForEach() {
+            return forEach;
+        }
+
+        /**
+         * @return like {@link #getForEach()}, but a row of empty columns if there are no elements
+         */
+        public String getForEachOrNull() {
+            return forEachOrNull;
+        }
+
+        public Select addColumn(String name, String path) {
+            this.column.add(new Column(name, path, false));
+            return this;
+        }
+
+        /**
+         * Add a column, whose values are joined with {@value CompiledView#COLLECTION_SEPARATOR}
+         */
+        public Select addCollectionColumn(String name, String path) {
+            this.column.add(new Column(name, path, true));
+            return this;
+        }
+
+        public Select addSelect(Select select) {
+            this.select.add(select);
+            return this;
+        }
+
+        public Select setForEach(String forEach) {
+            this.forEach = forEach;
+            return this;
+        }
+
+        public Select setForEachOrNull(String forEachOrNull) {
+            this.forEachOrNull = forEachOrNull;
+            return this;
+        }
+
+        /**
+         * @return the unsupported elements of the select, which are rejected when the view is compiled
+         */
+        @JsonIgnore
+        public Set<String> getUnsupported() {
+            return unsupported;
+        }
+
+        @JsonProperty("unionAll")
+        private void setUnionAll(JsonNode unionAll) {
+            if (!isEmpty(unionAll)) {
+                unsupported.add("unionAll");
+            }
+        }
+
+        @JsonProperty("repeat")
+        private void setRepeat(JsonNode repeat) {
+            if (!isEmpty(repeat)) {
+                unsupported.add("repeat");
+            }
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    public static class Column {
+        @JsonProperty("name")
+        private String name;
+
+        @JsonProperty("path")
+        private String path;
+
+        @JsonProperty("collection")
+        private boolean collection;
+
+        public Column() {
+        }
+
+        @JsonIgnore
+        public Column(String name, String path, boolean collection) {
+            this.name = name;
+            this.path = path;
+            this.collection = collection;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return true if the column may have several values, otherwise more than one value is an error
+         */
+        public boolean isCollection() {
+            return collection;
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Where {
+        @JsonProperty("path")
+        private String path;
+
+        public Where() {
+        }
+
+        @JsonIgnore
+        public Where(String path) {
+            this.path = path;
+        }
+
+        public String getPath() {
+            return path;
+        }
+    }
+}
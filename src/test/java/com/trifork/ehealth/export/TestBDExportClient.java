@@ -5,11 +5,13 @@ import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.api.Constants;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.trifork.ehealth.export.progress.ProgressEstimate;
 import com.trifork.ehealth.export.response.BDExportResponse;
 import com.trifork.ehealth.export.response.BDExportResultResponse;
 import org.apache.http.HttpResponse;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.BasicHttpEntity;
 import org.apache.http.message.BasicHttpResponse;
@@ -26,12 +28,18 @@ import java.io.IOException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.argThat;
@@ -136,6 +144,26 @@ public class TestBDExportClient {
         verify(httpClient, atLeastOnce()).execute(argThat(pollUriMatcher));
     }
 
+    @Test
+    void manifest_counts_and_extensions_are_kept() throws IOException, InterruptedException, ExecutionException {
+        configureExportInitiation();
+        configurePollInProgress();
+
+        Future<BDExportResponse> future = exportClient.initiate(new BDExportRequest(exportUri));
+
+        pollResponse.setStatusCode(Constants.STATUS_HTTP_200_OK);
+        pollResponse.setHeader("Content-Type", Constants.CT_JSON);
+        BasicHttpEntity httpEntity = new BasicHttpEntity();
+        httpEntity.setContent(new ByteArrayInputStream(("{\"transactionTime\":\"1337\",\"request\":\"" + exportUri + "\","
+                + "\"requiresAccessToken\":false,\"output\":[{\"type\":\"Patient\",\"url\":\"url\",\"count\":120,"
+                + "\"extension\":{\"https://example.org/size\":4096}}],\"error\":[]}").getBytes(StandardCharsets.UTF_8)));
+        pollResponse.setEntity(httpEntity);
+
+        BDExportResultResponse.OutputItem item = future.get().getResult().orElseThrow().getOutput().get(0);
+        assertEquals(120L, item.getCount());
+        assertEquals(Map.of("https://example.org/size", 4096), item.getExtension());
+    }
+
     @Test
     void export_has_finished_with_no_results() throws IOException, InterruptedException, ExecutionException {
         configureExportInitiation();
@@ -205,6 +233,155 @@ public class TestBDExportClient {
         }
     }
 
+    @Test
+    void timed_get_returns_at_the_deadline() throws IOException {
+        configureExportInitiation();
+        configurePollInProgress();
+
+        Future<BDExportResponse> future = exportClient.initiate(new BDExportRequest(exportUri));
+
+        long start = System.nanoTime();
+        assertThrows(TimeoutException.class, () -> future.get(200, TimeUnit.MILLISECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(elapsedMillis >= 200 && elapsedMillis < 1000, "Timed out after " + elapsedMillis + " ms");
+    }
+
+    @Test
+    void a_slow_poll_does_not_delay_a_timed_get() throws IOException {
+        configureExportInitiation();
+        configurePollInProgress();
+        // The next poll is due right away
+        pollResponse.setHeader("retry-after", "0");
+        AtomicInteger polls = new AtomicInteger();
+        // The first poll is answered at once, the following ones take longer than the timeout of the waiter
+        doAnswer(invocation -> {
+            if (polls.incrementAndGet() > 1) {
+                Thread.sleep(2000);
+            }
+            return pollResponse;
+        }).when(httpClient).execute(argThat(pollUriMatcher));
+
+        Future<BDExportResponse> future = exportClient.initiate(new BDExportRequest(exportUri));
+
+        long start = System.nanoTime();
+        assertThrows(TimeoutException.class, () -> future.get(200, TimeUnit.MILLISECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(elapsedMillis >= 200 && elapsedMillis < 1000, "Timed out after " + elapsedMillis + " ms");
+        assertTrue(polls.get() > 1, "The poll due right away was not made in the background");
+    }
+
+    @Test
+    void the_first_poll_in_the_background_waits_for_the_retry_after_of_the_initial_poll() throws Exception {
+        configureExportInitiation();
+        configurePollInProgress();
+        pollResponse.setHeader("retry-after", "1");
+
+        Future<BDExportResponse> future = exportClient.initiate(new BDExportRequest(exportUri));
+
+        Thread.sleep(700);
+        verify(httpClient, times(1)).execute(argThat(pollUriMatcher));
+
+        Thread.sleep(800);
+        verify(httpClient, times(2)).execute(argThat(pollUriMatcher));
+        assertFalse(future.isDone());
+    }
+
+    @Test
+    void concurrent_waiters_share_a_single_poller() throws Exception {
+        configureExportInitiation();
+        configurePollInProgress();
+        pollResponse.setHeader("retry-after", "1");
+
+        Future<BDExportResponse> future = exportClient.initiate(new BDExportRequest(exportUri));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<BDExportResponse>> waiters = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                waiters.add(executor.submit(() -> future.get(10, TimeUnit.SECONDS)));
+            }
+
+            Thread.sleep(300);
+            configurePollHasFinishedWithNoResults();
+
+            BDExportResponse first = waiters.get(0).get();
+            for (Future<BDExportResponse> waiter : waiters) {
+                assertSame(first, waiter.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The initial poll, and at most one poll every Retry-After, regardless of the number of waiters
+        verify(httpClient, atMost(3)).execute(argThat(pollUriMatcher));
+    }
+
+    @Test
+    void cancelling_wakes_every_waiter_without_interrupting_the_caller() throws Exception {
+        configureExportInitiation();
+        configurePollInProgress();
+
+        Future<BDExportResponse> future = exportClient.initiate(new BDExportRequest(exportUri));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<BDExportResponse>> waiters = List.of(
+                    executor.submit(() -> future.get()),
+                    executor.submit(() -> future.get(10, TimeUnit.SECONDS))
+            );
+            Thread.sleep(200);
+
+            long start = System.nanoTime();
+            assertTrue(future.cancel(true));
+            assertFalse(Thread.currentThread().isInterrupted());
+
+            for (Future<BDExportResponse> waiter : waiters) {
+                ExecutionException e = assertThrows(ExecutionException.class, () -> waiter.get(1, TimeUnit.SECONDS));
+                assertInstanceOf(InterruptedException.class, e.getCause());
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+            assertTrue(future.isCancelled());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void a_cancellation_refused_by_the_server_is_not_reported_as_successful() throws Exception {
+        configureExportInitiation();
+        configurePollInProgress();
+        doThrow(new IOException("Connection refused")).when(httpClient).execute(argThat(request -> request instanceof HttpDelete));
+
+        Future<BDExportResponse> future = exportClient.initiate(new BDExportRequest(exportUri));
+
+        assertFalse(future.cancel(true));
+        // The future is still cancelled locally, so it neither polls nor blocks its waiters
+        assertTrue(future.isCancelled());
+        assertFalse(future.cancel(true));
+        verify(httpClient, times(1)).execute(argThat(request -> request instanceof HttpDelete));
+    }
+
+    @Test
+    void progress_is_published_to_listeners() throws Exception {
+        configureExportInitiation();
+        configurePollInProgress();
+        pollResponse.setHeader("x-progress", "Processed 1200 of 5000 resources");
+        pollResponse.setHeader("retry-after", "1");
+
+        List<ProgressEstimate> estimates = new CopyOnWriteArrayList<>();
+        exportClient.addProgressListener((locationUri, estimate) -> estimates.add(estimate));
+        Future<BDExportResponse> future = exportClient.initiate(new BDExportRequest(exportUri));
+
+        // A single poll in the background, after the Retry-After of the initial poll
+        assertThrows(TimeoutException.class, () -> future.get(1500, TimeUnit.MILLISECONDS));
+
+        assertEquals(1, estimates.size());
+        assertEquals(1200, estimates.get(0).getProgress().getProcessed().getAsLong());
+        assertEquals(5000, estimates.get(0).getProgress().getTotal().getAsLong());
+    }
+
     private void configureExportInitiation() {
         initateResponse.setHeader("content-location", pollUri.toString());
         initateResponse.setStatusCode(Constants.STATUS_HTTP_202_ACCEPTED);
@@ -0,0 +1,493 @@
+package com.trifork.ehealth.export;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.trifork.ehealth.export.cache.BinaryCache;
+import com.trifork.ehealth.export.cache.DiskSpillingBinaryCache;
+import com.trifork.ehealth.export.cache.LruBinaryCache;
+import com.trifork.ehealth.export.ndjson.NdjsonLineFilter;
+import com.trifork.ehealth.export.ratelimit.HostRateLimiter;
+import com.trifork.ehealth.export.response.BDExportResourceResult;
+import com.trifork.ehealth.export.response.BDExportResultResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestBDExportConverter {
+    private static final long LARGE_SIZE = 64L * 1024 * 1024;
+    private static final BDExportResultResponse result = new BDExportResultResponse(
+            "1337",
+            "http://localhost:8080/fhir/$export",
+            false,
+            List.of(
+                    new BDExportResultResponse.OutputItem("Condition", "http://localhost:8080/fhir/Binary/1"),
+                    new BDExportResultResponse.OutputItem("Patient", "http://localhost:8080/fhir/Binary/2")
+            ),
+            Collections.emptyList(),
+            ""
+    );
+
+    @TempDir
+    Path tempDir;
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private HttpServer server;
+    private final Map<String, String> acceptHeaders = new ConcurrentHashMap<>();
+    private final Map<String, String> authorizationHeaders = new ConcurrentHashMap<>();
+    private final Map<String, String> rangeHeaders = new ConcurrentHashMap<>();
+    private final AtomicInteger throttledRequests = new AtomicInteger();
+    private final AtomicLong largeBytesSent = new AtomicLong();
+    private final CountDownLatch largeSent = new CountDownLatch(1);
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/fhir/Binary/", this::serveOutput);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        fhirContext.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+    }
+
+    @AfterEach
+    void stopServer() {
+        stopped.countDown();
+        server.stop(0);
+    }
+
+    @Test
+    void eager_conversion_fetches_every_output() {
+        CountingConverter converter = new CountingConverter(new LruBinaryCache(1024));
+
+        converter.convert(result);
+
+        assertEquals(2, converter.fetched.size());
+    }
+
+    @Test
+    void lazy_conversion_fetches_output_on_first_access() {
+        CountingConverter converter = new CountingConverter(new LruBinaryCache(1024));
+
+        BDExportResourceResult resourceResult = converter.convertLazily(result);
+        assertTrue(converter.fetched.isEmpty());
+
+        BDExportResourceResult.ResourceItem item = resourceResult.getOutput().get(0);
+        assertEquals("Condition", item.getType());
+        assertArrayEquals(contentOf(item.getUrl()), item.getResource().getData());
+        assertArrayEquals(contentOf(item.getUrl()), item.getResource().getData());
+
+        assertEquals(List.of("http://localhost:8080/fhir/Binary/1"), converter.fetched);
+    }
+
+    @Test
+    void evicted_output_is_fetched_again() {
+        // Room for a single output only
+        LruBinaryCache cache = new LruBinaryCache(contentOf("http://localhost:8080/fhir/Binary/1").length);
+        CountingConverter converter = new CountingConverter(cache);
+
+        List<BDExportResourceResult.ResourceItem> output = converter.convertLazily(result).getOutput();
+        output.get(0).getResource();
+        output.get(1).getResource();
+        output.get(0).getResource();
+
+        assertEquals(3, converter.fetched.size());
+        assertTrue(cache.getCurrentBytes() <= cache.getMaxBytes());
+    }
+
+    @Test
+    void evicted_output_is_read_back_from_disk() throws IOException {
+        DiskSpillingBinaryCache cache = new DiskSpillingBinaryCache(tempDir, contentOf("http://localhost:8080/fhir/Binary/1").length);
+        CountingConverter converter = new CountingConverter(cache);
+
+        List<BDExportResourceResult.ResourceItem> output = converter.convertLazily(result).getOutput();
+        output.get(0).getResource();
+        output.get(1).getResource();
+        Binary spilled = output.get(0).getResource();
+
+        assertEquals(2, converter.fetched.size());
+        assertEquals(Constants.CT_FHIR_NDJSON, spilled.getContentType());
+        assertArrayEquals(contentOf(output.get(0).getUrl()), spilled.getData());
+        // No temporary files are left behind by the spills
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertTrue(files.allMatch(file -> file.getFileName().toString().endsWith(".bin")));
+        }
+    }
+
+    @Test
+    void output_larger_than_the_cache_is_cached_alone_until_the_next_output() {
+        LruBinaryCache cache = new LruBinaryCache(1);
+        CountingConverter converter = new CountingConverter(cache);
+
+        List<BDExportResourceResult.ResourceItem> output = converter.convertLazily(result).getOutput();
+        output.get(0).getResource();
+        output.get(0).getResource();
+        assertEquals(1, converter.fetched.size());
+
+        output.get(1).getResource();
+        output.get(0).getResource();
+        assertEquals(3, converter.fetched.size());
+        assertEquals(contentOf(output.get(0).getUrl()).length, cache.getCurrentBytes());
+    }
+
+    @Test
+    void concurrent_gets_of_an_output_share_a_single_fetch() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger fetches = new AtomicInteger();
+        BDExportConverter converter = new BDExportConverter(client(), new LruBinaryCache(1024)) {
+            @Override
+            protected InputStream openStream(String url, CancellationToken cancellationToken) {
+                fetches.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return new ByteArrayInputStream(contentOf(url));
+            }
+        };
+        BDExportResourceResult.ResourceItem item = converter.convertLazily(result).getOutput().get(0);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Binary>> gets = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                gets.add(executor.submit(item::getResource));
+            }
+            Thread.sleep(100);
+            release.countDown();
+
+            for (Future<Binary> get : gets) {
+                assertArrayEquals(contentOf(item.getUrl()), get.get(5, TimeUnit.SECONDS).getData());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, fetches.get());
+    }
+
+    @Test
+    void only_lines_accepted_by_the_filter_are_parsed() {
+        CountingConverter converter = new CountingConverter(new LruBinaryCache(1024));
+        List<IBaseResource> resources = new ArrayList<>();
+
+        long parsed = converter.forEachResource(result.getOutput().get(0), NdjsonLineFilter.resourceType("Patient"), resources::add);
+
+        assertEquals(1, parsed);
+        assertEquals(1, resources.size());
+        assertTrue(resources.get(0) instanceof Patient);
+        assertEquals("1", resources.get(0).getIdElement().getIdPart());
+    }
+
+    @Test
+    void output_is_downloaded_as_raw_ndjson_through_the_client_interceptors() {
+        IGenericClient client = fhirContext.newRestfulGenericClient(baseUrl());
+        client.registerInterceptor(new BearerTokenAuthInterceptor("secret"));
+        String url = baseUrl() + "/Binary/raw";
+
+        Binary binary = new BDExportConverter(client).fetch(new BDExportResultResponse.OutputItem("Basic", url));
+
+        assertArrayEquals(contentOf(url), binary.getData());
+        assertEquals(Constants.CT_FHIR_NDJSON, acceptHeaders.get("raw"));
+        assertEquals("Bearer secret", authorizationHeaders.get("raw"));
+    }
+
+    @Test
+    void output_is_read_as_a_binary_when_the_server_refuses_raw_ndjson() {
+        IGenericClient client = fhirContext.newRestfulGenericClient(baseUrl());
+        String url = baseUrl() + "/Binary/refused";
+
+        Binary binary = new BDExportConverter(client).fetch(new BDExportResultResponse.OutputItem("Basic", url));
+
+        assertArrayEquals(contentOf(url), binary.getData());
+        assertTrue(acceptHeaders.get("refused").contains(Constants.CT_FHIR_JSON_NEW));
+    }
+
+    @Test
+    void other_errors_of_a_raw_download_are_thrown_without_reading_a_binary() {
+        IGenericClient client = fhirContext.newRestfulGenericClient(baseUrl());
+        String url = baseUrl() + "/Binary/missing";
+
+        BaseServerResponseException e = assertThrows(BaseServerResponseException.class,
+                () -> new BDExportConverter(client).fetch(new BDExportResultResponse.OutputItem("Basic", url)));
+
+        assertEquals(404, e.getStatusCode());
+        // The last request asked for raw NDJSON, so no Binary was read
+        assertEquals(Constants.CT_FHIR_NDJSON, acceptHeaders.get("missing"));
+    }
+
+    @Test
+    void a_binary_sent_despite_the_accept_header_is_unwrapped() {
+        IGenericClient client = fhirContext.newRestfulGenericClient(baseUrl());
+        String url = baseUrl() + "/Binary/wrapped";
+
+        Binary binary = new BDExportConverter(client).fetch(new BDExportResultResponse.OutputItem("Basic", url));
+
+        assertArrayEquals(contentOf(url), binary.getData());
+        // Only a single request was needed
+        assertEquals(Constants.CT_FHIR_NDJSON, acceptHeaders.get("wrapped"));
+    }
+
+    @Test
+    void throttled_downloads_are_retried_after_retry_after() {
+        IGenericClient client = fhirContext.newRestfulGenericClient(baseUrl());
+        HostRateLimiter rateLimiter = new HostRateLimiter(100, 10);
+        String url = baseUrl() + "/Binary/throttled";
+
+        Binary binary = new BDExportConverter(client)
+                .setRateLimiter(rateLimiter)
+                .fetch(new BDExportResultResponse.OutputItem("Basic", url));
+
+        assertArrayEquals(contentOf(url), binary.getData());
+        // Two 429 responses, and the successful retry
+        assertEquals(3, throttledRequests.get());
+        // Halved twice, and recovered by a single step
+        assertEquals(30, rateLimiter.getPermitsPerSecond(URI.create(url)));
+    }
+
+    @Test
+    void cancelling_aborts_a_download_in_progress() throws Exception {
+        IGenericClient client = fhirContext.newRestfulGenericClient(baseUrl());
+        CancellationToken cancellationToken = new CancellationToken();
+        String url = baseUrl() + "/Binary/stalled";
+
+        try (InputStream in = new BDExportConverter(client).openStream(new BDExportResultResponse.OutputItem("Basic", url), cancellationToken)) {
+            // The first part of the content arrives, the rest never does
+            assertEquals('{', in.read());
+
+            long start = System.nanoTime();
+            Executors.newSingleThreadScheduledExecutor().schedule(cancellationToken::cancel, 100, TimeUnit.MILLISECONDS);
+
+            assertThrows(CancellationException.class, in::readAllBytes);
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        }
+    }
+
+    @Test
+    void a_cancelled_token_fails_before_downloading() {
+        IGenericClient client = fhirContext.newRestfulGenericClient(baseUrl());
+        CancellationToken cancellationToken = new CancellationToken();
+        cancellationToken.cancel();
+
+        assertThrows(CancellationException.class, () -> new BDExportConverter(client)
+                .fetch(new BDExportResultResponse.OutputItem("Basic", baseUrl() + "/Binary/raw"), cancellationToken));
+        assertTrue(acceptHeaders.isEmpty());
+    }
+
+    @Test
+    void files_are_probed_and_downloaded_from_an_offset() throws IOException {
+        IGenericClient client = fhirContext.newRestfulGenericClient(baseUrl());
+        BDExportConverter converter = new BDExportConverter(client);
+        BDExportResultResponse.OutputItem ranged = new BDExportResultResponse.OutputItem("Basic", baseUrl() + "/Binary/ranged");
+        BDExportResultResponse.OutputItem raw = new BDExportResultResponse.OutputItem("Basic", baseUrl() + "/Binary/raw");
+        byte[] content = contentOf(ranged.getUrl());
+
+        OutputProbe rangedProbe = converter.probe(ranged, new CancellationToken());
+        assertEquals(OptionalLong.of(content.length), rangedProbe.getContentLength());
+        assertTrue(rangedProbe.isSplittable());
+
+        // The server ignores ranges of "raw", and sends the whole file
+        OutputProbe rawProbe = converter.probe(raw, new CancellationToken());
+        assertEquals(OptionalLong.of(contentOf(raw.getUrl()).length), rawProbe.getContentLength());
+        assertFalse(rawProbe.isSplittable());
+
+        try (InputStream in = converter.openStream(ranged, 10, new CancellationToken())) {
+            assertArrayEquals(Arrays.copyOfRange(content, 10, content.length), in.readAllBytes());
+        }
+        try (InputStream in = converter.openStream(raw, 10, new CancellationToken())) {
+            byte[] rawContent = contentOf(raw.getUrl());
+            assertArrayEquals(Arrays.copyOfRange(rawContent, 10, rawContent.length), in.readAllBytes());
+        }
+        assertEquals("bytes=10-", rangeHeaders.get("ranged"));
+
+        try (InputStream in = converter.openStream(ranged, 10, 19, new CancellationToken())) {
+            assertArrayEquals(Arrays.copyOfRange(content, 10, 20), in.readAllBytes());
+        }
+        try (InputStream in = converter.openStream(raw, 10, 19, new CancellationToken())) {
+            assertArrayEquals(Arrays.copyOfRange(contentOf(raw.getUrl()), 10, 20), in.readAllBytes());
+        }
+        assertEquals("bytes=10-19", rangeHeaders.get("ranged"));
+    }
+
+    @Test
+    void closing_a_partly_read_download_does_not_download_the_rest() throws Exception {
+        IGenericClient client = fhirContext.newRestfulGenericClient(baseUrl());
+        BDExportResultResponse.OutputItem large = new BDExportResultResponse.OutputItem("Basic", baseUrl() + "/Binary/large");
+
+        try (InputStream in = new BDExportConverter(client).openStream(large, new CancellationToken())) {
+            assertEquals('{', in.read());
+        }
+
+        // The connection is closed, instead of reading the rest of the file to reuse it
+        assertTrue(largeSent.await(10, TimeUnit.SECONDS));
+        assertTrue(largeBytesSent.get() < LARGE_SIZE, "Sent " + largeBytesSent.get() + " bytes");
+    }
+
+    /**
+     * Serves "ranged" as NDJSON, that supports ranges, "stalled" as the first part of an NDJSON file, that never ends,
+     * "raw" as NDJSON, "throttled" as NDJSON after two 429 responses, "wrapped" as a Binary regardless of the Accept header,
+     * "refused" as a Binary, but only when NDJSON is not asked for, "missing" as not found, and "large" as NDJSON of
+     * {@link #LARGE_SIZE} bytes, counting the bytes sent until the client hangs up.
+     */
+    private void serveOutput(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        acceptHeaders.put(name, accept);
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization != null) {
+            authorizationHeaders.put(name, authorization);
+        }
+
+        byte[] content = contentOf(exchange.getRequestURI().toString());
+        boolean ndjsonAccepted = Constants.CT_FHIR_NDJSON.equals(accept);
+
+        if (name.equals("stalled")) {
+            exchange.getResponseHeaders().add("Content-Type", Constants.CT_FHIR_NDJSON);
+            exchange.sendResponseHeaders(200, 0);
+            exchange.getResponseBody().write(content, 0, content.length / 2);
+            exchange.getResponseBody().flush();
+            try {
+                stopped.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        } else if (name.equals("large")) {
+            serveLarge(exchange);
+        } else if (name.equals("throttled") && throttledRequests.incrementAndGet() <= 2) {
+            exchange.getResponseHeaders().add("Retry-After", "0");
+            respond(exchange, 429, "text/plain", new byte[0]);
+        } else if (name.equals("ranged")) {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range == null) {
+                respond(exchange, 200, Constants.CT_FHIR_NDJSON, content);
+                return;
+            }
+            rangeHeaders.put(name, range);
+
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            int from = Integer.parseInt(bounds[0]);
+            int to = bounds[1].isEmpty() ? content.length - 1 : Math.min(content.length - 1, Integer.parseInt(bounds[1]));
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + content.length);
+            respond(exchange, 206, Constants.CT_FHIR_NDJSON, Arrays.copyOfRange(content, from, to + 1));
+        } else if (name.equals("raw") || name.equals("throttled")) {
+            respond(exchange, 200, Constants.CT_FHIR_NDJSON, content);
+        } else if (name.equals("missing")) {
+            respond(exchange, 404, "text/plain", new byte[0]);
+        } else if (name.equals("refused") && ndjsonAccepted) {
+            respond(exchange, 406, "text/plain", new byte[0]);
+        } else {
+            Binary binary = new Binary().setContentType(Constants.CT_FHIR_NDJSON).setData(content);
+            binary.setId(name);
+            byte[] body = fhirContext.newJsonParser().encodeResourceToString(binary).getBytes(StandardCharsets.UTF_8);
+            respond(exchange, 200, Constants.CT_FHIR_JSON_NEW, body);
+        }
+    }
+
+    private void serveLarge(HttpExchange exchange) throws IOException {
+        byte[] line = "{\"resourceType\":\"Basic\"}\n".getBytes(StandardCharsets.UTF_8);
+        byte[] chunk = new byte[64 * line.length * 16];
+        for (int i = 0; i < chunk.length; i += line.length) {
+            System.arraycopy(line, 0, chunk, i, line.length);
+        }
+
+        exchange.getResponseHeaders().add("Content-Type", Constants.CT_FHIR_NDJSON);
+        exchange.sendResponseHeaders(200, LARGE_SIZE);
+        try {
+            while (largeBytesSent.get() < LARGE_SIZE) {
+                int length = (int) Math.min(chunk.length, LARGE_SIZE - largeBytesSent.get());
+                exchange.getResponseBody().write(chunk, 0, length);
+                largeBytesSent.addAndGet(length);
+            }
+        } catch (IOException e) {
+            // The client hung up
+        } finally {
+            largeSent.countDown();
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+
+    private String baseUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/fhir";
+    }
+
+    private static byte[] contentOf(String url) {
+        String id = url.substring(url.lastIndexOf('/') + 1);
+        return ("{\"resourceType\":\"Basic\",\"id\":\"" + id + "\"}\n{\"resourceType\":\"Patient\",\"id\":\"" + id + "\"}\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static IGenericClient client() {
+        IGenericClient client = mock(IGenericClient.class);
+        when(client.getFhirContext()).thenReturn(FhirContext.forR4Cached());
+        return client;
+    }
+
+    static class CountingConverter extends BDExportConverter {
+        private final List<String> fetched = new ArrayList<>();
+
+        CountingConverter(BinaryCache cache) {
+            super(client(), cache);
+        }
+
+        @Override
+        protected InputStream openStream(String url, CancellationToken cancellationToken) {
+            fetched.add(url);
+            return new ByteArrayInputStream(contentOf(url));
+        }
+    }
+}
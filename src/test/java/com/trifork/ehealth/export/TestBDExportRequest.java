@@ -15,6 +15,7 @@ import java.net.URI;
 import java.util.Date;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 
 @DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
 public class TestBDExportRequest {
@@ -96,4 +97,22 @@ public class TestBDExportRequest {
                 parameters.getParameterValue("_typeFilter").primitiveValue()
         );
     }
+
+    @Test
+    void fingerprint_ignores_the_order_of_types() {
+        FhirContext fhirContext = FhirContext.forR4();
+        BDExportRequest request = BDExportRequest.createSystemExportRequest(baseUri)
+                .addType(ResourceType.Patient)
+                .addType(ResourceType.Observation);
+        BDExportRequest reordered = BDExportRequest.createSystemExportRequest(baseUri)
+                .addType(ResourceType.Observation)
+                .addType(ResourceType.Patient);
+        BDExportRequest since = BDExportRequest.createSystemExportRequest(baseUri)
+                .addType(ResourceType.Observation)
+                .addType(ResourceType.Patient)
+                .setSince(new InstantType(new Date()));
+
+        assertEquals(request.fingerprint(fhirContext), reordered.fingerprint(fhirContext));
+        assertNotEquals(request.fingerprint(fhirContext), since.fingerprint(fhirContext));
+    }
 }
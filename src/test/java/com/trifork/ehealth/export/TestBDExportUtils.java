@@ -0,0 +1,60 @@
+package com.trifork.ehealth.export;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestBDExportUtils {
+
+    @Test
+    void retry_after_in_seconds_is_parsed() {
+        assertEquals(Optional.of(Duration.ofSeconds(120)), BDExportUtils.parseRetryAfter("120"));
+    }
+
+    @Test
+    void retry_after_as_http_date_is_parsed() {
+        String date = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusMinutes(2));
+
+        assertThat(BDExportUtils.parseRetryAfter(date)).hasValueSatisfying(duration ->
+                assertThat(duration).isBetween(Duration.ofSeconds(100), Duration.ofSeconds(120))
+        );
+        assertEquals(Optional.of(Duration.ZERO), BDExportUtils.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+    }
+
+    @Test
+    void retry_after_is_taken_from_a_failed_response_of_the_client() {
+        BaseServerResponseException throttled = BaseServerResponseException.newInstance(429, "Too many requests");
+        assertEquals(Optional.empty(), BDExportUtils.extractRetryAfter(throttled));
+
+        throttled.addResponseHeader("Retry-After", "Wed, 21 Oct 2015 07:28:00 GMT");
+        assertEquals(Optional.of(Duration.ZERO), BDExportUtils.extractRetryAfter(throttled));
+    }
+
+    @Test
+    void every_way_of_writing_a_server_has_the_same_key() {
+        String key = BDExportUtils.serverKeyOf(URI.create("https://fhir.example.com/fhir/$export"));
+
+        assertEquals("https://fhir.example.com:443", key);
+        assertEquals(key, BDExportUtils.serverKeyOf(URI.create("HTTPS://FHIR.example.com:443/fhir/Binary/1")));
+        assertEquals("http://fhir.example.com:80", BDExportUtils.serverKeyOf(URI.create("http://fhir.example.com/fhir")));
+        assertEquals("http://fhir.example.com:8080", BDExportUtils.serverKeyOf(URI.create("http://fhir.example.com:8080/fhir")));
+    }
+
+    @Test
+    void invalid_retry_after_is_ignored() {
+        assertEquals(Optional.empty(), BDExportUtils.parseRetryAfter("soon"));
+        assertEquals(Optional.empty(), BDExportUtils.parseRetryAfter(null));
+    }
+}
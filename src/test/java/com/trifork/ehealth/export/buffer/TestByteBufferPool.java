@@ -0,0 +1,178 @@
+package com.trifork.ehealth.export.buffer;
+
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestByteBufferPool {
+
+    @Test
+    void content_is_read_back_across_buffers() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(16, 1024);
+        byte[] bytes = randomBytes(100);
+
+        try (PooledContent content = new PooledContent(pool)) {
+            content.readFrom(new ByteArrayInputStream(bytes));
+            assertEquals(100, content.size());
+
+            try (InputStream in = content.openStream()) {
+                assertArrayEquals(bytes, in.readAllBytes());
+            }
+        }
+
+        assertEquals(0, pool.getBytesInUse());
+    }
+
+    @Test
+    void buffers_are_reused_by_the_next_downloads() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(16, 1024);
+
+        for (int i = 0; i < 100; i++) {
+            try (PooledContent content = new PooledContent(pool)) {
+                content.readFrom(new ByteArrayInputStream(new byte[50]));
+            }
+        }
+
+        // 4 buffers for every download, allocated by the first one only
+        assertEquals(4, pool.getBuffersAllocated());
+    }
+
+    @Test
+    void a_download_waits_for_the_budget_until_its_reader_catches_up() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(16, 32);
+        byte[] bytes = randomBytes(1000);
+        PooledContent content = new PooledContent(pool);
+
+        CompletableFuture<Void> download = CompletableFuture.runAsync(() -> readFrom(content, bytes));
+        Thread.sleep(200);
+
+        // Nobody reads the content yet, so the download stops at the budget
+        assertFalse(download.isDone());
+        assertEquals(32, content.size());
+        assertEquals(32, pool.getBytesInUse());
+
+        try (InputStream in = content.openStream()) {
+            assertArrayEquals(bytes, in.readAllBytes());
+        }
+        download.get(5, TimeUnit.SECONDS);
+        content.close();
+
+        // A waiting reader admits a buffer beyond the budget
+        assertTrue(pool.getPeakBytesInUse() <= pool.getMaxBytes() + pool.getBufferSize());
+        assertEquals(0, pool.getBytesInUse());
+    }
+
+    @Test
+    void closing_the_content_stops_its_download() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(16, 32);
+        PooledContent content = new PooledContent(pool);
+
+        CompletableFuture<Void> download = CompletableFuture.runAsync(() -> readFrom(content, new byte[1000]));
+        Thread.sleep(200);
+        content.close();
+
+        download.get(5, TimeUnit.SECONDS);
+        assertEquals(0, pool.getBytesInUse());
+    }
+
+    @Test
+    void gzipped_content_is_inflated_from_the_buffers() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(16, 1024 * 1024);
+        byte[] first = randomText(5000);
+        byte[] second = randomText(300);
+        ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+        concatenated.write(gzip(first));
+        concatenated.write(gzip(second));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(first);
+        expected.write(second);
+
+        Inflater inflater = new Inflater(true);
+        // The inflater is reused, and the gzip headers span buffers of 16 bytes
+        for (int i = 0; i < 2; i++) {
+            try (PooledContent content = new PooledContent(pool)) {
+                content.readFrom(new ByteArrayInputStream(concatenated.toByteArray()));
+
+                try (InputStream in = content.openDecompressedStream(inflater)) {
+                    assertArrayEquals(expected.toByteArray(), in.readAllBytes());
+                }
+            }
+        }
+
+        try (PooledContent content = new PooledContent(pool)) {
+            content.readFrom(new ByteArrayInputStream(first));
+
+            try (InputStream in = content.openDecompressedStream(inflater)) {
+                assertArrayEquals(first, in.readAllBytes());
+            }
+        }
+        assertEquals(0, pool.getBytesInUse());
+    }
+
+    @Test
+    void a_failed_download_fails_its_reader() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(16, 1024);
+
+        InputStream failing = new SequenceInputStream(new ByteArrayInputStream(new byte[20]), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        });
+
+        try (PooledContent content = new PooledContent(pool)) {
+            IOException failure = assertThrows(IOException.class, () -> content.readFrom(failing));
+            content.fail(failure);
+
+            InputStream in = content.openStream();
+            IOException e = assertThrows(IOException.class, in::readAllBytes);
+            assertEquals("Connection reset", e.getCause().getMessage());
+        }
+        assertEquals(0, pool.getBytesInUse());
+    }
+
+    private static void readFrom(PooledContent content, byte[] bytes) {
+        try {
+            content.readFrom(new ByteArrayInputStream(bytes));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(7).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] randomText(int size) {
+        Random random = new Random(size);
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return bytes;
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+}
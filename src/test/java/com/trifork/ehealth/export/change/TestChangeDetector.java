@@ -0,0 +1,110 @@
+package com.trifork.ehealth.export.change;
+
+import com.trifork.ehealth.export.ndjson.NdjsonReader;
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestChangeDetector {
+
+    @Test
+    void unchanged_resources_are_dropped_even_when_their_meta_changed() throws Exception {
+        ChangeDetector detector = new ChangeDetector(100);
+
+        assertEquals(List.of("1", "2"), accepted(detector,
+                "{\"resourceType\":\"Patient\",\"id\":\"1\",\"meta\":{\"versionId\":\"1\"},\"active\":true}",
+                "{\"resourceType\":\"Patient\",\"id\":\"2\",\"meta\":{\"versionId\":\"1\"},\"active\":true}"));
+
+        assertEquals(List.of("2", "3"), accepted(detector,
+                "{\"resourceType\":\"Patient\",\"id\":\"1\",\"meta\":{\"versionId\":\"2\",\"lastUpdated\":\"2024-01-01T00:00:00Z\"},\"active\":true}",
+                "{\"resourceType\":\"Patient\",\"id\":\"2\",\"meta\":{\"versionId\":\"2\"},\"active\":false}",
+                "{\"resourceType\":\"Patient\",\"id\":\"3\",\"active\":true}"));
+
+        assertEquals(3, detector.getAdded());
+        assertEquals(1, detector.getChanged());
+        assertEquals(1, detector.getUnchanged());
+        assertEquals(3, detector.size());
+    }
+
+    @Test
+    void resources_are_recognized_by_type_and_id() throws Exception {
+        ChangeDetector detector = new ChangeDetector(100);
+
+        accepted(detector, "{\"resourceType\":\"Patient\",\"id\":\"1\",\"active\":true}");
+
+        // The same content, but another resource
+        assertEquals(List.of("1"), accepted(detector, "{\"resourceType\":\"Person\",\"id\":\"1\",\"active\":true}"));
+    }
+
+    @Test
+    void fingerprints_are_kept_between_runs(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("fingerprints.bin");
+        ChangeDetector first = ChangeDetector.load(file, 100);
+        accepted(first, "{\"resourceType\":\"Patient\",\"id\":\"1\",\"active\":true}");
+        first.save(file);
+
+        ChangeDetector second = ChangeDetector.load(file, 100);
+        assertEquals(1, second.size());
+        assertEquals(List.of(), accepted(second, "{\"resourceType\":\"Patient\",\"id\":\"1\",\"active\":true}"));
+
+        // Only the state file is left, not the temporary file it was saved through
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(List.of(file), files.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    void the_map_grows_past_its_expected_size(@TempDir Path directory) throws IOException {
+        OffHeapLongMap map = new OffHeapLongMap(16);
+        Random random = new Random(42);
+        long[] keys = new long[200_000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i == 0 ? 0 : random.nextLong();
+            assertEquals(-1, map.put(keys[i], i, -1));
+        }
+
+        assertEquals(keys.length, map.size());
+        assertEquals(7, map.put(keys[7], 8, -1));
+
+        Path file = directory.resolve("map.bin");
+        map.writeTo(file);
+        OffHeapLongMap reloaded = OffHeapLongMap.readFrom(file);
+
+        assertEquals(keys.length, reloaded.size());
+        assertEquals(0, reloaded.get(0, -1));
+        assertEquals(8, reloaded.get(keys[7], -1));
+        for (int i = 8; i < keys.length; i++) {
+            assertEquals(i, reloaded.get(keys[i], -1));
+        }
+        assertEquals(-1, reloaded.get(12345, -1));
+    }
+
+    private static List<String> accepted(ChangeDetector detector, String... lines) throws IOException, InterruptedException {
+        List<String> ids = new ArrayList<>();
+        new NdjsonReader().forEachLine(
+                new ByteArrayInputStream(String.join("\n", lines).getBytes(StandardCharsets.UTF_8)),
+                header -> {
+                    if (detector.accept(header)) {
+                        ids.add(header.getId());
+                    }
+                }
+        );
+
+        return ids;
+    }
+}
@@ -0,0 +1,208 @@
+package com.trifork.ehealth.export.filter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.NumberParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.TokenParamModifier;
+import com.trifork.ehealth.export.BDExportRequest;
+import com.trifork.ehealth.export.BDExportTypeFilter;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestTypeFilterEvaluator {
+    private static final String CLINICAL_SYSTEM = "http://terminology.hl7.org/CodeSystem/condition-clinical";
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    void token_filter_matches_coding() {
+        TypeFilterEvaluator evaluator = evaluator(
+                new BDExportTypeFilter(ResourceType.Condition, "clinical-status", new TokenParam(CLINICAL_SYSTEM, "active"))
+        );
+
+        assertTrue(evaluator.matches(condition("active")));
+        assertFalse(evaluator.matches(condition("inactive")));
+    }
+
+    @Test
+    void token_filter_with_not_modifier_is_negated() {
+        TypeFilterEvaluator evaluator = evaluator(
+                new BDExportTypeFilter(ResourceType.Condition, "clinical-status", new TokenParam("active").setModifier(TokenParamModifier.NOT))
+        );
+
+        assertFalse(evaluator.matches(condition("active")));
+        assertTrue(evaluator.matches(condition("inactive")));
+        assertTrue(evaluator.matches(new Condition()));
+    }
+
+    @Test
+    void filters_for_the_same_type_are_or_ed_and_queries_are_and_ed() {
+        TypeFilterEvaluator evaluator = evaluator(
+                new BDExportTypeFilter(ResourceType.Condition, "clinical-status", new TokenParam("active")),
+                new BDExportTypeFilter(ResourceType.Condition, "clinical-status", new TokenParam("inactive"))
+                        .and("subject", new ReferenceParam("Patient/1"))
+        );
+
+        assertTrue(evaluator.matches(condition("active")));
+        assertFalse(evaluator.matches(condition("inactive")));
+        assertTrue(evaluator.matches(condition("inactive").setSubject(new Reference("Patient/1"))));
+        assertFalse(evaluator.matches(condition("recurrence").setSubject(new Reference("Patient/1"))));
+    }
+
+    @Test
+    void types_without_filters_are_kept() {
+        TypeFilterEvaluator evaluator = evaluator(
+                new BDExportTypeFilter(ResourceType.Condition, "clinical-status", new TokenParam("active"))
+        );
+
+        assertTrue(evaluator.matches(new Patient()));
+    }
+
+    @Test
+    void types_that_were_not_requested_are_dropped() {
+        BDExportRequest request = BDExportRequest.createSystemExportRequest(URI.create("http://localhost:8080/fhir"))
+                .addType(ResourceType.Condition);
+        TypeFilterEvaluator evaluator = TypeFilterEvaluator.forRequest(fhirContext, request);
+
+        assertTrue(evaluator.matches(condition("active")));
+        assertFalse(evaluator.matches(new Patient()));
+        assertFalse(evaluator.mightMatch("Patient", "{\"resourceType\":\"Patient\"}"));
+    }
+
+    @Test
+    void date_filter_compares_ranges() {
+        TypeFilterEvaluator evaluator = evaluator(
+                new BDExportTypeFilter(
+                        ResourceType.Condition,
+                        "recorded-date",
+                        new DateParam(ParamPrefixEnum.GREATERTHAN, new DateType("2023-10-20"))
+                )
+        );
+
+        assertTrue(evaluator.matches(condition("active").setRecordedDateElement(new DateTimeType("2023-10-21T10:00:00Z"))));
+        assertFalse(evaluator.matches(condition("active").setRecordedDateElement(new DateTimeType("2023-10-19"))));
+        assertFalse(evaluator.matches(condition("active")));
+    }
+
+    @Test
+    void date_filter_on_choice_type() {
+        TypeFilterEvaluator evaluator = evaluator(
+                new BDExportTypeFilter(
+                        ResourceType.Condition,
+                        "onset-date",
+                        new DateParam(ParamPrefixEnum.EQUAL, new DateType("2023-10-20"))
+                )
+        );
+
+        assertTrue(evaluator.matches(condition("active").setOnset(new DateTimeType("2023-10-20T08:30:00"))));
+        assertFalse(evaluator.matches(condition("active").setOnset(new DateTimeType("2023-10-21T08:30:00"))));
+    }
+
+    @Test
+    void last_updated_filter_uses_meta() {
+        TypeFilterEvaluator evaluator = evaluator(
+                new BDExportTypeFilter(
+                        ResourceType.Condition,
+                        "_lastUpdated",
+                        new DateParam(ParamPrefixEnum.LESSTHAN, new DateType("2023-10-20"))
+                )
+        );
+
+        Condition old = condition("active");
+        old.getMeta().setLastUpdatedElement(new InstantType("2023-01-01T00:00:00Z"));
+        Condition recent = condition("active");
+        recent.getMeta().setLastUpdatedElement(new InstantType("2024-01-01T00:00:00Z"));
+
+        assertTrue(evaluator.matches(old));
+        assertFalse(evaluator.matches(recent));
+    }
+
+    @Test
+    void string_filter_is_a_case_insensitive_prefix_match() {
+        TypeFilterEvaluator evaluator = evaluator(
+                new BDExportTypeFilter(ResourceType.Patient, "name", new StringParam("jens"))
+        );
+
+        Patient patient = new Patient();
+        patient.addName().setFamily("Jensen").addGiven("Søren");
+
+        assertTrue(evaluator.matches(patient));
+        assertFalse(evaluator.matches(new Patient().addName(new HumanName().setFamily("Hansen"))));
+    }
+
+    @Test
+    void reference_filter_through_resolve_checks_the_reference_type() {
+        TypeFilterEvaluator evaluator = evaluator(
+                new BDExportTypeFilter(ResourceType.Observation, "patient", new ReferenceParam("Patient/1"))
+        );
+
+        assertTrue(evaluator.matches(new Observation().setSubject(new Reference("Patient/1"))));
+        assertFalse(evaluator.matches(new Observation().setSubject(new Reference("Group/1"))));
+        assertFalse(evaluator.matches(new Observation().setSubject(new Reference("Patient/2"))));
+    }
+
+    @Test
+    void lines_without_required_token_are_rejected_before_parsing() {
+        TypeFilterEvaluator evaluator = evaluator(
+                new BDExportTypeFilter(ResourceType.Condition, "clinical-status", new TokenParam("active")),
+                new BDExportTypeFilter(ResourceType.Condition, "subject", new ReferenceParam("Patient/42"))
+        );
+
+        String active = fhirContext.newJsonParser().encodeResourceToString(condition("active"));
+        String inactive = fhirContext.newJsonParser().encodeResourceToString(condition("inactive"));
+        String resolved = fhirContext.newJsonParser().encodeResourceToString(condition("resolved"));
+        String forPatient = fhirContext.newJsonParser().encodeResourceToString(
+                condition("resolved").setSubject(new Reference("Patient/42"))
+        );
+
+        assertTrue(evaluator.mightMatch("Condition", active));
+        // "inactive" contains "active", so the line must be parsed to reject it
+        assertTrue(evaluator.mightMatch("Condition", inactive));
+        assertFalse(evaluator.mightMatch("Condition", resolved));
+        assertTrue(evaluator.mightMatch("Condition", forPatient));
+    }
+
+    @Test
+    void unsupported_parameters_are_rejected_when_compiled() {
+        assertThrows(IllegalArgumentException.class, () -> evaluator(
+                new BDExportTypeFilter(ResourceType.Condition, "unknown-param", new TokenParam("active"))
+        ));
+        assertThrows(IllegalArgumentException.class, () -> evaluator(
+                new BDExportTypeFilter(ResourceType.RiskAssessment, "probability", new NumberParam("0.5"))
+        ));
+    }
+
+    private TypeFilterEvaluator evaluator(BDExportTypeFilter... filters) {
+        return new TypeFilterEvaluator(fhirContext, List.of(filters));
+    }
+
+    private static Condition condition(String clinicalStatus) {
+        Condition condition = new Condition();
+        condition.setClinicalStatus(new CodeableConcept(new Coding(CLINICAL_SYSTEM, clinicalStatus, null)));
+        return condition;
+    }
+}
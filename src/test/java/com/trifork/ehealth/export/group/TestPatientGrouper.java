@@ -0,0 +1,132 @@
+package com.trifork.ehealth.export.group;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.trifork.ehealth.export.pipeline.ResourceBatch;
+import com.trifork.ehealth.export.response.BDExportResultResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestPatientGrouper {
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    void resources_of_every_output_file_are_grouped_by_patient(@TempDir Path directory) throws Exception {
+        Map<String, List<String>> bundles;
+        try (PatientGrouper grouper = new PatientGrouper(fhirContext, directory, Long.MAX_VALUE)) {
+            grouper.accept(batch("Observation",
+                    observation("o1", "p2"), observation("o2", "p1"), observation("o3", "p2")));
+            grouper.accept(batch("Patient", patient("p1"), patient("p2")));
+            grouper.accept(batch("Practitioner", new Practitioner().setId("pr1")));
+
+            bundles = finish(grouper);
+
+            assertEquals(0, grouper.getSpilledRuns());
+            assertEquals(5, grouper.getGrouped());
+            assertEquals(1, grouper.getUngrouped());
+        }
+
+        Map<String, List<String>> expected = new LinkedHashMap<>();
+        expected.put("p1", List.of("Patient/p1", "Observation/o2"));
+        expected.put("p2", List.of("Patient/p2", "Observation/o1", "Observation/o3"));
+        assertEquals(expected, bundles);
+    }
+
+    @Test
+    void groups_beyond_the_memory_budget_are_spilled_and_merged(@TempDir Path directory) throws Exception {
+        List<IBaseResource> observations = new ArrayList<>();
+        List<IBaseResource> patients = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            patients.add(patient("p" + i));
+            for (int j = 0; j < 4; j++) {
+                observations.add(observation("o" + i + "-" + j, "p" + i));
+            }
+        }
+
+        // Only the patient of an encounter owns it, not its practitioner
+        Encounter encounter = new Encounter();
+        encounter.setId("e1");
+        encounter.setSubject(new Reference("Patient/p7"));
+        encounter.addParticipant().setIndividual(new Reference("Practitioner/pr1"));
+
+        Map<String, List<String>> bundles;
+        try (PatientGrouper grouper = new PatientGrouper(fhirContext, directory, 4096)) {
+            for (int i = 0; i < observations.size(); i += 20) {
+                grouper.accept(batch("Observation", observations.subList(i, i + 20).toArray(new IBaseResource[0])));
+            }
+            grouper.accept(batch("Patient", patients.toArray(new IBaseResource[0])));
+            grouper.accept(batch("Encounter", encounter));
+
+            assertThat(grouper.getSpilledRuns()).isGreaterThan(5);
+            bundles = finish(grouper);
+            assertThat(files(directory)).isNotEmpty();
+        }
+        assertThat(files(directory)).isEmpty();
+
+        assertEquals(50, bundles.size());
+        for (int i = 0; i < 50; i++) {
+            List<String> resources = bundles.get("p" + i);
+            assertEquals("Patient/p" + i, resources.get(0));
+            assertThat(resources).containsAll(List.of(
+                    "Observation/o" + i + "-0", "Observation/o" + i + "-1",
+                    "Observation/o" + i + "-2", "Observation/o" + i + "-3"));
+        }
+        assertEquals("Encounter/e1", bundles.get("p7").get(5));
+        assertThat(new ArrayList<>(bundles.keySet())).isSorted();
+    }
+
+    private static Map<String, List<String>> finish(PatientGrouper grouper) throws Exception {
+        Map<String, List<String>> bundles = new LinkedHashMap<>();
+        grouper.finish((patientId, bundle) -> bundles.put(patientId, bundle.getEntry().stream()
+                .map(Bundle.BundleEntryComponent::getResource)
+                .map(resource -> resource.getIdElement().toUnqualifiedVersionless().getValue())
+                .collect(Collectors.toList())));
+
+        return bundles;
+    }
+
+    private static ResourceBatch batch(String type, IBaseResource... resources) {
+        BDExportResultResponse.OutputItem item = new BDExportResultResponse.OutputItem(type, "http://localhost/" + type + ".ndjson");
+        return new ResourceBatch(item, 0, true, List.of(resources));
+    }
+
+    private static Patient patient(String id) {
+        Patient patient = new Patient();
+        patient.setId("Patient/" + id);
+        return patient;
+    }
+
+    private static Observation observation(String id, String patientId) {
+        Observation observation = new Observation();
+        observation.setId("Observation/" + id);
+        observation.setSubject(new Reference("Patient/" + patientId));
+        return observation;
+    }
+
+    private static List<Path> files(Path directory) throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.trifork.ehealth.export.integrity;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.trifork.ehealth.export.pipeline.ResourceBatch;
+import com.trifork.ehealth.export.response.BDExportResultResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestReferenceChecker {
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void references_to_resources_missing_from_the_export_are_reported() throws Exception {
+        Observation resolved = observation("o-1", "Patient/p-1");
+        Observation dangling = observation("o-2", "Patient/p-9");
+        Observation versioned = observation("o-3", "Patient/p-2/_history/4");
+        Observation absolute = observation("o-4", "http://other.example.com/fhir/Patient/p-9");
+        Observation contained = observation("o-5", "#p");
+        // No Organizations are exported, so references to them cannot be checked
+        contained.setPerformer(List.of(new Reference("Organization/org-1")));
+
+        Encounter encounter = new Encounter();
+        encounter.setId("Encounter/e-1");
+        encounter.setSubject(new Reference("Patient/p-1"));
+        encounter.addParticipant().setIndividual(new Reference("Practitioner/pr-1"));
+        encounter.addParticipant().setIndividual(new Reference("Practitioner/pr-2"));
+
+        Practitioner practitioner = new Practitioner();
+        practitioner.setId("Practitioner/pr-1");
+
+        IntegrityReport report;
+        try (ReferenceChecker checker = new ReferenceChecker(fhirContext, directory)) {
+            // The references are checked when the export is finished, so they can precede the resources they point to
+            checker.accept(batch(resolved, dangling, versioned, absolute, contained, encounter));
+            checker.accept(batch(patient("p-1"), patient("p-2"), practitioner));
+            report = checker.finish();
+
+            assertThrows(IllegalStateException.class, () -> checker.accept(batch(patient("p-3"))));
+        }
+
+        assertEquals(9, report.getResources());
+        assertEquals(6, report.getCheckedReferences());
+        assertEquals(2, report.getDanglingReferences());
+        assertEquals(3, report.getUncheckedReferences());
+        assertFalse(report.isIntact());
+        assertEquals(Map.of("Observation.subject", 1L, "Encounter.participant.individual", 1L), report.getDanglingByElement());
+        assertThat(report.getDangling()).extracting(IntegrityReport.DanglingReference::toString).containsExactlyInAnyOrder(
+                "Observation/o-2 Observation.subject -> Patient/p-9",
+                "Encounter/e-1 Encounter.participant.individual -> Practitioner/pr-2");
+        assertThat(Files.list(directory)).isEmpty();
+    }
+
+    @Test
+    void batches_of_several_threads_are_checked_and_the_report_is_capped() throws Exception {
+        IntegrityReport report;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (ReferenceChecker checker = new ReferenceChecker(fhirContext, directory).setMaxReported(10)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                int offset = thread * 5000;
+                futures.add(executor.submit(() -> {
+                    for (int i = offset; i < offset + 5000; i += 100) {
+                        List<IBaseResource> resources = new ArrayList<>();
+                        for (int j = i; j < i + 100; j++) {
+                            resources.add(patient("p-" + j));
+                            // Every tenth Observation points past the last Patient
+                            resources.add(observation("o-" + j, "Patient/p-" + (j % 10 == 0 ? j + 20000 : j)));
+                        }
+                        checker.accept(batch(resources.toArray(new IBaseResource[0])));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            report = checker.finish();
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(40000, report.getResources());
+        assertEquals(20000, report.getCheckedReferences());
+        assertEquals(2000, report.getDanglingReferences());
+        assertEquals(10, report.getDangling().size());
+        assertTrue(report.getDangling().stream().map(IntegrityReport.DanglingReference::getSource)
+                .allMatch(source -> source.matches("Observation/o-\\d*0")));
+    }
+
+    @Test
+    void checkers_sharing_a_directory_keep_their_references_apart() throws Exception {
+        IntegrityReport first;
+        IntegrityReport second;
+        try (ReferenceChecker checker = new ReferenceChecker(fhirContext, directory);
+             ReferenceChecker other = new ReferenceChecker(fhirContext, directory)) {
+            checker.accept(batch(observation("o-1", "Patient/p-1"), patient("p-1")));
+            other.accept(batch(observation("o-2", "Patient/p-9"), patient("p-2")));
+            first = checker.finish();
+            second = other.finish();
+        }
+
+        assertEquals(1, first.getCheckedReferences());
+        assertTrue(first.isIntact());
+        assertEquals(1, second.getCheckedReferences());
+        assertEquals(1, second.getDanglingReferences());
+        assertThat(Files.list(directory)).isEmpty();
+    }
+
+    private static Observation observation(String id, String subject) {
+        Observation observation = new Observation();
+        observation.setId("Observation/" + id);
+        observation.setSubject(new Reference(subject));
+        return observation;
+    }
+
+    private static Patient patient(String id) {
+        Patient patient = new Patient();
+        patient.setId("Patient/" + id);
+        return patient;
+    }
+
+    private static ResourceBatch batch(IBaseResource... resources) {
+        return new ResourceBatch(new BDExportResultResponse.OutputItem("Observation", "http://localhost/Observation.ndjson"), 0, false, List.of(resources));
+    }
+}
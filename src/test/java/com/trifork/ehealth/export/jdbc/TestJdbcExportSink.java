@@ -0,0 +1,191 @@
+package com.trifork.ehealth.export.jdbc;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.trifork.ehealth.export.pipeline.ResourceBatch;
+import com.trifork.ehealth.export.response.BDExportResultResponse;
+import org.h2.jdbcx.JdbcDataSource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestJdbcExportSink {
+    private static final String PATIENTS = "http://localhost/Patient.ndjson";
+    private static final String OBSERVATIONS = "http://localhost/Observation.ndjson";
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private final JdbcDataSource dataSource = new JdbcDataSource();
+
+    @BeforeEach
+    void createDatabase() throws SQLException {
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        new JdbcExportSink(dataSource, fhirContext, 1).createTables();
+    }
+
+    @Test
+    void every_output_file_is_committed_once_its_batches_have_arrived() throws Exception {
+        try (JdbcExportSink sink = new JdbcExportSink(dataSource, fhirContext, 2).setBatchSize(3)) {
+            // Batches of a file may arrive out of order, with the last before the others
+            sink.accept(batch(OBSERVATIONS, 2, true, observations(10, 15)));
+            sink.accept(batch(PATIENTS, 0, false, patients(0, 4)));
+            sink.accept(batch(OBSERVATIONS, 0, false, observations(0, 7)));
+            sink.flush();
+
+            assertEquals(0, count("SELECT COUNT(*) FROM fhir_resource"));
+            assertFalse(sink.isLoaded(OBSERVATIONS));
+
+            sink.accept(batch(OBSERVATIONS, 1, false, observations(7, 10)));
+            sink.accept(batch(PATIENTS, 1, true, patients(4, 6)));
+            sink.flush();
+
+            assertEquals(21, sink.getRowsWritten());
+            assertEquals(2, sink.getFilesCommitted());
+            assertTrue(sink.isLoaded(OBSERVATIONS));
+        }
+
+        assertEquals(15, count("SELECT COUNT(*) FROM fhir_resource WHERE resource_type = 'Observation'"));
+        assertEquals(6, count("SELECT COUNT(*) FROM fhir_resource WHERE resource_type = 'Patient'"));
+        assertEquals(1, count("SELECT COUNT(*) FROM fhir_resource WHERE resource_id = 'o-12' AND version_id = '3' "
+                + "AND last_updated = TIMESTAMP '2024-01-01 00:00:12' AND source_url = '" + OBSERVATIONS + "'"));
+        assertEquals(15, count("SELECT resource_count FROM fhir_export_file WHERE source_url = '" + OBSERVATIONS + "'"));
+
+        // A restarted load skips the committed files
+        try (JdbcExportSink sink = new JdbcExportSink(dataSource, fhirContext, 2)) {
+            sink.accept(batch(PATIENTS, 0, true, patients(0, 6)));
+            sink.flush();
+
+            assertEquals(1, sink.getFilesSkipped());
+            assertEquals(0, sink.getRowsWritten());
+        }
+        assertEquals(21, count("SELECT COUNT(*) FROM fhir_resource"));
+    }
+
+    @Test
+    void a_failed_file_is_rolled_back_and_loaded_again_on_restart() throws Exception {
+        List<IBaseResource> broken = observations(0, 5);
+        // Longer than the id column
+        ((Observation) broken.get(3)).setId("x".repeat(100));
+
+        try (JdbcExportSink sink = new JdbcExportSink(dataSource, fhirContext, 2).setBatchSize(2)) {
+            sink.accept(batch(PATIENTS, 0, true, patients(0, 3)));
+            sink.accept(batch(OBSERVATIONS, 0, true, broken));
+
+            assertThrows(IOException.class, sink::flush);
+            assertThrows(IOException.class, () -> sink.accept(batch(PATIENTS, 0, true, patients(0, 3))));
+            assertThrows(IOException.class, sink::close);
+        }
+        assertEquals(3, count("SELECT COUNT(*) FROM fhir_resource"));
+
+        try (JdbcExportSink sink = new JdbcExportSink(dataSource, fhirContext, 2)) {
+            sink.accept(batch(PATIENTS, 0, true, patients(0, 3)));
+            sink.accept(batch(OBSERVATIONS, 0, true, observations(0, 5)));
+            sink.flush();
+
+            assertEquals(1, sink.getFilesSkipped());
+            assertEquals(1, sink.getFilesCommitted());
+        }
+        assertEquals(8, count("SELECT COUNT(*) FROM fhir_resource"));
+    }
+
+    @Test
+    void a_file_committed_by_another_load_first_fails_without_leaking_its_connection() throws Exception {
+        try (JdbcExportSink sink = new JdbcExportSink(dataSource, fhirContext, 1)) {
+            sink.accept(batch(PATIENTS, 0, false, patients(0, 3)));
+            sink.flush();
+
+            // Another load commits the file, after this one found it was not loaded yet
+            update("INSERT INTO fhir_export_file (source_url, resource_count, loaded_at) VALUES ('" + PATIENTS + "', 6, CURRENT_TIMESTAMP)");
+            sink.accept(batch(PATIENTS, 1, true, patients(3, 6)));
+
+            assertThrows(IOException.class, sink::flush);
+            assertEquals(0, sink.getFilesCommitted());
+            assertThrows(IOException.class, sink::close);
+        }
+
+        assertEquals(0, count("SELECT COUNT(*) FROM fhir_resource"));
+        // Only the session counting them
+        assertEquals(1, count("SELECT COUNT(*) FROM INFORMATION_SCHEMA.SESSIONS"));
+    }
+
+    @Test
+    void raw_lines_are_loaded_without_parsing() throws Exception {
+        String ndjson = "{\"resourceType\":\"Patient\",\"id\":\"p-1\",\"meta\":{\"versionId\":\"2\",\"lastUpdated\":\"2024-01-01T02:00:00+02:00\"}}\n"
+                + "{\"resourceType\":\"Patient\",\"id\":\"p-2\"}\n";
+
+        try (JdbcExportSink sink = new JdbcExportSink(dataSource, fhirContext, 1)) {
+            assertEquals(2, sink.load(PATIENTS, new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8))));
+            assertEquals(0, sink.load(PATIENTS, new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8))));
+            assertEquals(1, sink.getFilesSkipped());
+        }
+
+        assertEquals(1, count("SELECT COUNT(*) FROM fhir_resource WHERE resource_id = 'p-1' AND version_id = '2' "
+                + "AND last_updated = TIMESTAMP '2024-01-01 00:00:00'"));
+        assertEquals(1, count("SELECT COUNT(*) FROM fhir_resource WHERE resource_id = 'p-2' AND last_updated IS NULL "
+                + "AND content = '{\"resourceType\":\"Patient\",\"id\":\"p-2\"}'"));
+    }
+
+    private long count(String query) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery(query)) {
+            result.next();
+            return result.getLong(1);
+        }
+    }
+
+    private void update(String statement) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             Statement update = connection.createStatement()) {
+            update.executeUpdate(statement);
+        }
+    }
+
+    private static ResourceBatch batch(String url, long sequence, boolean last, List<IBaseResource> resources) {
+        String type = url.substring(url.lastIndexOf('/') + 1, url.lastIndexOf('.'));
+        return new ResourceBatch(new BDExportResultResponse.OutputItem(type, url), sequence, last, resources);
+    }
+
+    private static List<IBaseResource> patients(int from, int to) {
+        List<IBaseResource> patients = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            Patient patient = new Patient();
+            patient.setId("Patient/p-" + i);
+            patients.add(patient);
+        }
+        return patients;
+    }
+
+    private static List<IBaseResource> observations(int from, int to) {
+        List<IBaseResource> observations = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            Observation observation = new Observation();
+            observation.setId("Observation/o-" + i);
+            observation.getMeta().setVersionId("3").setLastUpdated(java.util.Date.from(Instant.parse("2024-01-01T00:00:00Z").plusSeconds(i)));
+            observation.setSubject(new Reference("Patient/p-" + i % 6));
+            observations.add(observation);
+        }
+        return observations;
+    }
+}
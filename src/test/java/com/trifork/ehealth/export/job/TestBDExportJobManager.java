@@ -0,0 +1,200 @@
+package com.trifork.ehealth.export.job;
+
+import com.trifork.ehealth.export.BDExportClient;
+import com.trifork.ehealth.export.BDExportRequest;
+import com.trifork.ehealth.export.future.BDExportFuture;
+import com.trifork.ehealth.export.response.BDExportResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestBDExportJobManager {
+    private static final URI serverA = URI.create("http://server-a:8080/fhir");
+    private static final URI serverB = URI.create("http://server-b:8080/fhir");
+
+    private final List<BDExportRequest> started = new CopyOnWriteArrayList<>();
+    private final Map<BDExportRequest, CountDownLatch> running = new ConcurrentHashMap<>();
+    private BDExportJobManager jobManager;
+    private BDExportClient exportClient;
+
+    @BeforeEach
+    void setup() throws Exception {
+        exportClient = mock(BDExportClient.class);
+        when(exportClient.initiate(any())).thenAnswer(invocation -> {
+            BDExportRequest request = invocation.getArgument(0);
+            CountDownLatch done = new CountDownLatch(1);
+            running.put(request, done);
+            started.add(request);
+
+            BDExportFuture future = mock(BDExportFuture.class);
+            when(future.get()).thenAnswer(i -> {
+                done.await();
+                return new BDExportResponse(request.getExportUri(), 200, null, null);
+            });
+            return future;
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        running.values().forEach(CountDownLatch::countDown);
+        jobManager.close();
+    }
+
+    @Test
+    void no_more_than_the_max_exports_run_on_a_server() throws Exception {
+        jobManager = new BDExportJobManager(exportClient, 2);
+
+        List<ExportJob> jobs = List.of(
+                jobManager.submit("tenant", request(serverA)),
+                jobManager.submit("tenant", request(serverA)),
+                jobManager.submit("tenant", request(serverA))
+        );
+
+        awaitStarted(2);
+        Thread.sleep(100);
+        assertEquals(2, started.size());
+        assertEquals(1, jobManager.getQueued(serverA));
+
+        // The next job starts as soon as one finishes. The first two jobs start in either order, so the first is
+        // finished by its request
+        finish(jobs.get(0).getRequest());
+        awaitStarted(3);
+
+        jobs.get(0).getResult().get(1, TimeUnit.SECONDS);
+        assertEquals(ExportJob.State.DONE, jobs.get(0).getState());
+        assertEquals(ExportJob.State.RUNNING, jobs.get(2).getState());
+    }
+
+    @Test
+    void a_job_rejected_by_the_executor_fails_and_frees_its_slot() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        jobManager = new BDExportJobManager(exportClient, 1, executor);
+
+        ExportJob first = jobManager.submit("tenant", request(serverA));
+        ExportJob second = jobManager.submit("tenant", request(serverA));
+
+        for (ExportJob job : List.of(first, second)) {
+            ExecutionException e = assertThrows(ExecutionException.class, () -> job.getResult().get(1, TimeUnit.SECONDS));
+            assertInstanceOf(RejectedExecutionException.class, e.getCause());
+            assertEquals(ExportJob.State.DONE, job.getState());
+        }
+        assertEquals(0, jobManager.getInFlight(serverA));
+        assertEquals(0, jobManager.getQueued(serverA));
+    }
+
+    @Test
+    void servers_have_their_own_limit() throws Exception {
+        jobManager = new BDExportJobManager(exportClient, 1);
+
+        jobManager.submit("tenant", request(serverA));
+        jobManager.submit("tenant", request(serverA));
+        jobManager.submit("tenant", request(serverB));
+
+        awaitStarted(2);
+        assertEquals(1, jobManager.getInFlight(serverA));
+        assertEquals(1, jobManager.getInFlight(serverB));
+        assertEquals(1, jobManager.getQueued(serverA));
+    }
+
+    @Test
+    void higher_priorities_start_first() throws Exception {
+        jobManager = new BDExportJobManager(exportClient, 1);
+
+        BDExportRequest blocking = request(serverA);
+        BDExportRequest low = request(serverA);
+        BDExportRequest high = request(serverA);
+        jobManager.submit("tenant", blocking);
+        awaitStarted(1);
+        jobManager.submit("tenant", low, ExportPriority.LOW);
+        jobManager.submit("tenant", high, ExportPriority.HIGH);
+
+        finish(blocking);
+        awaitStarted(2);
+        finish(high);
+        awaitStarted(3);
+
+        assertEquals(List.of(blocking, high, low), started);
+    }
+
+    @Test
+    void tenants_take_turns() throws Exception {
+        jobManager = new BDExportJobManager(exportClient, 1);
+
+        BDExportRequest blocking = request(serverA);
+        jobManager.submit("other", blocking);
+        awaitStarted(1);
+
+        BDExportRequest a1 = request(serverA);
+        BDExportRequest a2 = request(serverA);
+        BDExportRequest a3 = request(serverA);
+        BDExportRequest b1 = request(serverA);
+        jobManager.submit("a", a1);
+        jobManager.submit("a", a2);
+        jobManager.submit("a", a3);
+        jobManager.submit("b", b1);
+
+        for (int i = 1; i <= 4; i++) {
+            finish(started.get(i - 1));
+            awaitStarted(i + 1);
+        }
+
+        assertEquals(List.of(blocking, a1, b1, a2, a3), started);
+    }
+
+    @Test
+    void a_cancelled_job_is_never_started() throws Exception {
+        jobManager = new BDExportJobManager(exportClient, 1);
+
+        BDExportRequest first = request(serverA);
+        BDExportRequest cancelled = request(serverA);
+        BDExportRequest last = request(serverA);
+        jobManager.submit("tenant", first);
+        awaitStarted(1);
+        ExportJob job = jobManager.submit("tenant", cancelled);
+        jobManager.submit("tenant", last);
+
+        assertTrue(job.cancel());
+        assertTrue(job.getResult().isCancelled());
+
+        finish(first);
+        awaitStarted(2);
+        assertEquals(List.of(first, last), started);
+    }
+
+    private void awaitStarted(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (started.size() < count) {
+            assertTrue(System.nanoTime() < deadline, "Only " + started.size() + " exports started");
+            Thread.sleep(5);
+        }
+    }
+
+    private void finish(BDExportRequest request) {
+        running.get(request).countDown();
+    }
+
+    private static BDExportRequest request(URI server) {
+        return BDExportRequest.createSystemExportRequest(server);
+    }
+}
@@ -0,0 +1,106 @@
+package com.trifork.ehealth.export.ndjson;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.trifork.ehealth.export.response.BDExportResultResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestNdjsonFileParser {
+    private static final int RESOURCE_COUNT = 500;
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private ForkJoinPool pool;
+    private Path file;
+    private List<String> expectedIds;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    void setup() throws IOException {
+        this.pool = new ForkJoinPool(4);
+        this.file = tempDir.resolve("Condition.ndjson");
+        this.expectedIds = IntStream.range(0, RESOURCE_COUNT).mapToObj(i -> "c" + i).collect(Collectors.toList());
+
+        IParser parser = fhirContext.newJsonParser();
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < expectedIds.size(); i++) {
+            Condition condition = new Condition();
+            condition.setId(expectedIds.get(i));
+            content.append(parser.encodeResourceToString(condition));
+            // Mix line endings, and add a few blank lines
+            content.append(i % 3 == 0 ? "\r\n" : "\n");
+            if (i % 50 == 0) {
+                content.append("\n");
+            }
+        }
+        Files.write(file, content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void resources_are_emitted_in_file_order() throws IOException {
+        List<IBaseResource> resources = new ArrayList<>();
+
+        long count = new NdjsonFileParser(fhirContext, pool)
+                .setChunkSize(1024)
+                .parse(file, ResourceType.Condition.name(), resources::add);
+
+        assertEquals(RESOURCE_COUNT, count);
+        assertThat(resources).allMatch(r -> r instanceof Condition);
+        assertEquals(expectedIds, ids(resources));
+    }
+
+    @Test
+    void unordered_parsing_emits_every_resource() throws IOException {
+        List<IBaseResource> resources = new ArrayList<>();
+        BDExportResultResponse.OutputItem item = new BDExportResultResponse.OutputItem("Condition", "url");
+
+        long count = new NdjsonFileParser(fhirContext, pool)
+                .setChunkSize(512)
+                .setOrdered(false)
+                .parse(file, item, resources::add);
+
+        assertEquals(RESOURCE_COUNT, count);
+        assertThat(ids(resources)).containsExactlyInAnyOrderElementsOf(expectedIds);
+    }
+
+    @Test
+    void a_single_chunk_covers_the_whole_file() throws IOException {
+        List<IBaseResource> resources = new ArrayList<>();
+
+        new NdjsonFileParser(fhirContext, pool).parse(file, ResourceType.Condition.name(), resources::add);
+
+        assertEquals(expectedIds, ids(resources));
+    }
+
+    private static List<String> ids(List<IBaseResource> resources) {
+        return resources.stream().map(r -> r.getIdElement().getIdPart()).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,97 @@
+package com.trifork.ehealth.export.ndjson;
+
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestNdjsonLineScanner {
+    private final NdjsonLineScanner scanner = new NdjsonLineScanner();
+    private final NdjsonLineHeader header = new NdjsonLineHeader();
+
+    @Test
+    void extracts_resource_type_id_and_meta() {
+        scan("{\"resourceType\":\"Patient\",\"id\":\"1\",\"meta\":{\"versionId\":\"3\",\"lastUpdated\":\"2023-10-20T10:00:00Z\"},\"active\":true}");
+
+        assertTrue(header.isValid());
+        assertEquals("Patient", header.getResourceType());
+        assertEquals("1", header.getId());
+        assertEquals("3", header.getVersionId());
+        assertEquals("2023-10-20T10:00:00Z", header.getLastUpdated());
+        assertTrue(header.resourceTypeEquals("Patient"));
+        assertFalse(header.resourceTypeEquals("Patients"));
+        assertTrue(header.idEquals("1"));
+    }
+
+    @Test
+    void nested_values_with_the_same_keys_are_skipped() {
+        scan("{\"contained\":[{\"resourceType\":\"Organization\",\"id\":\"org\",\"meta\":{\"versionId\":\"9\"}}],"
+                + " \"text\" : {\"div\":\"a \\\"quoted\\\" } and ] in text\"},"
+                + " \"meta\" : { \"tag\" : [ {\"code\":\"x\"} ], \"versionId\" : \"2\" },"
+                + " \"id\" : \"obs-1\", \"value\": -1.5e3, \"resourceType\" : \"Observation\" }");
+
+        assertTrue(header.isValid());
+        assertEquals("Observation", header.getResourceType());
+        assertEquals("obs-1", header.getId());
+        assertEquals("2", header.getVersionId());
+        assertFalse(header.hasLastUpdated());
+    }
+
+    @Test
+    void meta_span_covers_the_whole_member() {
+        String line = "{\"resourceType\":\"Patient\",\"meta\":{\"versionId\":\"1\"},\"id\":\"1\"}";
+        scan(line);
+
+        assertEquals("\"meta\":{\"versionId\":\"1\"}", line.substring(header.getMetaStart(), header.getMetaEnd()));
+    }
+
+    @Test
+    void missing_fields_are_absent() {
+        scan("{\"resourceType\":\"Basic\"}");
+
+        assertTrue(header.isValid());
+        assertFalse(header.hasId());
+        assertFalse(header.hasMeta());
+        assertNull(header.getId());
+        assertNull(header.getVersionId());
+        assertFalse(header.idEquals(""));
+    }
+
+    @Test
+    void escaped_values_are_decoded() {
+        scan("{\"resourceType\":\"Basic\",\"id\":\"a\\u002db\"}");
+
+        assertEquals("a-b", header.getId());
+    }
+
+    @Test
+    void malformed_lines_are_invalid() {
+        assertFalse(scan("not json"));
+        assertFalse(scan("{\"resourceType\":\"Patient\""));
+        assertFalse(scan("{\"resourceType\":\"Patient\",\"meta\":{\"versionId\":\"1\"}"));
+        assertFalse(scan("{\"id\":\"unterminated}"));
+        assertFalse(scan("[1,2]"));
+    }
+
+    @Test
+    void offsets_are_relative_to_the_buffer() {
+        byte[] bytes = "garbage{\"id\":\"x\"}garbage".getBytes(StandardCharsets.UTF_8);
+
+        assertTrue(scanner.scan(ByteBuffer.wrap(bytes), 7, 17, header));
+        assertEquals("x", header.getId());
+        assertEquals("{\"id\":\"x\"}", header.lineAsString());
+    }
+
+    private boolean scan(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return scanner.scan(ByteBuffer.wrap(bytes), 0, bytes.length, header);
+    }
+}
@@ -0,0 +1,45 @@
+package com.trifork.ehealth.export.ndjson;
+
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestNdjsonReader {
+
+    @Test
+    void lines_longer_than_the_buffer_are_read_whole() throws IOException, InterruptedException {
+        StringBuilder content = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            String line = "{\"resourceType\":\"Basic\",\"id\":\"" + i + "\",\"text\":\"" + "x".repeat(i * 7) + "\"}";
+            expected.add(line);
+            content.append(line).append(i % 2 == 0 ? "\r\n" : "\n");
+        }
+        // Blank lines are skipped, and the last line needs no line break
+        content.append("\n  \n{\"resourceType\":\"Basic\",\"id\":\"last\"}");
+        expected.add("{\"resourceType\":\"Basic\",\"id\":\"last\"}");
+
+        List<String> lines = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        long count = new NdjsonReader(16).forEachLine(
+                new ByteArrayInputStream(content.toString().getBytes(StandardCharsets.UTF_8)),
+                header -> {
+                    lines.add(header.lineAsString());
+                    ids.add(header.getId());
+                }
+        );
+
+        assertEquals(expected.size(), count);
+        assertEquals(expected, lines);
+        assertEquals("last", ids.get(ids.size() - 1));
+    }
+}
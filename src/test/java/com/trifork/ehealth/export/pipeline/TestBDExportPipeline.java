@@ -0,0 +1,411 @@
+package com.trifork.ehealth.export.pipeline;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import com.trifork.ehealth.export.BDExportConverter;
+import com.trifork.ehealth.export.BDExportTypeFilter;
+import com.trifork.ehealth.export.CancellationToken;
+import com.trifork.ehealth.export.OutputProbe;
+import com.trifork.ehealth.export.buffer.ByteBufferPool;
+import com.trifork.ehealth.export.filter.TypeFilterEvaluator;
+import com.trifork.ehealth.export.ratelimit.AdaptiveConcurrencyLimiter;
+import com.trifork.ehealth.export.response.BDExportResultResponse;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestBDExportPipeline {
+    private static final int RESOURCES_PER_FILE = 120;
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private final List<BDExportResultResponse.OutputItem> items = List.of(
+            new BDExportResultResponse.OutputItem("Condition", "http://localhost:8080/fhir/Binary/a"),
+            new BDExportResultResponse.OutputItem("Condition", "http://localhost:8080/fhir/Binary/b"),
+            new BDExportResultResponse.OutputItem("Condition", "http://localhost:8080/fhir/Binary/gzip")
+    );
+
+    @Test
+    void every_resource_reaches_the_sink() throws InterruptedException {
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        Map<String, Integer> lastBatches = new ConcurrentHashMap<>();
+
+        PipelineMetrics metrics = new BDExportPipeline(new StubConverter(fhirContext), fhirContext)
+                .setDownloadConcurrency(2)
+                .setParseConcurrency(2)
+                .setSinkConcurrency(2)
+                .setBatchSize(50)
+                .run(items, batch -> {
+                    batch.getResources().forEach(r -> ids.add(r.getIdElement().getIdPart()));
+                    if (batch.isLast()) {
+                        lastBatches.merge(batch.getSource().getUrl(), 1, Integer::sum);
+                    }
+                });
+
+        assertEquals(items.size() * RESOURCES_PER_FILE, ids.size());
+        assertThat(ids).contains("gzip-0", "gzip-" + (RESOURCES_PER_FILE - 1));
+        assertEquals(items.stream().collect(Collectors.toMap(BDExportResultResponse.OutputItem::getUrl, i -> 1)), lastBatches);
+
+        assertEquals(items.size(), metrics.getStage(BDExportPipeline.DOWNLOAD_STAGE).getItemsIn());
+        assertEquals(items.size(), metrics.getStage(BDExportPipeline.PARSE_STAGE).getItemsIn());
+        // 120 resources in batches of 50, gives 3 batches per file
+        assertEquals(items.size() * 3, metrics.getStage(BDExportPipeline.SINK_STAGE).getItemsIn());
+    }
+
+    @Test
+    void downloaded_files_are_released_to_the_pool() throws InterruptedException {
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        ByteBufferPool pool = new ByteBufferPool(1024, 4 * 1024);
+
+        new BDExportPipeline(new StubConverter(fhirContext), fhirContext)
+                .setDownloadConcurrency(4)
+                .setParseConcurrency(2)
+                .setBatchSize(10)
+                .setBufferPool(pool)
+                .run(items, batch -> {
+                    batch.getResources().forEach(r -> ids.add(r.getIdElement().getIdPart()));
+                    Thread.sleep(5);
+                });
+
+        assertEquals(items.size() * RESOURCES_PER_FILE, ids.size());
+        assertEquals(0, pool.getBytesInUse());
+        // The files are larger than the budget, which is only exceeded by the parsers waiting for their downloads
+        assertThat(pool.getPeakBytesInUse()).isLessThanOrEqualTo(pool.getMaxBytes() + 2 * pool.getBufferSize());
+    }
+
+    @Test
+    void type_filter_drops_resources_while_streaming() throws InterruptedException {
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        TypeFilterEvaluator typeFilter = new TypeFilterEvaluator(
+                fhirContext,
+                List.of(new BDExportTypeFilter(ResourceType.Condition, "_id", new TokenParam("b-1")))
+        );
+
+        PipelineMetrics metrics = new BDExportPipeline(new StubConverter(fhirContext), fhirContext)
+                .setTypeFilter(typeFilter)
+                .run(items, batch -> batch.getResources().forEach(r -> ids.add(r.getIdElement().getIdPart())));
+
+        assertEquals(Set.of("b-1"), ids);
+        assertEquals(items.size() * RESOURCES_PER_FILE - 1, metrics.getStage(BDExportPipeline.PARSE_STAGE).getItemsRejected());
+    }
+
+    @Test
+    void line_filter_skips_lines_before_parsing() throws InterruptedException {
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+
+        PipelineMetrics metrics = new BDExportPipeline(new StubConverter(fhirContext), fhirContext)
+                .setLineFilter(header -> header.idEquals("a-7") || header.idEquals("gzip-7"))
+                .run(items, batch -> batch.getResources().forEach(r -> ids.add(r.getIdElement().getIdPart())));
+
+        assertEquals(Set.of("a-7", "gzip-7"), ids);
+        assertEquals(items.size() * RESOURCES_PER_FILE - 2, metrics.getStage(BDExportPipeline.PARSE_STAGE).getItemsRejected());
+    }
+
+    @Test
+    void a_slow_sink_is_reported_as_the_bottleneck() throws InterruptedException {
+        PipelineMetrics metrics = new BDExportPipeline(new StubConverter(fhirContext), fhirContext)
+                .setBatchSize(5)
+                .run(items, batch -> Thread.sleep(20));
+
+        assertEquals(BDExportPipeline.SINK_STAGE, metrics.getBottleneck().getName());
+        assertThat(metrics.getStage(BDExportPipeline.PARSE_STAGE).getBlockedTime())
+                .isGreaterThan(metrics.getStage(BDExportPipeline.SINK_STAGE).getBlockedTime());
+    }
+
+    @Test
+    void a_failing_sink_aborts_the_pipeline() {
+        RuntimeException exception = assertThrows(
+                RuntimeException.class,
+                () -> new BDExportPipeline(new StubConverter(fhirContext), fhirContext)
+                        .setBatchQueueCapacity(1)
+                        .run(items, batch -> {
+                            throw new IllegalStateException("Sink is broken");
+                        })
+        );
+
+        assertThat(exception).hasRootCauseInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void a_cancelled_pipeline_stops_every_stage() {
+        CancellationToken cancellationToken = new CancellationToken();
+        BDExportPipeline pipeline = new BDExportPipeline(new StubConverter(fhirContext), fhirContext)
+                .setBatchSize(5)
+                .setCancellationToken(cancellationToken);
+
+        long start = System.nanoTime();
+        assertThrows(CancellationException.class, () -> pipeline.run(items, batch -> {
+            cancellationToken.cancel();
+            Thread.sleep(10_000);
+        }));
+
+        assertThat(System.nanoTime() - start).isLessThan(5_000_000_000L);
+    }
+
+    @Test
+    void throttled_downloads_are_retried_at_a_lower_limit() throws InterruptedException {
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        AtomicBoolean throttled = new AtomicBoolean();
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 4);
+
+        StubConverter converter = new StubConverter(fhirContext) {
+            @Override
+            protected InputStream openStream(String url, CancellationToken cancellationToken) {
+                if (url.endsWith("/b") && throttled.compareAndSet(false, true)) {
+                    UnclassifiedServerFailureException e = new UnclassifiedServerFailureException(503, "Server is busy");
+                    e.addResponseHeader("Retry-After", "1");
+                    throw e;
+                }
+
+                return super.openStream(url, cancellationToken);
+            }
+        };
+
+        long start = System.nanoTime();
+        PipelineMetrics metrics = new BDExportPipeline(converter, fhirContext)
+                .setDownloadLimiter(limiter)
+                .run(items, batch -> batch.getResources().forEach(r -> ids.add(r.getIdElement().getIdPart())));
+
+        assertEquals(items.size() * RESOURCES_PER_FILE, ids.size());
+        // The retry waited for the Retry-After of the server
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(1_000_000_000L);
+        assertEquals(4, metrics.getStage(BDExportPipeline.DOWNLOAD_STAGE).getConcurrency());
+        assertEquals(0, limiter.getInFlight());
+        assertThat(limiter.getHistory())
+                .extracting(AdaptiveConcurrencyLimiter.LimitChange::getReason)
+                .contains("server responded with 503");
+    }
+
+    @Test
+    void throttled_downloads_are_not_retried_again_when_the_converter_retries_them() {
+        AtomicInteger attempts = new AtomicInteger();
+        StubConverter converter = new StubConverter(fhirContext) {
+            @Override
+            public boolean isRetryingThrottled() {
+                return true;
+            }
+
+            @Override
+            protected InputStream openStream(String url, CancellationToken cancellationToken) {
+                if (url.endsWith("/b")) {
+                    attempts.incrementAndGet();
+                    throw new UnclassifiedServerFailureException(429, "Too many requests");
+                }
+
+                return super.openStream(url, cancellationToken);
+            }
+        };
+
+        RuntimeException exception = assertThrows(RuntimeException.class, () -> new BDExportPipeline(converter, fhirContext)
+                .setDownloadLimiter(new AdaptiveConcurrencyLimiter(4, 1, 4))
+                .run(items, batch -> {
+                }));
+
+        assertThat(exception).hasRootCauseInstanceOf(UnclassifiedServerFailureException.class);
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    void the_largest_files_are_downloaded_first_and_split_into_ranges() throws InterruptedException {
+        List<String> opened = Collections.synchronizedList(new ArrayList<>());
+        List<String> ids = Collections.synchronizedList(new ArrayList<>());
+        Map<String, Integer> batchesAfterLast = new ConcurrentHashMap<>();
+
+        StubConverter converter = new StubConverter(fhirContext) {
+            @Override
+            public OutputProbe probe(BDExportResultResponse.OutputItem item, CancellationToken cancellationToken) {
+                String name = nameOf(item.getUrl());
+                switch (name) {
+                    case "a":
+                        return new OutputProbe(10, false, false);
+                    case "b":
+                        return new OutputProbe(contentOf(name).length, true, false);
+                    default:
+                        // Too large to start late, but gzipped, so it can not be split
+                        return new OutputProbe(1_000_000, true, true);
+                }
+            }
+
+            @Override
+            protected InputStream openStream(String url, long fromByte, long toByte, CancellationToken cancellationToken) {
+                opened.add(nameOf(url) + "@" + fromByte);
+                return super.openStream(url, fromByte, toByte, cancellationToken);
+            }
+
+            @Override
+            protected InputStream openStream(String url, CancellationToken cancellationToken) {
+                opened.add(nameOf(url) + "@0");
+                return super.openStream(url, cancellationToken);
+            }
+        };
+
+        new BDExportPipeline(converter, fhirContext)
+                .setProbeSizes(true)
+                .setSplitSize(1024)
+                .setDownloadConcurrency(1)
+                .setParseConcurrency(2)
+                .run(items, batch -> {
+                    String name = StubConverter.nameOf(batch.getSource().getUrl());
+                    batch.getResources().forEach(r -> ids.add(r.getIdElement().getIdPart()));
+
+                    if (batch.isLast()) {
+                        batchesAfterLast.put(name, 0);
+                    } else {
+                        batchesAfterLast.computeIfPresent(name, (key, count) -> count + 1);
+                    }
+                });
+
+        assertEquals("gzip@0", opened.get(0));
+        assertEquals("a@0", opened.get(opened.size() - 1));
+        int parts = (int) opened.stream().filter(download -> download.startsWith("b@")).count();
+        assertThat(parts).isGreaterThan(1);
+
+        // Every resource exactly once, and a single last batch per file, after its other batches
+        assertEquals(items.size() * RESOURCES_PER_FILE, ids.size());
+        assertEquals(items.size() * RESOURCES_PER_FILE, Set.copyOf(ids).size());
+        assertEquals(Map.of("a", 0, "b", 0, "gzip", 0), batchesAfterLast);
+    }
+
+    @Test
+    void ranges_download_their_own_lines_and_a_bounded_slack() throws InterruptedException {
+        IParser parser = fhirContext.newJsonParser();
+        // Long enough, that reading the rest of the file from every range would show
+        byte[] large = IntStream.range(0, 20_000)
+                .mapToObj(i -> parser.encodeResourceToString(new Condition().setId("large-" + i)))
+                .collect(Collectors.joining("\n"))
+                .getBytes(StandardCharsets.UTF_8);
+        long splitSize = 128 * 1024;
+        List<long[]> requested = Collections.synchronizedList(new ArrayList<>());
+        AtomicLong bytesRead = new AtomicLong();
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+
+        StubConverter converter = new StubConverter(fhirContext) {
+            @Override
+            public OutputProbe probe(BDExportResultResponse.OutputItem item, CancellationToken cancellationToken) {
+                return new OutputProbe(large.length, true, false);
+            }
+
+            @Override
+            protected InputStream openStream(String url, long fromByte, long toByte, CancellationToken cancellationToken) {
+                requested.add(new long[]{fromByte, toByte});
+                return new FilterInputStream(super.openStream(url, fromByte, toByte, cancellationToken)) {
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int read = super.read(b, off, len);
+                        bytesRead.addAndGet(Math.max(read, 0));
+                        return read;
+                    }
+                };
+            }
+
+            @Override
+            byte[] contentOf(String name) {
+                return large;
+            }
+        };
+
+        new BDExportPipeline(converter, fhirContext)
+                .setProbeSizes(true)
+                .setSplitSize(splitSize)
+                .run(List.of(items.get(1)), batch -> batch.getResources().forEach(r -> ids.add(r.getIdElement().getIdPart())));
+
+        assertEquals(20_000, ids.size());
+        int parts = (int) ((large.length + splitSize - 1) / splitSize);
+        assertThat(parts).isGreaterThan(4);
+        // Every range but the last, which is open ended, asks for no more than its own bytes and the slack
+        assertThat(requested.stream().filter(range -> range[1] >= 0).count()).isGreaterThanOrEqualTo(parts - 1);
+        assertThat(requested).allMatch(range -> range[1] < 0 || range[1] - range[0] + 1 <= splitSize + 1 + BDExportPipeline.RANGE_SLACK);
+        assertThat(bytesRead.get()).isLessThanOrEqualTo(large.length + parts * (1 + BDExportPipeline.RANGE_SLACK));
+    }
+
+    @Test
+    void an_export_without_output_completes() throws InterruptedException {
+        BDExportResultResponse result = new BDExportResultResponse("1337", "", false, null, Collections.emptyList(), "");
+
+        PipelineMetrics metrics = new BDExportPipeline(new StubConverter(fhirContext), fhirContext).run(result, batch -> {
+        });
+
+        assertEquals(0, metrics.getStage(BDExportPipeline.SINK_STAGE).getItemsIn());
+    }
+
+    static class StubConverter extends BDExportConverter {
+        private final Map<String, byte[]> contents = new ConcurrentHashMap<>();
+
+        StubConverter(FhirContext fhirContext) {
+            super(mock(IGenericClient.class));
+
+            IParser parser = fhirContext.newJsonParser();
+            for (String prefix : List.of("a", "b", "gzip")) {
+                String content = IntStream.range(0, RESOURCES_PER_FILE)
+                        .mapToObj(i -> parser.encodeResourceToString(new Condition().setId(prefix + "-" + i)))
+                        .collect(Collectors.joining("\n"));
+                byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+
+                contents.put(prefix, prefix.equals("gzip") ? gzip(bytes) : bytes);
+            }
+        }
+
+        @Override
+        protected InputStream openStream(String url, CancellationToken cancellationToken) {
+            cancellationToken.throwIfCancelled();
+            return new ByteArrayInputStream(contentOf(nameOf(url)));
+        }
+
+        @Override
+        protected InputStream openStream(String url, long fromByte, long toByte, CancellationToken cancellationToken) {
+            cancellationToken.throwIfCancelled();
+            byte[] content = contentOf(nameOf(url));
+            int to = toByte == OPEN_ENDED ? content.length : (int) Math.min(toByte + 1, content.length);
+            return new ByteArrayInputStream(content, (int) fromByte, to - (int) fromByte);
+        }
+
+        byte[] contentOf(String name) {
+            return contents.get(name);
+        }
+
+        static String nameOf(String url) {
+            return url.substring(url.lastIndexOf('/') + 1);
+        }
+
+        private static byte[] gzip(byte[] bytes) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(bytes);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            return out.toByteArray();
+        }
+    }
+}
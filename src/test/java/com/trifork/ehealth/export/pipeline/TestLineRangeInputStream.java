@@ -0,0 +1,52 @@
+package com.trifork.ehealth.export.pipeline;
+
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestLineRangeInputStream {
+    private static final String CONTENT = "{\"id\":\"a\"}\n{\"id\":\"bb\"}\n\n{\"id\":\"ccc\"}\n{\"id\":\"d\"}";
+
+    @Test
+    void every_line_is_read_by_exactly_one_range() throws IOException {
+        byte[] bytes = CONTENT.getBytes(StandardCharsets.UTF_8);
+
+        for (int parts = 1; parts <= bytes.length; parts++) {
+            StringBuilder joined = new StringBuilder();
+
+            for (int part = 0; part < parts; part++) {
+                long start = (long) bytes.length / parts * part;
+                long end = part == parts - 1 ? Long.MAX_VALUE : (long) bytes.length / parts * (part + 1);
+
+                joined.append(readRange(bytes, start, end));
+            }
+
+            assertEquals(CONTENT, joined.toString(), "Split into " + parts + " ranges");
+        }
+    }
+
+    @Test
+    void a_range_within_a_single_line_is_empty() throws IOException {
+        byte[] bytes = CONTENT.getBytes(StandardCharsets.UTF_8);
+
+        assertEquals("", readRange(bytes, 2, 5));
+        assertEquals("{\"id\":\"a\"}\n", readRange(bytes, 0, 1));
+    }
+
+    private static String readRange(byte[] bytes, long start, long end) throws IOException {
+        int from = (int) (start == 0 ? 0 : start - 1);
+        InputStream in = new ByteArrayInputStream(bytes, from, bytes.length - from);
+
+        try (InputStream range = new LineRangeInputStream(in, start, end)) {
+            return new String(range.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
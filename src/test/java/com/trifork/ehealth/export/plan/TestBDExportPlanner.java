@@ -0,0 +1,215 @@
+package com.trifork.ehealth.export.plan;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.param.TokenParam;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.trifork.ehealth.export.BDExportRequest;
+import com.trifork.ehealth.export.BDExportTypeFilter;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestBDExportPlanner {
+    private static final Instant START = Instant.parse("2024-01-01T00:00:00Z");
+
+    /**
+     * The last updated of every resource by type: evenly spread over 2024, every other Observation is final
+     */
+    private static final Map<String, List<Instant>> RESOURCES = Map.of(
+            "Observation", spread(4000),
+            "Patient", spread(300),
+            "Condition", spread(200)
+    );
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private final List<String> queries = new ArrayList<>();
+    private HttpServer server;
+    private IGenericClient client;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/fhir/", this::serveSearch);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        fhirContext.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        client = fhirContext.newRestfulGenericClient(baseUrl());
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void large_types_are_split_by_last_updated_and_small_types_are_packed() {
+        BDExportRequest request = BDExportRequest.createGroupExportRequest(URI.create(baseUrl()), 7)
+                .addType(ResourceType.Observation)
+                .addType(ResourceType.Patient)
+                .addType(ResourceType.Condition);
+
+        ExportPlan plan = new BDExportPlanner(client)
+                .setTargetResourcesPerPartition(1000)
+                .setResourcesPerSecond(100)
+                .setExportOverhead(Duration.ZERO)
+                .setConcurrentExports(2)
+                .plan(request);
+
+        assertEquals(Map.of("Observation", 4000L, "Patient", 300L, "Condition", 200L), plan.getCounts());
+        assertEquals(5, plan.getPartitions().size());
+
+        List<ExportPartition> observations = plan.getPartitions().subList(0, 4);
+        for (ExportPartition partition : observations) {
+            assertEquals(List.of(ResourceType.Observation), partition.getTypes());
+            assertThat(partition.getEstimatedResources()).isBetween(850L, 1150L);
+            assertEquals(partition.getEstimatedResources(), countOf("Observation", partition, false));
+        }
+
+        // Every observation is in exactly one range
+        assertEquals(4000, observations.stream().mapToLong(partition -> countOf("Observation", partition, false)).sum());
+
+        ExportPartition packed = plan.getPartitions().get(4);
+        assertEquals(List.of(ResourceType.Patient, ResourceType.Condition), packed.getTypes());
+        assertEquals(500, packed.getEstimatedResources());
+
+        // Two exports at once, of 4 partitions of about 10 seconds, and one of 5 seconds
+        assertThat(plan.getEstimatedRuntime()).isBetween(Duration.ofSeconds(20), Duration.ofSeconds(30));
+        assertThat(queries).allMatch(query -> query.contains("_summary=count") || query.contains("_sort=_lastUpdated"));
+    }
+
+    @Test
+    void counts_respect_since_and_type_filters() {
+        Instant since = START.plus(Duration.ofDays(183));
+        BDExportRequest request = BDExportRequest.createSystemExportRequest(URI.create(baseUrl()))
+                .setSince(new InstantType(Date.from(since)))
+                .addType(ResourceType.Observation)
+                .addTypeFilter(new BDExportTypeFilter(ResourceType.Observation, "status", new TokenParam("final")));
+
+        ExportPlan plan = new BDExportPlanner(client)
+                .setTargetResourcesPerPartition(400)
+                .plan(request);
+
+        long expected = IntStream.range(0, 4000)
+                .filter(i -> i % 2 == 0 && !RESOURCES.get("Observation").get(i).isBefore(since))
+                .count();
+        assertEquals(expected, plan.getCounts().get("Observation"));
+        assertEquals(3, plan.getPartitions().size());
+
+        for (ExportPartition partition : plan.getPartitions()) {
+            assertEquals(partition.getEstimatedResources(), countOf("Observation", partition, true));
+            assertEquals(since, partition.getRequest().getSince().getValue().toInstant());
+            assertThat(partition.getRequest().getTypeFilters()).hasSize(1);
+            assertThat(partition.getRequest().getTypeFilters().get(0).toTypeFilterString(fhirContext))
+                    .startsWith("Observation?status=final&_lastUpdated=");
+        }
+    }
+
+    /**
+     * @return the number of resources of the type, within the range of the partition
+     */
+    private static long countOf(String type, ExportPartition partition, boolean onlyFinal) {
+        Instant since = partition.getRequest().getSince() == null ? null : partition.getRequest().getSince().getValue().toInstant();
+        List<Instant> resources = RESOURCES.get(type);
+
+        return IntStream.range(0, resources.size())
+                .filter(i -> !onlyFinal || i % 2 == 0)
+                .mapToObj(resources::get)
+                .filter(lastUpdated -> since == null || !lastUpdated.isBefore(since))
+                .filter(lastUpdated -> partition.getLastUpdatedFrom().map(from -> !lastUpdated.isBefore(from)).orElse(true))
+                .filter(lastUpdated -> partition.getLastUpdatedTo().map(lastUpdated::isBefore).orElse(true))
+                .count();
+    }
+
+    /**
+     * Serves searches of the resources, with <code>_summary=count</code>, or sorted by <code>_lastUpdated</code>
+     */
+    private void serveSearch(HttpExchange exchange) throws IOException {
+        URI uri = exchange.getRequestURI();
+        String path = uri.getPath();
+        String type = path.substring(path.lastIndexOf('/') + 1);
+        String query = uri.getQuery();
+        synchronized (queries) {
+            queries.add(query);
+        }
+
+        List<Instant> resources = RESOURCES.get(type);
+        List<Instant> matches = new ArrayList<>();
+        for (int i = 0; i < resources.size(); i++) {
+            if (matches(query, resources.get(i), i % 2 == 0)) {
+                matches.add(resources.get(i));
+            }
+        }
+
+        Bundle bundle = new Bundle().setType(Bundle.BundleType.SEARCHSET).setTotal(matches.size());
+        if (query.contains("_sort=_lastUpdated") && !matches.isEmpty()) {
+            Observation first = new Observation();
+            first.getMeta().setLastUpdated(Date.from(matches.get(0)));
+            bundle.addEntry().setResource(first);
+        }
+
+        byte[] body = fhirContext.newJsonParser().encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", Constants.CT_FHIR_JSON_NEW);
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+
+    private static boolean matches(String query, Instant lastUpdated, boolean isFinal) {
+        for (String parameter : query.split("&")) {
+            String[] nameAndValue = parameter.split("=", 2);
+            String value = nameAndValue.length > 1 ? nameAndValue[1] : "";
+
+            if (nameAndValue[0].equals("_lastUpdated")) {
+                Instant bound = new InstantType(value.substring(2)).getValue().toInstant();
+                if (value.startsWith("ge") && lastUpdated.isBefore(bound)) {
+                    return false;
+                }
+                if (value.startsWith("lt") && !lastUpdated.isBefore(bound)) {
+                    return false;
+                }
+            } else if (nameAndValue[0].equals("status") && !(value.equals("final") && isFinal)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static List<Instant> spread(int count) {
+        long step = Duration.ofDays(366).toMillis() / count;
+        return IntStream.range(0, count).mapToObj(i -> START.plusMillis(i * step)).collect(Collectors.toList());
+    }
+
+    private String baseUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/fhir";
+    }
+}
@@ -0,0 +1,141 @@
+package com.trifork.ehealth.export.poll;
+
+import com.trifork.ehealth.export.progress.ExportProgressParser;
+import com.trifork.ehealth.export.progress.ProgressTracker;
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestPollPlanner {
+    private static final String fingerprint = "http://localhost:8080/fhir/$export|application/fhir+ndjson|all|Patient|";
+    private static final Instant startedAt = Instant.parse("2024-01-01T00:00:00Z");
+
+    @Test
+    void without_a_prediction_the_retry_after_is_followed() {
+        PollPlanner planner = new PollPlanner(new ExportDurationStore(), fingerprint, startedAt);
+
+        assertEquals(Duration.ofSeconds(5), planner.nextPollDelay(startedAt, Optional.of(Duration.ofSeconds(5))));
+        assertEquals(PollPlanner.DEFAULT_POLL_INTERVAL, planner.nextPollDelay(startedAt, Optional.empty()));
+    }
+
+    @Test
+    void polls_are_sparse_early_and_dense_near_the_predicted_completion() {
+        ExportDurationStore store = new ExportDurationStore();
+        store.record(fingerprint, Duration.ofHours(4));
+        PollPlanner planner = new PollPlanner(store, fingerprint, startedAt);
+
+        assertEquals(Duration.ofMinutes(30), planner.nextPollDelay(startedAt, Optional.empty()));
+        assertEquals(Duration.ofMinutes(5), planner.nextPollDelay(startedAt.plus(Duration.ofMinutes(230)), Optional.empty()));
+        assertEquals(Duration.ofSeconds(2), planner.nextPollDelay(startedAt.plus(Duration.ofHours(4)), Optional.empty()));
+
+        // Backing off again, when the export takes longer than predicted
+        assertEquals(Duration.ofMinutes(5), planner.nextPollDelay(startedAt.plus(Duration.ofMinutes(260)), Optional.empty()));
+    }
+
+    @Test
+    void polls_over_a_long_export_are_few() {
+        ExportDurationStore store = new ExportDurationStore();
+        store.record(fingerprint, Duration.ofHours(4));
+        PollPlanner planner = new PollPlanner(store, fingerprint, startedAt);
+
+        int polls = 0;
+        Instant now = startedAt.plus(planner.nextPollDelay(startedAt, Optional.empty()));
+        while (now.isBefore(startedAt.plus(Duration.ofHours(4)))) {
+            now = now.plus(planner.nextPollDelay(now, Optional.empty()));
+            polls++;
+        }
+
+        // Against 1440 polls, every 10 seconds
+        assertTrue(polls < 30, "Polled " + polls + " times");
+    }
+
+    @Test
+    void the_retry_after_is_never_cut_short() {
+        ExportDurationStore store = new ExportDurationStore();
+        store.record(fingerprint, Duration.ofMinutes(10));
+        PollPlanner planner = new PollPlanner(store, fingerprint, startedAt);
+
+        Instant nearCompletion = startedAt.plus(Duration.ofMinutes(9));
+        assertEquals(Duration.ofSeconds(120), planner.nextPollDelay(nearCompletion, Optional.of(Duration.ofSeconds(120))));
+    }
+
+    @Test
+    void completed_exports_update_the_prediction() {
+        ExportDurationStore store = new ExportDurationStore();
+        new PollPlanner(store, fingerprint, startedAt).onCompleted(startedAt.plus(Duration.ofMinutes(10)));
+        new PollPlanner(store, fingerprint, startedAt).onCompleted(startedAt.plus(Duration.ofMinutes(20)));
+
+        assertEquals(Optional.of(Duration.ofMinutes(13)), store.predict(fingerprint));
+        assertEquals(2, store.getCount(fingerprint));
+        assertEquals(Optional.empty(), store.predict("other"));
+    }
+
+    @Test
+    void durations_are_kept_between_runs(@TempDir Path directory) {
+        Path file = directory.resolve("durations.properties");
+        new ExportDurationStore(file).record(fingerprint, Duration.ofMinutes(42));
+
+        ExportDurationStore reloaded = new ExportDurationStore(file);
+        assertEquals(Optional.of(Duration.ofMinutes(42)), reloaded.predict(fingerprint));
+        assertEquals(1, reloaded.getCount(fingerprint));
+    }
+
+    @Test
+    void a_corrupt_file_is_replaced_instead_of_failing_the_store(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("durations.properties");
+        Files.writeString(file, fingerprint + "=not a duration\nother=12\n");
+
+        ExportDurationStore store = new ExportDurationStore(file);
+        assertEquals(Optional.empty(), store.predict(fingerprint));
+        assertEquals(Optional.empty(), store.predict("other"));
+
+        store.record(fingerprint, Duration.ofMinutes(42));
+        assertEquals(Optional.of(Duration.ofMinutes(42)), new ExportDurationStore(file).predict(fingerprint));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(List.of(file), files.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    void the_reported_progress_overrides_the_prediction() {
+        ExportDurationStore store = new ExportDurationStore();
+        store.record(fingerprint, Duration.ofHours(4));
+        PollPlanner planner = new PollPlanner(store, fingerprint, startedAt);
+
+        ProgressTracker tracker = new ProgressTracker();
+        tracker.update(ExportProgressParser.parse("Processed 0 of 1000"), startedAt);
+        planner.onProgress(tracker.update(ExportProgressParser.parse("Processed 500 of 1000"), startedAt.plus(Duration.ofMinutes(10))));
+
+        // Completing in another 10 minutes, instead of the predicted 4 hours
+        Instant now = startedAt.plus(Duration.ofMinutes(10));
+        assertEquals(Duration.ofMinutes(5), planner.nextPollDelay(now, Optional.empty()));
+    }
+
+    @Test
+    void polls_back_off_while_the_export_is_queued() {
+        PollPlanner planner = new PollPlanner();
+        ProgressTracker tracker = new ProgressTracker();
+
+        planner.onProgress(tracker.update(ExportProgressParser.parse("Build in progress - Status set to SUBMITTED at 2024-01-01T00:00:00Z"), startedAt));
+        assertEquals(Duration.ofSeconds(10), planner.nextPollDelay(startedAt, Optional.empty()));
+        planner.onProgress(tracker.update(ExportProgressParser.parse("Build in progress - Status set to SUBMITTED at 2024-01-01T00:00:00Z"), startedAt));
+        assertEquals(Duration.ofSeconds(20), planner.nextPollDelay(startedAt, Optional.empty()));
+
+        planner.onProgress(tracker.update(ExportProgressParser.parse("Build in progress - Status set to IN_PROGRESS at 2024-01-01T00:00:30Z"), startedAt));
+        assertEquals(Duration.ofSeconds(10), planner.nextPollDelay(startedAt, Optional.empty()));
+    }
+}
@@ -0,0 +1,102 @@
+package com.trifork.ehealth.export.progress;
+
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestExportProgressParser {
+    private static final Instant start = Instant.parse("2024-01-01T00:00:00Z");
+
+    @Test
+    void hapi_fhir_status() {
+        ExportProgress progress = ExportProgressParser.parse("Build in progress - Status set to IN_PROGRESS at 2023-11-24T09:15:42.295+00:00");
+
+        assertEquals(Optional.of("IN_PROGRESS"), progress.getPhase());
+        assertTrue(progress.getProcessed().isEmpty());
+        assertTrue(progress.getFraction().isEmpty());
+        assertFalse(progress.isQueued());
+        assertTrue(ExportProgressParser.parse("Build in progress - Status set to SUBMITTED at 2023-11-24T09:15:42.295+00:00").isQueued());
+    }
+
+    @Test
+    void counts_and_percentages() {
+        ExportProgress counts = ExportProgressParser.parse("Processed 1,200 of 5,000 resources");
+        assertEquals(1200, counts.getProcessed().getAsLong());
+        assertEquals(5000, counts.getTotal().getAsLong());
+        assertEquals(0.24, counts.getFraction().getAsDouble(), 0.0001);
+
+        ExportProgress percent = ExportProgressParser.parse("42% complete");
+        assertEquals(0.42, percent.getFraction().getAsDouble(), 0.0001);
+
+        ExportProgress processed = ExportProgressParser.parse("Exported 300 resources");
+        assertEquals(300, processed.getProcessed().getAsLong());
+        assertTrue(processed.getTotal().isEmpty());
+    }
+
+    @Test
+    void dates_and_overlong_numbers_are_not_counts() {
+        ExportProgress dated = ExportProgressParser.parse("IN_PROGRESS since 2024/06/01 12:00");
+        assertEquals(Optional.of("IN_PROGRESS"), dated.getPhase());
+        assertTrue(dated.getProcessed().isEmpty());
+        assertTrue(dated.getTotal().isEmpty());
+
+        ExportProgress overlong = ExportProgressParser.parse("Processed 12 of 99999999999999999999999 resources");
+        assertEquals(12, overlong.getProcessed().getAsLong());
+        assertTrue(overlong.getTotal().isEmpty());
+        assertEquals(200, ExportProgressParser.parse("Processed 200/1000.").getProcessed().getAsLong());
+    }
+
+    @Test
+    void unrecognized_progress_keeps_the_raw_header() {
+        ExportProgress progress = ExportProgressParser.parse("working on it");
+
+        assertEquals("working on it", progress.getRaw());
+        assertTrue(progress.getPhase().isEmpty());
+        assertTrue(progress.getFraction().isEmpty());
+    }
+
+    @Test
+    void only_known_or_labelled_phases_are_taken_from_upper_case_words() {
+        ExportProgress fhir = ExportProgressParser.parse("FHIR export 40%");
+        assertTrue(fhir.getPhase().isEmpty());
+        assertEquals(0.4, fhir.getFraction().getAsDouble(), 0.0001);
+        assertTrue(ExportProgressParser.parse("OK").getPhase().isEmpty());
+
+        assertEquals(Optional.of("BUILDING"), ExportProgressParser.parse("NDJSON BUILDING 100 of 200").getPhase());
+        assertEquals(Optional.of("INDEXING"), ExportProgressParser.parse("FHIR export, phase: indexing").getPhase());
+    }
+
+    @Test
+    void throughput_and_completion_are_estimated_across_polls() {
+        ProgressTracker tracker = new ProgressTracker();
+
+        ProgressEstimate first = tracker.update(ExportProgressParser.parse("Processed 0 of 1000"), start);
+        assertTrue(first.getEstimatedCompletion().isEmpty());
+
+        ProgressEstimate second = tracker.update(ExportProgressParser.parse("Processed 250 of 1000"), start.plusSeconds(10));
+        assertEquals(25, second.getThroughput().getAsDouble(), 0.0001);
+        assertEquals(Optional.of(start.plusSeconds(40)), second.getEstimatedCompletion());
+    }
+
+    @Test
+    void tracking_starts_over_in_a_new_phase() {
+        ProgressTracker tracker = new ProgressTracker();
+
+        tracker.update(ExportProgressParser.parse("BUILDING 100 of 200"), start);
+        tracker.update(ExportProgressParser.parse("BUILDING 200 of 200"), start.plusSeconds(10));
+        ProgressEstimate writing = tracker.update(ExportProgressParser.parse("WRITING 0 of 200"), start.plusSeconds(20));
+
+        assertTrue(writing.getThroughput().isEmpty());
+        assertTrue(writing.getEstimatedCompletion().isEmpty());
+
+        ProgressEstimate later = tracker.update(ExportProgressParser.parse("WRITING 100 of 200"), start.plus(Duration.ofSeconds(30)));
+        assertEquals(Optional.of(start.plusSeconds(40)), later.getEstimatedCompletion());
+    }
+}
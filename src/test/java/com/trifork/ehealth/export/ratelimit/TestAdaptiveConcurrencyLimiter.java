@@ -0,0 +1,105 @@
+package com.trifork.ehealth.export.ratelimit;
+
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestAdaptiveConcurrencyLimiter {
+    private static final Duration LATENCY = Duration.ofMillis(100);
+
+    @Test
+    void the_limit_grows_up_to_the_max_while_latency_is_stable() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 6);
+
+        completeRound(limiter, LATENCY);
+        completeRound(limiter, LATENCY);
+        assertEquals(3, limiter.getLimit());
+
+        for (int round = 0; round < 20; round++) {
+            completeRound(limiter, LATENCY);
+        }
+        assertEquals(6, limiter.getLimit());
+
+        assertThat(limiter.getHistory()).extracting(AdaptiveConcurrencyLimiter.LimitChange::getLimit).containsExactly(2, 3, 4, 5, 6);
+    }
+
+    @Test
+    void failures_cut_the_limit_once_per_round() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, 1, 8);
+
+        List<AdaptiveConcurrencyLimiter.Permit> permits = acquire(limiter, 8);
+        permits.forEach(permit -> permit.onDropped("server responded with 503"));
+        assertEquals(4, limiter.getLimit());
+
+        acquire(limiter, 4).forEach(permit -> permit.onDropped("server responded with 503"));
+        assertEquals(2, limiter.getLimit());
+
+        for (int round = 0; round < 5; round++) {
+            acquire(limiter, limiter.getLimit()).forEach(permit -> permit.onDropped("server responded with 503"));
+        }
+        assertEquals(1, limiter.getLimit());
+
+        AdaptiveConcurrencyLimiter.LimitChange last = limiter.getHistory().get(limiter.getHistory().size() - 1);
+        assertEquals(1, last.getLimit());
+        assertEquals("server responded with 503", last.getReason());
+    }
+
+    @Test
+    void latency_spikes_cut_the_limit() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 10);
+        completeRound(limiter, LATENCY);
+        assertEquals(LATENCY, limiter.getBaselineLatency());
+
+        completeRound(limiter, LATENCY.multipliedBy(5));
+
+        assertEquals(2, limiter.getLimit());
+        assertThat(limiter.getHistory().get(limiter.getHistory().size() - 1).getReason()).startsWith("latency of 500ms");
+    }
+
+    @Test
+    void requests_beyond_the_limit_wait_for_a_permit() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+        AdaptiveConcurrencyLimiter.Permit permit = limiter.acquire();
+
+        CompletableFuture<AdaptiveConcurrencyLimiter.Permit> next = CompletableFuture.supplyAsync(() -> {
+            try {
+                return limiter.acquire();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertThrows(TimeoutException.class, () -> next.get(200, TimeUnit.MILLISECONDS));
+
+        permit.onIgnored();
+        // Releasing twice does not free a second permit
+        permit.onIgnored();
+
+        next.get(5, TimeUnit.SECONDS);
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    private static void completeRound(AdaptiveConcurrencyLimiter limiter, Duration latency) throws InterruptedException {
+        acquire(limiter, limiter.getLimit()).forEach(permit -> permit.onSuccess(latency));
+    }
+
+    private static List<AdaptiveConcurrencyLimiter.Permit> acquire(AdaptiveConcurrencyLimiter limiter, int count) throws InterruptedException {
+        List<AdaptiveConcurrencyLimiter.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            permits.add(limiter.acquire());
+        }
+
+        return permits;
+    }
+}
@@ -0,0 +1,70 @@
+package com.trifork.ehealth.export.ratelimit;
+
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestHostRateLimiter {
+    private static final URI server = URI.create("http://localhost:8080/fhir/$export-poll-status?jobId=1337");
+    private static final URI otherServer = URI.create("http://localhost:9090/fhir/Binary/1");
+
+    @Test
+    void requests_beyond_the_burst_are_spread_over_time() throws InterruptedException {
+        HostRateLimiter rateLimiter = new HostRateLimiter(50, 2);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 7; i++) {
+            rateLimiter.acquire(server);
+        }
+
+        // 2 requests at once, and 5 more at 50 per second
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isGreaterThanOrEqualTo(Duration.ofMillis(90));
+    }
+
+    @Test
+    void throttling_pauses_for_retry_after_and_halves_the_rate() throws InterruptedException {
+        HostRateLimiter rateLimiter = new HostRateLimiter(100, 10);
+
+        long start = System.nanoTime();
+        rateLimiter.onResponse(server, 429, Optional.of(Duration.ofMillis(200)));
+        rateLimiter.acquire(server);
+
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isGreaterThanOrEqualTo(Duration.ofMillis(200));
+        assertEquals(50, rateLimiter.getPermitsPerSecond(server));
+    }
+
+    @Test
+    void the_rate_recovers_gradually_after_throttling() {
+        HostRateLimiter rateLimiter = new HostRateLimiter(100, 10).setRecoveryStep(10);
+
+        rateLimiter.onResponse(server, 503, Optional.of(Duration.ZERO));
+        rateLimiter.onResponse(server, 503, Optional.of(Duration.ZERO));
+        assertEquals(25, rateLimiter.getPermitsPerSecond(server));
+
+        rateLimiter.onResponse(server, 202, Optional.of(Duration.ofSeconds(30)));
+        assertEquals(35, rateLimiter.getPermitsPerSecond(server));
+
+        for (int i = 0; i < 10; i++) {
+            rateLimiter.onResponse(server, 200, Optional.empty());
+        }
+        assertEquals(100, rateLimiter.getPermitsPerSecond(server));
+    }
+
+    @Test
+    void hosts_are_limited_independently() {
+        HostRateLimiter rateLimiter = new HostRateLimiter(100, 10);
+
+        rateLimiter.onResponse(server, 429, Optional.empty());
+
+        assertEquals(50, rateLimiter.getPermitsPerSecond(server));
+        assertEquals(100, rateLimiter.getPermitsPerSecond(otherServer));
+    }
+}
@@ -0,0 +1,184 @@
+package com.trifork.ehealth.export.replicate;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.trifork.ehealth.export.pipeline.ResourceBatch;
+import com.trifork.ehealth.export.ratelimit.AdaptiveConcurrencyLimiter;
+import com.trifork.ehealth.export.response.BDExportResultResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestReplicationSink {
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private final Set<String> stored = ConcurrentHashMap.newKeySet();
+    private final List<Integer> bundleSizes = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger throttledResponses = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private volatile String rejectedId;
+    private volatile String retryAfter = "0";
+    private HttpServer server;
+    private IGenericClient client;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/fhir", this::serveBundle);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        fhirContext.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        client = fhirContext.newRestfulGenericClient("http://localhost:" + server.getAddress().getPort() + "/fhir");
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void resources_are_replicated_in_bundles_and_throttled_bundles_are_retried() throws Exception {
+        throttledResponses.set(3);
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 8);
+
+        try (ReplicationSink sink = new ReplicationSink(client, limiter).setBundleSize(25).setBackoff(Duration.ofMillis(10))) {
+            // Batches of output files do not line up with the bundles
+            sink.accept(batch(patients(0, 40)));
+            sink.accept(batch(patients(40, 130)));
+            sink.accept(batch(patients(130, 210)));
+            sink.flush();
+
+            assertEquals(210, sink.getResourcesSent());
+            assertEquals(9, sink.getBundlesSent());
+            assertEquals(3, sink.getRetries());
+        }
+
+        assertEquals(IntStream.range(0, 210).mapToObj(i -> "Patient/p-" + i).collect(Collectors.toSet()), stored);
+        assertThat(bundleSizes).allMatch(size -> size <= 25);
+        assertThat(maxInFlight.get()).isLessThanOrEqualTo(8);
+        assertThat(limiter.getHistory()).anyMatch(change -> change.getReason().contains("429"));
+    }
+
+    @Test
+    void a_retry_after_date_is_honoured_by_daemon_sender_threads() throws Exception {
+        throttledResponses.set(1);
+        // In the past, so the retry is immediate, instead of after the backoff
+        retryAfter = "Wed, 21 Oct 2015 07:28:00 GMT";
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+
+        try (ReplicationSink sink = new ReplicationSink(client, limiter).setBundleSize(5).setBackoff(Duration.ofMinutes(5))) {
+            assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+                sink.accept(batch(patients(0, 5)));
+                sink.flush();
+            });
+
+            assertEquals(1, sink.getRetries());
+            assertThat(Thread.getAllStackTraces().keySet())
+                    .filteredOn(thread -> thread.getName().startsWith("bd-export-replication-"))
+                    .isNotEmpty()
+                    .allMatch(Thread::isDaemon);
+        }
+    }
+
+    @Test
+    void a_rejected_bundle_fails_the_replication() throws Exception {
+        rejectedId = "p-7";
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 2);
+
+        ReplicationSink sink = new ReplicationSink(client, limiter).setBundleSize(5).setBackoff(Duration.ofMillis(10));
+        sink.accept(batch(patients(0, 20)));
+
+        assertThrows(IOException.class, sink::flush);
+        assertThrows(IOException.class, () -> sink.accept(batch(patients(20, 25))));
+        assertEquals(0, sink.getRetries());
+        assertThat(stored).doesNotContain("Patient/p-5", "Patient/p-7", "Patient/p-9");
+    }
+
+    private void serveBundle(HttpExchange exchange) throws IOException {
+        int current = inFlight.incrementAndGet();
+        maxInFlight.accumulateAndGet(current, Math::max);
+        try {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            Bundle request = fhirContext.newJsonParser().parseResource(Bundle.class, body);
+            Thread.sleep(5);
+
+            if (throttledResponses.getAndDecrement() > 0) {
+                exchange.getResponseHeaders().add("Retry-After", retryAfter);
+                respond(exchange, 429, new OperationOutcome());
+                return;
+            }
+
+            List<String> ids = request.getEntry().stream().map(entry -> entry.getRequest().getUrl()).collect(Collectors.toList());
+            if (rejectedId != null && ids.contains("Patient/" + rejectedId)) {
+                respond(exchange, 400, new OperationOutcome());
+                return;
+            }
+
+            bundleSizes.add(ids.size());
+            stored.addAll(ids);
+
+            Bundle response = new Bundle().setType(Bundle.BundleType.TRANSACTIONRESPONSE);
+            for (String id : ids) {
+                response.addEntry().getResponse().setStatus("201 Created").setLocation(id + "/_history/1");
+            }
+            respond(exchange, 200, response);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inFlight.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    private void respond(HttpExchange exchange, int status, IBaseResource resource) throws IOException {
+        byte[] body = fhirContext.newJsonParser().encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", Constants.CT_FHIR_JSON_NEW);
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static ResourceBatch batch(List<IBaseResource> resources) {
+        return new ResourceBatch(new BDExportResultResponse.OutputItem("Patient", "http://localhost/Patient.ndjson"), 0, false, resources);
+    }
+
+    private static List<IBaseResource> patients(int from, int to) {
+        List<IBaseResource> patients = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            Patient patient = new Patient();
+            patient.setId("Patient/p-" + i);
+            patients.add(patient);
+        }
+        return patients;
+    }
+}
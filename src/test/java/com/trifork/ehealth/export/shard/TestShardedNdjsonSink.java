@@ -0,0 +1,132 @@
+package com.trifork.ehealth.export.shard;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.trifork.ehealth.export.pipeline.ResourceBatch;
+import com.trifork.ehealth.export.response.BDExportResultResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestShardedNdjsonSink {
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void resources_and_raw_lines_are_sharded_evenly_by_id_into_gzipped_files() throws Exception {
+        List<IBaseResource> patients = patients(1000);
+        try (ShardedNdjsonSink sink = new ShardedNdjsonSink(fhirContext, directory.resolve("resources"), 4, ShardedNdjsonSink.ShardKey.RESOURCE_ID, true)) {
+            sink.accept(batch(patients.subList(0, 600)));
+            sink.accept(batch(patients.subList(600, 1000)));
+        }
+
+        String ndjson = patients.stream().map(fhirContext.newJsonParser()::encodeResourceToString).collect(Collectors.joining("\n"));
+        try (ShardedNdjsonSink sink = new ShardedNdjsonSink(fhirContext, directory.resolve("lines"), 4, ShardedNdjsonSink.ShardKey.RESOURCE_ID, true)) {
+            assertEquals(1000, sink.write(new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8))));
+        }
+
+        ShardManifest manifest = ShardManifest.read(directory.resolve("resources"));
+        assertEquals(ShardedNdjsonSink.ShardKey.RESOURCE_ID, manifest.getShardKey());
+        assertEquals(4, manifest.getShards().size());
+        assertEquals(1000, manifest.getShards().stream().mapToLong(ShardManifest.Shard::getCount).sum());
+
+        for (ShardManifest.Shard shard : manifest.getShards()) {
+            assertEquals("shard-0000" + shard.getIndex() + "-of-00004.ndjson.gz", shard.getFile());
+            assertThat(shard.getCount()).isBetween(200L, 300L);
+            assertEquals(Map.of("Patient", shard.getCount()), shard.getTypes());
+
+            List<String> lines = readShard(directory.resolve("resources"), shard);
+            assertEquals(shard.getCount(), lines.size());
+            assertEquals(shard.getBytes(), lines.stream().mapToLong(line -> line.length() + 1).sum());
+
+            // Raw lines of the same resources go to the same shard
+            assertEquals(lines, readShard(directory.resolve("lines"), shard));
+        }
+    }
+
+    @Test
+    void resources_are_sharded_with_their_patient() throws Exception {
+        List<IBaseResource> resources = new ArrayList<>(patients(100));
+        for (int i = 0; i < 300; i++) {
+            Observation observation = new Observation();
+            observation.setId("Observation/o-" + i);
+            observation.setSubject(new Reference("Patient/p-" + i % 100));
+            resources.add(observation);
+        }
+
+        ShardManifest manifest;
+        try (ShardedNdjsonSink sink = new ShardedNdjsonSink(fhirContext, directory, 3, ShardedNdjsonSink.ShardKey.PATIENT, false)) {
+            sink.accept(batch(resources.subList(100, 400)));
+            sink.accept(batch(resources.subList(0, 100)));
+
+            assertThrows(IllegalStateException.class, () -> sink.write(new ByteArrayInputStream(new byte[0])));
+            manifest = sink.finish();
+        }
+
+        Map<String, Integer> shardOfPatient = new HashMap<>();
+        for (ShardManifest.Shard shard : manifest.getShards()) {
+            for (String line : readShard(directory, shard)) {
+                if (line.contains("\"resourceType\":\"Patient\"")) {
+                    shardOfPatient.put(fhirContext.newJsonParser().parseResource(Patient.class, line).getIdElement().getIdPart(), shard.getIndex());
+                }
+            }
+        }
+        assertEquals(100, shardOfPatient.size());
+
+        for (ShardManifest.Shard shard : manifest.getShards()) {
+            for (String line : readShard(directory, shard)) {
+                if (line.contains("\"resourceType\":\"Observation\"")) {
+                    Observation observation = fhirContext.newJsonParser().parseResource(Observation.class, line);
+                    assertEquals(shard.getIndex(), shardOfPatient.get(observation.getSubject().getReferenceElement().getIdPart()));
+                }
+            }
+        }
+        assertEquals(400, manifest.getShards().stream().mapToLong(ShardManifest.Shard::getCount).sum());
+    }
+
+    private static List<String> readShard(Path directory, ShardManifest.Shard shard) throws IOException {
+        Path file = directory.resolve(shard.getFile());
+        try (InputStream in = shard.getFile().endsWith(".gz") ? new GZIPInputStream(Files.newInputStream(file)) : Files.newInputStream(file)) {
+            String content = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            return content.isEmpty() ? List.of() : List.of(content.split("\n"));
+        }
+    }
+
+    private static ResourceBatch batch(List<IBaseResource> resources) {
+        return new ResourceBatch(new BDExportResultResponse.OutputItem("Patient", "http://localhost/Patient.ndjson"), 0, false, resources);
+    }
+
+    private static List<IBaseResource> patients(int count) {
+        List<IBaseResource> patients = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Patient patient = new Patient();
+            patient.setId("Patient/p-" + i);
+            patients.add(patient);
+        }
+        return patients;
+    }
+}
@@ -0,0 +1,115 @@
+package com.trifork.ehealth.export.sort;
+
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestExternalMerger {
+    /**
+     * Records are compared by their value only, so the run they came from decides the order of equal values
+     */
+    private static final Comparator<int[]> BY_VALUE = Comparator.comparingInt(record -> record[0]);
+    private static final ExternalMerger.RecordFormat<int[]> FORMAT = new ExternalMerger.RecordFormat<>() {
+        @Override
+        public void write(DataOutputStream out, int[] record) throws IOException {
+            out.writeInt(record[0]);
+            out.writeInt(record[1]);
+        }
+
+        @Override
+        public int[] read(DataInputStream in) throws IOException {
+            try {
+                return new int[]{in.readInt(), in.readInt()};
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+    };
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void runs_beyond_the_fan_in_are_merged_in_passes_keeping_the_order_of_equal_records() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<int[]> merged = new ArrayList<>();
+
+        try (ExternalMerger<int[]> merger = new ExternalMerger<>(directory, "test.run-", BY_VALUE, FORMAT).setFanIn(3).setExecutor(executor)) {
+            // Every run has the values 0 to 9, tagged with the number of the run
+            for (int run = 0; run < 20; run++) {
+                merger.spill(run(run));
+            }
+
+            try (ExternalMerger.MergedRecords<int[]> records = merger.merge(run(20))) {
+                int[] record;
+                while ((record = records.next()) != null) {
+                    merged.add(record);
+                }
+                assertNull(records.next());
+            }
+
+            // 20 runs and the run in memory, merged by at most 3 at a time
+            assertThat(merger.getMergePasses()).isGreaterThanOrEqualTo(3);
+            assertThat(merger.getRunsWritten()).isGreaterThan(20);
+            assertThrows(IllegalStateException.class, () -> merger.merge(List.of()));
+        } finally {
+            executor.shutdown();
+        }
+
+        List<String> expected = IntStream.range(0, 10).boxed()
+                .flatMap(value -> IntStream.rangeClosed(0, 20).mapToObj(run -> value + "@" + run))
+                .collect(Collectors.toList());
+        assertEquals(expected, merged.stream().map(record -> record[0] + "@" + record[1]).collect(Collectors.toList()));
+
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files).isEmpty();
+        }
+    }
+
+    @Test
+    void mergers_sharing_a_directory_keep_their_runs_apart() throws Exception {
+        try (ExternalMerger<int[]> first = new ExternalMerger<>(directory, "shared.run-", BY_VALUE, FORMAT);
+             ExternalMerger<int[]> second = new ExternalMerger<>(directory, "shared.run-", BY_VALUE, FORMAT)) {
+            first.spill(run(1));
+            second.spill(run(2));
+            first.spill(run(1));
+
+            try (ExternalMerger.MergedRecords<int[]> records = second.merge(List.of())) {
+                int[] record;
+                int count = 0;
+                while ((record = records.next()) != null) {
+                    assertEquals(2, record[1]);
+                    count++;
+                }
+                assertEquals(10, count);
+            }
+            assertEquals(1, second.getMergePasses());
+        }
+    }
+
+    private static List<int[]> run(int run) {
+        return IntStream.range(0, 10).mapToObj(value -> new int[]{value, run}).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,92 @@
+package com.trifork.ehealth.export.sort;
+
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestNdjsonSorter {
+    @TempDir
+    Path directory;
+
+    @Test
+    void lines_are_sorted_by_id_across_spilled_runs_and_merge_passes() throws Exception {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            ids.add(String.format("p-%05d", i));
+        }
+        Collections.shuffle(ids, new Random(42));
+
+        String sorted;
+        try (NdjsonSorter sorter = new NdjsonSorter(NdjsonSorter.SortKey.ID, directory, 16 * 1024, 3).setFanIn(4)) {
+            // Two output files, like an export split by the server
+            assertEquals(1000, sorter.add(ndjson(ids.subList(0, 1000).stream().map(TestNdjsonSorter::patient))));
+            assertEquals(1000, sorter.add(ndjson(ids.subList(1000, 2000).stream().map(TestNdjsonSorter::patient))));
+
+            sorted = writeTo(sorter);
+
+            assertThat(sorter.getSpilledRuns()).isGreaterThan(16);
+            assertThat(sorter.getMergePasses()).isGreaterThanOrEqualTo(3);
+        }
+
+        List<String> expected = ids.stream().sorted().map(TestNdjsonSorter::patient).collect(Collectors.toList());
+        assertEquals(String.join("\n", expected) + "\n", sorted);
+
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files).isEmpty();
+        }
+    }
+
+    @Test
+    void lines_are_sorted_by_last_updated_in_utc_keeping_the_order_of_equal_keys() throws Exception {
+        List<String> lines = Arrays.asList(
+                "{\"resourceType\":\"Observation\",\"id\":\"b\",\"meta\":{\"lastUpdated\":\"2024-01-01T12:00:00+02:00\"}}",
+                "{\"resourceType\":\"Observation\",\"id\":\"c\",\"meta\":{\"lastUpdated\":\"2024-01-01T10:30:00.5Z\"}}",
+                "{\"resourceType\":\"Observation\",\"id\":\"a\",\"meta\":{\"lastUpdated\":\"2024-01-01T09:00:00.000Z\"}}",
+                "{\"resourceType\":\"Observation\",\"id\":\"d\"}",
+                "{\"resourceType\":\"Observation\",\"id\":\"b\",\"status\":\"final\",\"meta\":{\"lastUpdated\":\"2024-01-01T10:00:00Z\"}}"
+        );
+
+        String sorted;
+        try (NdjsonSorter sorter = new NdjsonSorter(NdjsonSorter.SortKey.LAST_UPDATED, directory, 1024 * 1024, 2)) {
+            sorter.add(ndjson(lines.stream()));
+            sorted = writeTo(sorter);
+
+            assertEquals(0, sorter.getSpilledRuns());
+            assertEquals(0, sorter.getMergePasses());
+        }
+
+        assertEquals(String.join("\n", lines.get(3), lines.get(2), lines.get(0), lines.get(4), lines.get(1)) + "\n", sorted);
+    }
+
+    private static String writeTo(NdjsonSorter sorter) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sorter.writeTo(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static ByteArrayInputStream ndjson(Stream<String> lines) {
+        return new ByteArrayInputStream(lines.collect(Collectors.joining("\n")).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String patient(String id) {
+        return "{\"resourceType\":\"Patient\",\"id\":\"" + id + "\",\"active\":true}";
+    }
+}
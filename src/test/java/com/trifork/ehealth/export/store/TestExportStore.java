@@ -0,0 +1,77 @@
+package com.trifork.ehealth.export.store;
+
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestExportStore {
+    @TempDir
+    Path directory;
+
+    @Test
+    void resources_are_found_by_id_across_merged_index_runs() throws Exception {
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            ndjson.append("{\"resourceType\":\"Patient\",\"id\":\"p-").append(i).append("\",\"active\":").append(i % 2 == 0).append("}\n");
+            ndjson.append("{\"resourceType\":\"Observation\",\"id\":\"o-").append(i).append("\",\"note\":\"").append("x".repeat(i * 1000)).append("\"}\n");
+        }
+
+        // Runs of 7 records, so every index is merged from several runs
+        try (ExportStoreWriter writer = new ExportStoreWriter(directory, 7)) {
+            assertEquals(200, writer.write(new ByteArrayInputStream(ndjson.toString().getBytes(StandardCharsets.UTF_8))));
+        }
+
+        try (ExportStore store = ExportStore.open(directory)) {
+            assertEquals(Set.of("Observation", "Patient"), store.getResourceTypes());
+            assertEquals(100, store.count("Patient"));
+
+            for (int i = 0; i < 100; i++) {
+                assertEquals(Optional.of("{\"resourceType\":\"Patient\",\"id\":\"p-" + i + "\",\"active\":" + (i % 2 == 0) + "}"),
+                        store.find("Patient", "p-" + i));
+            }
+            assertEquals(99 * 1000, store.find("Observation", "o-99").orElseThrow().length() - "{\"resourceType\":\"Observation\",\"id\":\"o-99\",\"note\":\"\"}".length());
+
+            assertEquals(Optional.empty(), store.find("Patient", "o-1"));
+            assertEquals(Optional.empty(), store.find("Encounter", "p-1"));
+        }
+
+        try (Stream<Path> files = Files.list(directory)) {
+            assertTrue(files.noneMatch(file -> file.toString().endsWith(".tmp")));
+        }
+    }
+
+    @Test
+    void resources_are_iterated_by_type_in_written_order() throws Exception {
+        try (ExportStoreWriter writer = new ExportStoreWriter(directory)) {
+            writer.write(new ByteArrayInputStream((
+                    "{\"resourceType\":\"Patient\",\"id\":\"b\"}\n"
+                            + "{\"resourceType\":\"Basic\",\"id\":\"x\"}\n"
+                            + "{\"resourceType\":\"Patient\",\"id\":\"a\"}\n").getBytes(StandardCharsets.UTF_8)));
+            writer.write(new ByteArrayInputStream("{\"resourceType\":\"Patient\"}\n".getBytes(StandardCharsets.UTF_8)));
+        }
+
+        try (ExportStore store = ExportStore.open(directory)) {
+            List<String> ids = new ArrayList<>();
+            assertEquals(3, store.forEachLine("Patient", header -> ids.add(header.hasId() ? header.getId() : null)));
+
+            assertEquals(Arrays.asList("b", "a", null), ids);
+            // Lines without an id are stored, but not indexed
+            assertEquals(2, store.count("Patient"));
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.trifork.ehealth.export.view;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.trifork.ehealth.export.pipeline.ResourceBatch;
+import com.trifork.ehealth.export.response.BDExportResultResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.DisplayNameGeneration;
+import org.junit.jupiter.api.DisplayNameGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@DisplayNameGeneration(DisplayNameGenerator.ReplaceUnderscores.class)
+public class TestCsvViewWriter {
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    void resources_are_flattened_with_a_row_for_every_repeated_element() throws Exception {
+        ViewDefinition view = new ViewDefinition("patient_telecom", "Patient")
+                .addSelect(new ViewDefinition.Select()
+                        .addColumn("id", "getResourceKey()")
+                        .addColumn("family", "name.where(use = 'official').family")
+                        .addCollectionColumn("given", "name.where(use = 'official').given"))
+                .addSelect(new ViewDefinition.Select()
+                        .setForEachOrNull("telecom")
+                        .addColumn("system", "system")
+                        .addColumn("value", "value"))
+                .addWhere("active = true");
+
+        Patient first = patient("p-1", true);
+        first.addName().setUse(HumanName.NameUse.OFFICIAL).setFamily("Hansen, Jr.").addGiven("Anne").addGiven("Marie");
+        first.addName().setUse(HumanName.NameUse.NICKNAME).setFamily("Annie");
+        first.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setValue("12345678");
+        first.addTelecom().setSystem(ContactPoint.ContactPointSystem.EMAIL).setValue("anne@example.com");
+        Patient second = patient("p-2", true);
+        second.addName().setUse(HumanName.NameUse.OFFICIAL).setFamily("Say \"Ole\"");
+        Patient inactive = patient("p-3", false);
+
+        StringWriter out = new StringWriter();
+        CsvViewWriter writer = new CsvViewWriter(fhirContext, view, out);
+        writer.accept(batch(first, inactive, new Observation()));
+        writer.accept(batch(second));
+
+        assertEquals(3, writer.getRows());
+        assertEquals("id,family,given,system,value\r\n"
+                + "p-1,\"Hansen, Jr.\",Anne|Marie,phone,12345678\r\n"
+                + "p-1,\"Hansen, Jr.\",Anne|Marie,email,anne@example.com\r\n"
+                + "p-2,\"Say \"\"Ole\"\"\",,,\r\n", out.toString());
+    }
+
+    @Test
+    void a_view_definition_in_json_flattens_raw_lines() throws Exception {
+        ViewDefinition view = ViewDefinition.fromJson("{\"resourceType\":\"ViewDefinition\",\"name\":\"components\","
+                + "\"resource\":\"Observation\",\"status\":\"active\",\"select\":["
+                + "{\"column\":[{\"name\":\"id\",\"path\":\"getResourceKey()\"},"
+                + "{\"name\":\"patient\",\"path\":\"subject.getReferenceKey(Patient)\"}]},"
+                + "{\"forEach\":\"component\",\"column\":[{\"name\":\"code\",\"path\":\"code.coding.code\"},"
+                + "{\"name\":\"value\",\"path\":\"value.ofType(Quantity).value\"}]}]}");
+
+        Observation pressure = new Observation();
+        pressure.setId("Observation/o-1");
+        pressure.setSubject(new Reference("Patient/p-1"));
+        pressure.addComponent().setCode(code("8480-6")).setValue(new Quantity(120));
+        pressure.addComponent().setCode(code("8462-4")).setValue(new Quantity(80));
+        // Without components, an Observation has no rows
+        Observation empty = new Observation();
+        empty.setId("Observation/o-2");
+
+        String ndjson = Stream.of(pressure, patient("p-1", true), empty)
+                .map(fhirContext.newJsonParser()::encodeResourceToString)
+                .collect(Collectors.joining("\n"));
+
+        StringWriter out = new StringWriter();
+        CsvViewWriter writer = new CsvViewWriter(fhirContext, view, out);
+
+        assertEquals(2, writer.write(new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8))));
+        assertEquals("id,patient,code,value\r\n"
+                + "o-1,p-1,8480-6,120\r\n"
+                + "o-1,p-1,8462-4,80\r\n", out.toString());
+    }
+
+    @Test
+    void several_values_in_a_column_that_is_not_a_collection_are_an_error() {
+        CompiledView view = CompiledView.compile(fhirContext, new ViewDefinition("names", "Patient")
+                .addSelect(new ViewDefinition.Select().addColumn("given", "name.given")));
+
+        Patient patient = patient("p-1", true);
+        patient.addName().addGiven("Anne").addGiven("Marie");
+
+        assertEquals(List.of("given"), view.getColumnNames());
+        assertThrows(IllegalArgumentException.class, () -> view.rowsOf(patient));
+        assertThrows(IllegalArgumentException.class, () -> CompiledView.compile(fhirContext, new ViewDefinition("unknown", "Unknown")));
+    }
+
+    @Test
+    void a_view_definition_using_unsupported_elements_is_rejected() throws Exception {
+        String columns = "\"column\":[{\"name\":\"id\",\"path\":\"getResourceKey()\"}]";
+        ViewDefinition constant = ViewDefinition.fromJson("{\"name\":\"constant\",\"resource\":\"Patient\","
+                + "\"constant\":[{\"name\":\"system\",\"valueString\":\"http://loinc.org\"}],\"select\":[{" + columns + "}]}");
+        ViewDefinition unionAll = ViewDefinition.fromJson("{\"name\":\"union\",\"resource\":\"Patient\",\"select\":[{"
+                + columns + ",\"unionAll\":[{\"forEach\":\"telecom\"},{\"forEach\":\"contact.telecom\"}]}]}");
+        // Metadata, and empty unsupported elements, do not change the rows
+        ViewDefinition metadata = ViewDefinition.fromJson("{\"name\":\"metadata\",\"resource\":\"Patient\","
+                + "\"url\":\"http://example.com/view\",\"constant\":[],\"select\":[{" + columns + "}]}");
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> CompiledView.compile(fhirContext, constant));
+        assertEquals("View 'constant' uses unsupported elements: [constant]", e.getMessage());
+        e = assertThrows(IllegalArgumentException.class, () -> CompiledView.compile(fhirContext, unionAll));
+        assertEquals("A select uses unsupported elements: [unionAll]", e.getMessage());
+        assertEquals(List.of("id"), CompiledView.compile(fhirContext, metadata).getColumnNames());
+    }
+
+    private static CodeableConcept code(String code) {
+        CodeableConcept concept = new CodeableConcept();
+        concept.addCoding().setSystem("http://loinc.org").setCode(code);
+        return concept;
+    }
+
+    private static Patient patient(String id, boolean active) {
+        Patient patient = new Patient();
+        patient.setId("Patient/" + id);
+        patient.setActive(active);
+        return patient;
+    }
+
+    private static ResourceBatch batch(IBaseResource... resources) {
+        return new ResourceBatch(new BDExportResultResponse.OutputItem("Patient", "http://localhost/Patient.ndjson"), 0, true, List.of(resources));
+    }
+}